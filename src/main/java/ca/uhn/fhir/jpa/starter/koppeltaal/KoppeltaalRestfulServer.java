@@ -12,7 +12,10 @@ import ca.uhn.fhir.jpa.starter.koppeltaal.config.FhirServerSecurityConfiguration
 import ca.uhn.fhir.jpa.starter.koppeltaal.config.OpenApiConfiguration;
 import ca.uhn.fhir.jpa.starter.koppeltaal.config.SmartBackendServiceConfiguration;
 import ca.uhn.fhir.jpa.starter.koppeltaal.interceptor.*;
+import ca.uhn.fhir.jpa.starter.koppeltaal.provider.AuditEventExportProvider;
+import ca.uhn.fhir.jpa.starter.koppeltaal.provider.SubscriptionReplayProvider;
 import ca.uhn.fhir.jpa.starter.koppeltaal.service.Oauth2AccessTokenService;
+import ca.uhn.fhir.jpa.starter.koppeltaal.service.SubscriptionProfileCache;
 import ca.uhn.fhir.rest.openapi.OpenApiInterceptor;
 import ca.uhn.fhir.rest.server.RestfulServer;
 import ca.uhn.fhir.rest.server.interceptor.CaptureResourceSourceFromHeaderInterceptor;
@@ -80,6 +83,30 @@ public class KoppeltaalRestfulServer extends RestfulServer {
   @Autowired
   private EnforceHttpsSubscriptionEndpointInterceptor enforceHttpsSubscriptionEndpointInterceptor;
 
+  @Autowired
+  private DeviceCacheEvictionInterceptor deviceCacheEvictionInterceptor;
+
+  @Autowired
+  private ResourceOriginIndexInterceptor resourceOriginIndexInterceptor;
+
+  @Autowired
+  private AuditEventPartitionInterceptor auditEventPartitionInterceptor;
+
+  @Autowired
+  private AuditEventExportProvider auditEventExportProvider;
+
+  @Autowired
+  private SubscriptionProfileCache subscriptionProfileCache;
+
+  @Autowired
+  private SubscriptionCircuitBreakerInterceptor subscriptionCircuitBreakerInterceptor;
+
+  @Autowired
+  private SubscriptionDeadLetterInterceptor subscriptionDeadLetterInterceptor;
+
+  @Autowired
+  private SubscriptionReplayProvider subscriptionReplayProvider;
+
   public KoppeltaalRestfulServer(FhirContext context) {
     super(context);
   }
@@ -92,6 +119,11 @@ public class KoppeltaalRestfulServer extends RestfulServer {
     registerInterceptor(jsonSyntaxExceptionInterceptor);
 
     IFhirResourceDao<Device> deviceDao = daoRegistry.getResourceDao(Device.class);
+    myInterceptorRegistry.registerInterceptor(deviceCacheEvictionInterceptor);
+    myInterceptorRegistry.registerInterceptor(resourceOriginIndexInterceptor);
+    if (fhirServerAuditLogConfiguration.getPartition().isEnabled() && auditEventPartitionInterceptor.start()) {
+      myInterceptorRegistry.registerInterceptor(auditEventPartitionInterceptor);
+    }
     if (fhirServerSecurityConfiguration.isEnabled()) {
       registerInterceptor(new JwtSecurityInterceptor(oauth2AccessTokenService));
 
@@ -106,9 +138,11 @@ public class KoppeltaalRestfulServer extends RestfulServer {
     // new InterceptorService("RestfulServer")
     // {code}
     // And one JPA version. They both do DIFFERENT things. The horror.
-    SubscriptionNarrowingInterceptor subscriptionNarrowingInterceptor = new SubscriptionNarrowingInterceptor(daoRegistry);
+    SubscriptionNarrowingInterceptor subscriptionNarrowingInterceptor = new SubscriptionNarrowingInterceptor(daoRegistry, subscriptionProfileCache);
     myInterceptorRegistry.registerInterceptor(subscriptionNarrowingInterceptor);
     registerInterceptor(subscriptionNarrowingInterceptor);
+    myInterceptorRegistry.registerInterceptor(subscriptionCircuitBreakerInterceptor);
+    myInterceptorRegistry.registerInterceptor(subscriptionDeadLetterInterceptor);
 
     if (fhirServerAuditLogConfiguration.isEnabled()) {
       registerInterceptor(auditEventInterceptor);
@@ -147,6 +181,10 @@ public class KoppeltaalRestfulServer extends RestfulServer {
 
     registerInterceptor(enforceHttpsSubscriptionEndpointInterceptor);
 
+    // Streams AuditEvents as NDJSON, authorized and narrowed like an AuditEvent search
+    registerProvider(auditEventExportProvider);
+    registerProvider(subscriptionReplayProvider);
+
     jpaStorageSettings.setResourceServerIdStrategy(JpaStorageSettings.IdStrategyEnum.UUID);
   }
 
@@ -0,0 +1,145 @@
+package ca.uhn.fhir.jpa.starter.koppeltaal.bean;
+
+import ca.uhn.fhir.jpa.search.reindex.BlockPolicy;
+import ca.uhn.fhir.jpa.starter.koppeltaal.config.SubscriptionBulkheadProperties;
+import ca.uhn.fhir.jpa.starter.koppeltaal.service.SubscriptionRetryStore;
+import ca.uhn.fhir.jpa.subscription.channel.api.ChannelConsumerSettings;
+import ca.uhn.fhir.jpa.subscription.channel.api.ChannelProducerSettings;
+import ca.uhn.fhir.jpa.subscription.channel.api.IChannelFactory;
+import ca.uhn.fhir.jpa.subscription.channel.api.IChannelProducer;
+import ca.uhn.fhir.jpa.subscription.channel.api.IChannelReceiver;
+import ca.uhn.fhir.jpa.subscription.channel.api.IChannelSettings;
+import ca.uhn.fhir.jpa.subscription.channel.impl.LinkedBlockingChannel;
+import ca.uhn.fhir.jpa.subscription.channel.impl.LinkedBlockingChannelFactory;
+import ca.uhn.fhir.jpa.subscription.channel.impl.RetryPolicyProvider;
+import ca.uhn.fhir.jpa.subscription.channel.subscription.IChannelNamer;
+import ca.uhn.fhir.jpa.subscription.model.ResourceDeliveryJsonMessage;
+import ca.uhn.fhir.util.ThreadPoolUtil;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.messaging.support.MessageHandlingRunnable;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * <p>Channel factory that gives the delivery channel of every Subscription its own bulkhead: a fixed number of
+ * delivery threads and a bounded queue. HAPI creates these channels with a queue of 1000 that blocks the sender when
+ * it is full, and the sender is the thread matching new resources against all Subscriptions. One slow endpoint can
+ * then hold up the notifications to every other application.</p>
+ *
+ * <p>Here a notification that does not fit in the queue of its Subscription is stored in the
+ * {@link SubscriptionRetryStore} instead, and moved back into the queue when there is room again. It is only blocked
+ * on, like before, when it can not be stored. Other channels (like the matching channel) are created by the
+ * {@link LinkedBlockingChannelFactory}.</p>
+ */
+public class BulkheadChannelFactory implements IChannelFactory {
+
+  private static final Logger LOG = LoggerFactory.getLogger(BulkheadChannelFactory.class);
+
+  private final IChannelNamer channelNamer;
+  private final RetryPolicyProvider retryPolicyProvider;
+  private final SubscriptionBulkheadProperties properties;
+  private final SubscriptionRetryStore retryStore;
+  private final MeterRegistry meterRegistry;
+  private final LinkedBlockingChannelFactory delegate;
+  private final Map<String, Bulkhead> bulkheads = new ConcurrentHashMap<>();
+
+  public BulkheadChannelFactory(IChannelNamer channelNamer, RetryPolicyProvider retryPolicyProvider,
+                                SubscriptionBulkheadProperties properties, SubscriptionRetryStore retryStore,
+                                MeterRegistry meterRegistry) {
+    this.channelNamer = channelNamer;
+    this.retryPolicyProvider = retryPolicyProvider;
+    this.properties = properties;
+    this.retryStore = retryStore;
+    this.meterRegistry = meterRegistry;
+    this.delegate = new LinkedBlockingChannelFactory(channelNamer, retryPolicyProvider);
+  }
+
+  @Override
+  public IChannelReceiver getOrCreateReceiver(String channelName, Class<?> messageType, ChannelConsumerSettings settings) {
+    if (!isDelivery(messageType)) {
+      return delegate.getOrCreateReceiver(channelName, messageType, settings);
+    }
+    return getOrCreateBulkhead(channelName, settings.getConcurrentConsumers(), settings).channel;
+  }
+
+  @Override
+  public IChannelProducer getOrCreateProducer(String channelName, Class<?> messageType, ChannelProducerSettings settings) {
+    if (!isDelivery(messageType)) {
+      return delegate.getOrCreateProducer(channelName, messageType, settings);
+    }
+    return getOrCreateBulkhead(channelName, settings.getConcurrentConsumers(), settings).channel;
+  }
+
+  @Override
+  public IChannelNamer getChannelNamer() {
+    return channelNamer;
+  }
+
+  /**
+   * Moves overflowed notifications from the {@link SubscriptionRetryStore} back into the queues that have room.
+   */
+  @Scheduled(fixedDelayString = "${fhir.server.subscription.bulkhead.drain-interval:10000}")
+  public void drain() {
+    bulkheads.values().forEach(Bulkhead::drain);
+  }
+
+  private boolean isDelivery(Class<?> messageType) {
+    return properties.isEnabled() && ResourceDeliveryJsonMessage.class.equals(messageType);
+  }
+
+  private Bulkhead getOrCreateBulkhead(String channelName, int concurrentConsumers, IChannelSettings settings) {
+    final String name = channelNamer.getChannelName(channelName, settings);
+    final int concurrency = properties.getConcurrentConsumers() > 0 ? properties.getConcurrentConsumers() : concurrentConsumers;
+    return bulkheads.computeIfAbsent(name, (key) -> new Bulkhead(key, concurrency));
+  }
+
+  private final class Bulkhead {
+    private final String name;
+    private final ThreadPoolTaskExecutor executor;
+    private final LinkedBlockingChannel channel;
+    private final Counter overflowCounter;
+    private final RejectedExecutionHandler blockPolicy = new BlockPolicy();
+
+    private Bulkhead(String name, int concurrency) {
+      this.name = name;
+      this.executor = ThreadPoolUtil.newThreadPool(concurrency, concurrency, name + "-", properties.getQueueSize(),
+        this::overflow);
+      this.channel = new LinkedBlockingChannel(name, executor, executor::getQueueSize, retryPolicyProvider);
+      this.overflowCounter = Counter.builder("koppeltaal.subscription.bulkhead.overflow")
+        .description("Notifications that did not fit in the delivery queue of the Subscription")
+        .tag("channel", name)
+        .register(meterRegistry);
+      Gauge.builder("koppeltaal.subscription.bulkhead.queue", executor, ThreadPoolTaskExecutor::getQueueSize)
+        .description("Notifications waiting in the delivery queue of the Subscription")
+        .tag("channel", name)
+        .register(meterRegistry);
+    }
+
+    private void overflow(Runnable task, ThreadPoolExecutor threadPoolExecutor) {
+      if (task instanceof MessageHandlingRunnable runnable
+        && runnable.getMessage() instanceof ResourceDeliveryJsonMessage message
+        && retryStore.store(name, message)) {
+        overflowCounter.increment();
+        LOG.warn("The delivery queue of [{}] is full, stored the notification for a later attempt", name);
+        return;
+      }
+      blockPolicy.rejectedExecution(task, threadPoolExecutor);
+    }
+
+    private void drain() {
+      final int room = properties.getQueueSize() - executor.getQueueSize();
+      if (room <= 0) return;
+
+      retryStore.claim(name, room).forEach(channel::send);
+    }
+  }
+}
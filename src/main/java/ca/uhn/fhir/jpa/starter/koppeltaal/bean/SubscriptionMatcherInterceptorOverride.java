@@ -0,0 +1,33 @@
+package ca.uhn.fhir.jpa.starter.koppeltaal.bean;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.starter.koppeltaal.util.SubscriptionMessageAttributes;
+import ca.uhn.fhir.jpa.subscription.model.ResourceModifiedMessage;
+import ca.uhn.fhir.jpa.subscription.submit.interceptor.SubscriptionMatcherInterceptor;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.messaging.BaseResourceMessage;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Device;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Class that overrides {@link SubscriptionMatcherInterceptor} only to add the trace id, request id and requesting
+ * device of the request to the {@link ResourceModifiedMessage}. The {@link SubscriptionMessageAttributes} are copied
+ * onto the delivery messages, so no in-memory lookup is needed when the notification is sent.
+ */
+@Component
+public class SubscriptionMatcherInterceptorOverride extends SubscriptionMatcherInterceptor {
+
+  @Autowired
+  private DaoRegistry daoRegistry;
+
+  @Override
+  protected ResourceModifiedMessage createResourceModifiedMessage(IBaseResource resource, BaseResourceMessage.OperationTypeEnum operationType, RequestDetails requestDetails) {
+    ResourceModifiedMessage message = super.createResourceModifiedMessage(resource, operationType, requestDetails);
+
+    SubscriptionMessageAttributes.populate(message, requestDetails, daoRegistry.getResourceDao(Device.class));
+
+    return message;
+  }
+}
@@ -1,14 +1,23 @@
 package ca.uhn.fhir.jpa.starter.koppeltaal.config;
 
 import ca.uhn.fhir.jpa.dao.index.DaoResourceLinkResolver;
+import ca.uhn.fhir.jpa.starter.koppeltaal.bean.BulkheadChannelFactory;
 import ca.uhn.fhir.jpa.starter.koppeltaal.bean.DaoResourceLinkResolverOverride;
+import ca.uhn.fhir.jpa.starter.koppeltaal.bean.SubscriptionMatcherInterceptorOverride;
+import ca.uhn.fhir.jpa.starter.koppeltaal.service.SubscriptionRetryStore;
 import ca.uhn.fhir.jpa.subscription.channel.impl.RetryPolicyProvider;
+import ca.uhn.fhir.jpa.subscription.channel.subscription.IChannelNamer;
+import ca.uhn.fhir.jpa.subscription.submit.interceptor.SubscriptionMatcherInterceptor;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Primary;
 import org.springframework.retry.RetryPolicy;
+import org.springframework.retry.backoff.BackOffPolicy;
+import org.springframework.retry.backoff.ExponentialBackOffPolicy;
+import org.springframework.retry.backoff.ExponentialRandomBackOffPolicy;
 import org.springframework.retry.policy.NeverRetryPolicy;
 import org.springframework.retry.policy.SimpleRetryPolicy;
 
@@ -18,9 +27,12 @@ public class BeanOverrideConfig {
   private static final Logger LOG = LoggerFactory.getLogger(BeanOverrideConfig.class);
 
   private final DaoResourceLinkResolverOverride daoResourceLinkResolverOverride;
+  private final SubscriptionMatcherInterceptorOverride subscriptionMatcherInterceptorOverride;
 
-  public BeanOverrideConfig(DaoResourceLinkResolverOverride daoResourceLinkResolverOverride) {
+  public BeanOverrideConfig(DaoResourceLinkResolverOverride daoResourceLinkResolverOverride,
+                            SubscriptionMatcherInterceptorOverride subscriptionMatcherInterceptorOverride) {
     this.daoResourceLinkResolverOverride = daoResourceLinkResolverOverride;
+    this.subscriptionMatcherInterceptorOverride = subscriptionMatcherInterceptorOverride;
   }
 
   @Primary
@@ -29,11 +41,19 @@ public class BeanOverrideConfig {
     return daoResourceLinkResolverOverride;
   }
 
+  @Primary
+  @Bean
+  public SubscriptionMatcherInterceptor koppeltaalSubscriptionMatcherInterceptor() {
+    return subscriptionMatcherInterceptorOverride;
+  }
+
   @Primary
   @Bean
   public RetryPolicyProvider retryPolicyProvider(SubscriptionRetryProperties retryProperties) {
     int maxAttempts = retryProperties.getMaxAttempts();
-    LOG.info("Configuring subscription retry policy with maxAttempts={}", maxAttempts);
+    LOG.info("Configuring subscription retry policy with maxAttempts={}, initialInterval={}, multiplier={}, maxInterval={}, jitter={}",
+      maxAttempts, retryProperties.getInitialInterval(), retryProperties.getMultiplier(),
+      retryProperties.getMaxInterval(), retryProperties.isJitter());
     return new RetryPolicyProvider() {
       @Override
       protected RetryPolicy retryPolicy() {
@@ -42,6 +62,35 @@ public class BeanOverrideConfig {
         }
         return new SimpleRetryPolicy(maxAttempts);
       }
+
+      @Override
+      protected BackOffPolicy backOffPolicy() {
+        return newBackOffPolicy(retryProperties);
+      }
     };
   }
+
+  @Primary
+  @Bean
+  public BulkheadChannelFactory bulkheadChannelFactory(IChannelNamer channelNamer, RetryPolicyProvider retryPolicyProvider,
+                                                       SubscriptionBulkheadProperties bulkheadProperties,
+                                                       SubscriptionRetryStore retryStore, MeterRegistry meterRegistry) {
+    LOG.info("Configuring subscription delivery bulkheads with enabled={}, queueSize={}, concurrentConsumers={}",
+      bulkheadProperties.isEnabled(), bulkheadProperties.getQueueSize(), bulkheadProperties.getConcurrentConsumers());
+    return new BulkheadChannelFactory(channelNamer, retryPolicyProvider, bulkheadProperties, retryStore, meterRegistry);
+  }
+
+  /**
+   * Exponential backoff between delivery attempts. With jitter, each wait is a random value between the current
+   * interval and the next one.
+   */
+  static BackOffPolicy newBackOffPolicy(SubscriptionRetryProperties retryProperties) {
+    ExponentialBackOffPolicy backOffPolicy = retryProperties.isJitter()
+      ? new ExponentialRandomBackOffPolicy()
+      : new ExponentialBackOffPolicy();
+    backOffPolicy.setInitialInterval(retryProperties.getInitialInterval());
+    backOffPolicy.setMultiplier(retryProperties.getMultiplier());
+    backOffPolicy.setMaxInterval(retryProperties.getMaxInterval());
+    return backOffPolicy;
+  }
 }
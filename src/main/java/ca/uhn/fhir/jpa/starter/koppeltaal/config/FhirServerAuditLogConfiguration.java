@@ -1,8 +1,12 @@
 package ca.uhn.fhir.jpa.starter.koppeltaal.config;
 
+import ca.uhn.fhir.jpa.starter.koppeltaal.dto.AuditEventDto;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  *
  */
@@ -13,6 +17,14 @@ public class FhirServerAuditLogConfiguration {
   @Deprecated
 	private String site;
 	private Observer observer = new Observer();
+	private Writer writer = new Writer();
+	private Spool spool = new Spool();
+	private List<Policy> policies = new ArrayList<>();
+	private Retention retention = new Retention();
+	private Partition partition = new Partition();
+	private SearchAudit searchAudit = new SearchAudit();
+	private Health health = new Health();
+	private Export export = new Export();
 
 	public Observer getObserver() {
 		return observer;
@@ -22,6 +34,70 @@ public class FhirServerAuditLogConfiguration {
 		this.observer = observer;
 	}
 
+	public Writer getWriter() {
+		return writer;
+	}
+
+	public void setWriter(Writer writer) {
+		this.writer = writer;
+	}
+
+	public Spool getSpool() {
+		return spool;
+	}
+
+	public void setSpool(Spool spool) {
+		this.spool = spool;
+	}
+
+	public List<Policy> getPolicies() {
+		return policies;
+	}
+
+	public void setPolicies(List<Policy> policies) {
+		this.policies = policies;
+	}
+
+	public Retention getRetention() {
+		return retention;
+	}
+
+	public void setRetention(Retention retention) {
+		this.retention = retention;
+	}
+
+	public Partition getPartition() {
+		return partition;
+	}
+
+	public void setPartition(Partition partition) {
+		this.partition = partition;
+	}
+
+	public SearchAudit getSearchAudit() {
+		return searchAudit;
+	}
+
+	public void setSearchAudit(SearchAudit searchAudit) {
+		this.searchAudit = searchAudit;
+	}
+
+	public Health getHealth() {
+		return health;
+	}
+
+	public void setHealth(Health health) {
+		this.health = health;
+	}
+
+	public Export getExport() {
+		return export;
+	}
+
+	public void setExport(Export export) {
+		this.export = export;
+	}
+
 	@Deprecated
   public String getSite() {
 		return site;
@@ -51,6 +127,420 @@ public class FhirServerAuditLogConfiguration {
 		}
 	}
 
+	/**
+	 * Settings for the pipeline that persists the AuditEvents in the background.
+	 */
+	public static final class Writer {
+		/**
+		 * Number of AuditEvents that can wait to be written, see {@link #overflow} for what happens when it is full.
+		 */
+		int queueCapacity = 10000;
+		/**
+		 * Maximum number of AuditEvents written in a single transaction.
+		 */
+		int batchSize = 50;
+		/**
+		 * How long (in milliseconds) a writer waits for a batch to fill up before writing it.
+		 */
+		long flushInterval = 200;
+		/**
+		 * Number of writer threads.
+		 */
+		int threads = 2;
+		/**
+		 * What to do with an AuditEvent when the queue is full.
+		 */
+		OverflowPolicy overflow = OverflowPolicy.CALLER_RUNS;
+		/**
+		 * Number of times an AuditEvent is attempted to be written before it is given up. With the spool enabled it is
+		 * then moved to the dead-letter file of the spool.
+		 */
+		int maxAttempts = 3;
+		/**
+		 * How long (in milliseconds) to wait before the second attempt, doubled for every next attempt.
+		 */
+		long retryBackoff = 1000;
+
+		public int getQueueCapacity() {
+			return queueCapacity;
+		}
+
+		public void setQueueCapacity(int queueCapacity) {
+			this.queueCapacity = queueCapacity;
+		}
+
+		public int getBatchSize() {
+			return batchSize;
+		}
+
+		public void setBatchSize(int batchSize) {
+			this.batchSize = batchSize;
+		}
+
+		public long getFlushInterval() {
+			return flushInterval;
+		}
+
+		public void setFlushInterval(long flushInterval) {
+			this.flushInterval = flushInterval;
+		}
+
+		public int getThreads() {
+			return threads;
+		}
+
+		public void setThreads(int threads) {
+			this.threads = threads;
+		}
+
+		public OverflowPolicy getOverflow() {
+			return overflow;
+		}
+
+		public void setOverflow(OverflowPolicy overflow) {
+			this.overflow = overflow;
+		}
+
+		public int getMaxAttempts() {
+			return maxAttempts;
+		}
+
+		public void setMaxAttempts(int maxAttempts) {
+			this.maxAttempts = maxAttempts;
+		}
+
+		public long getRetryBackoff() {
+			return retryBackoff;
+		}
+
+		public void setRetryBackoff(long retryBackoff) {
+			this.retryBackoff = retryBackoff;
+		}
+	}
+
+	/**
+	 * Settings for the local spool that keeps the queued AuditEvents on disk until they are written.
+	 */
+	public static final class Spool {
+		/**
+		 * Keep queued AuditEvents on disk, they are written after a restart. Requires a persistent directory.
+		 */
+		boolean enabled = false;
+		/**
+		 * Directory of the spool, must not be shared with other server instances.
+		 */
+		String directory = "./audit-spool";
+		/**
+		 * How often (in milliseconds) the spool is forced to disk, the AuditEvents appended in between are synced together.
+		 */
+		long syncInterval = 50;
+		/**
+		 * Size in bytes at which a new spool segment is started.
+		 */
+		long segmentSize = 64L * 1024 * 1024;
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public String getDirectory() {
+			return directory;
+		}
+
+		public void setDirectory(String directory) {
+			this.directory = directory;
+		}
+
+		public long getSyncInterval() {
+			return syncInterval;
+		}
+
+		public void setSyncInterval(long syncInterval) {
+			this.syncInterval = syncInterval;
+		}
+
+		public long getSegmentSize() {
+			return segmentSize;
+		}
+
+		public void setSegmentSize(long segmentSize) {
+			this.segmentSize = segmentSize;
+		}
+	}
+
+	/**
+	 * Settings for the job that deletes and expunges AuditEvents older than the retention period.
+	 */
+	public static final class Retention {
+		/**
+		 * Requires <code>hapi.fhir.delete_expunge_enabled</code>.
+		 */
+		boolean enabled = false;
+		/**
+		 * Number of days AuditEvents are kept, based on <code>AuditEvent.recorded</code>.
+		 */
+		int period = 365;
+		/**
+		 * Number of AuditEvents deleted and expunged per transaction of the batch job.
+		 */
+		int chunkSize = 1000;
+		/**
+		 * How often (in minutes) the job is started, the job runs on a single instance of the cluster.
+		 */
+		long interval = 60;
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public int getPeriod() {
+			return period;
+		}
+
+		public void setPeriod(int period) {
+			this.period = period;
+		}
+
+		public int getChunkSize() {
+			return chunkSize;
+		}
+
+		public void setChunkSize(int chunkSize) {
+			this.chunkSize = chunkSize;
+		}
+
+		public long getInterval() {
+			return interval;
+		}
+
+		public void setInterval(long interval) {
+			this.interval = interval;
+		}
+	}
+
+	/**
+	 * Settings for storing the AuditEvents in their own partition, so their indexes are kept apart from the clinical
+	 * resources.
+	 */
+	public static final class Partition {
+		/**
+		 * Requires <code>hapi.fhir.partitioning</code> with <code>allow_references_across_partitions</code>.
+		 */
+		boolean enabled = false;
+		int id = 1;
+		String name = "audit";
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public int getId() {
+			return id;
+		}
+
+		public void setId(int id) {
+			this.id = id;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public void setName(String name) {
+			this.name = name;
+		}
+	}
+
+	/**
+	 * Settings for how the results of a search are recorded in the AuditEvent.
+	 */
+	public static final class SearchAudit {
+		SearchAuditMode mode = SearchAuditMode.FULL;
+		/**
+		 * In {@link SearchAuditMode#COMPACT} mode, also keep the ids of the results in a Binary contained in the
+		 * AuditEvent. The Binary is not indexed.
+		 */
+		boolean idList = false;
+
+		public SearchAuditMode getMode() {
+			return mode;
+		}
+
+		public void setMode(SearchAuditMode mode) {
+			this.mode = mode;
+		}
+
+		public boolean isIdList() {
+			return idList;
+		}
+
+		public void setIdList(boolean idList) {
+			this.idList = idList;
+		}
+	}
+
+	/**
+	 * Settings for the AuditEvent health contributor.
+	 */
+	public static final class Health {
+		/**
+		 * How long (in seconds) an AuditEvent can wait to be written before the health goes DOWN.
+		 */
+		long maxLag = 300;
+
+		public long getMaxLag() {
+			return maxLag;
+		}
+
+		public void setMaxLag(long maxLag) {
+			this.maxLag = maxLag;
+		}
+	}
+
+	/**
+	 * Settings for the <code>AuditEvent/$audit-export</code> operation.
+	 */
+	public static final class Export {
+		/**
+		 * Number of AuditEvents read from the database at a time, only one batch is kept in memory.
+		 */
+		int batchSize = 1000;
+
+		public int getBatchSize() {
+			return batchSize;
+		}
+
+		public void setBatchSize(int batchSize) {
+			this.batchSize = batchSize;
+		}
+	}
+
+	public enum SearchAuditMode {
+		/**
+		 * Every returned resource is an entity of the AuditEvent.
+		 */
+		FULL,
+		/**
+		 * Only the number of returned resources and a SHA-256 digest of their ids are recorded, on the query entity.
+		 */
+		COMPACT
+	}
+
+	/**
+	 * Capture policy for read and search traffic, the first policy that matches an AuditEvent applies. AuditEvents
+	 * without a matching policy, of writes and of failed requests are always captured in full.
+	 */
+	public static final class Policy {
+		/**
+		 * Event type the policy applies to, any when empty.
+		 */
+		AuditEventDto.EventType eventType;
+		/**
+		 * Resource type the policy applies to, any when empty.
+		 */
+		String resourceType;
+		/**
+		 * Client id (Device id) of the requester the policy applies to, any when empty.
+		 */
+		String clientId;
+		PolicyMode mode = PolicyMode.FULL;
+		/**
+		 * Window in seconds in which identical AuditEvents are aggregated, for {@link PolicyMode#DEDUPLICATE}.
+		 */
+		long window = 60;
+		/**
+		 * Fraction (0..1) of the AuditEvents that is kept, for {@link PolicyMode#SAMPLE}.
+		 */
+		double rate = 1.0;
+
+		public AuditEventDto.EventType getEventType() {
+			return eventType;
+		}
+
+		public void setEventType(AuditEventDto.EventType eventType) {
+			this.eventType = eventType;
+		}
+
+		public String getResourceType() {
+			return resourceType;
+		}
+
+		public void setResourceType(String resourceType) {
+			this.resourceType = resourceType;
+		}
+
+		public String getClientId() {
+			return clientId;
+		}
+
+		public void setClientId(String clientId) {
+			this.clientId = clientId;
+		}
+
+		public PolicyMode getMode() {
+			return mode;
+		}
+
+		public void setMode(PolicyMode mode) {
+			this.mode = mode;
+		}
+
+		public long getWindow() {
+			return window;
+		}
+
+		public void setWindow(long window) {
+			this.window = window;
+		}
+
+		public double getRate() {
+			return rate;
+		}
+
+		public void setRate(double rate) {
+			this.rate = rate;
+		}
+	}
+
+	public enum PolicyMode {
+		/**
+		 * Every AuditEvent is written.
+		 */
+		FULL,
+		/**
+		 * Identical AuditEvents of the same client within the window are written as a single AuditEvent with an
+		 * occurrence count.
+		 */
+		DEDUPLICATE,
+		/**
+		 * Only a random fraction of the AuditEvents is written.
+		 */
+		SAMPLE
+	}
+
+	public enum OverflowPolicy {
+		/**
+		 * The submitting thread writes the AuditEvent itself, slowing down requests instead of losing AuditEvents.
+		 */
+		CALLER_RUNS,
+		/**
+		 * The AuditEvent is dropped and counted in the <code>koppeltaal.audit.dropped</code> metric.
+		 */
+		DROP
+	}
+
 	public static class Identifier {
 		String system;
 		String value;
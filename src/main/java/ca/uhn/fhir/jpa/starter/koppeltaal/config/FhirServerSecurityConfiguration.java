@@ -26,6 +26,12 @@ public class FhirServerSecurityConfiguration {
   String issuer;
 	boolean enabled = true;
 	long tokenValidationLeeway = 60;
+	Jwks jwks = new Jwks();
+	TokenCache tokenCache = new TokenCache();
+	ScopeCache scopeCache = new ScopeCache();
+	DeviceCache deviceCache = new DeviceCache();
+	SubscriptionProfileCache subscriptionProfileCache = new SubscriptionProfileCache();
+	ResourceOriginIndex resourceOriginIndex = new ResourceOriginIndex();
 
   public String getIssuer() {
     return issuer;
@@ -90,4 +96,323 @@ public class FhirServerSecurityConfiguration {
 	public void setEnabled(boolean enabled) {
 		this.enabled = enabled;
 	}
+
+	public Jwks getJwks() {
+		return jwks;
+	}
+
+	public void setJwks(Jwks jwks) {
+		this.jwks = jwks;
+	}
+
+	public TokenCache getTokenCache() {
+		return tokenCache;
+	}
+
+	public void setTokenCache(TokenCache tokenCache) {
+		this.tokenCache = tokenCache;
+	}
+
+	public ScopeCache getScopeCache() {
+		return scopeCache;
+	}
+
+	public void setScopeCache(ScopeCache scopeCache) {
+		this.scopeCache = scopeCache;
+	}
+
+	public DeviceCache getDeviceCache() {
+		return deviceCache;
+	}
+
+	public void setDeviceCache(DeviceCache deviceCache) {
+		this.deviceCache = deviceCache;
+	}
+
+	public SubscriptionProfileCache getSubscriptionProfileCache() {
+		return subscriptionProfileCache;
+	}
+
+	public void setSubscriptionProfileCache(SubscriptionProfileCache subscriptionProfileCache) {
+		this.subscriptionProfileCache = subscriptionProfileCache;
+	}
+
+	public ResourceOriginIndex getResourceOriginIndex() {
+		return resourceOriginIndex;
+	}
+
+	public void setResourceOriginIndex(ResourceOriginIndex resourceOriginIndex) {
+		this.resourceOriginIndex = resourceOriginIndex;
+	}
+
+	/**
+	 * Settings for the in-memory JWKS key store, all values are in seconds.
+	 */
+	public static class Jwks {
+		/**
+		 * How long a fetched key set is considered fresh.
+		 */
+		long cacheTtl = 600;
+		/**
+		 * How long before {@link #cacheTtl} expires the key set is refreshed in the background.
+		 */
+		long refreshAhead = 60;
+		/**
+		 * Minimal time between two fetches triggered by an unknown <code>kid</code>.
+		 */
+		long minRefetchInterval = 10;
+		/**
+		 * How long an expired key set may still be used when the JWKS endpoint cannot be reached.
+		 */
+		long maxStale = 3600;
+
+		public long getCacheTtl() {
+			return cacheTtl;
+		}
+
+		public void setCacheTtl(long cacheTtl) {
+			this.cacheTtl = cacheTtl;
+		}
+
+		public long getRefreshAhead() {
+			return refreshAhead;
+		}
+
+		public void setRefreshAhead(long refreshAhead) {
+			this.refreshAhead = refreshAhead;
+		}
+
+		public long getMinRefetchInterval() {
+			return minRefetchInterval;
+		}
+
+		public void setMinRefetchInterval(long minRefetchInterval) {
+			this.minRefetchInterval = minRefetchInterval;
+		}
+
+		public long getMaxStale() {
+			return maxStale;
+		}
+
+		public void setMaxStale(long maxStale) {
+			this.maxStale = maxStale;
+		}
+	}
+
+	/**
+	 * Settings for the cache of access tokens that passed signature verification.
+	 */
+	public static class TokenCache {
+		boolean enabled = true;
+		/**
+		 * Maximum number of verified tokens kept in memory.
+		 */
+		long maxSize = 10000;
+		/**
+		 * Upper bound (in seconds) for how long a verified token is trusted without verifying it again,
+		 * regardless of its <code>exp</code> claim.
+		 */
+		long maxTtl = 300;
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public long getMaxSize() {
+			return maxSize;
+		}
+
+		public void setMaxSize(long maxSize) {
+			this.maxSize = maxSize;
+		}
+
+		public long getMaxTtl() {
+			return maxTtl;
+		}
+
+		public void setMaxTtl(long maxTtl) {
+			this.maxTtl = maxTtl;
+		}
+	}
+
+	/**
+	 * Settings for the store of the last known scope per client, used to narrow subscription notifications.
+	 */
+	public static class ScopeCache {
+		/**
+		 * <code>memory</code> keeps the scopes per instance, <code>jdbc</code> shares them between all replicas
+		 * through the FHIR server database.
+		 */
+		String store = "memory";
+		/**
+		 * How long (in seconds) a scope is kept after it was last seen on a request.
+		 */
+		long ttl = 86400;
+		/**
+		 * Maximum number of clients kept in memory.
+		 */
+		long maxSize = 10000;
+		/**
+		 * An unchanged scope is written at most once per interval (in seconds). With the <code>jdbc</code> store this
+		 * is also how long a replica may serve a scope from memory before reading it from the database again.
+		 */
+		long writeInterval = 60;
+
+		public String getStore() {
+			return store;
+		}
+
+		public void setStore(String store) {
+			this.store = store;
+		}
+
+		public long getTtl() {
+			return ttl;
+		}
+
+		public void setTtl(long ttl) {
+			this.ttl = ttl;
+		}
+
+		public long getMaxSize() {
+			return maxSize;
+		}
+
+		public void setMaxSize(long maxSize) {
+			this.maxSize = maxSize;
+		}
+
+		public long getWriteInterval() {
+			return writeInterval;
+		}
+
+		public void setWriteInterval(long writeInterval) {
+			this.writeInterval = writeInterval;
+		}
+	}
+
+	/**
+	 * Settings for the cache of the Device resource that belongs to a client id.
+	 */
+	public static class DeviceCache {
+		boolean enabled = true;
+		/**
+		 * How long (in seconds) a Device is cached. Updates on this instance evict the Device immediately, this bounds
+		 * how long an update on another replica can go unnoticed.
+		 */
+		long ttl = 60;
+		/**
+		 * Maximum number of Devices kept in memory.
+		 */
+		long maxSize = 10000;
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public long getTtl() {
+			return ttl;
+		}
+
+		public void setTtl(long ttl) {
+			this.ttl = ttl;
+		}
+
+		public long getMaxSize() {
+			return maxSize;
+		}
+
+		public void setMaxSize(long maxSize) {
+			this.maxSize = maxSize;
+		}
+	}
+
+	/**
+	 * Settings for the cache of the delivery profile (origin Device and client id) of a Subscription, used to narrow
+	 * notifications without reading the Subscription and its Device.
+	 */
+	public static class SubscriptionProfileCache {
+		boolean enabled = true;
+		/**
+		 * How long (in seconds) a profile is cached. Updates on this instance evict the profile immediately, this
+		 * bounds how long an update on another replica can go unnoticed.
+		 */
+		long ttl = 300;
+		/**
+		 * Maximum number of profiles kept in memory.
+		 */
+		long maxSize = 10000;
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public long getTtl() {
+			return ttl;
+		}
+
+		public void setTtl(long ttl) {
+			this.ttl = ttl;
+		}
+
+		public long getMaxSize() {
+			return maxSize;
+		}
+
+		public void setMaxSize(long maxSize) {
+			this.maxSize = maxSize;
+		}
+	}
+
+	/**
+	 * Settings for the index of resource-origins, used to authorize requests without reading the resource.
+	 */
+	public static class ResourceOriginIndex {
+		boolean enabled = true;
+		/**
+		 * Maximum number of resource-origins kept in memory.
+		 */
+		long cacheSize = 100000;
+		/**
+		 * How long (in seconds) a resource-origin is kept in memory. A resource-origin never changes, this only bounds
+		 * how long a resource deleted on another replica is still known.
+		 */
+		long cacheTtl = 600;
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public long getCacheSize() {
+			return cacheSize;
+		}
+
+		public void setCacheSize(long cacheSize) {
+			this.cacheSize = cacheSize;
+		}
+
+		public long getCacheTtl() {
+			return cacheTtl;
+		}
+
+		public void setCacheTtl(long cacheTtl) {
+			this.cacheTtl = cacheTtl;
+		}
+	}
 }
@@ -0,0 +1,39 @@
+package ca.uhn.fhir.jpa.starter.koppeltaal.config;
+
+import ca.uhn.fhir.jpa.starter.koppeltaal.service.InMemoryScopeStore;
+import ca.uhn.fhir.jpa.starter.koppeltaal.service.JdbcScopeStore;
+import ca.uhn.fhir.jpa.starter.koppeltaal.service.KoppeltaalSchemaInitializer;
+import ca.uhn.fhir.jpa.starter.koppeltaal.service.ScopeStore;
+import ca.uhn.fhir.jpa.starter.koppeltaal.util.PermissionUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import javax.sql.DataSource;
+
+@Configuration
+public class ScopeStoreConfig {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ScopeStoreConfig.class);
+
+  @Bean
+  @DependsOn(KoppeltaalSchemaInitializer.BEAN_NAME)
+  public ScopeStore scopeStore(FhirServerSecurityConfiguration fhirServerSecurityConfiguration, ObjectProvider<DataSource> dataSource) {
+    final FhirServerSecurityConfiguration.ScopeCache settings = fhirServerSecurityConfiguration.getScopeCache();
+
+    final ScopeStore scopeStore;
+    if ("jdbc".equalsIgnoreCase(settings.getStore())) {
+      scopeStore = new JdbcScopeStore(new JdbcTemplate(dataSource.getObject()), settings);
+    } else {
+      scopeStore = new InMemoryScopeStore(settings);
+    }
+
+    LOG.info("Using {} for client scopes", scopeStore.getClass().getSimpleName());
+    PermissionUtil.setScopeStore(scopeStore);
+    return scopeStore;
+  }
+}
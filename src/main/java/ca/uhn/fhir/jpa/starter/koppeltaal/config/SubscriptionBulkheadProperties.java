@@ -0,0 +1,68 @@
+package ca.uhn.fhir.jpa.starter.koppeltaal.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+@ConfigurationProperties(prefix = "fhir.server.subscription.bulkhead")
+public class SubscriptionBulkheadProperties {
+
+	/**
+	 * Gives the delivery channel of every Subscription a bounded queue that overflows to the retry store, instead of
+	 * blocking the matching of new notifications when it is full.
+	 */
+	private boolean enabled = true;
+
+	/**
+	 * Concurrent deliveries per Subscription. 0 keeps the HAPI default.
+	 */
+	private int concurrentConsumers = 0;
+
+	/**
+	 * Notifications queued per Subscription before they overflow to the retry store.
+	 */
+	private int queueSize = 100;
+
+	/**
+	 * Milliseconds between moving overflowed notifications from the retry store back to their queue.
+	 */
+	private long drainInterval = 10000;
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public int getConcurrentConsumers() {
+		return concurrentConsumers;
+	}
+
+	public void setConcurrentConsumers(int concurrentConsumers) {
+		if (concurrentConsumers < 0) {
+			throw new IllegalArgumentException("concurrentConsumers must not be negative");
+		}
+		this.concurrentConsumers = concurrentConsumers;
+	}
+
+	public int getQueueSize() {
+		return queueSize;
+	}
+
+	public void setQueueSize(int queueSize) {
+		if (queueSize < 1) {
+			throw new IllegalArgumentException("queueSize must be at least 1");
+		}
+		this.queueSize = queueSize;
+	}
+
+	public long getDrainInterval() {
+		return drainInterval;
+	}
+
+	public void setDrainInterval(long drainInterval) {
+		this.drainInterval = drainInterval;
+	}
+}
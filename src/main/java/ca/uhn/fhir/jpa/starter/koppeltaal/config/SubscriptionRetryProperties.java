@@ -13,6 +13,31 @@ public class SubscriptionRetryProperties {
 	 */
 	private int maxAttempts = 1;
 
+	/**
+	 * Wait before the first retry, in milliseconds.
+	 */
+	private long initialInterval = 1000;
+
+	/**
+	 * Factor the wait is multiplied with after each retry. Must be at least 1.
+	 */
+	private double multiplier = 2.0;
+
+	/**
+	 * Upper bound of the wait between retries, in milliseconds.
+	 */
+	private long maxInterval = 30000;
+
+	/**
+	 * Randomizes each wait between the current and the next interval, so retries of notifications that failed at the
+	 * same moment do not hit the endpoint at the same moment again.
+	 */
+	private boolean jitter = true;
+
+	private CircuitBreaker circuitBreaker = new CircuitBreaker();
+
+	private DeadLetter deadLetter = new DeadLetter();
+
 	public int getMaxAttempts() {
 		return maxAttempts;
 	}
@@ -23,4 +48,153 @@ public class SubscriptionRetryProperties {
 		}
 		this.maxAttempts = maxAttempts;
 	}
+
+	public long getInitialInterval() {
+		return initialInterval;
+	}
+
+	public void setInitialInterval(long initialInterval) {
+		if (initialInterval < 1) {
+			throw new IllegalArgumentException("initialInterval must be at least 1");
+		}
+		this.initialInterval = initialInterval;
+	}
+
+	public double getMultiplier() {
+		return multiplier;
+	}
+
+	public void setMultiplier(double multiplier) {
+		if (multiplier < 1) {
+			throw new IllegalArgumentException("multiplier must be at least 1");
+		}
+		this.multiplier = multiplier;
+	}
+
+	public long getMaxInterval() {
+		return maxInterval;
+	}
+
+	public void setMaxInterval(long maxInterval) {
+		if (maxInterval < 1) {
+			throw new IllegalArgumentException("maxInterval must be at least 1");
+		}
+		this.maxInterval = maxInterval;
+	}
+
+	public boolean isJitter() {
+		return jitter;
+	}
+
+	public void setJitter(boolean jitter) {
+		this.jitter = jitter;
+	}
+
+	public CircuitBreaker getCircuitBreaker() {
+		return circuitBreaker;
+	}
+
+	public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+		this.circuitBreaker = circuitBreaker;
+	}
+
+	public DeadLetter getDeadLetter() {
+		return deadLetter;
+	}
+
+	public void setDeadLetter(DeadLetter deadLetter) {
+		this.deadLetter = deadLetter;
+	}
+
+	/**
+	 * Stops deliveries to an endpoint host after consecutive failures, see
+	 * {@link ca.uhn.fhir.jpa.starter.koppeltaal.service.SubscriptionCircuitBreaker}.
+	 */
+	public static class CircuitBreaker {
+
+		private boolean enabled = true;
+
+		/**
+		 * Consecutive failed deliveries to a host that open its breaker.
+		 */
+		private int failureThreshold = 5;
+
+		/**
+		 * Seconds the breaker stays open before a single trial delivery is let through.
+		 */
+		private int openDuration = 30;
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public int getFailureThreshold() {
+			return failureThreshold;
+		}
+
+		public void setFailureThreshold(int failureThreshold) {
+			if (failureThreshold < 1) {
+				throw new IllegalArgumentException("failureThreshold must be at least 1");
+			}
+			this.failureThreshold = failureThreshold;
+		}
+
+		public int getOpenDuration() {
+			return openDuration;
+		}
+
+		public void setOpenDuration(int openDuration) {
+			this.openDuration = openDuration;
+		}
+	}
+
+	/**
+	 * Keeps the notifications that failed their last attempt, see
+	 * {@link ca.uhn.fhir.jpa.starter.koppeltaal.service.SubscriptionDeadLetterStore}.
+	 */
+	public static class DeadLetter {
+
+		private boolean enabled = true;
+
+		/**
+		 * Notifications redelivered per replay-interval after a <code>$replay-failed-notifications</code>.
+		 */
+		private int replayBatchSize = 50;
+
+		/**
+		 * Milliseconds between the replayed batches.
+		 */
+		private long replayInterval = 10000;
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public int getReplayBatchSize() {
+			return replayBatchSize;
+		}
+
+		public void setReplayBatchSize(int replayBatchSize) {
+			if (replayBatchSize < 1) {
+				throw new IllegalArgumentException("replayBatchSize must be at least 1");
+			}
+			this.replayBatchSize = replayBatchSize;
+		}
+
+		public long getReplayInterval() {
+			return replayInterval;
+		}
+
+		public void setReplayInterval(long replayInterval) {
+			this.replayInterval = replayInterval;
+		}
+	}
 }
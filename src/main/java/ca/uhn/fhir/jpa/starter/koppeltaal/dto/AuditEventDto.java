@@ -49,6 +49,26 @@ public class AuditEventDto {
 	String query;
 	List<Reference> resources = new ArrayList<>();
   private String site;
+	/**
+	 * Number of identical events this event stands for, set when identical events are aggregated.
+	 */
+	int occurrences = 1;
+	/**
+	 * Time of the last aggregated occurrence, only set when {@link #occurrences} is more than 1.
+	 */
+	Date lastDateTime;
+	/**
+	 * Number of resources returned by a search, only set when the search results are recorded compactly.
+	 */
+	Integer resultCount;
+	/**
+	 * SHA-256 digest (hex) of the ids of the resources returned by a search, see {@link #resultCount}.
+	 */
+	String resultDigest;
+	/**
+	 * Ids of the resources returned by a search, optional when the search results are recorded compactly.
+	 */
+	List<String> resultIds;
 
   public void addResource(Reference r) {
 		this.resources.add(r);
@@ -136,6 +156,46 @@ public class AuditEventDto {
 		this.traceId = traceId;
 	}
 
+	public int getOccurrences() {
+		return occurrences;
+	}
+
+	public void setOccurrences(int occurrences) {
+		this.occurrences = occurrences;
+	}
+
+	public Date getLastDateTime() {
+		return lastDateTime;
+	}
+
+	public void setLastDateTime(Date lastDateTime) {
+		this.lastDateTime = lastDateTime;
+	}
+
+	public Integer getResultCount() {
+		return resultCount;
+	}
+
+	public void setResultCount(Integer resultCount) {
+		this.resultCount = resultCount;
+	}
+
+	public String getResultDigest() {
+		return resultDigest;
+	}
+
+	public void setResultDigest(String resultDigest) {
+		this.resultDigest = resultDigest;
+	}
+
+	public List<String> getResultIds() {
+		return resultIds;
+	}
+
+	public void setResultIds(List<String> resultIds) {
+		this.resultIds = resultIds;
+	}
+
   public OperationOutcome getOperationOutcome() {
     return operationOutcome;
   }
@@ -157,6 +217,8 @@ public class AuditEventDto {
       ", agents=" + agents +
       ", query='" + query + '\'' +
       ", resources=" + resources +
+      ", occurrences=" + occurrences +
+      ", resultCount=" + resultCount +
       '}';
   }
 
@@ -2,6 +2,7 @@ package ca.uhn.fhir.jpa.starter.koppeltaal.interceptor;
 
 import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.starter.koppeltaal.config.FhirServerAuditLogConfiguration;
 import ca.uhn.fhir.jpa.starter.koppeltaal.dto.AuditEventDto;
 import ca.uhn.fhir.jpa.starter.koppeltaal.service.AuditEventBuilder;
 import ca.uhn.fhir.jpa.starter.koppeltaal.service.AuditEventService;
@@ -18,6 +19,11 @@ import org.slf4j.LoggerFactory;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
 import java.util.List;
 
 /**
@@ -28,11 +34,18 @@ public abstract class AbstractAuditEventInterceptor {
   protected final AuditEventService auditEventService;
   protected final IFhirResourceDao<Device> deviceDao;
   protected final DaoRegistry daoRegistry;
+  private final FhirServerAuditLogConfiguration.SearchAudit searchAudit;
 
   public AbstractAuditEventInterceptor(AuditEventService auditEventService, DaoRegistry daoRegistry) {
+    this(auditEventService, daoRegistry, new FhirServerAuditLogConfiguration.SearchAudit());
+  }
+
+  public AbstractAuditEventInterceptor(AuditEventService auditEventService, DaoRegistry daoRegistry,
+                                       FhirServerAuditLogConfiguration.SearchAudit searchAudit) {
     this.auditEventService = auditEventService;
     this.deviceDao = daoRegistry.getResourceDao(Device.class);
     this.daoRegistry = daoRegistry;
+    this.searchAudit = searchAudit;
   }
 
   private void addResources(AuditEventDto dto, IBaseResource... resources) {
@@ -53,8 +66,43 @@ public abstract class AbstractAuditEventInterceptor {
     }
   }
 
-  private Device buildDevice(RequestDetails requestDetails) {
-    return ResourceOriginUtil.getDevice(requestDetails, deviceDao).orElse(null);
+  /**
+   * Records the number of results and a digest of their ids instead of an entity per result. Does not change the
+   * resources in the Bundle, which is still to be returned.
+   */
+  private void addCompactSearchResult(AuditEventDto dto, Bundle bundle) {
+    final List<String> ids = new ArrayList<>(bundle.getEntry().size());
+    for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+      final Resource resource = entry.getResource();
+      if (resource != null) {
+        ids.add(resource.fhirType() + "/" + resource.getIdElement().getIdPart());
+      }
+    }
+
+    dto.setResultCount(ids.size());
+    dto.setResultDigest(digest(ids));
+    if (searchAudit.isIdList()) {
+      dto.setResultIds(ids);
+    }
+  }
+
+  static String digest(List<String> ids) {
+    try {
+      final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      for (String id : ids) {
+        digest.update(id.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) '\n');
+      }
+      return HexFormat.of().formatHex(digest.digest());
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+
+  private Reference buildDeviceReference(RequestDetails requestDetails) {
+    return ResourceOriginUtil.getDeviceId(requestDetails, deviceDao)
+      .map(Reference::new)
+      .orElseGet(Reference::new);
   }
 
   private String getResourceQuery(ServletRequestDetails requestDetails) {
@@ -63,7 +111,7 @@ public abstract class AbstractAuditEventInterceptor {
   }
 
   protected void setAgent(RequestDetails requestDetails, AuditEventDto dto, Coding type) {
-    dto.addAgent(new Reference(buildDevice(requestDetails)), type);
+    dto.addAgent(buildDeviceReference(requestDetails), type);
   }
 
   protected void setInteraction(ServletRequestDetails requestDetails, AuditEventDto dto) {
@@ -132,7 +180,10 @@ public abstract class AbstractAuditEventInterceptor {
           }
           setInteraction(requestDetails, dto);
           setAgent(requestDetails, dto, AuditEventBuilder.CODING_SOURCE_ROLE_ID);
-          if (resource instanceof Bundle) {
+          if (resource instanceof Bundle && dto.getEventType() == AuditEventDto.EventType.Search
+            && searchAudit.getMode() == FhirServerAuditLogConfiguration.SearchAuditMode.COMPACT) {
+            addCompactSearchResult(dto, (Bundle) resource);
+          } else if (resource instanceof Bundle) {
             Bundle bundle = (Bundle) resource;
             List<Bundle.BundleEntryComponent> entry = bundle.getEntry();
             if (entry != null) {
@@ -4,17 +4,15 @@ import ca.uhn.fhir.interceptor.api.Hook;
 import ca.uhn.fhir.interceptor.api.Interceptor;
 import ca.uhn.fhir.interceptor.api.Pointcut;
 import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.starter.koppeltaal.config.FhirServerAuditLogConfiguration;
 import ca.uhn.fhir.jpa.starter.koppeltaal.dto.AuditEventDto;
 import ca.uhn.fhir.jpa.starter.koppeltaal.service.AuditEventBuilder;
 import ca.uhn.fhir.jpa.starter.koppeltaal.service.AuditEventService;
-import ca.uhn.fhir.jpa.starter.koppeltaal.util.RequestIdHolder;
-import ca.uhn.fhir.jpa.starter.koppeltaal.util.ResourceOriginUtil;
 import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
 import org.hl7.fhir.instance.model.api.IBaseResource;
-import org.hl7.fhir.r4.model.Device;
 import org.hl7.fhir.r4.model.OperationOutcome;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
@@ -22,7 +20,6 @@ import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
 import java.util.Collections;
-import java.util.Optional;
 
 /**
  *
@@ -31,12 +28,10 @@ import java.util.Optional;
 @Interceptor
 public class AuditEventInterceptor extends AbstractAuditEventInterceptor {
   private static final Logger LOG = LoggerFactory.getLogger(AuditEventInterceptor.class);
-  private final RequestIdHolder requestIdHolder;
 
-  public AuditEventInterceptor(DaoRegistry daoRegistry, AuditEventService auditEventService, RequestIdHolder requestIdHolder) {
-    super(auditEventService, daoRegistry);
-
-    this.requestIdHolder = requestIdHolder;
+  public AuditEventInterceptor(DaoRegistry daoRegistry, AuditEventService auditEventService,
+                               FhirServerAuditLogConfiguration fhirServerAuditLogConfiguration) {
+    super(auditEventService, daoRegistry, fhirServerAuditLogConfiguration.getSearchAudit());
   }
 
   @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
@@ -125,9 +120,6 @@ public class AuditEventInterceptor extends AbstractAuditEventInterceptor {
 
     // The requestId is always set @ ca.uhn.fhir.jpa.starter.koppeltaal.KoppeltaalRestfulServer.getOrCreateRequestId()
     String requestId = requestDetails.getRequestId();
-    Optional<Device> requestingDevice = ResourceOriginUtil.getDevice(requestDetails, deviceDao);
-
-    requestIdHolder.addMapping(requestDetails.getTransactionGuid(), requestId, requestingDevice);
 
     LOG.info(String.format("Incoming request, traceId='%s', requestId='%s', correlationId='%s'",
         requestDetails.getTransactionGuid(), requestId, requestDetails.getUserData().get("correlationId")));
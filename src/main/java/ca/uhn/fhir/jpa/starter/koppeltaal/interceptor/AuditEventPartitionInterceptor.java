@@ -0,0 +1,87 @@
+package ca.uhn.fhir.jpa.starter.koppeltaal.interceptor;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.interceptor.model.ReadPartitionIdRequestDetails;
+import ca.uhn.fhir.interceptor.model.RequestPartitionId;
+import ca.uhn.fhir.jpa.entity.PartitionEntity;
+import ca.uhn.fhir.jpa.model.config.PartitionSettings;
+import ca.uhn.fhir.jpa.partition.IPartitionLookupSvc;
+import ca.uhn.fhir.jpa.starter.koppeltaal.config.FhirServerAuditLogConfiguration;
+import ca.uhn.fhir.jpa.starter.koppeltaal.service.AuditEventService;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Stores AuditEvents in their own partition and everything else in the default partition, so the AuditEvent indexes
+ * do not slow down the searches on clinical resources. Registered with the JPA interceptor service when
+ * <code>fhir.server.auditlog.partition.enabled</code> is set.
+ *
+ * AuditEvents are read from both their own and the default partition, so the AuditEvents written before the partition
+ * was enabled can still be searched, exported and expired by the retention job.
+ */
+@Component
+@Interceptor
+public class AuditEventPartitionInterceptor {
+
+  private static final Logger LOG = LoggerFactory.getLogger(AuditEventPartitionInterceptor.class);
+  private static final String AUDIT_EVENT = "AuditEvent";
+
+  private final FhirServerAuditLogConfiguration.Partition settings;
+  private final PartitionSettings partitionSettings;
+  private final IPartitionLookupSvc partitionLookupSvc;
+  private final RequestPartitionId auditPartition;
+  private final RequestPartitionId auditReadPartition;
+
+  public AuditEventPartitionInterceptor(FhirServerAuditLogConfiguration fhirServerAuditLogConfiguration,
+                                        PartitionSettings partitionSettings, IPartitionLookupSvc partitionLookupSvc) {
+    this.settings = fhirServerAuditLogConfiguration.getPartition();
+    this.partitionSettings = partitionSettings;
+    this.partitionLookupSvc = partitionLookupSvc;
+    this.auditPartition = AuditEventService.getPartition(settings);
+    this.auditReadPartition = AuditEventService.getReadPartition(settings);
+  }
+
+  /**
+   * @return true when AuditEvents can be routed to their own partition, creates the partition when it does not exist
+   * @throws IllegalStateException when references across partitions are not allowed, AuditEvents reference resources
+   * in the default partition
+   */
+  public boolean start() {
+    if (!partitionSettings.isPartitioningEnabled()) {
+      LOG.warn("AuditEvent partition is enabled, but partitioning is not. Storing AuditEvents in the default partition");
+      return false;
+    }
+    if (partitionSettings.getAllowReferencesAcrossPartitions() == PartitionSettings.CrossPartitionReferenceMode.NOT_ALLOWED) {
+      throw new IllegalStateException("AuditEvent partition is enabled, but AuditEvents can not reference resources in "
+        + "the default partition. Set hapi.fhir.partitioning.allow_references_across_partitions");
+    }
+
+    try {
+      partitionLookupSvc.getPartitionById(settings.getId());
+    } catch (ResourceNotFoundException e) {
+      LOG.info("Creating AuditEvent partition [{}] with id [{}]", settings.getName(), settings.getId());
+      PartitionEntity partition = new PartitionEntity();
+      partition.setId(settings.getId());
+      partition.setName(settings.getName());
+      partition.setDescription("AuditEvents");
+      partitionLookupSvc.createPartition(partition, new SystemRequestDetails());
+    }
+    return true;
+  }
+
+  @Hook(Pointcut.STORAGE_PARTITION_IDENTIFY_CREATE)
+  public RequestPartitionId identifyForCreate(IBaseResource resource) {
+    return AUDIT_EVENT.equals(resource.fhirType()) ? auditPartition : RequestPartitionId.defaultPartition();
+  }
+
+  @Hook(Pointcut.STORAGE_PARTITION_IDENTIFY_READ)
+  public RequestPartitionId identifyForRead(ReadPartitionIdRequestDetails details) {
+    return AUDIT_EVENT.equals(details.getResourceType()) ? auditReadPartition : RequestPartitionId.defaultPartition();
+  }
+}
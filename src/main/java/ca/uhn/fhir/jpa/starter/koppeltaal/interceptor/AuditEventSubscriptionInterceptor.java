@@ -10,8 +10,8 @@ import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
 import ca.uhn.fhir.jpa.starter.koppeltaal.dto.AuditEventDto;
 import ca.uhn.fhir.jpa.starter.koppeltaal.service.AuditEventBuilder;
 import ca.uhn.fhir.jpa.starter.koppeltaal.service.AuditEventService;
-import ca.uhn.fhir.jpa.starter.koppeltaal.util.RequestIdHolder;
 import ca.uhn.fhir.jpa.starter.koppeltaal.util.ResourceOriginUtil;
+import ca.uhn.fhir.jpa.starter.koppeltaal.util.SubscriptionMessageAttributes;
 import ca.uhn.fhir.jpa.subscription.model.CanonicalSubscription;
 import ca.uhn.fhir.jpa.subscription.model.ResourceDeliveryMessage;
 import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
@@ -38,14 +38,12 @@ import static ca.uhn.fhir.rest.api.Constants.HEADER_REQUEST_ID;
 public class AuditEventSubscriptionInterceptor extends AbstractAuditEventInterceptor {
   private static final Logger LOG = LoggerFactory.getLogger(AuditEventSubscriptionInterceptor.class);
   protected final FhirContext fhirContext;
-  private final RequestIdHolder requestIdHolder;
   private final IFhirResourceDao<Subscription> subscriptionDao;
 
   public AuditEventSubscriptionInterceptor(DaoRegistry daoRegistry, AuditEventService auditEventService,
-                                           FhirContext fhirContext, RequestIdHolder requestIdHolder) {
+                                           FhirContext fhirContext) {
     super(auditEventService, daoRegistry);
     this.fhirContext = fhirContext;
-    this.requestIdHolder = requestIdHolder;
     this.subscriptionDao = daoRegistry.getSubscriptionDao();
   }
 
@@ -105,9 +103,7 @@ public class AuditEventSubscriptionInterceptor extends AbstractAuditEventInterce
       dto.setQuery(canonicalSubscription.getCriteriaString());
       dto.setDateTime(new Date());
 
-      Optional<IdType> resourceOriginDeviceId = correlationIdOptional.isPresent()
-        ? requestIdHolder.getRequestingDeviceIdType(correlationIdOptional.get())
-        : Optional.empty();
+      Optional<IdType> resourceOriginDeviceId = SubscriptionMessageAttributes.getRequestingDeviceIdType(message);
 
       resourceOriginDeviceId
         .ifPresent(id -> dto.addAgent(new Reference(id), AuditEventBuilder.CODING_SOURCE_ROLE_ID, true));
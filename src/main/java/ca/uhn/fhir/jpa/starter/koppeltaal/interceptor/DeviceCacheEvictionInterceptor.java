@@ -0,0 +1,38 @@
+package ca.uhn.fhir.jpa.starter.koppeltaal.interceptor;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.starter.koppeltaal.service.DeviceCache;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Device;
+import org.springframework.stereotype.Component;
+
+/**
+ * Evicts updated and deleted Devices from the {@link DeviceCache}. Registered with the JPA interceptor service, so
+ * it also sees Device updates that do not come in through the REST API.
+ */
+@Component
+@Interceptor
+public class DeviceCacheEvictionInterceptor {
+
+  private final DeviceCache deviceCache;
+
+  public DeviceCacheEvictionInterceptor(DeviceCache deviceCache) {
+    this.deviceCache = deviceCache;
+  }
+
+  @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+  public void updated(IBaseResource previousResource, IBaseResource resource) {
+    if (resource instanceof Device) {
+      deviceCache.evict(resource.getIdElement().getIdPart());
+    }
+  }
+
+  @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+  public void deleted(IBaseResource resource) {
+    if (resource instanceof Device) {
+      deviceCache.evictDeleted(resource.getIdElement().getIdPart());
+    }
+  }
+}
@@ -12,6 +12,7 @@ import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
 import ca.uhn.fhir.jpa.api.model.DaoMethodOutcome;
 import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
 import ca.uhn.fhir.jpa.starter.koppeltaal.config.SmartBackendServiceConfiguration;
+import ca.uhn.fhir.jpa.starter.koppeltaal.util.PreviousResourceSlot;
 import ca.uhn.fhir.jpa.starter.koppeltaal.util.ResourceOriginUtil;
 import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
@@ -33,6 +34,7 @@ import org.hl7.fhir.r4.model.DomainResource;
 import org.hl7.fhir.r4.model.Enumerations.PublicationStatus;
 import org.hl7.fhir.r4.model.Enumerations.SearchParamType;
 import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.IdType;
 import org.hl7.fhir.r4.model.Reference;
 import org.hl7.fhir.r4.model.ResourceType;
 import org.hl7.fhir.r4.model.SearchParameter;
@@ -128,8 +130,17 @@ public class InjectResourceOriginInterceptor {
 	}
 
 	private void ensureResourceOrigin(RequestDetails requestDetails, DomainResource resource) {
+		final Optional<String> indexedResourceOrigin =
+			ResourceOriginUtil.getIndexedResourceOrigin(requestDetails.getResourceName(), requestDetails.getId());
+		if (indexedResourceOrigin.isPresent()) {
+			final Reference deviceReference = new Reference(indexedResourceOrigin.get());
+			deviceReference.setType(ResourceType.Device.name());
+			resource.addExtension(new Extension(RESOURCE_ORIGIN_SYSTEM, deviceReference));
+			return;
+		}
+
 		final IFhirResourceDao<?> resourceDao = daoRegistry.getResourceDao(requestDetails.getResourceName());
-		final IBaseResource existingResource = resourceDao.read(requestDetails.getId(), requestDetails);
+		final IBaseResource existingResource = PreviousResourceSlot.read(requestDetails, resourceDao, requestDetails.getId());
 
 		List<Extension> extensionsByUrl = ((DomainResource) existingResource).getExtensionsByUrl(RESOURCE_ORIGIN_SYSTEM);
 
@@ -149,12 +160,7 @@ public class InjectResourceOriginInterceptor {
 		final IBaseResource requestBodyResource = requestDetails.getResource();
 		final IIdType requestBodyResourceOriginDevice = getResourceOriginDeviceId((DomainResource) requestBodyResource, requestDetails);
 
-		final IFhirResourceDao<?> resourceDao = daoRegistry.getResourceDao(requestDetails.getResourceName());
-		final IBaseResource existingResource = resourceDao.read(requestDetails.getId(), requestDetails);
-
-		final IIdType existingResourceOriginDevice = getResourceOriginDeviceId((DomainResource) existingResource, requestDetails);
-
-		final String existingResourceOriginDeviceIdPart = existingResourceOriginDevice.getIdPart();
+		final String existingResourceOriginDeviceIdPart = getExistingResourceOriginDeviceIdPart(requestDetails);
 		final String bodyResourceOriginDeviceIdPart = requestBodyResourceOriginDevice.getIdPart();
 
 		if(!StringUtils.equals(existingResourceOriginDeviceIdPart, bodyResourceOriginDeviceIdPart)) {
@@ -169,6 +175,19 @@ public class InjectResourceOriginInterceptor {
 		}
 	}
 
+	private String getExistingResourceOriginDeviceIdPart(RequestDetails requestDetails) {
+		final Optional<String> indexedResourceOrigin =
+			ResourceOriginUtil.getIndexedResourceOrigin(requestDetails.getResourceName(), requestDetails.getId());
+		if (indexedResourceOrigin.isPresent()) {
+			return new IdType(indexedResourceOrigin.get()).getIdPart();
+		}
+
+		final IFhirResourceDao<?> resourceDao = daoRegistry.getResourceDao(requestDetails.getResourceName());
+		final IBaseResource existingResource = PreviousResourceSlot.read(requestDetails, resourceDao, requestDetails.getId());
+
+		return getResourceOriginDeviceId((DomainResource) existingResource, requestDetails).getIdPart();
+	}
+
 	private void ensureResourceOriginNotSet(RequestDetails requestDetails) {
 
 		final DomainResource requestBodyResource = (DomainResource) requestDetails.getResource();
@@ -3,7 +3,7 @@ package ca.uhn.fhir.jpa.starter.koppeltaal.interceptor;
 import ca.uhn.fhir.interceptor.api.Hook;
 import ca.uhn.fhir.interceptor.api.Interceptor;
 import ca.uhn.fhir.interceptor.api.Pointcut;
-import ca.uhn.fhir.jpa.starter.koppeltaal.util.RequestIdHolder;
+import ca.uhn.fhir.jpa.starter.koppeltaal.util.SubscriptionMessageAttributes;
 import ca.uhn.fhir.jpa.subscription.model.CanonicalSubscription;
 import ca.uhn.fhir.jpa.subscription.model.ResourceDeliveryMessage;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
@@ -34,11 +34,6 @@ public class InjectTraceIdInterceptor {
   public final static String TRACE_ID_HEADER_KEY = "X-Trace-Id";
   private static final Logger LOG = LoggerFactory.getLogger(InjectTraceIdInterceptor.class);
   private static final Logger ourLog = LoggerFactory.getLogger(InjectTraceIdInterceptor.class);
-  private final RequestIdHolder requestIdHolder;
-
-  public InjectTraceIdInterceptor(RequestIdHolder requestIdHolder) {
-    this.requestIdHolder = requestIdHolder;
-  }
 
   @Hook(value = Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED, order = -10)
   public void incomingRequestPreHandled(RequestDetails requestDetails, ServletRequestDetails servletRequestDetails) {
@@ -57,14 +52,15 @@ public class InjectTraceIdInterceptor {
 
   @Hook(value = Pointcut.SUBSCRIPTION_BEFORE_DELIVERY, order = Integer.MAX_VALUE)
   public void outgoingSubscriptionBeforeDelivery(ResourceDeliveryMessage message) {
-    String transactionId = message.getTransactionId();
+    String transactionId = SubscriptionMessageAttributes.getTraceId(message);
 
     LOG.info("Delivering subscription for traceId {}. Adding tracing headers", transactionId);
 
     CanonicalSubscription canonicalSubscription = message.getSubscription();
     String requestId = UUID.randomUUID().toString(); // async, so always generate a new requestId
 
-    Optional<String> correlationIdOptional = requestIdHolder.getRequestId(transactionId);
+    // The request id of the originating request is carried on the message
+    Optional<String> correlationIdOptional = SubscriptionMessageAttributes.getRequestId(message);
 
     // There is no access to the response headers on the HttpServletResponse for
     // subscriptions. Adding them in-memory to the subscription headers.
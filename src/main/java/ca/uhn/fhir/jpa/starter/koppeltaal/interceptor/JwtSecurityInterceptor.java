@@ -12,14 +12,19 @@ import ca.uhn.fhir.interceptor.api.Hook;
 import ca.uhn.fhir.interceptor.api.Interceptor;
 import ca.uhn.fhir.interceptor.api.Pointcut;
 import ca.uhn.fhir.jpa.starter.koppeltaal.service.Oauth2AccessTokenService;
+import ca.uhn.fhir.jpa.starter.koppeltaal.util.RequestSecurityContext;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.server.exceptions.AuthenticationException;
 import com.auth0.jwt.exceptions.JWTVerificationException;
+import com.auth0.jwt.interfaces.DecodedJWT;
 import jakarta.servlet.http.HttpServletRequest;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.http.HttpStatus;
 
+import java.util.Optional;
+
 /**
  *
  */
@@ -39,16 +44,18 @@ public class JwtSecurityInterceptor {
 		final String requestURI = request.getRequestURI();
 		if (requiresBearerToken(request)) {
 			try {
-				String authorization = request.getHeader("Authorization");
-				String token = StringUtils.trim(StringUtils.removeStartIgnoreCase(authorization, "Bearer"));
+				String token = RequestSecurityContext.getBearerToken(request.getHeader("Authorization"));
 				if (StringUtils.isEmpty(token)) {
 					LOG.warn("No access token found on URI {}.", requestURI);
 					throw new AuthenticationException(HttpStatus.UNAUTHORIZED.getReasonPhrase());
 				}
-				if (!oauth2AccessTokenService.validateToken(token)) {
+				final Optional<DecodedJWT> verified = oauth2AccessTokenService.verifyToken(token);
+				if (verified.isEmpty()) {
 					LOG.warn("Invalid token {} on URI {}.", token, requestURI);
 					throw new AuthenticationException(HttpStatus.UNAUTHORIZED.getReasonPhrase());
 				}
+				// The RequestDetails don't exist yet, they pick up the context in the POST_PROCESSED hook below
+				RequestSecurityContext.set(request, RequestSecurityContext.of(verified.get()));
 			} catch (JWTVerificationException e) {
 				LOG.warn(String.format("JWTVerificationException on URI %s.", requestURI), e);
 				throw new AuthenticationException(HttpStatus.UNAUTHORIZED.getReasonPhrase());
@@ -56,6 +63,18 @@ public class JwtSecurityInterceptor {
 		}
 	}
 
+	/**
+	 * Runs before the other interceptors so every one of them reads the already verified token from the
+	 * {@link RequestDetails} instead of decoding the Authorization header again.
+	 */
+	@Hook(value = Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED, order = -20)
+	public void incomingRequestPostProcessed(RequestDetails requestDetails, HttpServletRequest request) {
+		final Object securityContext = request.getAttribute(RequestSecurityContext.USER_DATA_KEY);
+		if (securityContext instanceof RequestSecurityContext) {
+			RequestSecurityContext.set(requestDetails, (RequestSecurityContext) securityContext);
+		}
+	}
+
 	private boolean requiresBearerToken(HttpServletRequest request) {
 		final String requestURI = request.getRequestURI();
 
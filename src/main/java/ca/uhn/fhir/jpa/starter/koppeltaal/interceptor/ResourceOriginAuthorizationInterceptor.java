@@ -7,7 +7,9 @@ import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
 import ca.uhn.fhir.jpa.starter.koppeltaal.config.SmartBackendServiceConfiguration;
 import ca.uhn.fhir.jpa.starter.koppeltaal.util.PermissionUtil;
+import ca.uhn.fhir.jpa.starter.koppeltaal.util.PreviousResourceSlot;
 import ca.uhn.fhir.jpa.starter.koppeltaal.util.ResourceOriginUtil;
+import ca.uhn.fhir.jpa.starter.koppeltaal.util.ScopePermission;
 import ca.uhn.fhir.rest.api.RequestTypeEnum;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.server.exceptions.AuthenticationException;
@@ -82,7 +84,7 @@ public class ResourceOriginAuthorizationInterceptor extends BaseAuthorizationInt
   }
 
   private void validate(RequestDetails requestDetails) {
-    List<String> relevantPermissions = PermissionUtil.getScopesForRequest(requestDetails);
+    List<ScopePermission> relevantPermissions = PermissionUtil.getPermissionsForRequest(requestDetails);
     RequestTypeEnum requestType = requestDetails.getRequestType();
 
     LOG.debug("Relevant permissions found: {}", relevantPermissions);
@@ -100,15 +102,11 @@ public class ResourceOriginAuthorizationInterceptor extends BaseAuthorizationInt
     }
 
     // non-create request, always involves existing entities
-    String crudsRegex = PermissionUtil.getCrudsRegex(requestType);
-
     boolean hasPermission;
 
     if (requestDetails.getRequestType() == RequestTypeEnum.GET && requestDetails.getId() == null) { // read all
-      LOG.debug("GET request for multiple resources (read all) - checking permissions");
-      hasPermission = relevantPermissions.stream()
-          .map((permission) -> StringUtils.substringAfter(permission, "."))
-          .anyMatch((permission) -> permission.matches(crudsRegex + ".*"));
+      // the relevant permissions already match the operation, the resource-origins are handled by search narrowing
+      hasPermission = !relevantPermissions.isEmpty();
       LOG.debug("Read-all permission check result: {}", hasPermission);
     } else {
       LOG.debug("Checking permission for specific resource operation");
@@ -118,16 +116,8 @@ public class ResourceOriginAuthorizationInterceptor extends BaseAuthorizationInt
           requestDetails.getResourceName(), requestDetails.getId(), existingEntityResourceOrigin);
 
 //      system/Practitioner.crus?resource-origin=Device/b4decd94-15c0-43c1-8200-f8e5f04cf90b
-      hasPermission = relevantPermissions.stream(
-        )
-          .map((permission) -> {
-            String afterDot = StringUtils.substringAfter(permission, ".");
-            String pattern = crudsRegex + "(?:\\?resource-origin=.*" + existingEntityResourceOrigin + "(,.*|$))?";
-            boolean matches = afterDot.matches(pattern);
-            LOG.debug("Checking permission '{}' against pattern '{}': {}", afterDot, pattern, matches);
-            return matches;
-          })
-          .anyMatch(Boolean::booleanValue);
+      hasPermission = relevantPermissions.stream()
+          .anyMatch((permission) -> permission.allowsResourceOrigin(existingEntityResourceOrigin));
 
       LOG.debug("Final authorization result: {}", hasPermission);
     }
@@ -152,12 +142,22 @@ public class ResourceOriginAuthorizationInterceptor extends BaseAuthorizationInt
         // Determine if we should allow reading deleted resources based on whether this is a history request
         boolean allowDeleted = isFullHistoryCheck(requestDetails);
 
+        if (!allowDeleted) {
+          // deleted resources are removed from the index, so these still end up reading (and failing with a 410)
+          final Optional<String> indexedResourceOrigin =
+            ResourceOriginUtil.getIndexedResourceOrigin(requestDetails.getResourceName(), resourceId);
+          if (indexedResourceOrigin.isPresent()) {
+            return indexedResourceOrigin.get();
+          }
+        }
+
         if (allowDeleted) {
           LOG.debug("History request for {}/{} - reading with allowDeleted=true",
                    requestDetails.getResourceName(), resourceId.getIdPart());
         }
 
-        IBaseResource existingResource = resourceDao.read(resourceId, requestDetails, allowDeleted);
+        IBaseResource existingResource = PreviousResourceSlot.read(requestDetails, resourceDao, resourceId, allowDeleted);
+        ResourceOriginUtil.indexResourceOrigin(existingResource);
         return getResourceOriginDeviceReference(existingResource, requestDetails);
       } catch (ResourceGoneException e) {
         LOG.warn("Failed to read resource {}/{} for authorization check",
@@ -0,0 +1,43 @@
+package ca.uhn.fhir.jpa.starter.koppeltaal.interceptor;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.starter.koppeltaal.service.ResourceOriginIndex;
+import ca.uhn.fhir.jpa.starter.koppeltaal.util.PreviousResourceSlot;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps the {@link ResourceOriginIndex} up to date and clears the {@link PreviousResourceSlot} of a request once the
+ * resource is written. Registered with the JPA interceptor service, so the index is written in the same transaction
+ * as the resource.
+ */
+@Component
+@Interceptor
+public class ResourceOriginIndexInterceptor {
+
+  private final ResourceOriginIndex resourceOriginIndex;
+
+  public ResourceOriginIndexInterceptor(ResourceOriginIndex resourceOriginIndex) {
+    this.resourceOriginIndex = resourceOriginIndex;
+  }
+
+  @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+  public void created(IBaseResource resource) {
+    resourceOriginIndex.index(resource);
+  }
+
+  @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+  public void updated(IBaseResource previousResource, IBaseResource resource, RequestDetails requestDetails) {
+    PreviousResourceSlot.evict(requestDetails, resource.getIdElement());
+    resourceOriginIndex.index(resource);
+  }
+
+  @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+  public void deleted(IBaseResource resource, RequestDetails requestDetails) {
+    PreviousResourceSlot.evict(requestDetails, resource.getIdElement());
+    resourceOriginIndex.remove(resource.fhirType(), resource.getIdElement().getIdPart());
+  }
+}
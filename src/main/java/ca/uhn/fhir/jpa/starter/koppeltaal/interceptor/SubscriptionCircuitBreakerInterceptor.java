@@ -0,0 +1,70 @@
+package ca.uhn.fhir.jpa.starter.koppeltaal.interceptor;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.starter.koppeltaal.service.SubscriptionCircuitBreaker;
+import ca.uhn.fhir.jpa.starter.koppeltaal.service.SubscriptionDeadLetterStore;
+import ca.uhn.fhir.jpa.subscription.model.CanonicalSubscription;
+import ca.uhn.fhir.jpa.subscription.model.CanonicalSubscriptionChannelType;
+import ca.uhn.fhir.jpa.subscription.model.ResourceDeliveryMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Applies the {@link SubscriptionCircuitBreaker} to REST-hook deliveries. A delivery to a host with an open breaker
+ * is skipped, which also ends the retries of a delivery whose failure opened the breaker. Registered with the JPA
+ * interceptor service, as the deliveries do not come in through the REST API. A skipped delivery is not attempted
+ * again, so it is put in the {@link SubscriptionDeadLetterStore}.
+ */
+@Component
+@Interceptor
+public class SubscriptionCircuitBreakerInterceptor {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SubscriptionCircuitBreakerInterceptor.class);
+
+  private final SubscriptionCircuitBreaker circuitBreaker;
+  private final SubscriptionDeadLetterStore deadLetterStore;
+
+  public SubscriptionCircuitBreakerInterceptor(SubscriptionCircuitBreaker circuitBreaker,
+                                               SubscriptionDeadLetterStore deadLetterStore) {
+    this.circuitBreaker = circuitBreaker;
+    this.deadLetterStore = deadLetterStore;
+  }
+
+  @Hook(Pointcut.SUBSCRIPTION_BEFORE_DELIVERY)
+  public boolean beforeDelivery(ResourceDeliveryMessage message) {
+    final CanonicalSubscription subscription = message.getSubscription();
+    if (!isRestHook(subscription) || circuitBreaker.allowDelivery(subscription.getEndpointUrl())) return true;
+
+    LOG.warn("Not delivering [{}] to Subscription [{}], the circuit breaker of [{}] is open",
+      message.getPayloadId(), subscription.getIdPart(), subscription.getEndpointUrl());
+    deadLetterStore.add(message, "The circuit breaker of [" + subscription.getEndpointUrl() + "] is open",
+      SubscriptionDeadLetterStore.getFailedAttempts());
+    return false;
+  }
+
+  @Hook(Pointcut.SUBSCRIPTION_AFTER_DELIVERY)
+  public void afterDelivery(ResourceDeliveryMessage message) {
+    final CanonicalSubscription subscription = message.getSubscription();
+    if (isRestHook(subscription)) {
+      circuitBreaker.deliverySucceeded(subscription.getEndpointUrl());
+    }
+  }
+
+  /**
+   * Returns nothing, so the failure is still rethrown for the retry and the failed delivery is still audited.
+   */
+  @Hook(Pointcut.SUBSCRIPTION_AFTER_DELIVERY_FAILED)
+  public void afterDeliveryFailed(ResourceDeliveryMessage message, Exception exception) {
+    final CanonicalSubscription subscription = message.getSubscription();
+    if (isRestHook(subscription)) {
+      circuitBreaker.deliveryFailed(subscription.getEndpointUrl());
+    }
+  }
+
+  private static boolean isRestHook(CanonicalSubscription subscription) {
+    return subscription != null && subscription.getChannelType() == CanonicalSubscriptionChannelType.RESTHOOK;
+  }
+}
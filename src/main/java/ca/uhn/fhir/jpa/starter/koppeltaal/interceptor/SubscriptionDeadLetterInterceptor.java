@@ -0,0 +1,39 @@
+package ca.uhn.fhir.jpa.starter.koppeltaal.interceptor;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.starter.koppeltaal.config.SubscriptionRetryProperties;
+import ca.uhn.fhir.jpa.starter.koppeltaal.service.SubscriptionDeadLetterStore;
+import ca.uhn.fhir.jpa.subscription.model.ResourceDeliveryMessage;
+import org.springframework.stereotype.Component;
+
+/**
+ * Puts a notification in the {@link SubscriptionDeadLetterStore} when its last delivery attempt failed, so it can be
+ * replayed with <code>$replay-failed-notifications</code>. Registered with the JPA interceptor service, as the
+ * deliveries do not come in through the REST API.
+ */
+@Component
+@Interceptor
+public class SubscriptionDeadLetterInterceptor {
+
+  private final SubscriptionDeadLetterStore deadLetterStore;
+  private final SubscriptionRetryProperties retryProperties;
+
+  public SubscriptionDeadLetterInterceptor(SubscriptionDeadLetterStore deadLetterStore,
+                                           SubscriptionRetryProperties retryProperties) {
+    this.deadLetterStore = deadLetterStore;
+    this.retryProperties = retryProperties;
+  }
+
+  /**
+   * Returns nothing, so the failure is still rethrown and the failed delivery is still audited.
+   */
+  @Hook(Pointcut.SUBSCRIPTION_AFTER_DELIVERY_FAILED)
+  public void afterDeliveryFailed(ResourceDeliveryMessage message, Exception exception) {
+    final int attempt = SubscriptionDeadLetterStore.getFailedAttempts() + 1;
+    if (attempt < retryProperties.getMaxAttempts()) return; // retried
+
+    deadLetterStore.add(message, exception != null ? exception.getMessage() : null, attempt);
+  }
+}
@@ -8,11 +8,12 @@ import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
 import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
 import ca.uhn.fhir.jpa.starter.koppeltaal.dto.CrudOperation;
+import ca.uhn.fhir.jpa.starter.koppeltaal.service.SubscriptionProfileCache;
 import ca.uhn.fhir.jpa.starter.koppeltaal.util.PermissionUtil;
 import ca.uhn.fhir.jpa.starter.koppeltaal.util.ResourceOriginUtil;
+import ca.uhn.fhir.jpa.starter.koppeltaal.util.SubscriptionDeliveryProfile;
 import ca.uhn.fhir.jpa.subscription.model.CanonicalSubscription;
-import ca.uhn.fhir.jpa.subscription.model.ResourceDeliveryMessage;
-import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
+import ca.uhn.fhir.jpa.subscription.model.ResourceModifiedMessage;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IIdType;
 import org.hl7.fhir.r4.model.*;
@@ -23,6 +24,14 @@ import java.util.Optional;
 
 /**
  * <p>Interceptor that handles "notification narrowing"</p>
+ *
+ * <p>Narrowing is done when a resource matches a Subscription, before HAPI creates a delivery message for it. A
+ * notification the subscriber is not allowed to read is never queued, and the payload is only decoded once per
+ * resource change for all Subscriptions that match it.</p>
+ *
+ * <p>The Subscription and its resource-origin Device are only read to build the {@link SubscriptionDeliveryProfile},
+ * which is cached in the {@link SubscriptionProfileCache}. Registered with the JPA interceptor service, which runs
+ * the subscription matcher and evicts the profile when the Subscription or Device is updated or deleted.</p>
  */
 @Interceptor
 public class SubscriptionNarrowingInterceptor {
@@ -32,46 +41,50 @@ public class SubscriptionNarrowingInterceptor {
 	private final IFhirResourceDao<Subscription> subscriptionDao;
 	private final IFhirResourceDao<Device> deviceDao;
 	private final FhirContext context;
+	private final SubscriptionProfileCache subscriptionProfileCache;
 
 	public SubscriptionNarrowingInterceptor(DaoRegistry daoRegistry) {
+		this(daoRegistry, null);
+	}
+
+	/**
+	 * @param subscriptionProfileCache the cache of the profiles, builds the profile for every notification when null
+	 */
+	public SubscriptionNarrowingInterceptor(DaoRegistry daoRegistry, SubscriptionProfileCache subscriptionProfileCache) {
 		this.subscriptionDao = daoRegistry.getResourceDao(Subscription.class);
 		this.deviceDao = daoRegistry.getResourceDao(Device.class);
 		this.context = daoRegistry.getSystemDao().getContext();
+		this.subscriptionProfileCache = subscriptionProfileCache;
 	}
 
-	@Hook(Pointcut.SUBSCRIPTION_BEFORE_DELIVERY)
-	public boolean subscriptionBeforeDelivery(ResourceDeliveryMessage message, CanonicalSubscription canonicalSubscription) {
+	@Hook(Pointcut.SUBSCRIPTION_RESOURCE_MATCHED)
+	public boolean subscriptionResourceMatched(CanonicalSubscription canonicalSubscription, ResourceModifiedMessage message) {
 
 		try {
-			final IBaseResource payload = message.getPayload(context);
-      String transId = message.getTransactionId();
-
-			final IIdType canonicalSubscriptionIdElement = canonicalSubscription.getIdElement(context);
-      SystemRequestDetails theRequestDetails = new SystemRequestDetails();
-      theRequestDetails.setTenantId("DEFAULT");
+			// decoded once by the matcher and shared by all Subscriptions the change is matched against
+			final IBaseResource payload = message.getNewPayload(context);
 
-      final Subscription subscription = subscriptionDao.read(canonicalSubscriptionIdElement, theRequestDetails);
+			final String subscriptionId = canonicalSubscription.getIdElement(context).getIdPart();
+			final SubscriptionDeliveryProfile profile = subscriptionProfileCache != null
+				? subscriptionProfileCache.get(subscriptionId, this::buildProfile)
+				: buildProfile(subscriptionId);
 
-			final Optional<IIdType> optionalSubscriptionDeviceId = ResourceOriginUtil.getResourceOriginDeviceId(subscription);
-
-			if(optionalSubscriptionDeviceId.isEmpty()) {
+			if(profile.getDeviceId().isEmpty()) {
 				LOG.warn("No resource-origin found on canonicalSubscriptionIdElement [Subscription/{}]. Still sending notification.",
-					canonicalSubscriptionIdElement.getIdPart());
+					subscriptionId);
 				return true; //TODO: Decide whether we want this to break
 			}
 
-			final IIdType subscriptionDeviceId = optionalSubscriptionDeviceId.get();
-      Device subscriptionOriginDevice = deviceDao.read(subscriptionDeviceId, theRequestDetails);
-
-      Identifier clientId = subscriptionOriginDevice.getIdentifier().stream()
-        .filter((identifier -> "http://vzvz.nl/fhir/NamingSystem/koppeltaal-client-id".equals(identifier.getSystem())))
-        .findAny()
-        .orElseThrow(() -> new ForbiddenOperationException("Cannot determine client id based on device id " + subscriptionDeviceId.getValue()));
+			if(profile.getClientId().isEmpty()) {
+				LOG.error("Cannot determine client id based on device id [Device/{}]. Still sending notification.", profile.getDeviceId().get());
+				return true;
+			}
 
-      Optional<String> scope = PermissionUtil.getScope(clientId.getValue());
+      final String clientId = profile.getClientId().get();
+      Optional<String> scope = PermissionUtil.getScope(clientId);
 
       if(scope.isEmpty()) {
-        LOG.info("Scope for client_id [{}] not found in cache yet. Still sending notification.", clientId.getValue());
+        LOG.info("Scope for client_id [{}] not found in cache yet. Still sending notification.", clientId);
         return true; //cache not yet updated with permissions, simply send the notification
       }
 
@@ -79,7 +92,7 @@ public class SubscriptionNarrowingInterceptor {
 				final Optional<IIdType> payloadOptionalDeviceId = ResourceOriginUtil.getResourceOriginDeviceId(payload);
 
 				if(payloadOptionalDeviceId.isEmpty()) {
-        LOG.info("No Device found for [{}] (payload inside ResourceDeliveryMessage.mesage). Still sending notification.", payload.getIdElement().getValue());
+        LOG.info("No Device found for [{}] (payload inside ResourceModifiedMessage). Still sending notification.", payload.getIdElement().getValue());
 					return true; //TODO: Decide whether we want this to break
 				}
 
@@ -87,8 +100,11 @@ public class SubscriptionNarrowingInterceptor {
 
 				final ResourceType resourceType = ((DomainResource) payload).getResourceType();
 
-        LOG.info("Device [{}] found for [{}], determine if it has permission next", payloadDeviceId.getIdPart(), payload.getIdElement().getValue());
-        return PermissionUtil.hasPermission(CrudOperation.READ, resourceType, payloadDeviceId.getIdPart(), scope.get());
+        final boolean hasPermission = profile.getReadPermissions(scope.get())
+          .hasPermission(CrudOperation.READ, resourceType.name(), payloadDeviceId.getIdPart());
+        LOG.debug("Device [{}] found for [{}], client_id [{}] has permission: [{}]", payloadDeviceId.getIdPart(),
+          payload.getIdElement().getValue(), clientId, hasPermission);
+        return hasPermission;
 			}
 		} catch (Exception e) {
 			LOG.error(String.format("Failed to execute Notification Narrowing. Non-breaking, might have notified for inaccessible resources! Still sending notification.\n\nMessage: %s", message), e);
@@ -98,4 +114,50 @@ public class SubscriptionNarrowingInterceptor {
 		return true; //TODO: Decide whether we want this to break
 	}
 
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+	public void resourceUpdated(IBaseResource previousResource, IBaseResource resource) {
+		evict(resource);
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+	public void resourceDeleted(IBaseResource resource) {
+		evict(resource);
+	}
+
+	private void evict(IBaseResource resource) {
+		if (subscriptionProfileCache == null) return;
+
+		if (resource instanceof Subscription) {
+			subscriptionProfileCache.evictSubscription(resource.getIdElement().getIdPart());
+		} else if (resource instanceof Device) {
+			subscriptionProfileCache.evictDevice(resource.getIdElement().getIdPart());
+		}
+	}
+
+	/**
+	 * Reads the Subscription and its resource-origin Device, the only reads needed to narrow its notifications.
+	 */
+	private SubscriptionDeliveryProfile buildProfile(String subscriptionId) {
+		SystemRequestDetails theRequestDetails = new SystemRequestDetails();
+		theRequestDetails.setTenantId("DEFAULT");
+
+		final Subscription subscription = subscriptionDao.read(new IdType("Subscription", subscriptionId), theRequestDetails);
+		final Optional<IIdType> optionalSubscriptionDeviceId = ResourceOriginUtil.getResourceOriginDeviceId(subscription);
+
+		if(optionalSubscriptionDeviceId.isEmpty()) {
+			return new SubscriptionDeliveryProfile(subscriptionId, null, null);
+		}
+
+		final IIdType subscriptionDeviceId = optionalSubscriptionDeviceId.get();
+		final Device subscriptionOriginDevice = deviceDao.read(subscriptionDeviceId, theRequestDetails);
+
+		final String clientId = subscriptionOriginDevice.getIdentifier().stream()
+			.filter((identifier -> "http://vzvz.nl/fhir/NamingSystem/koppeltaal-client-id".equals(identifier.getSystem())))
+			.map(Identifier::getValue)
+			.findAny()
+			.orElse(null);
+
+		return new SubscriptionDeliveryProfile(subscriptionId, subscriptionDeviceId.getIdPart(), clientId);
+	}
+
 }
@@ -0,0 +1,231 @@
+package ca.uhn.fhir.jpa.starter.koppeltaal.provider;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.jpa.starter.koppeltaal.config.FhirServerAuditLogConfiguration;
+import ca.uhn.fhir.jpa.starter.koppeltaal.config.FhirServerSecurityConfiguration;
+import ca.uhn.fhir.jpa.starter.koppeltaal.dto.CrudOperation;
+import ca.uhn.fhir.jpa.starter.koppeltaal.service.AuditEventService;
+import ca.uhn.fhir.jpa.starter.koppeltaal.util.PermissionUtil;
+import ca.uhn.fhir.jpa.starter.koppeltaal.util.ScopePermission;
+import ca.uhn.fhir.model.api.TemporalPrecisionEnum;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.api.SearchTotalModeEnum;
+import ca.uhn.fhir.rest.api.SortOrderEnum;
+import ca.uhn.fhir.rest.api.SortSpec;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.DateRangeParam;
+import ca.uhn.fhir.rest.param.ParamPrefixEnum;
+import ca.uhn.fhir.rest.param.ReferenceOrListParam;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
+import ca.uhn.fhir.rest.server.exceptions.MethodNotAllowedException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import jakarta.servlet.http.HttpServletResponse;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.AuditEvent;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.hl7.fhir.r4.model.StringType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * <p>Streams AuditEvents as NDJSON, for auditors that need weeks of AuditEvents:
+ * <code>GET AuditEvent/$audit-export?since=&amp;until=&amp;device=</code>. Unlike a search, the results are not
+ * cached by the paging provider and not wrapped in Bundles.</p>
+ *
+ * <p>The AuditEvents are read in batches, sorted on <code>date</code> and <code>_id</code>. Each batch continues
+ * from the date of the last AuditEvent written (keyset pagination) instead of an offset, skipping the AuditEvents with
+ * that date that were written already. Only one batch is kept in memory.</p>
+ *
+ * <p>Only GET is accepted, HAPI also routes a POST to the operation, which the authorization interceptors treat as a
+ * create. The request is authorized here like an AuditEvent search: it requires the READ permission on AuditEvent,
+ * and when the permissions are limited to resource-origins only the AuditEvents with those resource-origins are
+ * exported. The resource-origins are taken from the access token, never from the request parameters.</p>
+ */
+@Component
+public class AuditEventExportProvider {
+
+  private static final Logger LOG = LoggerFactory.getLogger(AuditEventExportProvider.class);
+  public static final String CONTENT_TYPE = "application/fhir+ndjson";
+  static final String RESOURCE_ORIGIN = "resource-origin";
+
+  private final IFhirResourceDao<AuditEvent> auditEventDao;
+  private final FhirContext fhirContext;
+  private final FhirServerAuditLogConfiguration fhirServerAuditLogConfiguration;
+  private final FhirServerSecurityConfiguration fhirServerSecurityConfiguration;
+
+  public AuditEventExportProvider(DaoRegistry daoRegistry, FhirContext fhirContext,
+                                  FhirServerAuditLogConfiguration fhirServerAuditLogConfiguration,
+                                  FhirServerSecurityConfiguration fhirServerSecurityConfiguration) {
+    this.auditEventDao = daoRegistry.getResourceDao(AuditEvent.class);
+    this.fhirContext = fhirContext;
+    this.fhirServerAuditLogConfiguration = fhirServerAuditLogConfiguration;
+    this.fhirServerSecurityConfiguration = fhirServerSecurityConfiguration;
+  }
+
+  @Operation(name = "$audit-export", typeName = "AuditEvent", idempotent = true, manualResponse = true)
+  public void export(@OperationParam(name = "since", max = 1) DateTimeType since,
+                     @OperationParam(name = "until", max = 1) DateTimeType until,
+                     @OperationParam(name = "device", max = 1) StringType device,
+                     ServletRequestDetails requestDetails) throws IOException {
+    if (requestDetails.getRequestType() != RequestTypeEnum.GET) {
+      throw new MethodNotAllowedException("$audit-export only supports GET", RequestTypeEnum.GET);
+    }
+    final List<String> resourceOrigins = getResourceOrigins(requestDetails);
+
+    final HttpServletResponse response = requestDetails.getServletResponse();
+    final boolean gzip = StringUtils.containsIgnoreCase(requestDetails.getHeader("Accept-Encoding"), "gzip");
+
+    response.setStatus(HttpServletResponse.SC_OK);
+    response.setContentType(CONTENT_TYPE);
+    response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+    if (gzip) {
+      response.setHeader("Content-Encoding", "gzip");
+    }
+
+    final OutputStream outputStream = gzip ? new GZIPOutputStream(response.getOutputStream()) : response.getOutputStream();
+    try (Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8))) {
+      final Query query = new Query(
+        since != null ? since.getValue() : null,
+        until != null ? until.getValue() : null,
+        getDevice(device),
+        resourceOrigins);
+      final long count = export(query, writer);
+      LOG.info("Exported [{}] AuditEvents", count);
+    }
+  }
+
+  /**
+   * Writes the AuditEvents of the query to the writer, one per line.
+   *
+   * @return the number of AuditEvents written
+   */
+  long export(Query query, Writer writer) throws IOException {
+    final IParser parser = fhirContext.newJsonParser().setPrettyPrint(false);
+    final int batchSize = fhirServerAuditLogConfiguration.getExport().getBatchSize();
+
+    Date from = query.since;
+    // the ids of the AuditEvents written with date == from, these are part of the next batch again
+    Set<String> written = new HashSet<>();
+    long count = 0;
+
+    while (true) {
+      final int limit = batchSize + written.size();
+      final List<IBaseResource> batch = auditEventDao.search(newSearch(query, from, limit), newSystemRequestDetails())
+        .getAllResources();
+
+      for (IBaseResource resource : batch) {
+        final AuditEvent auditEvent = (AuditEvent) resource;
+        final String id = auditEvent.getIdElement().getIdPart();
+        final Date date = auditEvent.getRecorded();
+        if (Objects.equals(date, from) && written.contains(id)) continue;
+
+        parser.encodeResourceToWriter(auditEvent, writer);
+        writer.write('\n');
+        count++;
+
+        if (!Objects.equals(date, from)) {
+          from = date;
+          written = new HashSet<>();
+        }
+        written.add(id);
+      }
+      writer.flush();
+
+      if (batch.size() < limit) return count;
+    }
+  }
+
+  private SearchParameterMap newSearch(Query query, Date from, int limit) {
+    final SearchParameterMap map = SearchParameterMap.newSynchronous();
+    map.setLoadSynchronousUpTo(limit);
+    map.setCount(limit);
+    map.setSearchTotalMode(SearchTotalModeEnum.NONE);
+    map.setSort(new SortSpec("date", SortOrderEnum.ASC, new SortSpec("_id", SortOrderEnum.ASC)));
+
+    if (from != null || query.until != null) {
+      map.add("date", new DateRangeParam(
+        from != null ? new DateParam(ParamPrefixEnum.GREATERTHAN_OR_EQUALS, new DateTimeType(from, TemporalPrecisionEnum.MILLI)) : null,
+        query.until != null ? new DateParam(ParamPrefixEnum.LESSTHAN, new DateTimeType(query.until, TemporalPrecisionEnum.MILLI)) : null));
+    }
+    if (query.device != null) {
+      map.add("agent", new ReferenceParam(query.device));
+    }
+    if (!query.resourceOrigins.isEmpty()) {
+      final ReferenceOrListParam resourceOrigins = new ReferenceOrListParam();
+      query.resourceOrigins.forEach((resourceOrigin) -> resourceOrigins.addOr(new ReferenceParam(resourceOrigin)));
+      map.add(RESOURCE_ORIGIN, resourceOrigins);
+    }
+    return map;
+  }
+
+  private SystemRequestDetails newSystemRequestDetails() {
+    return new SystemRequestDetails()
+      .setRequestPartitionId(AuditEventService.getReadPartition(fhirServerAuditLogConfiguration.getPartition()));
+  }
+
+  private static String getDevice(StringType device) {
+    if (device == null || StringUtils.isBlank(device.getValue())) return null;
+
+    final String value = device.getValue();
+    return value.startsWith("Device/") ? value : "Device/" + value;
+  }
+
+  /**
+   * @return the resource-origins the READ permissions on AuditEvent are limited to, empty when they are not limited
+   */
+  private List<String> getResourceOrigins(ServletRequestDetails requestDetails) {
+    if (!fhirServerSecurityConfiguration.isEnabled()) return List.of();
+
+    final String scope = PermissionUtil.getFullScope(requestDetails);
+    final List<ScopePermission> permissions = PermissionUtil.getPermissions(scope)
+      .getPermissions(ResourceType.AuditEvent.name(), CrudOperation.READ);
+    if (permissions.isEmpty()) {
+      LOG.warn("No permission found to export AuditEvents, the found scopes are [{}]", scope);
+      throw new ForbiddenOperationException("Unauthorized");
+    }
+    if (permissions.stream().anyMatch((permission) -> permission.allowsResourceOrigin(null))) return List.of();
+
+    return permissions.stream()
+      .flatMap((permission) -> permission.getResourceOrigins().stream())
+      .distinct()
+      .toList();
+  }
+
+  static final class Query {
+    private final Date since;
+    private final Date until;
+    private final String device;
+    private final List<String> resourceOrigins;
+
+    Query(Date since, Date until, String device, List<String> resourceOrigins) {
+      this.since = since;
+      this.until = until;
+      this.device = device;
+      this.resourceOrigins = resourceOrigins;
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package ca.uhn.fhir.jpa.starter.koppeltaal.provider;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.starter.koppeltaal.config.FhirServerSecurityConfiguration;
+import ca.uhn.fhir.jpa.starter.koppeltaal.dto.CrudOperation;
+import ca.uhn.fhir.jpa.starter.koppeltaal.service.SubscriptionDeadLetterStore;
+import ca.uhn.fhir.jpa.starter.koppeltaal.util.PermissionUtil;
+import ca.uhn.fhir.jpa.starter.koppeltaal.util.ResourceOriginUtil;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * <p>Redelivers the notifications that failed their last delivery attempt:
+ * <code>POST Subscription/$replay-failed-notifications?subscription=&amp;since=</code>. The dead letters are only
+ * marked here, the {@link SubscriptionDeadLetterStore} sends them in throttled batches, so the response holds the
+ * number of notifications that will be replayed.</p>
+ *
+ * <p>Replaying the notifications of a Subscription requires the permission to update that Subscription, replaying
+ * those of all Subscriptions requires the permission to update any Subscription.</p>
+ */
+@Component
+public class SubscriptionReplayProvider {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SubscriptionReplayProvider.class);
+
+  private final SubscriptionDeadLetterStore deadLetterStore;
+  private final IFhirResourceDao<Subscription> subscriptionDao;
+  private final FhirServerSecurityConfiguration fhirServerSecurityConfiguration;
+
+  public SubscriptionReplayProvider(SubscriptionDeadLetterStore deadLetterStore, DaoRegistry daoRegistry,
+                                    FhirServerSecurityConfiguration fhirServerSecurityConfiguration) {
+    this.deadLetterStore = deadLetterStore;
+    this.subscriptionDao = daoRegistry.getResourceDao(Subscription.class);
+    this.fhirServerSecurityConfiguration = fhirServerSecurityConfiguration;
+  }
+
+  @Operation(name = "$replay-failed-notifications", typeName = "Subscription")
+  public Parameters replayFailedNotifications(@OperationParam(name = "subscription", max = 1) StringType subscription,
+                                              @OperationParam(name = "since", max = 1) DateTimeType since,
+                                              RequestDetails requestDetails) {
+    final IIdType subscriptionId = getSubscriptionId(subscription);
+    if (fhirServerSecurityConfiguration.isEnabled()) {
+      authorize(subscriptionId, requestDetails);
+    }
+
+    final int count = deadLetterStore.requestReplay(subscriptionId != null ? subscriptionId.getIdPart() : null,
+      since != null ? since.getValue() : null);
+    LOG.info("Replaying [{}] failed notifications of Subscription [{}]", count,
+      subscriptionId != null ? subscriptionId.getIdPart() : "*");
+
+    final Parameters parameters = new Parameters();
+    parameters.addParameter("count", count);
+    return parameters;
+  }
+
+  private void authorize(IIdType subscriptionId, RequestDetails requestDetails) {
+    final String scope = PermissionUtil.getFullScope(requestDetails);
+    String resourceOrigin = null;
+    if (subscriptionId != null) {
+      final Subscription subscription = subscriptionDao.read(subscriptionId, new SystemRequestDetails());
+      resourceOrigin = ResourceOriginUtil.getResourceOriginDeviceId(subscription)
+        .map(IIdType::getValue)
+        .orElseThrow(() -> new ForbiddenOperationException("Unauthorized"));
+    }
+
+    if (!PermissionUtil.hasPermission(CrudOperation.UPDATE, ResourceType.Subscription, resourceOrigin, scope)) {
+      LOG.warn("No permission found to replay the failed notifications of Subscription [{}], the found scopes are [{}]",
+        subscriptionId != null ? subscriptionId.getIdPart() : "*", scope);
+      throw new ForbiddenOperationException("Unauthorized");
+    }
+  }
+
+  private static IIdType getSubscriptionId(StringType subscription) {
+    if (subscription == null || StringUtils.isBlank(subscription.getValue())) return null;
+
+    final IdType id = new IdType(subscription.getValue().trim());
+    return new IdType("Subscription", id.getIdPart());
+  }
+}
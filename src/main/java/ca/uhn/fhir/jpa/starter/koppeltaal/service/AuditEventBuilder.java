@@ -23,17 +23,24 @@ import org.springframework.stereotype.Component;
 
 import java.nio.charset.StandardCharsets;
 import java.time.LocalDate;
+import java.util.Base64;
 import java.util.Collections;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 import static ca.uhn.fhir.jpa.starter.koppeltaal.util.ResourceOriginUtil.RESOURCE_ORIGIN_SYSTEM;
 import static java.util.Collections.singletonList;
 
 /**
- *
+ * Builds the AuditEvent resources. The parts that are the same for every AuditEvent (codings, subtype lists, the
+ * profile and the observer reference) are created once and shared between the AuditEvents, they must not be
+ * modified. Only the parts that differ per AuditEvent are created for each AuditEvent.
  */
 @Component
 public class AuditEventBuilder {
@@ -50,13 +57,30 @@ public class AuditEventBuilder {
 	public static final Coding CODING_APPLICATION_LAUNCHER = new Coding("http://dicom.nema.org/resources/ontology/DCM", "110151", "Application Launcher");
 	public static final Coding CODING_DESTINATION_ROLE_ID = new Coding("http://dicom.nema.org/resources/ontology/DCM", "110152", "Destination Role ID");
 	public static final Coding CODING_SOURCE_ROLE_ID = new Coding("http://dicom.nema.org/resources/ontology/DCM", "110153", "Source Role ID");
+	private static final Coding CODING_ROLE_QUERY = new Coding("http://terminology.hl7.org/CodeSystem/object-role", "24", "Query");
+	private static final Coding CODING_ROLE_SUBSCRIBER = new Coding("http://terminology.hl7.org/CodeSystem/object-role", "9", "Subscriber");
+	private static final String RESOURCE_TYPES_SYSTEM = "http://hl7.org/fhir/resource-types";
+	public static final String DETAIL_RESULT_COUNT = "result-count";
+	public static final String DETAIL_RESULT_DIGEST = "result-sha256";
+	private static final String RESULT_IDS_ID = "result-ids";
 
   public final static String META_PROFILE_URL = "http://koppeltaal.nl/fhir/StructureDefinition/KT2AuditEvent";
+  public final static String OCCURRENCE_COUNT_URL = "http://koppeltaal.nl/fhir/StructureDefinition/occurrence-count";
+  private final static String TRACE_ID_URL = "http://koppeltaal.nl/fhir/StructureDefinition/trace-id";
+  private final static String REQUEST_ID_URL = "http://koppeltaal.nl/fhir/StructureDefinition/request-id";
+  private final static String CORRELATION_ID_URL = "http://koppeltaal.nl/fhir/StructureDefinition/correlation-id";
+  private final static List<CanonicalType> META_PROFILE = singletonList(new CanonicalType(META_PROFILE_URL));
+
+  private static final Map<EventType, Template> TEMPLATES = createTemplates();
+  private static final Map<Coding, CodeableConcept> AGENT_TYPES = createAgentTypes();
+  private static final Map<String, Coding> ENTITY_TYPES = new ConcurrentHashMap<>();
+  private static final int MAX_ENTITY_TYPES = 500;
 
 	private final FhirServerAuditLogConfiguration fhirServerAuditLogConfiguration;
 	private final IFhirResourceDao<Device> deviceDao;
 
 	private  Device self;
+	private Reference observer;
 
 	public AuditEventBuilder(DaoRegistry daoRegistry, FhirServerAuditLogConfiguration fhirServerAuditLogConfiguration) {
 		this.deviceDao = daoRegistry.getResourceDao(Device.class);
@@ -69,6 +93,7 @@ public class AuditEventBuilder {
 		if (self == null) {
 			self = createObserver();
 		}
+		observer = newReference(self);
 	}
 
 	AuditEvent build(AuditEventDto dto) {
@@ -80,10 +105,14 @@ public class AuditEventBuilder {
     if (eventType == EventType.Search && StringUtils.isNotEmpty(dto.getQuery())) {
       AuditEvent.AuditEventEntityComponent queryEntity = new AuditEvent.AuditEventEntityComponent();
       String searchedType = extractResourceTypeFromQuery(dto.getQuery());
-      queryEntity.setType(new Coding("http://hl7.org/fhir/resource-types", searchedType, searchedType));
-      queryEntity.setRole(new Coding("http://terminology.hl7.org/CodeSystem/object-role", "24", "Query"));
-      queryEntity.setQuery(dto.getQuery().getBytes(StandardCharsets.UTF_8));
+      queryEntity.setType(getEntityType(searchedType));
+      queryEntity.setRole(CODING_ROLE_QUERY);
+      queryEntity.setQueryElement(new QueryType(dto.getQuery()));
       auditEvent.addEntity(queryEntity);
+
+      if (dto.getResultCount() != null) {
+        buildSearchResult(auditEvent, queryEntity, dto);
+      }
     }
 
     List<Reference> resources = dto.getResources();
@@ -93,9 +122,9 @@ public class AuditEventBuilder {
         entity.setWhat(null); //remove as it's not allowed to reference to deleted objects
       }
       if (eventType == EventType.SendNotification && "Subscription".equals(getTypeFromReference(resource))) {
-        entity.setRole(new Coding("http://terminology.hl7.org/CodeSystem/object-role", "9", "Subscriber"));
+        entity.setRole(CODING_ROLE_SUBSCRIBER);
         if (StringUtils.isNotEmpty(dto.getQuery())) {
-          entity.setQuery(dto.getQuery().getBytes(StandardCharsets.UTF_8));
+          entity.setQueryElement(new QueryType(dto.getQuery()));
         }
       }
       auditEvent.addEntity(entity);
@@ -105,8 +134,8 @@ public class AuditEventBuilder {
     if (eventType == EventType.SendNotification && StringUtils.isNotEmpty(dto.getQuery())) {
       for (AuditEvent.AuditEventEntityComponent entity : auditEvent.getEntity()) {
         if ("Subscription".equals(entity.getType().getCode())) {
-          entity.setRole(new Coding("http://terminology.hl7.org/CodeSystem/object-role", "9", "Subscriber"));
-          entity.setQuery(dto.getQuery().getBytes(StandardCharsets.UTF_8));
+          entity.setRole(CODING_ROLE_SUBSCRIBER);
+          entity.setQueryElement(new QueryType(dto.getQuery()));
         }
       }
     }
@@ -116,9 +145,15 @@ public class AuditEventBuilder {
     getResourceOriginExtension(dto)
       .ifPresent(auditEvent::addExtension);
 
-		auditEvent.addExtension("http://koppeltaal.nl/fhir/StructureDefinition/trace-id", new IdType(dto.getTraceId()));
-		auditEvent.addExtension("http://koppeltaal.nl/fhir/StructureDefinition/request-id", new IdType(dto.getRequestId()));
-		auditEvent.addExtension("http://koppeltaal.nl/fhir/StructureDefinition/correlation-id", new IdType(dto.getCorrelationId()));
+		auditEvent.addExtension(TRACE_ID_URL, new IdType(dto.getTraceId()));
+		auditEvent.addExtension(REQUEST_ID_URL, new IdType(dto.getRequestId()));
+		auditEvent.addExtension(CORRELATION_ID_URL, new IdType(dto.getCorrelationId()));
+
+    if (dto.getOccurrences() > 1) {
+      // aggregated event, see AuditEventPolicy
+      auditEvent.addExtension(OCCURRENCE_COUNT_URL, new PositiveIntType(dto.getOccurrences()));
+      auditEvent.setPeriod(new Period().setStart(dto.getDateTime()).setEnd(dto.getLastDateTime()));
+    }
 
     if(dto.getOperationOutcome() != null) {
       AuditEvent.AuditEventEntityComponent entity = buildAuditEventEntityComponent(newReference(dto.getOperationOutcome()));
@@ -143,12 +178,37 @@ public class AuditEventBuilder {
     return auditEvent;
   }
 
+  /**
+   * Compact search result, see {@link ca.uhn.fhir.jpa.starter.koppeltaal.config.FhirServerAuditLogConfiguration.SearchAudit}.
+   */
+  private void buildSearchResult(AuditEvent auditEvent, AuditEvent.AuditEventEntityComponent queryEntity, AuditEventDto dto) {
+    queryEntity.addDetail()
+      .setType(DETAIL_RESULT_COUNT)
+      .setValue(new StringType(String.valueOf(dto.getResultCount())));
+    queryEntity.addDetail()
+      .setType(DETAIL_RESULT_DIGEST)
+      .setValue(new StringType(dto.getResultDigest()));
+
+    if (dto.getResultIds() != null) {
+      Binary resultIds = new Binary();
+      resultIds.setId(RESULT_IDS_ID);
+      resultIds.setContentType("text/plain");
+      resultIds.setData(String.join("\n", dto.getResultIds()).getBytes(StandardCharsets.UTF_8));
+      auditEvent.addContained(resultIds);
+
+      AuditEvent.AuditEventEntityComponent entity = new AuditEvent.AuditEventEntityComponent();
+      entity.setWhat(new Reference("#" + RESULT_IDS_ID));
+      entity.setType(getEntityType("Binary"));
+      auditEvent.addEntity(entity);
+    }
+  }
+
   private void buildAgents(AuditEvent auditEvent, AuditEventDto dto) {
     for (AuditEventDto.AgentAndTypeDto agentDto : dto.getAgents()) {
-      if (auditEvent.getType().equalsShallow(CODING_TRANSMIT)) {
+      if (auditEvent.getType() == CODING_TRANSMIT) {
         // This is a Subscription Notification
         auditEvent.addAgent(buildAgents(agentDto.getAgent(), agentDto.getType(), agentDto.isRequester(), agentDto.getNetworkAddress()));
-      } else if (auditEvent.getType().equalsShallow(CODING_REST)) {
+      } else if (auditEvent.getType() == CODING_REST) {
         // This event is a REST operation
         auditEvent.addAgent(buildAgents(agentDto.getAgent(), agentDto.getType(), agentDto.isRequester(), null));
       }
@@ -157,25 +217,22 @@ public class AuditEventBuilder {
 
   @NotNull
   private Optional<Extension> getResourceOriginExtension(AuditEventDto dto) {
-    for (AuditEventDto.AgentAndTypeDto agent : dto.getAgents()) {
-      final Extension resourceOriginExtension = new Extension();
-      resourceOriginExtension.setUrl(RESOURCE_ORIGIN_SYSTEM);
-      resourceOriginExtension.setValue(agent.getAgent());
-      return Optional.of(resourceOriginExtension);
-    }
-    return Optional.empty();
+    if (dto.getAgents().isEmpty()) return Optional.empty();
+
+    return Optional.of(new Extension(RESOURCE_ORIGIN_SYSTEM, dto.getAgents().get(0).getAgent()));
   }
 
   private void setMetaWithProfileUrl(AuditEvent auditEvent) {
     Meta profileMeta = new Meta();
-    profileMeta.setProfile(Collections.singletonList(new CanonicalType(META_PROFILE_URL)));
+    profileMeta.setProfile(META_PROFILE);
     auditEvent.setMeta(profileMeta);
   }
 
   private AuditEvent.AuditEventAgentComponent buildAgents(Reference device, Coding role, boolean requestor, String networkAddress) {
     AuditEvent.AuditEventAgentComponent rv = new AuditEvent.AuditEventAgentComponent();
     rv.setWho(device);
-    rv.setType(new CodeableConcept(role));
+    CodeableConcept type = AGENT_TYPES.get(role);
+    rv.setType(type != null ? type : new CodeableConcept(role));
     rv.setRequestor(requestor);
     if (StringUtils.isNotEmpty(networkAddress)) {
       AuditEvent.AuditEventAgentNetworkComponent network = new AuditEvent.AuditEventAgentNetworkComponent();
@@ -189,13 +246,20 @@ public class AuditEventBuilder {
   private AuditEvent.AuditEventEntityComponent buildAuditEventEntityComponent(Reference reference) {
     AuditEvent.AuditEventEntityComponent component = new AuditEvent.AuditEventEntityComponent();
     component.setWhat(reference);
-    String type = getTypeFromReference(reference);
-    component.setType(new Coding("http://hl7.org/fhir/resource-types", type, type));
+    component.setType(getEntityType(getTypeFromReference(reference)));
     return component;
 	}
 
+  private static Coding getEntityType(String type) {
+    // the type of a failed request can be anything, only a limited number of types is kept
+    if (type == null || (ENTITY_TYPES.size() >= MAX_ENTITY_TYPES && !ENTITY_TYPES.containsKey(type))) {
+      return new Coding(RESOURCE_TYPES_SYSTEM, type, type);
+    }
+    return ENTITY_TYPES.computeIfAbsent(type, (code) -> new Coding(RESOURCE_TYPES_SYSTEM, code, code));
+  }
+
   @Nullable
-  private static String getTypeFromReference(Reference reference) {
+  static String getTypeFromReference(Reference reference) {
     String type = reference.getType();
     if (StringUtils.isEmpty(type)) {
       IIdType referenceElement = reference.getReferenceElement();
@@ -217,43 +281,40 @@ public class AuditEventBuilder {
   private AuditEvent.AuditEventSourceComponent buildEventSource(String site) {
 		return new AuditEvent.AuditEventSourceComponent()
 			.setSite(site)
-			.setObserver(newReference(self));
+			.setObserver(observer);
 	}
 
 	private void buildEventType(AuditEvent auditEvent, AuditEventDto.EventType eventType) {
-		if (eventType == AuditEventDto.EventType.SendNotification) {
-      auditEvent.setType(CODING_TRANSMIT);
-      auditEvent.setSubtype(Collections.emptyList());
-      auditEvent.setAction(AuditEvent.AuditEventAction.E);
-    } else {
+		Template template = TEMPLATES.get(eventType);
+		if (template == null) {
+			// other event types only get the type, like before
 			auditEvent.setType(CODING_REST);
-			switch (eventType) {
-				case Create:
-					auditEvent.setSubtype(singletonList(CODING_INTERACTION_CREATE));
-					auditEvent.setAction(AuditEvent.AuditEventAction.C);
-					break;
-				case Read:
-					auditEvent.setSubtype(singletonList(CODING_INTERACTION_READ));
-					auditEvent.setAction(AuditEvent.AuditEventAction.R);
-					break;
-				case Search:
-					auditEvent.setSubtype(singletonList(CODING_INTERACTION_SEARCH));
-					auditEvent.setAction(AuditEvent.AuditEventAction.E);
-					break;
-				case Update:
-					auditEvent.setSubtype(singletonList(CODING_INTERACTION_UPDATE));
-					auditEvent.setAction(AuditEvent.AuditEventAction.U);
-					break;
-				case Delete:
-					auditEvent.setSubtype(singletonList(CODING_INTERACTION_DELETE));
-					auditEvent.setAction(AuditEvent.AuditEventAction.D);
-					break;
-				case Capability:
-					auditEvent.setSubtype(singletonList(CODING_INTERACTION_CAPABILITIES));
-					auditEvent.setAction(AuditEvent.AuditEventAction.R);
-					break;
-			}
+			return;
 		}
+		auditEvent.setType(template.type);
+		auditEvent.setSubtype(template.subtype);
+		auditEvent.setAction(template.action);
+	}
+
+	private static Map<EventType, Template> createTemplates() {
+		Map<EventType, Template> templates = new EnumMap<>(EventType.class);
+		templates.put(EventType.SendNotification, new Template(CODING_TRANSMIT, null, AuditEvent.AuditEventAction.E));
+		templates.put(EventType.Create, new Template(CODING_REST, CODING_INTERACTION_CREATE, AuditEvent.AuditEventAction.C));
+		templates.put(EventType.Read, new Template(CODING_REST, CODING_INTERACTION_READ, AuditEvent.AuditEventAction.R));
+		templates.put(EventType.Search, new Template(CODING_REST, CODING_INTERACTION_SEARCH, AuditEvent.AuditEventAction.E));
+		templates.put(EventType.Update, new Template(CODING_REST, CODING_INTERACTION_UPDATE, AuditEvent.AuditEventAction.U));
+		templates.put(EventType.Delete, new Template(CODING_REST, CODING_INTERACTION_DELETE, AuditEvent.AuditEventAction.D));
+		templates.put(EventType.Capability, new Template(CODING_REST, CODING_INTERACTION_CAPABILITIES, AuditEvent.AuditEventAction.R));
+		return Collections.unmodifiableMap(templates);
+	}
+
+	private static Map<Coding, CodeableConcept> createAgentTypes() {
+		// Coding does not override equals, the agent types are looked up by instance
+		Map<Coding, CodeableConcept> agentTypes = new IdentityHashMap<>();
+		for (Coding coding : List.of(CODING_APPLICATION, CODING_APPLICATION_LAUNCHER, CODING_DESTINATION_ROLE_ID, CODING_SOURCE_ROLE_ID)) {
+			agentTypes.put(coding, new CodeableConcept(coding));
+		}
+		return Collections.unmodifiableMap(agentTypes);
 	}
 
 	private Device createObserver() {
@@ -303,6 +364,36 @@ public class AuditEventBuilder {
 		return path;
 	}
 
+	/**
+	 * The fixed type, subtype and action of an {@link EventType}.
+	 */
+	private static final class Template {
+		private final Coding type;
+		private final List<Coding> subtype;
+		private final AuditEvent.AuditEventAction action;
+
+		private Template(Coding type, Coding subtype, AuditEvent.AuditEventAction action) {
+			this.type = type;
+			this.subtype = subtype != null ? singletonList(subtype) : Collections.emptyList();
+			this.action = action;
+		}
+	}
+
+	/**
+	 * Encodes the query with the JDK encoder, the commons-codec encoder of {@link Base64BinaryType} allocates an 8 KB
+	 * buffer for every query.
+	 */
+	private static final class QueryType extends Base64BinaryType {
+		private QueryType(String query) {
+			super(query.getBytes(StandardCharsets.UTF_8));
+		}
+
+		@Override
+		protected String encode(byte[] value) {
+			return Base64.getEncoder().encodeToString(value);
+		}
+	}
+
 	@NotNull
 	private Reference newReference(@NotNull Resource entity) {
 		Reference reference = new Reference();
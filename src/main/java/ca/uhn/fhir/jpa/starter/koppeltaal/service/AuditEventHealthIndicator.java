@@ -0,0 +1,46 @@
+package ca.uhn.fhir.jpa.starter.koppeltaal.service;
+
+import ca.uhn.fhir.jpa.starter.koppeltaal.config.FhirServerAuditLogConfiguration;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * Reports the <code>auditEvent</code> health, which is DOWN when the oldest queued AuditEvent has been waiting longer
+ * than {@link FhirServerAuditLogConfiguration.Health#getMaxLag() max lag} to be written, when a spooled AuditEvent has
+ * not been written for longer than max lag, or when an AuditEvent was given up within the last max lag. This happens
+ * when the writers can not keep up, the database is not available or AuditEvents are rejected.
+ */
+@Component
+public class AuditEventHealthIndicator implements HealthIndicator {
+
+  private final AuditEventService auditEventService;
+  private final Duration maxLag;
+
+  public AuditEventHealthIndicator(AuditEventService auditEventService,
+                                   FhirServerAuditLogConfiguration fhirServerAuditLogConfiguration) {
+    this.auditEventService = auditEventService;
+    this.maxLag = Duration.ofSeconds(fhirServerAuditLogConfiguration.getHealth().getMaxLag());
+  }
+
+  @Override
+  public Health health() {
+    final Duration lag = auditEventService.getLag();
+    final int stuck = auditEventService.getStuckCount(maxLag);
+    final boolean recentlyFailed = auditEventService.getSinceLastFailure()
+      .map((since) -> since.compareTo(maxLag) <= 0)
+      .orElse(false);
+
+    final Health.Builder builder = lag.compareTo(maxLag) > 0 || stuck > 0 || recentlyFailed ? Health.down() : Health.up();
+    return builder
+      .withDetail("lag", lag.toString())
+      .withDetail("maxLag", maxLag.toString())
+      .withDetail("queueDepth", auditEventService.getQueueDepth())
+      .withDetail("retrying", auditEventService.getRetryingCount())
+      .withDetail("stuckPending", stuck)
+      .withDetail("failed", auditEventService.getFailedCount())
+      .build();
+  }
+}
@@ -0,0 +1,209 @@
+package ca.uhn.fhir.jpa.starter.koppeltaal.service;
+
+import ca.uhn.fhir.jpa.starter.koppeltaal.config.FhirServerAuditLogConfiguration;
+import ca.uhn.fhir.jpa.starter.koppeltaal.dto.AuditEventDto;
+import ca.uhn.fhir.jpa.starter.koppeltaal.dto.AuditEventDto.EventType;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.Scheduler;
+import com.github.benmanes.caffeine.cache.Ticker;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.Reference;
+
+import java.time.Duration;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * <p>Decides which read and search AuditEvents are written, based on the configured
+ * {@link FhirServerAuditLogConfiguration#getPolicies() policies}. Writes, notifications and failed requests are always
+ * written in full.</p>
+ *
+ * <p>With {@link FhirServerAuditLogConfiguration.PolicyMode#DEDUPLICATE} identical AuditEvents of the same client are
+ * held for the window and then passed to the sink as a single AuditEvent with the number of occurrences. The first
+ * occurrence is passed to the holder when the window opens, so it can be kept safe until the window has passed. With
+ * {@link FhirServerAuditLogConfiguration.PolicyMode#SAMPLE} only a random fraction is kept.</p>
+ */
+public class AuditEventPolicy {
+
+  private static final Set<EventType> ELIGIBLE = EnumSet.of(EventType.Read, EventType.Search, EventType.Capability);
+  private static final int MAX_AGGREGATES = 10_000;
+
+  private final List<FhirServerAuditLogConfiguration.Policy> policies;
+  private final BiConsumer<AuditEventDto, Duration> holder;
+  private final Consumer<AuditEventDto> sink;
+  private final Cache<String, Aggregate> aggregates;
+  private final Counter sampledOutCounter;
+  private final Counter aggregatedCounter;
+
+  /**
+   * @param holder receives the first occurrence and the window when identical AuditEvents start to be held, the same
+   *               instance is passed to the sink once the window has passed
+   * @param sink   receives the aggregated AuditEvents once their window has passed
+   */
+  public AuditEventPolicy(List<FhirServerAuditLogConfiguration.Policy> policies,
+                          BiConsumer<AuditEventDto, Duration> holder, Consumer<AuditEventDto> sink,
+                          MeterRegistry meterRegistry) {
+    this(policies, holder, sink, meterRegistry, Ticker.systemTicker(), Scheduler.systemScheduler());
+  }
+
+  AuditEventPolicy(List<FhirServerAuditLogConfiguration.Policy> policies, BiConsumer<AuditEventDto, Duration> holder,
+                   Consumer<AuditEventDto> sink, MeterRegistry meterRegistry, Ticker ticker, Scheduler scheduler) {
+    this.policies = policies;
+    this.holder = holder;
+    this.sink = sink;
+    this.aggregates = Caffeine.newBuilder()
+      .maximumSize(MAX_AGGREGATES)
+      .expireAfter(new WindowExpiry())
+      .ticker(ticker)
+      .scheduler(scheduler)
+      .executor(Runnable::run)
+      .removalListener((String key, Aggregate aggregate, RemovalCause cause) -> {
+        if (aggregate != null && cause != RemovalCause.REPLACED) {
+          emit(aggregate);
+        }
+      })
+      .build();
+
+    this.sampledOutCounter = Counter.builder("koppeltaal.audit.sampled-out")
+      .description("AuditEvents not written because of a sample policy")
+      .register(meterRegistry);
+    this.aggregatedCounter = Counter.builder("koppeltaal.audit.aggregated")
+      .description("AuditEvents folded into an aggregated AuditEvent")
+      .register(meterRegistry);
+  }
+
+  /**
+   * @param clientId the client id of the requester, can be null
+   * @return true when the AuditEvent must be written now, false when it is dropped or held for aggregation
+   */
+  public boolean accept(AuditEventDto dto, String clientId) {
+    if (!ELIGIBLE.contains(dto.getEventType()) || isFailure(dto)) return true;
+
+    final FhirServerAuditLogConfiguration.Policy policy = findPolicy(dto, clientId);
+    if (policy == null) return true;
+
+    switch (policy.getMode()) {
+      case SAMPLE:
+        if (ThreadLocalRandom.current().nextDouble() < policy.getRate()) return true;
+        sampledOutCounter.increment();
+        return false;
+      case DEDUPLICATE:
+        aggregate(dto, clientId, policy.getWindow());
+        return false;
+      default:
+        return true;
+    }
+  }
+
+  /**
+   * Passes all held AuditEvents to the sink, used on shutdown.
+   */
+  public void flush() {
+    aggregates.invalidateAll();
+  }
+
+  void cleanUp() {
+    aggregates.cleanUp();
+  }
+
+  private void aggregate(AuditEventDto dto, String clientId, long window) {
+    aggregates.asMap().compute(key(dto, clientId), (key, aggregate) -> {
+      if (aggregate == null) {
+        holder.accept(dto, Duration.ofSeconds(window));
+        return new Aggregate(dto, TimeUnit.SECONDS.toNanos(window));
+      }
+      aggregate.add(dto.getDateTime());
+      aggregatedCounter.increment();
+      return aggregate;
+    });
+  }
+
+  private void emit(Aggregate aggregate) {
+    final AuditEventDto dto = aggregate.first;
+    if (aggregate.occurrences > 1) {
+      dto.setOccurrences(aggregate.occurrences);
+      dto.setLastDateTime(aggregate.lastDateTime);
+    }
+    sink.accept(dto);
+  }
+
+  private FhirServerAuditLogConfiguration.Policy findPolicy(AuditEventDto dto, String clientId) {
+    final String resourceType = getResourceType(dto);
+    for (FhirServerAuditLogConfiguration.Policy policy : policies) {
+      if (policy.getEventType() != null && policy.getEventType() != dto.getEventType()) continue;
+      if (StringUtils.isNotEmpty(policy.getResourceType()) && !policy.getResourceType().equals(resourceType)) continue;
+      if (StringUtils.isNotEmpty(policy.getClientId()) && !policy.getClientId().equals(clientId)) continue;
+      return policy;
+    }
+    return null;
+  }
+
+  private static String getResourceType(AuditEventDto dto) {
+    if (dto.getEventType() == EventType.Search && StringUtils.isNotEmpty(dto.getQuery())) {
+      return AuditEventBuilder.extractResourceTypeFromQuery(dto.getQuery());
+    }
+    return dto.getResources().stream()
+      .map(AuditEventBuilder::getTypeFromReference)
+      .findFirst()
+      .orElse(null);
+  }
+
+  private static boolean isFailure(AuditEventDto dto) {
+    return dto.getOperationOutcome() != null || (StringUtils.isNotEmpty(dto.getOutcome()) && !"0".equals(dto.getOutcome()));
+  }
+
+  private static String key(AuditEventDto dto, String clientId) {
+    return String.join("|", String.valueOf(clientId), dto.getEventType().name(), StringUtils.defaultString(dto.getQuery()),
+      dto.getResources().stream().map(Reference::getReference).collect(Collectors.joining(",")));
+  }
+
+  private static final class Aggregate {
+    private final AuditEventDto first;
+    private final long window;
+    private int occurrences = 1;
+    private Date lastDateTime;
+
+    private Aggregate(AuditEventDto first, long window) {
+      this.first = first;
+      this.window = window;
+      this.lastDateTime = first.getDateTime();
+    }
+
+    private void add(Date dateTime) {
+      occurrences++;
+      lastDateTime = dateTime;
+    }
+  }
+
+  /**
+   * The window starts at the first occurrence and is not extended by the next ones.
+   */
+  private static final class WindowExpiry implements Expiry<String, Aggregate> {
+    @Override
+    public long expireAfterCreate(String key, Aggregate aggregate, long currentTime) {
+      return aggregate.window;
+    }
+
+    @Override
+    public long expireAfterUpdate(String key, Aggregate aggregate, long currentTime, long currentDuration) {
+      return currentDuration;
+    }
+
+    @Override
+    public long expireAfterRead(String key, Aggregate aggregate, long currentTime, long currentDuration) {
+      return currentDuration;
+    }
+  }
+}
@@ -0,0 +1,136 @@
+package ca.uhn.fhir.jpa.starter.koppeltaal.service;
+
+import ca.uhn.fhir.batch2.api.IJobCoordinator;
+import ca.uhn.fhir.batch2.jobs.expunge.DeleteExpungeAppCtx;
+import ca.uhn.fhir.batch2.model.JobInstance;
+import ca.uhn.fhir.batch2.model.StatusEnum;
+import ca.uhn.fhir.jpa.api.config.JpaStorageSettings;
+import ca.uhn.fhir.jpa.model.sched.HapiJob;
+import ca.uhn.fhir.jpa.model.sched.ISchedulerService;
+import ca.uhn.fhir.jpa.model.sched.ScheduledJobDefinition;
+import ca.uhn.fhir.jpa.starter.koppeltaal.config.FhirServerAuditLogConfiguration;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.api.server.storage.IDeleteExpungeJobSubmitter;
+import jakarta.annotation.PostConstruct;
+import org.apache.commons.lang3.StringUtils;
+import org.quartz.JobExecutionContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.time.Clock;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Deletes and expunges the AuditEvents that are older than the retention period. The work is done by the HAPI
+ * <code>$delete-expunge</code> batch job, which deletes the AuditEvents in chunks of
+ * {@link FhirServerAuditLogConfiguration.Retention#getChunkSize() chunk size}, each in its own short transaction.</p>
+ *
+ * <p>The job is started by a clustered schedule, so only one instance starts it. That can be another instance each
+ * time, so whether the previous job is still running is asked to the {@link IJobCoordinator}: a new job is not
+ * started while a <code>$delete-expunge</code> job of AuditEvents has not ended.</p>
+ */
+@Component
+public class AuditEventRetentionService {
+
+  private static final Logger LOG = LoggerFactory.getLogger(AuditEventRetentionService.class);
+  private static final String AUDIT_EVENT_URL = "AuditEvent?date=";
+  private static final int MAX_RUNNING_JOBS = 100;
+
+  private final FhirServerAuditLogConfiguration fhirServerAuditLogConfiguration;
+  private final FhirServerAuditLogConfiguration.Retention settings;
+  private final JpaStorageSettings storageSettings;
+  private final ISchedulerService schedulerService;
+  private final IDeleteExpungeJobSubmitter deleteExpungeJobSubmitter;
+  private final IJobCoordinator jobCoordinator;
+  private final Clock clock;
+
+  @Autowired
+  public AuditEventRetentionService(FhirServerAuditLogConfiguration fhirServerAuditLogConfiguration,
+                                    JpaStorageSettings storageSettings, ISchedulerService schedulerService,
+                                    IDeleteExpungeJobSubmitter deleteExpungeJobSubmitter, IJobCoordinator jobCoordinator) {
+    this(fhirServerAuditLogConfiguration, storageSettings, schedulerService, deleteExpungeJobSubmitter, jobCoordinator,
+      Clock.systemUTC());
+  }
+
+  AuditEventRetentionService(FhirServerAuditLogConfiguration fhirServerAuditLogConfiguration,
+                             JpaStorageSettings storageSettings, ISchedulerService schedulerService,
+                             IDeleteExpungeJobSubmitter deleteExpungeJobSubmitter, IJobCoordinator jobCoordinator,
+                             Clock clock) {
+    this.fhirServerAuditLogConfiguration = fhirServerAuditLogConfiguration;
+    this.settings = fhirServerAuditLogConfiguration.getRetention();
+    this.storageSettings = storageSettings;
+    this.schedulerService = schedulerService;
+    this.deleteExpungeJobSubmitter = deleteExpungeJobSubmitter;
+    this.jobCoordinator = jobCoordinator;
+    this.clock = clock;
+  }
+
+  @PostConstruct
+  public void init() {
+    if (!settings.isEnabled()) return;
+
+    if (!storageSettings.canDeleteExpunge()) {
+      LOG.warn("AuditEvent retention is enabled, but delete expunge is not: {}", storageSettings.cannotDeleteExpungeReason());
+      return;
+    }
+
+    ScheduledJobDefinition jobDefinition = new ScheduledJobDefinition();
+    jobDefinition.setId(getClass().getName());
+    jobDefinition.setJobClass(Job.class);
+    schedulerService.scheduleClusteredJob(TimeUnit.MINUTES.toMillis(settings.getInterval()), jobDefinition);
+  }
+
+  /**
+   * Starts a job for the AuditEvents recorded before the retention period.
+   *
+   * @return the id of the job, null when the previous job is still running
+   */
+  public synchronized String purge() {
+    final String runningJobId = getRunningJobId();
+    if (runningJobId != null) {
+      LOG.info("Not starting AuditEvent retention, job [{}] is still running", runningJobId);
+      return null;
+    }
+
+    final String url = getUrl();
+    final SystemRequestDetails requestDetails = new SystemRequestDetails();
+    requestDetails.setRequestPartitionId(AuditEventService.getReadPartition(fhirServerAuditLogConfiguration.getPartition()));
+
+    final String jobId = deleteExpungeJobSubmitter.submitJob(settings.getChunkSize(), List.of(url), false, null, requestDetails);
+    LOG.info("Started AuditEvent retention job [{}] for [{}]", jobId, url);
+    return jobId;
+  }
+
+  String getUrl() {
+    final LocalDate cutoff = LocalDate.now(clock).minusDays(settings.getPeriod());
+    return AUDIT_EVENT_URL + "lt" + cutoff;
+  }
+
+  /**
+   * @return the id of a <code>$delete-expunge</code> job of AuditEvents that has not ended, started by any instance
+   */
+  private String getRunningJobId() {
+    final List<JobInstance> instances = jobCoordinator.getJobInstancesByJobDefinitionIdAndStatuses(
+      DeleteExpungeAppCtx.JOB_DELETE_EXPUNGE, StatusEnum.getNotEndedStatuses(), MAX_RUNNING_JOBS, 0);
+
+    return instances.stream()
+      .filter((instance) -> StringUtils.contains(instance.getParameters(), AUDIT_EVENT_URL))
+      .map(JobInstance::getInstanceId)
+      .findFirst()
+      .orElse(null);
+  }
+
+  public static class Job implements HapiJob {
+    @Autowired
+    private AuditEventRetentionService auditEventRetentionService;
+
+    @Override
+    public void execute(JobExecutionContext context) {
+      auditEventRetentionService.purge();
+    }
+  }
+}
@@ -1,65 +1,633 @@
 package ca.uhn.fhir.jpa.starter.koppeltaal.service;
 
+import ca.uhn.fhir.interceptor.model.RequestPartitionId;
 import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.api.dao.IFhirSystemDao;
 import ca.uhn.fhir.jpa.api.model.DaoMethodOutcome;
+import ca.uhn.fhir.jpa.starter.koppeltaal.config.FhirServerAuditLogConfiguration;
 import ca.uhn.fhir.jpa.starter.koppeltaal.dto.AuditEventDto;
+import ca.uhn.fhir.jpa.starter.koppeltaal.util.ResourceOriginUtil;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.Timer;
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
 import org.hl7.fhir.r4.model.AuditEvent;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Meta;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionException;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
-import java.util.concurrent.ExecutorService;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 /**
+ * Persists AuditEvents in the background. Events are queued in a bounded queue and written by a fixed number of
+ * writer threads, which group the queued events into a single transaction per batch.
  *
+ * AuditEvents submitted within a transaction are only queued after that transaction commits, so the audited
+ * resources always exist when the AuditEvent referencing them is written. When the queue is full and the AuditEvent is
+ * written on the submitting thread, it is written in a new transaction: in <code>afterCommit</code> the committed
+ * transaction is still bound to the thread, and a DAO call joining it would never be committed.
+ *
+ * When the {@link AuditEventSpool} is enabled, queued AuditEvents are also appended to the spool and get a client
+ * assigned id. The AuditEvents that were not written before a restart are recovered from the spool, skipping those
+ * that turn out to exist already.
+ *
+ * An AuditEvent that fails to be written is retried on its own, up to
+ * {@link FhirServerAuditLogConfiguration.Writer#getMaxAttempts() max attempts} with an exponential backoff. After the
+ * last attempt it is given up and {@link AuditEventSpool#deadLetter(long, AuditEvent) dead-lettered}, so it does not
+ * hold back the spool checkpoint.
+ *
+ * Read and search AuditEvents pass the {@link AuditEventPolicy} first, which can sample them or hold identical ones
+ * to write them as a single aggregated AuditEvent. With the spool enabled, the first occurrence is spooled when it
+ * starts to be held. The aggregated AuditEvent replaces it, when the server stops before the window has passed the
+ * first occurrence is recovered.
+ *
+ * The pipeline is monitored with the <code>koppeltaal.audit.*</code> meters and the {@link AuditEventHealthIndicator},
+ * which uses the {@link #getLag() lag} of the oldest AuditEvent that waits to be written, the AuditEvents that were
+ * {@link #getFailedCount() given up} and those that are {@link #getStuckCount(Duration) stuck} in the spool.
  */
 @Component
 public class AuditEventService {
-  protected long sleepTime = 2000;
   private static final Logger LOG = LoggerFactory.getLogger(AuditEventService.class);
   private final IFhirResourceDao<AuditEvent> auditEventDao;
+  private final IFhirSystemDao<Bundle, Meta> systemDao;
   private final AuditEventBuilder auditEventBuilder;
-  protected ExecutorService executorService;
+  private final AuditEventSpool spool;
+  private final AuditEventPolicy policy;
+  private final RequestPartitionId partition;
+  private final RequestPartitionId readPartition;
+  private final FhirServerAuditLogConfiguration.Writer settings;
+  private final BlockingQueue<PendingAuditEvent> queue;
+  private final TransactionTemplate callerTransaction;
+  private final List<Thread> writers = new ArrayList<>();
+  private final Map<AuditEventDto, HeldAuditEvent> held = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService retrier;
+  private final Clock clock;
+  private final Counter submittedCounter;
+  private final Counter persistedCounter;
+  private final Counter droppedCounter;
+  private final Counter failedCounter;
+  private final Counter retriedCounter;
+  private final Counter abandonedCounter;
+  private final DistributionSummary batchSizeSummary;
+  private final Timer writeTimer;
+  private final Timer lagTimer;
+  private final Timer createTimer;
+  private final Timer updateTimer;
+  private final Timer transactionTimer;
+  private final AtomicInteger retrying = new AtomicInteger();
+  private volatile long lastFailure = -1;
+  private volatile boolean running;
 
-  public AuditEventService(DaoRegistry daoRegistry, AuditEventBuilder auditEventBuilder) {
+  public AuditEventService(DaoRegistry daoRegistry, AuditEventBuilder auditEventBuilder, AuditEventSpool spool,
+                           FhirServerAuditLogConfiguration fhirServerAuditLogConfiguration,
+                           PlatformTransactionManager transactionManager, MeterRegistry meterRegistry) {
+    this(daoRegistry, auditEventBuilder, spool, fhirServerAuditLogConfiguration, transactionManager, meterRegistry,
+      Clock.systemUTC());
+  }
+
+  @SuppressWarnings("unchecked")
+  AuditEventService(DaoRegistry daoRegistry, AuditEventBuilder auditEventBuilder, AuditEventSpool spool,
+                    FhirServerAuditLogConfiguration fhirServerAuditLogConfiguration,
+                    PlatformTransactionManager transactionManager, MeterRegistry meterRegistry, Clock clock) {
+    this.callerTransaction = new TransactionTemplate(transactionManager);
+    this.callerTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
     this.auditEventDao = daoRegistry.getResourceDao(AuditEvent.class);
+    this.systemDao = daoRegistry.getSystemDao();
     this.auditEventBuilder = auditEventBuilder;
-  }
+    this.spool = spool;
+    this.clock = clock;
+    this.settings = fhirServerAuditLogConfiguration.getWriter();
+    this.queue = new ArrayBlockingQueue<>(settings.getQueueCapacity());
+    this.partition = getPartition(fhirServerAuditLogConfiguration.getPartition());
+    this.readPartition = getReadPartition(fhirServerAuditLogConfiguration.getPartition());
+    this.retrier = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+      Thread thread = new Thread(runnable, "audit-event-retry");
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.policy = new AuditEventPolicy(fhirServerAuditLogConfiguration.getPolicies(), this::hold, this::release,
+      meterRegistry);
 
-  protected void setExecutorService(ExecutorService executorService) {
-    this.executorService = executorService;
+    Gauge.builder("koppeltaal.audit.queue.depth", queue, BlockingQueue::size)
+      .description("Number of AuditEvents waiting to be written")
+      .register(meterRegistry);
+    TimeGauge.builder("koppeltaal.audit.queue.lag", this, TimeUnit.MILLISECONDS, (service) -> service.getLag().toMillis())
+      .description("How long the oldest queued AuditEvent has been waiting to be written")
+      .register(meterRegistry);
+    this.submittedCounter = Counter.builder("koppeltaal.audit.submitted")
+      .description("AuditEvents submitted, before the capture policy")
+      .register(meterRegistry);
+    this.persistedCounter = Counter.builder("koppeltaal.audit.persisted")
+      .description("AuditEvents written")
+      .register(meterRegistry);
+    this.droppedCounter = Counter.builder("koppeltaal.audit.dropped")
+      .description("AuditEvents dropped because the queue was full")
+      .register(meterRegistry);
+    this.failedCounter = Counter.builder("koppeltaal.audit.failed")
+      .description("Attempts to write an AuditEvent that failed")
+      .register(meterRegistry);
+    this.retriedCounter = Counter.builder("koppeltaal.audit.retried")
+      .description("AuditEvents scheduled to be written again after a failed attempt")
+      .register(meterRegistry);
+    this.abandonedCounter = Counter.builder("koppeltaal.audit.abandoned")
+      .description("AuditEvents given up after the last attempt")
+      .register(meterRegistry);
+    this.batchSizeSummary = DistributionSummary.builder("koppeltaal.audit.batch.size")
+      .description("Number of AuditEvents written per transaction")
+      .register(meterRegistry);
+    this.writeTimer = Timer.builder("koppeltaal.audit.write")
+      .description("Time to write a batch of AuditEvents")
+      .register(meterRegistry);
+    this.lagTimer = Timer.builder("koppeltaal.audit.lag")
+      .description("Time from the audited request to the written AuditEvent")
+      .publishPercentileHistogram()
+      .register(meterRegistry);
+    this.createTimer = newDaoTimer("create", meterRegistry);
+    this.updateTimer = newDaoTimer("update", meterRegistry);
+    this.transactionTimer = newDaoTimer("transaction", meterRegistry);
   }
 
   @PostConstruct
   public void init() {
-    executorService = Executors.newCachedThreadPool();
+    running = true;
+    for (int i = 0; i < settings.getThreads(); i++) {
+      Thread writer = new Thread(this::drain, "audit-event-writer-" + i);
+      writer.setDaemon(true);
+      writer.start();
+      writers.add(writer);
+    }
+
+    if (spool.isEnabled()) {
+      Thread recovery = new Thread(this::recover, "audit-event-recovery");
+      recovery.setDaemon(true);
+      recovery.start();
+    }
   }
 
   @PreDestroy
   public void shutdown() {
-    if (executorService != null) {
-      executorService.shutdown();
-		}
-	}
-
-	public void submitAuditEvent(AuditEventDto dto, RequestDetails requestDetails) {
-		final AuditEvent auditEvent = auditEventBuilder.build(dto);
-		executorService.submit(() -> {
+    policy.flush();
+    running = false;
+    for (Thread writer : writers) {
       try {
-        Thread.sleep(sleepTime); //introduce a delay as this runs async and can cause a concurrency issue where the referenced entity doesn't exist yet, causing referential integrity issues
-        DaoMethodOutcome outcome = auditEventDao.create(auditEvent, requestDetails);
-        if (!outcome.getCreated()) {
-          LOG.warn("Unexpected outcome");
+        writer.join(TimeUnit.SECONDS.toMillis(10));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    flush();
+    // the AuditEvents still waiting for a retry stay in the spool
+    retrier.shutdownNow();
+  }
+
+  public void submitAuditEvent(AuditEventDto dto, RequestDetails requestDetails) {
+    submittedCounter.increment();
+    final String clientId = requestDetails != null ? ResourceOriginUtil.getRequesterClientId(requestDetails).orElse(null) : null;
+    if (!policy.accept(dto, clientId)) return;
+
+    final AuditEvent auditEvent = auditEventBuilder.build(dto);
+
+    if (TransactionSynchronizationManager.isSynchronizationActive()) {
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+        @Override
+        public void afterCommit() {
+          enqueue(auditEvent, dto);
         }
+
+        @Override
+        public void afterCompletion(int status) {
+          if (status != STATUS_COMMITTED) {
+            LOG.debug("Not writing AuditEvent for request [{}] as the transaction did not commit", dto.getRequestId());
+          }
+        }
+      });
+    } else {
+      enqueue(auditEvent, dto);
+    }
+  }
+
+  /**
+   * Spools the first occurrence of AuditEvents held by the policy, so it is not lost when the server stops before
+   * the window has passed.
+   */
+  private void hold(AuditEventDto first, Duration window) {
+    if (!spool.isEnabled()) return;
+
+    final AuditEvent auditEvent = auditEventBuilder.build(first);
+    final long sequence = spool(auditEvent, first, window);
+    if (sequence >= 0) {
+      held.put(first, new HeldAuditEvent(auditEvent.getIdElement().getIdPart(), sequence));
+    }
+  }
+
+  private void release(AuditEventDto aggregated) {
+    final AuditEvent auditEvent = auditEventBuilder.build(aggregated);
+    final HeldAuditEvent first = held.remove(aggregated);
+    if (first == null) {
+      enqueue(auditEvent, aggregated);
+      return;
+    }
+
+    // replaces the spooled first occurrence
+    auditEvent.setId(first.id);
+    enqueue(auditEvent, aggregated, first.sequence);
+  }
+
+  private void enqueue(AuditEvent auditEvent, AuditEventDto dto) {
+    enqueue(auditEvent, dto, spool(auditEvent, dto, Duration.ZERO));
+  }
+
+  /**
+   * @return the sequence number in the spool, -1 when it was not spooled
+   */
+  private long spool(AuditEvent auditEvent, AuditEventDto dto, Duration hold) {
+    if (!spool.isEnabled()) return -1;
+
+    // a client assigned id makes it possible to check whether a recovered AuditEvent was written already
+    auditEvent.setId(UUID.randomUUID().toString());
+    try {
+      return spool.append(auditEvent, hold);
+    } catch (RuntimeException e) {
+      LOG.warn("Unable to spool AuditEvent for request [{}], only kept in memory", dto.getRequestId(), e);
+      return -1;
+    }
+  }
+
+  private void enqueue(AuditEvent auditEvent, AuditEventDto dto, long sequence) {
+    final PendingAuditEvent pending = new PendingAuditEvent(auditEvent, sequence, getRequested(auditEvent), clock.millis());
+    if (queue.offer(pending)) return;
+
+    if (settings.getOverflow() == FhirServerAuditLogConfiguration.OverflowPolicy.DROP) {
+      completed(List.of(pending));
+      droppedCounter.increment();
+      LOG.warn("AuditEvent queue is full, dropping AuditEvent for request [{}]", dto.getRequestId());
+    } else {
+      writeOnCaller(pending);
+    }
+  }
+
+  /**
+   * Writes the AuditEvent on the submitting thread, in its own transaction. The thread can still have a transaction
+   * bound that has already committed, in <code>afterCommit</code> of the audited request or when the policy releases
+   * an aggregated AuditEvent during a request.
+   */
+  private void writeOnCaller(PendingAuditEvent pending) {
+    List<PendingAuditEvent> written;
+    try {
+      written = callerTransaction.execute((status) -> persist(List.of(pending)));
+    } catch (TransactionException e) {
+      failedCounter.increment();
+      LOG.warn("Failed to write AuditEvent on the caller", e);
+      written = List.of();
+    }
+    completed(written, List.of(pending));
+  }
+
+  /**
+   * @return how long the oldest queued AuditEvent has been waiting to be written, zero when the queue is empty. Measured
+   * from when it was queued, an aggregated AuditEvent is recorded at its first occurrence
+   */
+  public Duration getLag() {
+    final PendingAuditEvent oldest = queue.peek();
+    if (oldest == null) return Duration.ZERO;
+
+    return Duration.ofMillis(Math.max(0, clock.millis() - oldest.enqueued));
+  }
+
+  /**
+   * @return the number of AuditEvents given up after the last attempt since the start
+   */
+  public long getFailedCount() {
+    return (long) abandonedCounter.count();
+  }
+
+  /**
+   * @return how long ago an AuditEvent was last given up, empty when none was
+   */
+  public Optional<Duration> getSinceLastFailure() {
+    final long failure = lastFailure;
+    return failure < 0 ? Optional.empty() : Optional.of(Duration.ofMillis(Math.max(0, clock.millis() - failure)));
+  }
+
+  /**
+   * @return the number of AuditEvents waiting for their next attempt
+   */
+  public int getRetryingCount() {
+    return retrying.get();
+  }
+
+  /**
+   * @return the number of spooled AuditEvents that have not been written for longer than age, whether they are queued,
+   * waiting for a retry or being written. Zero when the spool is disabled
+   */
+  public int getStuckCount(Duration age) {
+    return spool.isEnabled() ? spool.countPendingOlderThan(age) : 0;
+  }
+
+  public int getQueueDepth() {
+    return queue.size();
+  }
+
+  /**
+   * Writes all queued AuditEvents on the calling thread.
+   */
+  public void flush() {
+    List<PendingAuditEvent> batch = new ArrayList<>();
+    while (queue.drainTo(batch, settings.getBatchSize()) > 0) {
+      write(batch);
+      batch.clear();
+    }
+  }
+
+  /**
+   * Writes the AuditEvents recovered from the spool, in batches on the calling thread.
+   */
+  void recover() {
+    List<AuditEventSpool.SpooledAuditEvent> recovered = spool.takeRecovered();
+    List<PendingAuditEvent> batch = new ArrayList<>();
+    List<PendingAuditEvent> existing = new ArrayList<>();
+
+    for (int i = 0; i < recovered.size(); i += settings.getBatchSize()) {
+      for (AuditEventSpool.SpooledAuditEvent spooled : recovered.subList(i, Math.min(recovered.size(), i + settings.getBatchSize()))) {
+        PendingAuditEvent pending = new PendingAuditEvent(spooled.getAuditEvent(), spooled.getSequence(),
+          getRequested(spooled.getAuditEvent()), clock.millis());
+        (exists(spooled.getAuditEvent()) ? existing : batch).add(pending);
+      }
+
+      completed(existing);
+      if (!batch.isEmpty()) {
+        write(batch);
+      }
+      batch.clear();
+      existing.clear();
+    }
+    LOG.info("Recovered [{}] AuditEvents from the spool", recovered.size());
+  }
+
+  private boolean exists(AuditEvent auditEvent) {
+    try {
+      auditEventDao.read(auditEvent.getIdElement().toUnqualifiedVersionless(), new SystemRequestDetails()
+        .setRequestPartitionId(readPartition));
+      return true;
+    } catch (ResourceNotFoundException | ResourceGoneException e) {
+      return false;
+    }
+  }
+
+  private void drain() {
+    List<PendingAuditEvent> batch = new ArrayList<>(settings.getBatchSize());
+    while (running) {
+      try {
+        PendingAuditEvent first = queue.poll(settings.getFlushInterval(), TimeUnit.MILLISECONDS);
+        if (first == null) continue;
+
+        batch.add(first);
+        fillBatch(batch);
+        write(batch);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
       } catch (Throwable e) {
         LOG.warn("Unexpected exception", e);
+      } finally {
+        batch.clear();
       }
-    });
-	}
+    }
+  }
+
+  private void fillBatch(List<PendingAuditEvent> batch) throws InterruptedException {
+    final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(settings.getFlushInterval());
+    while (batch.size() < settings.getBatchSize()) {
+      if (queue.drainTo(batch, settings.getBatchSize() - batch.size()) > 0) continue;
+
+      PendingAuditEvent next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+      if (next == null) return;
+      batch.add(next);
+    }
+  }
+
+  private void write(List<PendingAuditEvent> batch) {
+    // not reached when writing was interrupted by an Error, those AuditEvents are recovered from the spool
+    completed(persist(batch), batch);
+  }
+
+  /**
+   * Marks the written AuditEvents as completed and retries or gives up the others.
+   */
+  private void completed(List<PendingAuditEvent> written, List<PendingAuditEvent> batch) {
+    completed(written);
+    if (written.size() == batch.size()) return;
+
+    batch.stream()
+      .filter((pending) -> !written.contains(pending))
+      .collect(Collectors.toList())
+      .forEach(this::failed);
+  }
+
+  private void failed(PendingAuditEvent pending) {
+    final int attempts = ++pending.attempts;
+    if (attempts < settings.getMaxAttempts()) {
+      retrying.incrementAndGet();
+      try {
+        retrier.schedule(() -> {
+          retrying.decrementAndGet();
+          write(List.of(pending));
+        }, settings.getRetryBackoff() << Math.min(attempts - 1, 20), TimeUnit.MILLISECONDS);
+        retriedCounter.increment();
+      } catch (RejectedExecutionException e) {
+        retrying.decrementAndGet();
+        LOG.warn("Not retrying AuditEvent [{}] while shutting down", pending.auditEvent.getIdElement().getIdPart());
+      }
+      return;
+    }
+
+    abandonedCounter.increment();
+    lastFailure = clock.millis();
+    if (spool.isEnabled() && pending.sequence >= 0) {
+      LOG.error("Giving up AuditEvent [{}] after [{}] attempts, moving it to the dead-letter file of the spool",
+        pending.auditEvent.getIdElement().getIdPart(), attempts);
+      spool.deadLetter(pending.sequence, pending.auditEvent);
+    } else {
+      LOG.error("Giving up AuditEvent after [{}] attempts", attempts);
+    }
+  }
+
+  /**
+   * @return the AuditEvents that were written
+   */
+  private List<PendingAuditEvent> persist(List<PendingAuditEvent> batch) {
+    Timer.Sample sample = Timer.start();
+    try {
+      if (batch.size() == 1) {
+        return create(batch.get(0)) ? batch : List.of();
+      }
+      return writeTransaction(batch);
+    } finally {
+      sample.stop(writeTimer);
+      batchSizeSummary.record(batch.size());
+    }
+  }
+
+  private void completed(List<PendingAuditEvent> batch) {
+    if (!spool.isEnabled()) return;
+
+    spool.completed(batch.stream()
+      .map((pending) -> pending.sequence)
+      .filter((sequence) -> sequence >= 0)
+      .collect(Collectors.toList()));
+  }
 
+  private List<PendingAuditEvent> writeTransaction(List<PendingAuditEvent> batch) {
+    Bundle transaction = new Bundle();
+    transaction.setType(Bundle.BundleType.TRANSACTION);
+    for (PendingAuditEvent pending : batch) {
+      Bundle.BundleEntryRequestComponent request = transaction.addEntry()
+        .setResource(pending.auditEvent)
+        .getRequest();
+      if (hasClientAssignedId(pending.auditEvent)) {
+        request.setMethod(Bundle.HTTPVerb.PUT).setUrl("AuditEvent/" + pending.auditEvent.getIdElement().getIdPart());
+      } else {
+        request.setMethod(Bundle.HTTPVerb.POST).setUrl("AuditEvent");
+      }
+    }
+
+    try {
+      transactionTimer.record(() -> systemDao.transaction(newSystemRequestDetails(), transaction));
+    } catch (Exception e) {
+      // A single invalid AuditEvent rolls back the whole batch, write them one by one to keep the others
+      LOG.warn("Failed to write a batch of [{}] AuditEvents, writing them one by one", batch.size(), e);
+      return batch.stream()
+        .filter(this::create)
+        .collect(Collectors.toList());
+    }
+    batch.forEach(this::persisted);
+    return batch;
+  }
+
+  /**
+   * @return whether the AuditEvent was written
+   */
+  private boolean create(PendingAuditEvent pending) {
+    final AuditEvent auditEvent = pending.auditEvent;
+    try {
+      DaoMethodOutcome outcome = hasClientAssignedId(auditEvent)
+        ? updateTimer.record(() -> auditEventDao.update(auditEvent, newSystemRequestDetails()))
+        : createTimer.record(() -> auditEventDao.create(auditEvent, newSystemRequestDetails()));
+      if (!outcome.getCreated()) {
+        LOG.warn("Unexpected outcome");
+      }
+      persisted(pending);
+      return true;
+    } catch (Exception e) {
+      failedCounter.increment();
+      LOG.warn("Unexpected exception", e);
+      return false;
+    }
+  }
+
+  private void persisted(PendingAuditEvent pending) {
+    persistedCounter.increment();
+    lagTimer.record(Math.max(0, clock.millis() - pending.requested), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @return the time of the audited request, or now for an AuditEvent without a recorded time
+   */
+  private long getRequested(AuditEvent auditEvent) {
+    return auditEvent.hasRecorded() ? auditEvent.getRecorded().getTime() : clock.millis();
+  }
+
+  private static Timer newDaoTimer(String operation, MeterRegistry meterRegistry) {
+    return Timer.builder("koppeltaal.audit.dao")
+      .description("Time of the DAO call that writes AuditEvents")
+      .tag("operation", operation)
+      .publishPercentileHistogram()
+      .register(meterRegistry);
+  }
+
+  private static boolean hasClientAssignedId(AuditEvent auditEvent) {
+    return auditEvent.getIdElement().hasIdPart();
+  }
+
+  private SystemRequestDetails newSystemRequestDetails() {
+    return new SystemRequestDetails()
+      .setRequestPartitionId(partition);
+  }
+
+  /**
+   * @return the partition of the AuditEvents, see {@link ca.uhn.fhir.jpa.starter.koppeltaal.interceptor.AuditEventPartitionInterceptor}
+   */
+  public static RequestPartitionId getPartition(FhirServerAuditLogConfiguration.Partition settings) {
+    return settings.isEnabled()
+      ? RequestPartitionId.fromPartitionIdAndName(settings.getId(), settings.getName())
+      : RequestPartitionId.defaultPartition();
+  }
+
+  /**
+   * @return the partitions to read AuditEvents from, the AuditEvent partition and the default partition that holds the
+   * AuditEvents written before the AuditEvent partition was enabled
+   */
+  public static RequestPartitionId getReadPartition(FhirServerAuditLogConfiguration.Partition settings) {
+    return settings.isEnabled()
+      ? RequestPartitionId.fromPartitionIds(Arrays.asList(settings.getId(), null))
+      : RequestPartitionId.defaultPartition();
+  }
+
+  private static final class HeldAuditEvent {
+    private final String id;
+    private final long sequence;
+
+    private HeldAuditEvent(String id, long sequence) {
+      this.id = id;
+      this.sequence = sequence;
+    }
+  }
+
+  private static final class PendingAuditEvent {
+    private final AuditEvent auditEvent;
+    private final long sequence;
+    private final long requested;
+    private final long enqueued;
+    private int attempts;
+
+    private PendingAuditEvent(AuditEvent auditEvent, long sequence, long requested, long enqueued) {
+      this.auditEvent = auditEvent;
+      this.sequence = sequence;
+      this.requested = requested;
+      this.enqueued = enqueued;
+    }
+  }
 }
@@ -0,0 +1,374 @@
+package ca.uhn.fhir.jpa.starter.koppeltaal.service;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.koppeltaal.config.FhirServerAuditLogConfiguration;
+import ca.uhn.fhir.parser.IParser;
+import jakarta.annotation.PreDestroy;
+import org.hl7.fhir.r4.model.AuditEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * <p>Append-only spool of the AuditEvents that are queued but not written yet, so they survive a restart or crash
+ * of the server. Every AuditEvent gets a sequence number, the checkpoint file holds the sequence up to which all
+ * AuditEvents have been written. On startup the AuditEvents after the checkpoint are recovered.</p>
+ *
+ * <p>Appends only write to the OS page cache, the segment is forced to disk every
+ * {@link FhirServerAuditLogConfiguration.Spool#getSyncInterval() sync interval}. Segments are rolled over at
+ * {@link FhirServerAuditLogConfiguration.Spool#getSegmentSize() segment size} and deleted once all their AuditEvents
+ * are written.</p>
+ *
+ * <p>An AuditEvent that can not be written is {@link #deadLetter(long, AuditEvent) dead-lettered}: it is appended to
+ * <code>dead-letter.ndjson</code> in the spool directory and no longer holds back the checkpoint.</p>
+ *
+ * <p>Record layout: <code>length (int), sequence (long), crc32 (int), AuditEvent json (length bytes)</code>. A record
+ * that is incomplete or does not match its checksum ends the segment, it was being appended during a crash.</p>
+ */
+@Component
+public class AuditEventSpool {
+
+  private static final Logger LOG = LoggerFactory.getLogger(AuditEventSpool.class);
+  private static final String SEGMENT_PREFIX = "audit-";
+  private static final String SEGMENT_SUFFIX = ".spool";
+  private static final String CHECKPOINT = "checkpoint";
+  private static final String DEAD_LETTER = "dead-letter.ndjson";
+  private static final int HEADER_SIZE = Integer.BYTES + Long.BYTES + Integer.BYTES;
+
+  private final FhirServerAuditLogConfiguration.Spool settings;
+  private final FhirContext fhirContext;
+  private final Clock clock;
+  // sequence of the AuditEvents that are not written yet, with the time they were appended or their hold passed
+  private final ConcurrentSkipListMap<Long, Long> pending = new ConcurrentSkipListMap<>();
+  private final Deque<Segment> closedSegments = new ArrayDeque<>();
+  private final Object appendLock = new Object();
+  private final Object checkpointLock = new Object();
+  private final Object deadLetterLock = new Object();
+  private List<SpooledAuditEvent> recovered = new ArrayList<>();
+  private Path directory;
+  private ScheduledExecutorService syncer;
+  private volatile FileChannel channel;
+  private volatile boolean dirty;
+  private Segment segment;
+  private long nextSequence;
+  private long checkpoint;
+
+  public AuditEventSpool(FhirServerAuditLogConfiguration fhirServerAuditLogConfiguration, FhirContext fhirContext) {
+    this(fhirServerAuditLogConfiguration, fhirContext, Clock.systemUTC());
+  }
+
+  AuditEventSpool(FhirServerAuditLogConfiguration fhirServerAuditLogConfiguration, FhirContext fhirContext, Clock clock) {
+    this.settings = fhirServerAuditLogConfiguration.getSpool();
+    this.fhirContext = fhirContext;
+    this.clock = clock;
+
+    if (settings.isEnabled()) {
+      try {
+        open();
+      } catch (IOException e) {
+        throw new UncheckedIOException("Unable to open the AuditEvent spool in " + settings.getDirectory(), e);
+      }
+    }
+  }
+
+  public boolean isEnabled() {
+    return settings.isEnabled();
+  }
+
+  /**
+   * @return the AuditEvents that were spooled but not written before the last shutdown, only returned once
+   */
+  public synchronized List<SpooledAuditEvent> takeRecovered() {
+    List<SpooledAuditEvent> result = recovered;
+    recovered = new ArrayList<>();
+    return result;
+  }
+
+  /**
+   * @return the sequence number of the spooled AuditEvent, to pass to {@link #completed(Collection)} once written
+   */
+  public long append(AuditEvent auditEvent) {
+    return append(auditEvent, Duration.ZERO);
+  }
+
+  /**
+   * Appends an AuditEvent that is held before it is queued, it only counts as pending once the hold has passed.
+   *
+   * @return the sequence number of the spooled AuditEvent, to pass to {@link #completed(Collection)} once written
+   */
+  public long append(AuditEvent auditEvent, Duration hold) {
+    final byte[] payload = newParser().encodeResourceToString(auditEvent).getBytes(StandardCharsets.UTF_8);
+
+    synchronized (appendLock) {
+      try {
+        if (segment.size > 0 && segment.size + HEADER_SIZE + payload.length > settings.getSegmentSize()) {
+          rollover();
+        }
+
+        final long sequence = nextSequence++;
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        record.putInt(payload.length).putLong(sequence).putInt(crc(payload)).put(payload).flip();
+        while (record.hasRemaining()) {
+          channel.write(record);
+        }
+
+        segment.size += record.limit();
+        segment.lastSequence = sequence;
+        pending.put(sequence, clock.millis() + hold.toMillis());
+        dirty = true;
+        return sequence;
+      } catch (IOException e) {
+        throw new UncheckedIOException("Unable to append to the AuditEvent spool", e);
+      }
+    }
+  }
+
+  /**
+   * Marks the AuditEvents as written and moves the checkpoint past all AuditEvents that have been written.
+   */
+  public void completed(Collection<Long> sequences) {
+    if (sequences.isEmpty()) return;
+
+    pending.keySet().removeAll(sequences);
+
+    synchronized (checkpointLock) {
+      final long candidate;
+      final List<Segment> obsolete = new ArrayList<>();
+      synchronized (appendLock) {
+        candidate = pending.isEmpty() ? nextSequence - 1 : pending.firstKey() - 1;
+        if (candidate <= checkpoint) return;
+
+        checkpoint = candidate;
+        while (!closedSegments.isEmpty() && closedSegments.peekFirst().lastSequence <= candidate) {
+          obsolete.add(closedSegments.pollFirst());
+        }
+      }
+
+      try {
+        writeCheckpoint(candidate);
+        for (Segment done : obsolete) {
+          Files.deleteIfExists(done.path);
+        }
+      } catch (IOException e) {
+        LOG.warn("Unable to write the AuditEvent spool checkpoint [{}]", candidate, e);
+      }
+    }
+  }
+
+  /**
+   * @return the number of AuditEvents that were appended longer than age ago and are not written yet, the recovered
+   * AuditEvents count as appended on startup and held AuditEvents as appended when their hold passed
+   */
+  public int countPendingOlderThan(Duration age) {
+    final long appendedBefore = clock.millis() - age.toMillis();
+    return (int) pending.values().stream()
+      .filter((appended) -> appended < appendedBefore)
+      .count();
+  }
+
+  /**
+   * Moves an AuditEvent that will not be written to the dead-letter file and marks it as completed. When the
+   * dead-letter file can not be written the AuditEvent stays pending, and is recovered on restart.
+   */
+  public void deadLetter(long sequence, AuditEvent auditEvent) {
+    final byte[] line = (newParser().encodeResourceToString(auditEvent) + "\n").getBytes(StandardCharsets.UTF_8);
+
+    synchronized (deadLetterLock) {
+      try (FileChannel deadLetterChannel = FileChannel.open(directory.resolve(DEAD_LETTER), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+        ByteBuffer buffer = ByteBuffer.wrap(line);
+        while (buffer.hasRemaining()) {
+          deadLetterChannel.write(buffer);
+        }
+        deadLetterChannel.force(false);
+      } catch (IOException e) {
+        LOG.error("Unable to dead-letter AuditEvent [{}], keeping it in the spool", sequence, e);
+        return;
+      }
+    }
+    completed(List.of(sequence));
+  }
+
+  /**
+   * Forces the appended AuditEvents to disk.
+   */
+  public void sync() {
+    if (!dirty) return;
+
+    dirty = false;
+    try {
+      channel.force(false);
+    } catch (ClosedChannelException e) {
+      // rolled over, the segment was forced before closing
+    } catch (IOException e) {
+      dirty = true;
+      LOG.warn("Unable to sync the AuditEvent spool", e);
+    }
+  }
+
+  @PreDestroy
+  public void close() {
+    if (!isEnabled()) return;
+
+    syncer.shutdownNow();
+    synchronized (appendLock) {
+      try {
+        channel.force(false);
+        channel.close();
+      } catch (IOException e) {
+        LOG.warn("Unable to close the AuditEvent spool", e);
+      }
+    }
+  }
+
+  private void open() throws IOException {
+    directory = Paths.get(settings.getDirectory());
+    Files.createDirectories(directory);
+
+    final Path checkpointFile = directory.resolve(CHECKPOINT);
+    checkpoint = Files.exists(checkpointFile) ? Long.parseLong(Files.readString(checkpointFile).trim()) : 0;
+
+    long lastSequence = checkpoint;
+    for (Path path : listSegments()) {
+      Segment existing = new Segment(path);
+      readSegment(existing);
+      lastSequence = Math.max(lastSequence, existing.lastSequence);
+      closedSegments.add(existing);
+    }
+    nextSequence = lastSequence + 1;
+    final long opened = clock.millis();
+    recovered.forEach((spooled) -> pending.put(spooled.getSequence(), opened));
+    while (!closedSegments.isEmpty() && closedSegments.peekFirst().lastSequence <= checkpoint) {
+      Files.deleteIfExists(closedSegments.pollFirst().path);
+    }
+
+    openSegment();
+
+    if (!recovered.isEmpty()) {
+      LOG.info("Recovered [{}] AuditEvents from the spool in [{}]", recovered.size(), directory);
+    }
+
+    syncer = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+      Thread thread = new Thread(runnable, "audit-event-spool-sync");
+      thread.setDaemon(true);
+      return thread;
+    });
+    syncer.scheduleWithFixedDelay(this::sync, settings.getSyncInterval(), settings.getSyncInterval(), TimeUnit.MILLISECONDS);
+  }
+
+  private List<Path> listSegments() throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files
+        .filter((path) -> path.getFileName().toString().startsWith(SEGMENT_PREFIX))
+        .filter((path) -> path.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+        .sorted()
+        .collect(Collectors.toList());
+    }
+  }
+
+  private void readSegment(Segment existing) throws IOException {
+    final IParser parser = newParser();
+    final ByteBuffer content = ByteBuffer.wrap(Files.readAllBytes(existing.path));
+
+    while (content.remaining() >= HEADER_SIZE) {
+      final int length = content.getInt();
+      final long sequence = content.getLong();
+      final int crc = content.getInt();
+      if (length < 0 || length > content.remaining()) break;
+
+      byte[] payload = new byte[length];
+      content.get(payload);
+      if (crc(payload) != crc) break;
+
+      existing.lastSequence = sequence;
+      if (sequence > checkpoint) {
+        AuditEvent auditEvent = parser.parseResource(AuditEvent.class, new String(payload, StandardCharsets.UTF_8));
+        recovered.add(new SpooledAuditEvent(sequence, auditEvent));
+      }
+    }
+  }
+
+  private void rollover() throws IOException {
+    channel.force(false);
+    channel.close();
+    closedSegments.add(segment);
+    openSegment();
+  }
+
+  private void openSegment() throws IOException {
+    // a new segment on every start, the last segment might end with a partially written record
+    segment = new Segment(directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, nextSequence, SEGMENT_SUFFIX)));
+    segment.lastSequence = nextSequence - 1;
+    channel = FileChannel.open(segment.path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+  }
+
+  private void writeCheckpoint(long sequence) throws IOException {
+    final Path temporary = directory.resolve(CHECKPOINT + ".tmp");
+    try (FileChannel checkpointChannel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+      StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      checkpointChannel.write(ByteBuffer.wrap(Long.toString(sequence).getBytes(StandardCharsets.UTF_8)));
+      checkpointChannel.force(true);
+    }
+    Files.move(temporary, directory.resolve(CHECKPOINT), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private IParser newParser() {
+    return fhirContext.newJsonParser();
+  }
+
+  private static int crc(byte[] payload) {
+    CRC32 crc32 = new CRC32();
+    crc32.update(payload);
+    return (int) crc32.getValue();
+  }
+
+  private static final class Segment {
+    private final Path path;
+    private long size;
+    private long lastSequence;
+
+    private Segment(Path path) {
+      this.path = path;
+    }
+  }
+
+  public static final class SpooledAuditEvent {
+    private final long sequence;
+    private final AuditEvent auditEvent;
+
+    SpooledAuditEvent(long sequence, AuditEvent auditEvent) {
+      this.sequence = sequence;
+      this.auditEvent = auditEvent;
+    }
+
+    public long getSequence() {
+      return sequence;
+    }
+
+    public AuditEvent getAuditEvent() {
+      return auditEvent;
+    }
+  }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) Stichting Koppeltaal 2021.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package ca.uhn.fhir.jpa.starter.koppeltaal.service;
+
+import ca.uhn.fhir.jpa.starter.koppeltaal.config.FhirServerSecurityConfiguration;
+import com.auth0.jwk.Jwk;
+import com.auth0.jwk.JwkException;
+import com.auth0.jwk.JwkProvider;
+import com.auth0.jwk.SigningKeyNotFoundException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * <p>{@link JwkProvider} that keeps the complete key set of a single JWKS endpoint in memory, keyed by <code>kid</code>.</p>
+ *
+ * <ul>
+ *   <li>A key set younger than <code>cacheTtl</code> is served without contacting the JWKS endpoint.</li>
+ *   <li>When a scheduler is provided, the key set is refreshed in the background <code>refreshAhead</code> seconds
+ *   before it expires, so request threads normally never wait for the JWKS endpoint.</li>
+ *   <li>An unknown <code>kid</code> (key rotation) triggers a refetch, at most once per <code>minRefetchInterval</code>.</li>
+ *   <li>An expired key set is still served for <code>maxStale</code> seconds while it is being revalidated, so an
+ *   outage of the JWKS endpoint does not take down the FHIR server.</li>
+ * </ul>
+ */
+public class CachingJwkProvider implements JwkProvider {
+
+  private static final Logger LOG = LoggerFactory.getLogger(CachingJwkProvider.class);
+
+  private final String jwksEndpoint;
+  private final KeySetLoader loader;
+  private final long cacheTtlMillis;
+  private final long refreshAheadMillis;
+  private final long minRefetchIntervalMillis;
+  private final long maxStaleMillis;
+  private final LongSupplier clock;
+  private final ScheduledExecutorService scheduler;
+  private final MeterRegistry meterRegistry;
+  private final ReentrantLock refreshLock = new ReentrantLock();
+
+  private final Counter hits;
+  private final Counter misses;
+  private final Counter staleHits;
+
+  private volatile KeySet keySet;
+  private volatile long lastFetchAttempt;
+
+  public CachingJwkProvider(String jwksEndpoint, KeySetLoader loader, FhirServerSecurityConfiguration.Jwks settings,
+                            ScheduledExecutorService scheduler, MeterRegistry meterRegistry) {
+    this(jwksEndpoint, loader, settings, scheduler, meterRegistry, System::currentTimeMillis);
+  }
+
+  CachingJwkProvider(String jwksEndpoint, KeySetLoader loader, FhirServerSecurityConfiguration.Jwks settings,
+                     ScheduledExecutorService scheduler, MeterRegistry meterRegistry, LongSupplier clock) {
+    this.jwksEndpoint = jwksEndpoint;
+    this.loader = loader;
+    this.cacheTtlMillis = TimeUnit.SECONDS.toMillis(settings.getCacheTtl());
+    this.refreshAheadMillis = TimeUnit.SECONDS.toMillis(Math.min(settings.getRefreshAhead(), settings.getCacheTtl()));
+    this.minRefetchIntervalMillis = TimeUnit.SECONDS.toMillis(settings.getMinRefetchInterval());
+    this.maxStaleMillis = TimeUnit.SECONDS.toMillis(settings.getMaxStale());
+    this.clock = clock;
+    this.scheduler = scheduler;
+    this.meterRegistry = meterRegistry;
+
+    this.hits = cacheCounter("hit");
+    this.misses = cacheCounter("miss");
+    this.staleHits = cacheCounter("stale");
+
+    if (scheduler != null && refreshAheadMillis > 0) {
+      long period = Math.max(1000L, refreshAheadMillis / 2);
+      scheduler.scheduleWithFixedDelay(this::refreshAhead, period, period, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  @Override
+  public Jwk get(String keyId) throws JwkException {
+    final KeySet current = keySet;
+    final long now = clock.getAsLong();
+
+    if (current != null) {
+      final Jwk jwk = current.find(keyId);
+      final long age = now - current.fetchedAt;
+
+      if (jwk != null && age < cacheTtlMillis) {
+        hits.increment();
+        return jwk;
+      }
+
+      if (jwk != null && age < cacheTtlMillis + maxStaleMillis) {
+        // stale-while-revalidate: never let the request wait for (or fail on) the JWKS endpoint
+        staleHits.increment();
+        LOG.warn("Serving expired JWKS key [{}] from [{}] while revalidating, key set age is {} ms", keyId, jwksEndpoint, age);
+        revalidateAsync(current);
+        return jwk;
+      }
+
+      if (jwk == null && now - lastFetchAttempt < minRefetchIntervalMillis) {
+        misses.increment();
+        throw new SigningKeyNotFoundException(String.format(
+          "No key found in %s with kid %s (refetch rate limited)", jwksEndpoint, keyId), null);
+      }
+    }
+
+    misses.increment();
+    final Jwk jwk = refresh(current).find(keyId);
+    if (jwk == null) {
+      throw new SigningKeyNotFoundException(String.format("No key found in %s with kid %s", jwksEndpoint, keyId), null);
+    }
+    return jwk;
+  }
+
+  /**
+   * Fetches the key set, unless another thread already replaced <code>seen</code> while this thread was waiting
+   * for the lock. Concurrent misses therefore result in a single call to the JWKS endpoint.
+   */
+  private KeySet refresh(KeySet seen) throws JwkException {
+    refreshLock.lock();
+    try {
+      final KeySet current = keySet;
+      if (current != seen && current != null) {
+        return current;
+      }
+      return fetch();
+    } finally {
+      refreshLock.unlock();
+    }
+  }
+
+  private KeySet fetch() throws JwkException {
+    lastFetchAttempt = clock.getAsLong();
+    final long start = System.nanoTime();
+    String outcome = "failure";
+    try {
+      final KeySet fetched = new KeySet(loader.load(), clock.getAsLong());
+      keySet = fetched;
+      outcome = "success";
+      LOG.debug("Fetched {} key(s) from [{}]", fetched.keys.size(), jwksEndpoint);
+      return fetched;
+    } finally {
+      Timer.builder("koppeltaal.jwks.refresh")
+        .description("Time spent fetching the JWKS key set")
+        .tag("endpoint", jwksEndpoint)
+        .tag("outcome", outcome)
+        .register(meterRegistry)
+        .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  private void revalidateAsync(KeySet seen) {
+    if (clock.getAsLong() - lastFetchAttempt < minRefetchIntervalMillis) {
+      return; // do not hammer a JWKS endpoint that is down
+    }
+    if (scheduler == null) {
+      tryRefresh(seen);
+      return;
+    }
+    scheduler.execute(() -> tryRefresh(seen));
+  }
+
+  private void refreshAhead() {
+    final KeySet current = keySet;
+    if (current == null) {
+      return; // nothing requested yet, do not contact the JWKS endpoint before the first request
+    }
+    if (clock.getAsLong() - current.fetchedAt >= cacheTtlMillis - refreshAheadMillis) {
+      tryRefresh(current);
+    }
+  }
+
+  private void tryRefresh(KeySet seen) {
+    if (!refreshLock.tryLock()) {
+      return; // already being refreshed
+    }
+    try {
+      if (keySet == seen) {
+        fetch();
+      }
+    } catch (Exception e) {
+      LOG.warn("Failed to refresh the JWKS key set from [{}], keeping the current keys: {}", jwksEndpoint, e.getMessage());
+    } finally {
+      refreshLock.unlock();
+    }
+  }
+
+  private Counter cacheCounter(String result) {
+    return Counter.builder("koppeltaal.jwks.cache")
+      .description("JWKS key lookups by result")
+      .tag("endpoint", jwksEndpoint)
+      .tag("result", result)
+      .register(meterRegistry);
+  }
+
+  /**
+   * Loads all keys from the JWKS endpoint, e.g. {@link com.auth0.jwk.UrlJwkProvider#getAll()}.
+   */
+  @FunctionalInterface
+  public interface KeySetLoader {
+    List<Jwk> load() throws JwkException;
+  }
+
+  private static final class KeySet {
+    private final List<Jwk> all;
+    private final Map<String, Jwk> keys;
+    private final long fetchedAt;
+
+    private KeySet(List<Jwk> all, long fetchedAt) {
+      final Map<String, Jwk> byKid = new HashMap<>();
+      for (Jwk jwk : all) {
+        if (jwk.getId() != null) {
+          byKid.put(jwk.getId(), jwk);
+        }
+      }
+      this.all = List.copyOf(all);
+      this.keys = Collections.unmodifiableMap(byKid);
+      this.fetchedAt = fetchedAt;
+    }
+
+    private Jwk find(String keyId) {
+      if (keyId == null) {
+        // same behaviour as the UrlJwkProvider: a token without kid can only be matched against a single key
+        return all.size() == 1 ? all.get(0) : null;
+      }
+      return keys.get(keyId);
+    }
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) Stichting Koppeltaal 2021.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package ca.uhn.fhir.jpa.starter.koppeltaal.service;
+
+import ca.uhn.fhir.jpa.starter.koppeltaal.config.FhirServerSecurityConfiguration;
+import ca.uhn.fhir.jpa.starter.koppeltaal.util.ResourceOriginUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
+import org.hl7.fhir.r4.model.Device;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.function.Function;
+
+/**
+ * <p>Caches the Device of a client id, as it is needed several times for every request: to inject the
+ * resource-origin and for each AuditEvent.</p>
+ *
+ * <p>A Device is evicted when it is updated or deleted on this instance (see
+ * {@link ca.uhn.fhir.jpa.starter.koppeltaal.interceptor.DeviceCacheEvictionInterceptor}), both before and after the
+ * commit so a concurrent read can not put the old version back. Updates on other replicas are picked up after the
+ * <code>ttl</code>. Callers get a copy and can not change the cached Device.</p>
+ *
+ * <p>Next to the Devices it keeps the Device id of a client id, for callers that only need a reference to the
+ * Device (e.g. the agent of an AuditEvent). These do not copy a Device and are not evicted by updates, as an update
+ * does not change the id.</p>
+ */
+@Service
+public class DeviceCache {
+
+  private final Cache<String, Device> cache;
+  private final Cache<String, String> deviceIds;
+  private final boolean enabled;
+
+  public DeviceCache(FhirServerSecurityConfiguration fhirServerSecurityConfiguration, MeterRegistry meterRegistry) {
+    final FhirServerSecurityConfiguration.DeviceCache settings = fhirServerSecurityConfiguration.getDeviceCache();
+    this.enabled = settings.isEnabled();
+    this.cache = Caffeine.newBuilder()
+      .maximumSize(settings.getMaxSize())
+      .expireAfterWrite(Duration.ofSeconds(settings.getTtl()))
+      .recordStats()
+      .build();
+    this.deviceIds = Caffeine.newBuilder()
+      .maximumSize(settings.getMaxSize())
+      .expireAfterWrite(Duration.ofSeconds(settings.getTtl()))
+      .recordStats()
+      .build();
+
+    CaffeineCacheMetrics.monitor(meterRegistry, cache, "koppeltaal.devices");
+    CaffeineCacheMetrics.monitor(meterRegistry, deviceIds, "koppeltaal.device-ids");
+  }
+
+  @PostConstruct
+  public void init() {
+    if (enabled) {
+      ResourceOriginUtil.setDeviceCache(this);
+    }
+  }
+
+  /**
+   * @param clientId the client id, which is the id of the Device
+   * @param loader   reads the Device when it is not cached, returns empty when it does not exist
+   */
+  public Optional<Device> get(String clientId, Function<String, Optional<Device>> loader) {
+    final Device cached = cache.getIfPresent(clientId);
+    if (cached != null) {
+      return Optional.of(cached.copy());
+    }
+
+    // devices that do not exist (yet) are not cached
+    final Optional<Device> device = loader.apply(clientId);
+    device.ifPresent((found) -> cache.put(clientId, found.copy()));
+    return device;
+  }
+
+  /**
+   * @param clientId the client id, which is the id of the Device
+   * @param loader   reads the Device when neither the Device nor its id is cached, returns empty when it does not exist
+   * @return the versionless Device id, e.g. <code>Device/123</code>
+   */
+  public Optional<String> getDeviceId(String clientId, Function<String, Optional<Device>> loader) {
+    final String cachedId = deviceIds.getIfPresent(clientId);
+    if (cachedId != null) {
+      return Optional.of(cachedId);
+    }
+
+    final Device cached = cache.getIfPresent(clientId);
+    final Optional<Device> device = cached != null ? Optional.of(cached) : loader.apply(clientId);
+    final Optional<String> deviceId = device.map((found) -> found.getIdElement().toUnqualifiedVersionless().getValue());
+    deviceId.ifPresent((id) -> deviceIds.put(clientId, id));
+    return deviceId;
+  }
+
+  public void evict(String deviceId) {
+    cache.invalidate(deviceId);
+
+    if (TransactionSynchronizationManager.isSynchronizationActive()) {
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+        @Override
+        public void afterCompletion(int status) {
+          cache.invalidate(deviceId);
+        }
+      });
+    }
+  }
+
+  /**
+   * Evicts a deleted Device, including its id.
+   */
+  public void evictDeleted(String deviceId) {
+    deviceIds.invalidate(deviceId);
+    evict(deviceId);
+
+    if (TransactionSynchronizationManager.isSynchronizationActive()) {
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+        @Override
+        public void afterCompletion(int status) {
+          deviceIds.invalidate(deviceId);
+        }
+      });
+    }
+  }
+
+  public long size() {
+    return cache.estimatedSize();
+  }
+}
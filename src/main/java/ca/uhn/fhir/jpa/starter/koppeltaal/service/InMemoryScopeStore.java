@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) Stichting Koppeltaal 2021.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package ca.uhn.fhir.jpa.starter.koppeltaal.service;
+
+import ca.uhn.fhir.jpa.starter.koppeltaal.config.FhirServerSecurityConfiguration;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * {@link ScopeStore} that keeps the scopes in a bounded, expiring in-memory cache of this instance. An unchanged scope
+ * is written at most once per <code>writeInterval</code>, which also keeps active clients from expiring.
+ */
+public class InMemoryScopeStore implements ScopeStore {
+
+  private final Cache<String, Entry> cache;
+  private final long writeIntervalMillis;
+  private final LongSupplier clock;
+
+  public InMemoryScopeStore(FhirServerSecurityConfiguration.ScopeCache settings) {
+    this(settings.getMaxSize(), Duration.ofSeconds(settings.getTtl()), Duration.ofSeconds(settings.getWriteInterval()),
+      System::currentTimeMillis);
+  }
+
+  InMemoryScopeStore(long maxSize, Duration ttl, Duration writeInterval, LongSupplier clock) {
+    this.writeIntervalMillis = writeInterval.toMillis();
+    this.clock = clock;
+    this.cache = Caffeine.newBuilder()
+      .maximumSize(maxSize)
+      .expireAfterWrite(ttl)
+      .ticker(() -> TimeUnit.MILLISECONDS.toNanos(clock.getAsLong()))
+      .build();
+  }
+
+  @Override
+  public Optional<String> getScope(String clientId) {
+    final Entry entry = cache.getIfPresent(clientId);
+    return entry == null ? Optional.empty() : Optional.of(entry.scope);
+  }
+
+  @Override
+  public void putScope(String clientId, String scope) {
+    update(clientId, scope);
+  }
+
+  /**
+   * @return whether the scope was written, <code>false</code> when the same scope was written less than
+   * <code>writeInterval</code> ago
+   */
+  boolean update(String clientId, String scope) {
+    final long now = clock.getAsLong();
+    final Entry existing = cache.getIfPresent(clientId);
+    if (existing != null && Objects.equals(existing.scope, scope) && now - existing.writtenAt < writeIntervalMillis) {
+      return false;
+    }
+
+    cache.put(clientId, new Entry(scope, now));
+    return true;
+  }
+
+  /**
+   * Stores a scope that was written elsewhere at <code>writtenAt</code>, without counting it as a new write.
+   */
+  void load(String clientId, String scope, long writtenAt) {
+    cache.put(clientId, new Entry(scope, writtenAt));
+  }
+
+  private static final class Entry {
+    private final String scope;
+    private final long writtenAt;
+
+    private Entry(String scope, long writtenAt) {
+      this.scope = scope;
+      this.writtenAt = writtenAt;
+    }
+  }
+}
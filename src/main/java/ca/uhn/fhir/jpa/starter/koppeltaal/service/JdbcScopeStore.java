@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) Stichting Koppeltaal 2021.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package ca.uhn.fhir.jpa.starter.koppeltaal.service;
+
+import ca.uhn.fhir.jpa.starter.koppeltaal.config.FhirServerSecurityConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.LongSupplier;
+
+/**
+ * <p>{@link ScopeStore} backed by a table in the FHIR server database, so all replicas share the scopes of all
+ * clients.</p>
+ *
+ * <p>Every replica keeps the scopes it read or wrote in an {@link InMemoryScopeStore} for <code>writeInterval</code>.
+ * That serves repeated lookups from memory and coalesces writes: an unchanged scope is written to the database at
+ * most once per interval. When the database cannot be reached the in-memory scopes are used.</p>
+ *
+ * <p>The table is created by the {@link KoppeltaalSchemaInitializer}.</p>
+ */
+public class JdbcScopeStore implements ScopeStore {
+
+  static final String TABLE_NAME = "KT_CLIENT_SCOPE";
+
+  private static final Logger LOG = LoggerFactory.getLogger(JdbcScopeStore.class);
+
+  private final JdbcTemplate jdbcTemplate;
+  private final InMemoryScopeStore local;
+  private final long ttlMillis;
+  private final LongSupplier clock;
+
+  public JdbcScopeStore(JdbcTemplate jdbcTemplate, FhirServerSecurityConfiguration.ScopeCache settings) {
+    this(jdbcTemplate, settings.getMaxSize(), Duration.ofSeconds(settings.getTtl()),
+      Duration.ofSeconds(settings.getWriteInterval()), System::currentTimeMillis);
+  }
+
+  JdbcScopeStore(JdbcTemplate jdbcTemplate, long maxSize, Duration ttl, Duration writeInterval, LongSupplier clock) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.ttlMillis = ttl.toMillis();
+    this.clock = clock;
+    this.local = new InMemoryScopeStore(maxSize, writeInterval.compareTo(ttl) < 0 ? writeInterval : ttl, writeInterval, clock);
+  }
+
+  @Override
+  public Optional<String> getScope(String clientId) {
+    final Optional<String> cached = local.getScope(clientId);
+    if (cached.isPresent()) {
+      return cached;
+    }
+
+    try {
+      final List<Optional<String>> rows = jdbcTemplate.query(
+        "SELECT SCOPE, UPDATED_AT FROM " + TABLE_NAME + " WHERE CLIENT_ID = ? AND UPDATED_AT > ?",
+        (resultSet, rowNum) -> {
+          final String scope = resultSet.getString("SCOPE");
+          local.load(clientId, scope, resultSet.getLong("UPDATED_AT"));
+          return Optional.of(scope);
+        },
+        clientId, clock.getAsLong() - ttlMillis);
+
+      return rows.isEmpty() ? Optional.empty() : rows.get(0);
+    } catch (DataAccessException e) {
+      LOG.warn("Failed to read the scope of client [{}]: {}", clientId, e.getMessage());
+      return Optional.empty();
+    }
+  }
+
+  @Override
+  public void putScope(String clientId, String scope) {
+    if (!local.update(clientId, scope)) {
+      return; // written recently, by this replica or by another one
+    }
+
+    final long now = clock.getAsLong();
+    try {
+      if (update(clientId, scope, now) == 0) {
+        try {
+          jdbcTemplate.update("INSERT INTO " + TABLE_NAME + " (CLIENT_ID, SCOPE, UPDATED_AT) VALUES (?, ?, ?)",
+            clientId, scope, now);
+        } catch (DuplicateKeyException e) {
+          update(clientId, scope, now); // inserted concurrently by another replica
+        }
+      }
+    } catch (DataAccessException e) {
+      // keep serving the scope from memory, but write it again on the next request
+      local.load(clientId, scope, 0);
+      LOG.warn("Failed to store the scope of client [{}]: {}", clientId, e.getMessage());
+    }
+  }
+
+  private int update(String clientId, String scope, long now) {
+    return jdbcTemplate.update("UPDATE " + TABLE_NAME + " SET SCOPE = ?, UPDATED_AT = ? WHERE CLIENT_ID = ?",
+      scope, now, clientId);
+  }
+}
@@ -8,6 +8,7 @@
 
 package ca.uhn.fhir.jpa.starter.koppeltaal.service;
 
+import ca.uhn.fhir.jpa.starter.koppeltaal.config.FhirServerSecurityConfiguration;
 import com.auth0.jwk.Jwk;
 import com.auth0.jwk.JwkException;
 import com.auth0.jwk.JwkProvider;
@@ -16,24 +17,52 @@ import com.auth0.jwt.JWT;
 import com.auth0.jwt.algorithms.Algorithm;
 import com.auth0.jwt.exceptions.JWTVerificationException;
 import com.auth0.jwt.interfaces.DecodedJWT;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.stereotype.Component;
 import org.springframework.util.Assert;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 /**
  *
  */
 @Component
 public class JwtValidationService {
+
+	private final FhirServerSecurityConfiguration fhirServerSecurityConfiguration;
+	private final MeterRegistry meterRegistry;
+	private final Map<URI, JwkProvider> jwkProviders = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService jwksRefreshExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "jwks-refresh");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	public JwtValidationService(FhirServerSecurityConfiguration fhirServerSecurityConfiguration, MeterRegistry meterRegistry) {
+		this.fhirServerSecurityConfiguration = fhirServerSecurityConfiguration;
+		this.meterRegistry = meterRegistry;
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		jwksRefreshExecutor.shutdownNow();
+	}
+
   /**
 	 * Unfortunately, this implementation of JWT has no helper method for selecting the right
 	 * algorithm from the header. The public key must match the algorithm type (RSA or EC), but
@@ -72,7 +101,7 @@ public class JwtValidationService {
 		String algorithmName = decode.getAlgorithm();
     // Lookup the issuer.
     URI uri = new URI(jwksEndpoint).normalize();
-    JwkProvider provider = new UrlJwkProvider(uri.toURL());
+    JwkProvider provider = getJwkProvider(uri);
 		Jwk jwk = provider.get(decode.getKeyId());
     Assert.isTrue(jwk != null, String.format("Unable to locate public key for issuer %s", issuer));
 
@@ -88,4 +117,24 @@ public class JwtValidationService {
 				.verify(token);
 	}
 
+	/**
+	 * Returns the shared, caching key store for the given JWKS endpoint. Creating a new {@link UrlJwkProvider} per
+	 * request would result in an HTTP round trip to the JWKS endpoint for every authenticated request.
+	 */
+	private JwkProvider getJwkProvider(URI uri) throws MalformedURLException {
+		try {
+			return jwkProviders.computeIfAbsent(uri, (key) -> {
+				try {
+					UrlJwkProvider urlJwkProvider = new UrlJwkProvider(key.toURL());
+					return new CachingJwkProvider(key.toString(), urlJwkProvider::getAll,
+						fhirServerSecurityConfiguration.getJwks(), jwksRefreshExecutor, meterRegistry);
+				} catch (MalformedURLException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw (MalformedURLException) e.getCause();
+		}
+	}
+
 }
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) Stichting Koppeltaal 2021.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package ca.uhn.fhir.jpa.starter.koppeltaal.service;
+
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import javax.sql.DataSource;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * <p>Creates the <code>KT_*</code> tables next to the HAPI FHIR schema, used by the {@link JdbcScopeStore},
+ * {@link ResourceOriginIndex}, {@link SubscriptionRetryStore} and {@link SubscriptionDeadLetterStore}. All tables are
+ * created on startup, whether the feature using them is enabled or not, so enabling it later needs no schema change.
+ * The beans using the tables depend on this one.</p>
+ *
+ * <p>Every statement is idempotent. Replicas starting at the same time can still race on Postgres: a concurrent
+ * <code>CREATE TABLE IF NOT EXISTS</code> fails on the unique index of <code>pg_type</code> instead of being skipped.
+ * Such a failure means another replica created the table or index, and is ignored.</p>
+ */
+@Service(KoppeltaalSchemaInitializer.BEAN_NAME)
+public class KoppeltaalSchemaInitializer {
+
+  public static final String BEAN_NAME = "koppeltaalSchemaInitializer";
+
+  private static final Logger LOG = LoggerFactory.getLogger(KoppeltaalSchemaInitializer.class);
+
+  // unique_violation (pg_type of a concurrently created table), duplicate_table and duplicate_object
+  private static final Set<String> CREATED_CONCURRENTLY = Set.of("23505", "42P07", "42710");
+
+  private static final List<String> STATEMENTS = List.of(
+    "CREATE TABLE IF NOT EXISTS " + JdbcScopeStore.TABLE_NAME + " ("
+      + "CLIENT_ID VARCHAR(255) NOT NULL PRIMARY KEY, "
+      + "SCOPE TEXT NOT NULL, "
+      + "UPDATED_AT BIGINT NOT NULL)",
+    "CREATE TABLE IF NOT EXISTS " + ResourceOriginIndex.TABLE_NAME + " ("
+      + "RES_TYPE VARCHAR(100) NOT NULL, "
+      + "RES_ID VARCHAR(100) NOT NULL, "
+      + "RESOURCE_ORIGIN VARCHAR(255) NOT NULL, "
+      + "PRIMARY KEY (RES_TYPE, RES_ID))",
+    "CREATE TABLE IF NOT EXISTS " + SubscriptionRetryStore.TABLE_NAME + " ("
+      + "ID VARCHAR(36) NOT NULL PRIMARY KEY, "
+      + "CHANNEL_NAME VARCHAR(255) NOT NULL, "
+      + "MESSAGE TEXT NOT NULL, "
+      + "CREATED_AT BIGINT NOT NULL)",
+    "CREATE INDEX IF NOT EXISTS IDX_KT_SUBSCRIPTION_RETRY_CHANNEL ON " + SubscriptionRetryStore.TABLE_NAME
+      + " (CHANNEL_NAME, CREATED_AT)",
+    "CREATE TABLE IF NOT EXISTS " + SubscriptionDeadLetterStore.TABLE_NAME + " ("
+      + "ID VARCHAR(36) NOT NULL PRIMARY KEY, "
+      + "SUBSCRIPTION_ID VARCHAR(100) NOT NULL, "
+      + "RESOURCE_REFERENCE VARCHAR(255), "
+      + "TRACE_ID VARCHAR(100), "
+      + "REQUEST_ID VARCHAR(100), "
+      + "ERROR VARCHAR(" + SubscriptionDeadLetterStore.MAX_ERROR_LENGTH + "), "
+      + "ATTEMPTS INTEGER NOT NULL, "
+      + "MESSAGE TEXT NOT NULL, "
+      + "CREATED_AT BIGINT NOT NULL, "
+      + "REPLAY_AT BIGINT)",
+    "CREATE INDEX IF NOT EXISTS IDX_KT_SUBSCRIPTION_DEAD_LETTER_SUB ON " + SubscriptionDeadLetterStore.TABLE_NAME
+      + " (SUBSCRIPTION_ID, CREATED_AT)");
+
+  private final JdbcTemplate jdbcTemplate;
+
+  @Autowired
+  public KoppeltaalSchemaInitializer(DataSource dataSource) {
+    this(new JdbcTemplate(dataSource));
+  }
+
+  KoppeltaalSchemaInitializer(JdbcTemplate jdbcTemplate) {
+    this.jdbcTemplate = jdbcTemplate;
+  }
+
+  @PostConstruct
+  public void init() {
+    for (String statement : STATEMENTS) {
+      try {
+        jdbcTemplate.execute(statement);
+      } catch (DataAccessException e) {
+        if (!isCreatedConcurrently(e)) throw e;
+
+        LOG.info("Skipping [{}], created by another instance: {}", statement, e.getMessage());
+      }
+    }
+  }
+
+  private static boolean isCreatedConcurrently(DataAccessException e) {
+    for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+      if (cause instanceof SQLException && CREATED_CONCURRENTLY.contains(((SQLException) cause).getSQLState())) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
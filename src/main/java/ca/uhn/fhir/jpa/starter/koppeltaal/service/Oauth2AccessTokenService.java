@@ -11,12 +11,15 @@ package ca.uhn.fhir.jpa.starter.koppeltaal.service;
 import ca.uhn.fhir.jpa.starter.koppeltaal.config.FhirServerSecurityConfiguration;
 import com.auth0.jwk.JwkException;
 import com.auth0.jwt.exceptions.JWTVerificationException;
+import com.auth0.jwt.interfaces.DecodedJWT;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.stereotype.Service;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.Optional;
 
 /**
  *
@@ -28,23 +31,50 @@ public class Oauth2AccessTokenService {
 
 	private final JwtValidationService jwtValidationService;
 	private final FhirServerSecurityConfiguration fhirServerSecurityConfiguration;
+	private final VerifiedTokenCache verifiedTokenCache;
 
-	public Oauth2AccessTokenService(JwtValidationService jwtValidationService, FhirServerSecurityConfiguration fhirServerSecurityConfiguration) {
+	public Oauth2AccessTokenService(JwtValidationService jwtValidationService, FhirServerSecurityConfiguration fhirServerSecurityConfiguration,
+																	MeterRegistry meterRegistry) {
 		this.jwtValidationService = jwtValidationService;
 		this.fhirServerSecurityConfiguration = fhirServerSecurityConfiguration;
+		this.verifiedTokenCache = fhirServerSecurityConfiguration.getTokenCache().isEnabled()
+			? new VerifiedTokenCache(fhirServerSecurityConfiguration, meterRegistry)
+			: null;
 	}
 
 	public boolean validateToken(String token) {
+		return verifyToken(token).isPresent();
+	}
+
+	/**
+	 * Verifies the signature, issuer, audience and expiry of the token. A token that passed verification before is
+	 * served from the {@link VerifiedTokenCache} until it (almost) expires.
+	 *
+	 * @param token the raw access token
+	 * @return the verified token, or empty when the token is not valid
+	 */
+	public Optional<DecodedJWT> verifyToken(String token) {
+		if (verifiedTokenCache != null) {
+			final Optional<DecodedJWT> cached = verifiedTokenCache.get(token);
+			if (cached.isPresent()) {
+				return cached;
+			}
+		}
+
 		try {
-			jwtValidationService.validate(token,
+			final DecodedJWT verified = jwtValidationService.validate(token,
         fhirServerSecurityConfiguration.getAudience(),
         fhirServerSecurityConfiguration.getIssuer(),
         fhirServerSecurityConfiguration.getJwksEndpoint(),
         fhirServerSecurityConfiguration.getTokenValidationLeeway());
-			return true;
+
+			if (verifiedTokenCache != null) {
+				verifiedTokenCache.put(token, verified);
+			}
+			return Optional.of(verified);
 		} catch (JWTVerificationException | IOException | JwkException | URISyntaxException e) {
 			LOG.info("validateToken failed with message:" + e.getMessage(), e);
-			return false;
+			return Optional.empty();
 		}
 	}
 
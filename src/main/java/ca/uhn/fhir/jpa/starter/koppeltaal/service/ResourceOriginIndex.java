@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) Stichting Koppeltaal 2021.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package ca.uhn.fhir.jpa.starter.koppeltaal.service;
+
+import ca.uhn.fhir.jpa.starter.koppeltaal.config.FhirServerSecurityConfiguration;
+import ca.uhn.fhir.jpa.starter.koppeltaal.util.ResourceOriginUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.sql.DataSource;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * <p>Index of the resource-origin (the reference to the creating Device) of every resource, so authorization does not
+ * have to read and parse the complete resource to find a single extension.</p>
+ *
+ * <p>The index is kept in the <code>KT_RESOURCE_ORIGIN</code> table, created by the {@link KoppeltaalSchemaInitializer},
+ * and is maintained by the
+ * {@link ca.uhn.fhir.jpa.starter.koppeltaal.interceptor.ResourceOriginIndexInterceptor}. Resources stored before the
+ * index existed are added the first time they are read for authorization. Lookups are served from an in-memory cache
+ * first, a resource-origin never changes once set.</p>
+ *
+ * <p>The index is written in the transaction that stores the resource. The cache is only filled once that
+ * transaction commits, so a rolled back resource is never authorized with a resource-origin from the cache.</p>
+ */
+@Service
+@DependsOn(KoppeltaalSchemaInitializer.BEAN_NAME)
+public class ResourceOriginIndex {
+
+  static final String TABLE_NAME = "KT_RESOURCE_ORIGIN";
+
+  private static final Logger LOG = LoggerFactory.getLogger(ResourceOriginIndex.class);
+
+  private final JdbcTemplate jdbcTemplate;
+  private final Cache<String, String> cache;
+  private final boolean enabled;
+
+  @Autowired
+  public ResourceOriginIndex(FhirServerSecurityConfiguration fhirServerSecurityConfiguration, DataSource dataSource, MeterRegistry meterRegistry) {
+    this(fhirServerSecurityConfiguration.getResourceOriginIndex(), new JdbcTemplate(dataSource), meterRegistry);
+  }
+
+  ResourceOriginIndex(FhirServerSecurityConfiguration.ResourceOriginIndex settings, JdbcTemplate jdbcTemplate, MeterRegistry meterRegistry) {
+    this.enabled = settings.isEnabled();
+    this.jdbcTemplate = jdbcTemplate;
+    this.cache = Caffeine.newBuilder()
+      .maximumSize(settings.getCacheSize())
+      .expireAfterWrite(Duration.ofSeconds(settings.getCacheTtl()))
+      .recordStats()
+      .build();
+
+    CaffeineCacheMetrics.monitor(meterRegistry, cache, "koppeltaal.resource-origins");
+  }
+
+  @PostConstruct
+  public void init() {
+    if (!enabled) return;
+
+    ResourceOriginUtil.setResourceOriginIndex(this);
+  }
+
+  /**
+   * @return the resource-origin reference (e.g. <code>Device/123</code>), empty when the resource is not indexed
+   */
+  public Optional<String> getResourceOrigin(String resourceType, String resourceId) {
+    if (!enabled) return Optional.empty();
+
+    final String key = key(resourceType, resourceId);
+    final String cached = cache.getIfPresent(key);
+    if (cached != null) {
+      return Optional.of(cached);
+    }
+
+    try {
+      final List<String> rows = jdbcTemplate.queryForList(
+        "SELECT RESOURCE_ORIGIN FROM " + TABLE_NAME + " WHERE RES_TYPE = ? AND RES_ID = ?", String.class,
+        resourceType, resourceId);
+
+      if (rows.isEmpty()) {
+        return Optional.empty();
+      }
+      cacheAfterCommit(key, rows.get(0)); // the row may have been written by the current transaction
+      return Optional.of(rows.get(0));
+    } catch (DataAccessException e) {
+      LOG.warn("Failed to read the resource-origin of [{}]: {}", key, e.getMessage());
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * Adds the resource-origin of the resource to the index, resources without a resource-origin are ignored.
+   */
+  public void index(IBaseResource resource) {
+    if (!enabled) return;
+
+    final IIdType id = resource.getIdElement();
+    final Optional<IIdType> resourceOrigin = ResourceOriginUtil.getResourceOriginDeviceId(resource);
+    if (resourceOrigin.isEmpty() || StringUtils.isBlank(id.getIdPart())) return;
+
+    final String resourceType = resource.fhirType();
+    final String origin = resourceOrigin.get().toUnqualifiedVersionless().getValue();
+    final String key = key(resourceType, id.getIdPart());
+    if (origin.equals(cache.getIfPresent(key))) return; // already indexed, a resource-origin never changes
+
+    try {
+      if (jdbcTemplate.update("UPDATE " + TABLE_NAME + " SET RESOURCE_ORIGIN = ? WHERE RES_TYPE = ? AND RES_ID = ?",
+        origin, resourceType, id.getIdPart()) == 0) {
+        jdbcTemplate.update("INSERT INTO " + TABLE_NAME + " (RES_TYPE, RES_ID, RESOURCE_ORIGIN) VALUES (?, ?, ?)",
+          resourceType, id.getIdPart(), origin);
+      }
+      cacheAfterCommit(key, origin);
+    } catch (DuplicateKeyException e) {
+      cacheAfterCommit(key, origin); // indexed concurrently
+    } catch (DataAccessException e) {
+      LOG.warn("Failed to index the resource-origin of [{}]: {}", key, e.getMessage());
+    }
+  }
+
+  public void remove(String resourceType, String resourceId) {
+    if (!enabled) return;
+
+    final String key = key(resourceType, resourceId);
+    cache.invalidate(key);
+
+    try {
+      jdbcTemplate.update("DELETE FROM " + TABLE_NAME + " WHERE RES_TYPE = ? AND RES_ID = ?", resourceType, resourceId);
+    } catch (DataAccessException e) {
+      LOG.warn("Failed to remove the resource-origin of [{}/{}]: {}", resourceType, resourceId, e.getMessage());
+    }
+
+    if (TransactionSynchronizationManager.isSynchronizationActive()) {
+      // another request may have cached the row before the delete committed
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+        @Override
+        public void afterCompletion(int status) {
+          cache.invalidate(key);
+        }
+      });
+    }
+  }
+
+  private void cacheAfterCommit(String key, String origin) {
+    if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+      cache.put(key, origin);
+      return;
+    }
+
+    TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+      @Override
+      public void afterCommit() {
+        cache.put(key, origin);
+      }
+    });
+  }
+
+  private static String key(String resourceType, String resourceId) {
+    return resourceType + "/" + resourceId;
+  }
+}
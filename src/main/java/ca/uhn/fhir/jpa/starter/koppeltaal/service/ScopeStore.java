@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) Stichting Koppeltaal 2021.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package ca.uhn.fhir.jpa.starter.koppeltaal.service;
+
+import java.util.Optional;
+
+/**
+ * <p>Keeps the last known scope of every client. The scope is taken from the access token of each request and read
+ * again when a subscription notification is delivered to that client, outside of any request.</p>
+ *
+ * <p>Implementations must be safe for concurrent use by request and subscription delivery threads.</p>
+ */
+public interface ScopeStore {
+
+  /**
+   * @param clientId the client id, which is also the id of the client's Device
+   * @return the last known scope of the client, empty when it is unknown or expired
+   */
+  Optional<String> getScope(String clientId);
+
+  /**
+   * Stores the scope of a client. Implementations may skip the write when the scope did not change.
+   */
+  void putScope(String clientId, String scope);
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) Stichting Koppeltaal 2021.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package ca.uhn.fhir.jpa.starter.koppeltaal.service;
+
+import ca.uhn.fhir.jpa.starter.koppeltaal.config.SubscriptionRetryProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.net.URI;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>Keeps a circuit breaker per REST-hook endpoint host, so a subscriber that is down does not tie up the delivery
+ * threads of every other subscriber with failing attempts and retries.</p>
+ *
+ * <p>A breaker opens after <code>failure-threshold</code> consecutive failed deliveries to the host. While it is
+ * open, deliveries to the host are rejected without a request. After <code>open-duration</code> a single trial
+ * delivery is let through (half-open): it closes the breaker when it succeeds and opens it again when it fails.</p>
+ *
+ * <p>The state of each breaker is published as <code>koppeltaal.subscription.circuit-breaker.state</code> (0 closed,
+ * 1 half-open, 2 open) and rejected deliveries as <code>koppeltaal.subscription.circuit-breaker.rejected</code>,
+ * both tagged with the host.</p>
+ */
+@Service
+public class SubscriptionCircuitBreaker {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SubscriptionCircuitBreaker.class);
+
+  public enum State {CLOSED, HALF_OPEN, OPEN}
+
+  private final Map<String, Breaker> breakers = new ConcurrentHashMap<>();
+  private final MeterRegistry meterRegistry;
+  private final Clock clock;
+  private final boolean enabled;
+  private final int failureThreshold;
+  private final Duration openDuration;
+
+  public SubscriptionCircuitBreaker(SubscriptionRetryProperties retryProperties, MeterRegistry meterRegistry) {
+    this(retryProperties, meterRegistry, Clock.systemUTC());
+  }
+
+  SubscriptionCircuitBreaker(SubscriptionRetryProperties retryProperties, MeterRegistry meterRegistry, Clock clock) {
+    final SubscriptionRetryProperties.CircuitBreaker settings = retryProperties.getCircuitBreaker();
+    this.meterRegistry = meterRegistry;
+    this.clock = clock;
+    this.enabled = settings.isEnabled();
+    this.failureThreshold = settings.getFailureThreshold();
+    this.openDuration = Duration.ofSeconds(settings.getOpenDuration());
+  }
+
+  /**
+   * @return <code>true</code> when a delivery to the endpoint may be attempted
+   */
+  public boolean allowDelivery(String endpointUrl) {
+    if (!enabled) return true;
+
+    final Breaker breaker = getBreaker(endpointUrl);
+    if (breaker.allow(clock.instant())) return true;
+
+    breaker.rejected.increment();
+    return false;
+  }
+
+  public void deliverySucceeded(String endpointUrl) {
+    if (!enabled) return;
+
+    getBreaker(endpointUrl).succeeded();
+  }
+
+  public void deliveryFailed(String endpointUrl) {
+    if (!enabled) return;
+
+    getBreaker(endpointUrl).failed(clock.instant());
+  }
+
+  public State getState(String endpointUrl) {
+    final Breaker breaker = breakers.get(getHost(endpointUrl));
+    return breaker != null ? breaker.state : State.CLOSED;
+  }
+
+  private Breaker getBreaker(String endpointUrl) {
+    return breakers.computeIfAbsent(getHost(endpointUrl), this::newBreaker);
+  }
+
+  private Breaker newBreaker(String host) {
+    final Breaker breaker = new Breaker(host, Counter.builder("koppeltaal.subscription.circuit-breaker.rejected")
+      .description("Deliveries rejected while the circuit breaker of the endpoint host was open")
+      .tag("host", host)
+      .register(meterRegistry));
+    Gauge.builder("koppeltaal.subscription.circuit-breaker.state", breaker, (b) -> b.state.ordinal())
+      .description("Circuit breaker state of the endpoint host: 0 closed, 1 half-open, 2 open")
+      .tag("host", host)
+      .register(meterRegistry);
+    return breaker;
+  }
+
+  /**
+   * @return the host and port of the endpoint, the endpoint itself when it can not be parsed
+   */
+  static String getHost(String endpointUrl) {
+    if (StringUtils.isBlank(endpointUrl)) return "";
+
+    try {
+      final String authority = URI.create(endpointUrl.trim()).getAuthority();
+      return StringUtils.isNotBlank(authority) ? authority.toLowerCase(Locale.ROOT) : endpointUrl;
+    } catch (IllegalArgumentException e) {
+      return endpointUrl;
+    }
+  }
+
+  private final class Breaker {
+    private final String host;
+    private final Counter rejected;
+    private volatile State state = State.CLOSED;
+    private int failures;
+    private Instant openedAt;
+
+    private Breaker(String host, Counter rejected) {
+      this.host = host;
+      this.rejected = rejected;
+    }
+
+    private synchronized boolean allow(Instant now) {
+      if (state == State.CLOSED) return true;
+      // open, or a half-open trial that did not report back in time
+      if (now.isBefore(openedAt.plus(openDuration))) return false;
+
+      LOG.info("Circuit breaker for [{}] is half-open, letting a trial delivery through", host);
+      state = State.HALF_OPEN;
+      openedAt = now;
+      return true;
+    }
+
+    private synchronized void succeeded() {
+      if (state != State.CLOSED) {
+        LOG.info("Circuit breaker for [{}] is closed", host);
+      }
+      state = State.CLOSED;
+      failures = 0;
+    }
+
+    private synchronized void failed(Instant now) {
+      failures++;
+      if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+        LOG.warn("Circuit breaker for [{}] is open after [{}] consecutive failed deliveries, rejecting deliveries for [{}]",
+          host, failures, openDuration);
+        state = State.OPEN;
+        openedAt = now;
+      }
+    }
+  }
+}
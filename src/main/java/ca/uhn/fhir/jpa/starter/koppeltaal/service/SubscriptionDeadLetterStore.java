@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) Stichting Koppeltaal 2021.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package ca.uhn.fhir.jpa.starter.koppeltaal.service;
+
+import ca.uhn.fhir.jpa.starter.koppeltaal.config.SubscriptionRetryProperties;
+import ca.uhn.fhir.jpa.starter.koppeltaal.util.SubscriptionMessageAttributes;
+import ca.uhn.fhir.jpa.subscription.channel.subscription.SubscriptionChannelRegistry;
+import ca.uhn.fhir.jpa.subscription.match.registry.ActiveSubscription;
+import ca.uhn.fhir.jpa.subscription.match.registry.SubscriptionRegistry;
+import ca.uhn.fhir.jpa.subscription.model.ResourceDeliveryJsonMessage;
+import ca.uhn.fhir.jpa.subscription.model.ResourceDeliveryMessage;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.retry.RetryContext;
+import org.springframework.retry.support.RetrySynchronizationManager;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.sql.DataSource;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * <p>Keeps the notifications that failed their last delivery attempt in the <code>KT_SUBSCRIPTION_DEAD_LETTER</code>
+ * table (created by the {@link KoppeltaalSchemaInitializer}), with the Subscription, the versioned resource reference, the trace and request id, the error and the number
+ * of attempts. Without it the notification is lost once the failure is audited.</p>
+ *
+ * <p>{@link #requestReplay(String, Date)} marks dead letters for replay. They are then redelivered in batches of
+ * <code>replay-batch-size</code> per <code>replay-interval</code>, through the delivery channel of the Subscription
+ * like any new notification, so a replay does not hold up new notifications. A dead letter is claimed by clearing its
+ * replay mark, so with multiple replicas it is replayed once, and only deleted once it was handed to the channel. When
+ * the channel rejects it, the replay mark is restored and it is replayed with the next batch. A replayed notification
+ * that fails again is dead-lettered again, with the attempts added up.</p>
+ */
+@Service
+@DependsOn(KoppeltaalSchemaInitializer.BEAN_NAME)
+public class SubscriptionDeadLetterStore {
+
+  static final String TABLE_NAME = "KT_SUBSCRIPTION_DEAD_LETTER";
+  static final int MAX_ERROR_LENGTH = 2000;
+
+  private static final Logger LOG = LoggerFactory.getLogger(SubscriptionDeadLetterStore.class);
+
+  private final JdbcTemplate jdbcTemplate;
+  private final SubscriptionRegistry subscriptionRegistry;
+  private final SubscriptionChannelRegistry subscriptionChannelRegistry;
+  private final SubscriptionRetryProperties.DeadLetter settings;
+  private final Clock clock;
+  private final Counter deadLetteredCounter;
+  private final Counter replayedCounter;
+
+  @Autowired
+  public SubscriptionDeadLetterStore(SubscriptionRetryProperties retryProperties, DataSource dataSource,
+                                     SubscriptionRegistry subscriptionRegistry,
+                                     SubscriptionChannelRegistry subscriptionChannelRegistry, MeterRegistry meterRegistry) {
+    this(retryProperties.getDeadLetter(), new JdbcTemplate(dataSource), subscriptionRegistry, subscriptionChannelRegistry,
+      meterRegistry, Clock.systemUTC());
+  }
+
+  SubscriptionDeadLetterStore(SubscriptionRetryProperties.DeadLetter settings, JdbcTemplate jdbcTemplate,
+                              SubscriptionRegistry subscriptionRegistry,
+                              SubscriptionChannelRegistry subscriptionChannelRegistry, MeterRegistry meterRegistry,
+                              Clock clock) {
+    this.settings = settings;
+    this.jdbcTemplate = jdbcTemplate;
+    this.subscriptionRegistry = subscriptionRegistry;
+    this.subscriptionChannelRegistry = subscriptionChannelRegistry;
+    this.clock = clock;
+    this.deadLetteredCounter = Counter.builder("koppeltaal.subscription.dead-letter.added")
+      .description("Notifications that failed their last delivery attempt")
+      .register(meterRegistry);
+    this.replayedCounter = Counter.builder("koppeltaal.subscription.dead-letter.replayed")
+      .description("Dead-lettered notifications sent to their Subscription again")
+      .register(meterRegistry);
+  }
+
+  /**
+   * Stores a notification that will not be attempted again.
+   *
+   * @param attempts the failed attempts of this delivery, the attempts before an earlier replay are added
+   */
+  public void add(ResourceDeliveryMessage message, String error, int attempts) {
+    if (!settings.isEnabled() || message.getSubscription() == null) return;
+
+    final int totalAttempts = SubscriptionMessageAttributes.getAttempts(message) + attempts;
+    try {
+      SubscriptionMessageAttributes.setAttempts(message, totalAttempts);
+      jdbcTemplate.update("INSERT INTO " + TABLE_NAME + " (ID, SUBSCRIPTION_ID, RESOURCE_REFERENCE, TRACE_ID, REQUEST_ID, "
+          + "ERROR, ATTEMPTS, MESSAGE, CREATED_AT) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)",
+        UUID.randomUUID().toString(),
+        message.getSubscription().getIdPart(),
+        message.getPayloadId(),
+        SubscriptionMessageAttributes.getTraceId(message),
+        SubscriptionMessageAttributes.getRequestId(message).orElse(null),
+        StringUtils.abbreviate(error, MAX_ERROR_LENGTH),
+        totalAttempts,
+        new ResourceDeliveryJsonMessage(message).asJson(),
+        clock.millis());
+      deadLetteredCounter.increment();
+      LOG.warn("Dead-lettered [{}] for Subscription [{}] after [{}] attempts: {}", message.getPayloadId(),
+        message.getSubscription().getIdPart(), totalAttempts, error);
+    } catch (JsonProcessingException | DataAccessException e) {
+      LOG.error("Failed to dead-letter [{}] for Subscription [{}]: {}", message.getPayloadId(),
+        message.getSubscription().getIdPart(), e.getMessage());
+    }
+  }
+
+  /**
+   * Marks the dead letters for replay.
+   *
+   * @param subscriptionId the id part of the Subscription, <code>null</code> for all Subscriptions
+   * @param since          only the dead letters stored since, <code>null</code> for all
+   * @return the number of dead letters that will be replayed
+   */
+  public int requestReplay(String subscriptionId, Date since) {
+    if (!settings.isEnabled()) return 0;
+
+    final List<Object> args = new ArrayList<>();
+    args.add(clock.millis());
+    String sql = "UPDATE " + TABLE_NAME + " SET REPLAY_AT = ? WHERE REPLAY_AT IS NULL";
+    if (subscriptionId != null) {
+      sql += " AND SUBSCRIPTION_ID = ?";
+      args.add(subscriptionId);
+    }
+    if (since != null) {
+      sql += " AND CREATED_AT >= ?";
+      args.add(since.getTime());
+    }
+    return jdbcTemplate.update(sql, args.toArray());
+  }
+
+  /**
+   * Sends the next batch of dead letters marked for replay to the delivery channel of their Subscription. Dead
+   * letters of Subscriptions that are no longer active are dropped, those the channel rejects stay marked for replay.
+   *
+   * @return the number of notifications sent
+   */
+  @Scheduled(fixedDelayString = "${fhir.server.subscription.retry.dead-letter.replay-interval:10000}")
+  public int replay() {
+    if (!settings.isEnabled()) return 0;
+
+    int sent = 0;
+    try {
+      final List<Map<String, Object>> rows = jdbcTemplate.queryForList("SELECT ID, SUBSCRIPTION_ID, MESSAGE FROM "
+        + TABLE_NAME + " WHERE REPLAY_AT IS NOT NULL ORDER BY CREATED_AT FETCH FIRST " + settings.getReplayBatchSize()
+        + " ROWS ONLY");
+
+      for (Map<String, Object> row : rows) {
+        final String id = (String) row.get("ID");
+        if (jdbcTemplate.update("UPDATE " + TABLE_NAME + " SET REPLAY_AT = NULL WHERE ID = ? AND REPLAY_AT IS NOT NULL",
+          id) == 0) continue; // claimed elsewhere
+
+        final boolean replayed;
+        try {
+          replayed = send((String) row.get("SUBSCRIPTION_ID"), String.valueOf(row.get("MESSAGE")));
+        } catch (RuntimeException e) {
+          LOG.warn("Failed to replay dead-lettered notification [{}], replaying it with the next batch: {}", id,
+            e.getMessage());
+          jdbcTemplate.update("UPDATE " + TABLE_NAME + " SET REPLAY_AT = ? WHERE ID = ?", clock.millis(), id);
+          continue;
+        }
+        jdbcTemplate.update("DELETE FROM " + TABLE_NAME + " WHERE ID = ?", id);
+        if (replayed) {
+          sent++;
+        }
+      }
+    } catch (DataAccessException e) {
+      LOG.warn("Failed to replay dead-lettered notifications: {}", e.getMessage());
+    }
+
+    if (sent > 0) {
+      LOG.info("Replayed [{}] dead-lettered notifications", sent);
+    }
+    return sent;
+  }
+
+  public int count(String subscriptionId) {
+    final Integer count = jdbcTemplate.queryForObject("SELECT COUNT(*) FROM " + TABLE_NAME + " WHERE SUBSCRIPTION_ID = ?",
+      Integer.class, subscriptionId);
+    return count != null ? count : 0;
+  }
+
+  /**
+   * @return the failed attempts of the delivery that is being retried on this thread, before the current one
+   */
+  public static int getFailedAttempts() {
+    final RetryContext context = RetrySynchronizationManager.getContext();
+    return context != null ? context.getRetryCount() : 0;
+  }
+
+  private boolean send(String subscriptionId, String json) {
+    final ActiveSubscription activeSubscription = subscriptionRegistry.get(subscriptionId);
+    if (activeSubscription == null) {
+      LOG.warn("Dropping dead-lettered notification, Subscription [{}] is no longer active", subscriptionId);
+      return false;
+    }
+
+    try {
+      final ResourceDeliveryJsonMessage jsonMessage = ResourceDeliveryJsonMessage.fromJson(json);
+      // the Subscription may have been fixed since, e.g. its endpoint
+      jsonMessage.getPayload().setSubscription(activeSubscription.getSubscription());
+
+      final MessageChannel channel = subscriptionChannelRegistry.getDeliverySenderChannel(activeSubscription.getChannelName());
+      if (channel == null) {
+        LOG.warn("Dropping dead-lettered notification, Subscription [{}] has no delivery channel", subscriptionId);
+        return false;
+      }
+      channel.send(jsonMessage);
+      replayedCounter.increment();
+      return true;
+    } catch (JsonProcessingException e) {
+      LOG.error("Dropping unreadable dead-lettered notification for Subscription [{}]: {}", subscriptionId, e.getMessage());
+      return false;
+    }
+  }
+}
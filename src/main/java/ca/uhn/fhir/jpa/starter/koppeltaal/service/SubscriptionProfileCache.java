@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) Stichting Koppeltaal 2021.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package ca.uhn.fhir.jpa.starter.koppeltaal.service;
+
+import ca.uhn.fhir.jpa.starter.koppeltaal.config.FhirServerSecurityConfiguration;
+import ca.uhn.fhir.jpa.starter.koppeltaal.util.SubscriptionDeliveryProfile;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.Duration;
+import java.util.function.Function;
+
+/**
+ * <p>Caches the {@link SubscriptionDeliveryProfile} of a Subscription, as the notifications of every Subscription
+ * are narrowed with it. Without it, each notification reads the Subscription and its Device.</p>
+ *
+ * <p>A profile is evicted when its Subscription or Device is updated or deleted on this instance (see
+ * {@link ca.uhn.fhir.jpa.starter.koppeltaal.interceptor.SubscriptionNarrowingInterceptor}), both before and after the
+ * commit so a concurrent delivery can not put the old profile back. Updates on other replicas are picked up after the
+ * <code>ttl</code>.</p>
+ */
+@Service
+public class SubscriptionProfileCache {
+
+  private final Cache<String, SubscriptionDeliveryProfile> cache;
+  private final boolean enabled;
+
+  public SubscriptionProfileCache(FhirServerSecurityConfiguration fhirServerSecurityConfiguration, MeterRegistry meterRegistry) {
+    final FhirServerSecurityConfiguration.SubscriptionProfileCache settings = fhirServerSecurityConfiguration.getSubscriptionProfileCache();
+    this.enabled = settings.isEnabled();
+    this.cache = Caffeine.newBuilder()
+      .maximumSize(settings.getMaxSize())
+      .expireAfterWrite(Duration.ofSeconds(settings.getTtl()))
+      .recordStats()
+      .build();
+
+    CaffeineCacheMetrics.monitor(meterRegistry, cache, "koppeltaal.subscription-profiles");
+  }
+
+  /**
+   * @param subscriptionId the id part of the Subscription
+   * @param loader         builds the profile when it is not cached
+   */
+  public SubscriptionDeliveryProfile get(String subscriptionId, Function<String, SubscriptionDeliveryProfile> loader) {
+    if (!enabled) {
+      return loader.apply(subscriptionId);
+    }
+    return cache.get(subscriptionId, loader);
+  }
+
+  public void evictSubscription(String subscriptionId) {
+    evict(() -> cache.invalidate(subscriptionId));
+  }
+
+  /**
+   * Evicts the profiles of the Subscriptions with this Device as resource-origin.
+   */
+  public void evictDevice(String deviceId) {
+    evict(() -> cache.asMap().values().removeIf((profile) -> profile.getDeviceId().filter(deviceId::equals).isPresent()));
+  }
+
+  public long size() {
+    return cache.estimatedSize();
+  }
+
+  private static void evict(Runnable eviction) {
+    eviction.run();
+
+    if (TransactionSynchronizationManager.isSynchronizationActive()) {
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+        @Override
+        public void afterCompletion(int status) {
+          eviction.run();
+        }
+      });
+    }
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) Stichting Koppeltaal 2021.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package ca.uhn.fhir.jpa.starter.koppeltaal.service;
+
+import ca.uhn.fhir.jpa.starter.koppeltaal.config.SubscriptionBulkheadProperties;
+import ca.uhn.fhir.jpa.subscription.model.ResourceDeliveryJsonMessage;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import javax.sql.DataSource;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * <p>Holds the notifications that did not fit in the queue of their Subscription's delivery channel (see
+ * {@link ca.uhn.fhir.jpa.starter.koppeltaal.bean.BulkheadChannelFactory}), in the
+ * <code>KT_SUBSCRIPTION_RETRY</code> table, created by the {@link KoppeltaalSchemaInitializer}.</p>
+ *
+ * <p>A notification is claimed by deleting its row, so with multiple replicas each notification is taken back into a
+ * queue by a single instance.</p>
+ */
+@Service
+@DependsOn(KoppeltaalSchemaInitializer.BEAN_NAME)
+public class SubscriptionRetryStore {
+
+  static final String TABLE_NAME = "KT_SUBSCRIPTION_RETRY";
+
+  private static final Logger LOG = LoggerFactory.getLogger(SubscriptionRetryStore.class);
+
+  private final JdbcTemplate jdbcTemplate;
+  private final boolean enabled;
+  private final Clock clock;
+  private final Counter storedCounter;
+  private final Counter claimedCounter;
+
+  @Autowired
+  public SubscriptionRetryStore(SubscriptionBulkheadProperties bulkheadProperties, DataSource dataSource,
+                                MeterRegistry meterRegistry) {
+    this(bulkheadProperties, new JdbcTemplate(dataSource), meterRegistry, Clock.systemUTC());
+  }
+
+  SubscriptionRetryStore(SubscriptionBulkheadProperties bulkheadProperties, JdbcTemplate jdbcTemplate,
+                         MeterRegistry meterRegistry, Clock clock) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.enabled = bulkheadProperties.isEnabled();
+    this.clock = clock;
+    this.storedCounter = Counter.builder("koppeltaal.subscription.retry-store.stored")
+      .description("Notifications that overflowed the queue of their Subscription")
+      .register(meterRegistry);
+    this.claimedCounter = Counter.builder("koppeltaal.subscription.retry-store.claimed")
+      .description("Overflowed notifications taken back into the queue of their Subscription")
+      .register(meterRegistry);
+  }
+
+  /**
+   * @return <code>false</code> when the notification could not be stored
+   */
+  public boolean store(String channelName, ResourceDeliveryJsonMessage message) {
+    if (!enabled) return false;
+
+    try {
+      jdbcTemplate.update("INSERT INTO " + TABLE_NAME + " (ID, CHANNEL_NAME, MESSAGE, CREATED_AT) VALUES (?, ?, ?, ?)",
+        UUID.randomUUID().toString(), channelName, message.asJson(), clock.millis());
+      storedCounter.increment();
+      return true;
+    } catch (JsonProcessingException | DataAccessException e) {
+      LOG.warn("Failed to store the notification for channel [{}]: {}", channelName, e.getMessage());
+      return false;
+    }
+  }
+
+  /**
+   * Removes and returns the oldest notifications of the channel.
+   */
+  public List<ResourceDeliveryJsonMessage> claim(String channelName, int limit) {
+    final List<ResourceDeliveryJsonMessage> claimed = new ArrayList<>();
+    if (!enabled || limit < 1) return claimed;
+
+    try {
+      final List<Map<String, Object>> rows = jdbcTemplate.queryForList("SELECT ID, MESSAGE FROM " + TABLE_NAME
+        + " WHERE CHANNEL_NAME = ? ORDER BY CREATED_AT FETCH FIRST " + limit + " ROWS ONLY", channelName);
+
+      for (Map<String, Object> row : rows) {
+        final String id = (String) row.get("ID");
+        if (jdbcTemplate.update("DELETE FROM " + TABLE_NAME + " WHERE ID = ?", id) == 0) continue; // claimed elsewhere
+
+        try {
+          claimed.add(ResourceDeliveryJsonMessage.fromJson(String.valueOf(row.get("MESSAGE"))));
+          claimedCounter.increment();
+        } catch (JsonProcessingException e) {
+          LOG.error("Dropping unreadable notification [{}] for channel [{}]: {}", id, channelName, e.getMessage());
+        }
+      }
+    } catch (DataAccessException e) {
+      LOG.warn("Failed to claim notifications for channel [{}]: {}", channelName, e.getMessage());
+    }
+    return claimed;
+  }
+
+  public int count(String channelName) {
+    final Integer count = jdbcTemplate.queryForObject("SELECT COUNT(*) FROM " + TABLE_NAME + " WHERE CHANNEL_NAME = ?",
+      Integer.class, channelName);
+    return count != null ? count : 0;
+  }
+}
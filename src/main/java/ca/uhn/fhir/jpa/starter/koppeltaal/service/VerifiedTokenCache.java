@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) Stichting Koppeltaal 2021.
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package ca.uhn.fhir.jpa.starter.koppeltaal.service;
+
+import ca.uhn.fhir.jpa.starter.koppeltaal.config.FhirServerSecurityConfiguration;
+import com.auth0.jwt.interfaces.DecodedJWT;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Date;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * <p>Bounded cache of access tokens that already passed signature verification, so a client that reuses its token
+ * for minutes is only verified (RSA/ECDSA) once.</p>
+ *
+ * <p>Entries are keyed by a SHA-256 hash of the token, the token itself is never kept as a key. An entry expires at
+ * <code>exp</code> minus the validation leeway (capped by <code>maxTtl</code>) and is never served past that moment.
+ * Tokens without an <code>exp</code> claim are not cached.</p>
+ */
+public class VerifiedTokenCache {
+
+  private final Cache<String, Entry> cache;
+  private final long leewayMillis;
+  private final long maxTtlMillis;
+  private final LongSupplier clock;
+
+  public VerifiedTokenCache(FhirServerSecurityConfiguration fhirServerSecurityConfiguration, MeterRegistry meterRegistry) {
+    this(fhirServerSecurityConfiguration, meterRegistry, System::currentTimeMillis);
+  }
+
+  VerifiedTokenCache(FhirServerSecurityConfiguration fhirServerSecurityConfiguration, MeterRegistry meterRegistry, LongSupplier clock) {
+    final FhirServerSecurityConfiguration.TokenCache settings = fhirServerSecurityConfiguration.getTokenCache();
+    this.leewayMillis = TimeUnit.SECONDS.toMillis(fhirServerSecurityConfiguration.getTokenValidationLeeway());
+    this.maxTtlMillis = TimeUnit.SECONDS.toMillis(settings.getMaxTtl());
+    this.clock = clock;
+    this.cache = Caffeine.newBuilder()
+      .maximumSize(settings.getMaxSize())
+      .expireAfter(new Expiry<String, Entry>() {
+        @Override
+        public long expireAfterCreate(String key, Entry value, long currentTime) {
+          return TimeUnit.MILLISECONDS.toNanos(Math.max(0, value.expiresAt - clock.getAsLong()));
+        }
+
+        @Override
+        public long expireAfterUpdate(String key, Entry value, long currentTime, long currentDuration) {
+          return expireAfterCreate(key, value, currentTime);
+        }
+
+        @Override
+        public long expireAfterRead(String key, Entry value, long currentTime, long currentDuration) {
+          return currentDuration;
+        }
+      })
+      .recordStats()
+      .build();
+
+    CaffeineCacheMetrics.monitor(meterRegistry, cache, "koppeltaal.verified-tokens");
+  }
+
+  public Optional<DecodedJWT> get(String token) {
+    final Entry entry = cache.getIfPresent(hash(token));
+    if (entry == null || entry.expiresAt <= clock.getAsLong()) {
+      return Optional.empty();
+    }
+    return Optional.of(entry.jwt);
+  }
+
+  public void put(String token, DecodedJWT verified) {
+    final Date expiresAt = verified.getExpiresAt();
+    if (expiresAt == null) {
+      return;
+    }
+
+    final long now = clock.getAsLong();
+    final long cacheUntil = Math.min(expiresAt.getTime() - leewayMillis, now + maxTtlMillis);
+    if (cacheUntil > now) {
+      cache.put(hash(token), new Entry(verified, cacheUntil));
+    }
+  }
+
+  public long size() {
+    return cache.estimatedSize();
+  }
+
+  private static String hash(String token) {
+    try {
+      final byte[] digest = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+      return Base64.getEncoder().encodeToString(digest);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 not supported", e);
+    }
+  }
+
+  private static final class Entry {
+    private final DecodedJWT jwt;
+    private final long expiresAt;
+
+    private Entry(DecodedJWT jwt, long expiresAt) {
+      this.jwt = jwt;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
@@ -1,12 +1,14 @@
 package ca.uhn.fhir.jpa.starter.koppeltaal.util;
 
+import ca.uhn.fhir.jpa.starter.koppeltaal.config.FhirServerSecurityConfiguration;
 import ca.uhn.fhir.jpa.starter.koppeltaal.dto.CrudOperation;
+import ca.uhn.fhir.jpa.starter.koppeltaal.service.InMemoryScopeStore;
+import ca.uhn.fhir.jpa.starter.koppeltaal.service.ScopeStore;
 import ca.uhn.fhir.rest.api.RequestTypeEnum;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
-import com.auth0.jwt.JWT;
-import com.auth0.jwt.interfaces.Claim;
-import com.auth0.jwt.interfaces.DecodedJWT;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import org.apache.commons.lang3.StringUtils;
 import org.hl7.fhir.r4.model.ResourceType;
 import org.slf4j.Logger;
@@ -20,16 +22,24 @@ public class PermissionUtil {
 
   private static final Logger LOG = LoggerFactory.getLogger(PermissionUtil.class);
 
-  //IMPORTANT: Keep in mind that this is a POC implementation, and we simply use an in-memory solution here.
-  //Actual solutions should use quick storage mechanisms such as Redis to keep the start over multiple nodes and server reboots
-  private static final Map<String, String> CLIENT_ID_TO_SCOPE_MAP = new HashMap<>();
+  // Replaced by the configured store on startup, see ScopeStoreConfig. Use the jdbc store to share the scopes
+  // between multiple nodes and server reboots.
+  private static volatile ScopeStore scopeStore = new InMemoryScopeStore(new FhirServerSecurityConfiguration.ScopeCache());
+
+  private static final Cache<String, ScopePermissionSet> COMPILED_SCOPES = Caffeine.newBuilder()
+    .maximumSize(10_000)
+    .build();
+
+  public static void setScopeStore(ScopeStore scopeStore) {
+    PermissionUtil.scopeStore = scopeStore;
+  }
 
   public static void createOrUpdateScope(String deviceId, String scope) {
-    CLIENT_ID_TO_SCOPE_MAP.put(deviceId, scope);
+    scopeStore.putScope(deviceId, scope);
   }
 
   public static Optional<String> getScope(String clientId) {
-    return Optional.ofNullable(CLIENT_ID_TO_SCOPE_MAP.get(clientId));
+    return scopeStore.getScope(clientId);
   }
 
   /**
@@ -40,72 +50,65 @@ public class PermissionUtil {
    * @return
    */
   public static List<String> getScopesForRequest(RequestDetails requestDetails) {
-    final String resourceName = requestDetails.getResourceName();
+    return getPermissionsForRequest(requestDetails).stream()
+      .map(ScopePermission::getScope)
+      .collect(Collectors.toList());
+  }
 
-    String scopeString = getFullScope(requestDetails);
+  /**
+   * Same as {@link #getScopesForRequest(RequestDetails)}, but returns the parsed permissions.
+   */
+  public static List<ScopePermission> getPermissionsForRequest(RequestDetails requestDetails) {
+    final RequestSecurityContext securityContext = getSecurityContext(requestDetails);
+    final String scopeString = securityContext.getScope();
 
     //update the cache
-    ResourceOriginUtil.getRequesterClientId(requestDetails).ifPresent((clientId) ->
-      CLIENT_ID_TO_SCOPE_MAP.put(clientId, scopeString)
-    );
-
-    String[] scopes = scopeString.split(" ");
-
-    String crudsRegex = getCrudsRegex(requestDetails.getRequestType());
+    if (scopeString != null) {
+      securityContext.getClientId().ifPresent((clientId) ->
+        scopeStore.putScope(clientId, scopeString)
+      );
+    }
 
-    return Arrays.stream(scopes)
-      .filter((scope) -> scope.matches("^system\\/(?:\\*|"+resourceName+")\\."+crudsRegex+".*"))
-      .collect(Collectors.toList());
+    return getPermissions(scopeString)
+      .getPermissions(requestDetails.getResourceName(), getCrudOperation(requestDetails.getRequestType()));
   }
 
   public static String getFullScope(RequestDetails requestDetails) {
-    DecodedJWT decodedAccessToken = getDecodedAccessToken(requestDetails);
+    return getSecurityContext(requestDetails).getScope();
+  }
 
-    Claim scopeClaim = decodedAccessToken.getClaim("scope");
-    return scopeClaim.asString();
+  /**
+   * Parses the scope string once, the result is cached as clients keep reusing the same scopes.
+   *
+   * @param scopeString The complete scope string from the access_token
+   */
+  public static ScopePermissionSet getPermissions(String scopeString) {
+    if (StringUtils.isBlank(scopeString)) return ScopePermissionSet.EMPTY;
+
+    return COMPILED_SCOPES.get(scopeString, ScopePermissionSet::parse);
   }
 
-  public static String getCrudsRegex(RequestTypeEnum requestTypeEnum) {
+  public static CrudOperation getCrudOperation(RequestTypeEnum requestTypeEnum) {
     switch (requestTypeEnum) {
       case POST:
-        return "cr?u?d?s?";
+        return CrudOperation.CREATE;
       case GET:
-        return "c?ru?d?s?";
+        return CrudOperation.READ;
       case PATCH: //fallthrough to update
       case PUT:
-        return "c?r?ud?s?";
+        return CrudOperation.UPDATE;
       case DELETE:
-        return "c?r?u?ds?";
+        return CrudOperation.DELETE;
       default:
         throw new ForbiddenOperationException("RequestType " + requestTypeEnum + " not supported");
     }
   }
-  public static String getCrudsRegex(CrudOperation crudOperation) {
-    switch (crudOperation) {
-      case CREATE:
-        return "cr?u?d?s?";
-      case READ:
-        return "c?ru?d?s?";
-      case UPDATE:
-        return "c?r?ud?s?";
-      case DELETE:
-        return "c?r?u?ds?";
-      default:
-        throw new ForbiddenOperationException("CrudOperation " + crudOperation + " not supported");
-    }
-  }
 
-  private static DecodedJWT getDecodedAccessToken(RequestDetails requestDetails) {
-
-    String authorization = requestDetails.getHeader("Authorization");
-    String token = StringUtils.trim(StringUtils.removeStartIgnoreCase(authorization, "Bearer"));
-
-    if(StringUtils.isBlank(token)) {
+  private static RequestSecurityContext getSecurityContext(RequestDetails requestDetails) {
+    return RequestSecurityContext.get(requestDetails).orElseThrow(() -> {
       LOG.warn("Request without `Authorization` header found, can not determine access.");
-      throw new ForbiddenOperationException("Unauthorized");
-    }
-
-    return JWT.decode(token);
+      return new ForbiddenOperationException("Unauthorized");
+    });
   }
 
   public static Set<String> getResourceOrigins(List<String> scopes) {
@@ -128,15 +131,10 @@ public class PermissionUtil {
    */
   public static boolean hasPermission(CrudOperation crudOperation, ResourceType resourceType, String entityResourceOrigin, String scopeString) {
 
-    String[] scopes = scopeString.split(" ");
-
-    String crudsRegex = getCrudsRegex(crudOperation);
-
-    boolean hasPermission = Arrays.stream(scopes)
-      .anyMatch((scope) -> scope.matches("^system\\/(?:\\*|" + resourceType.name() + ")\\." + crudsRegex + "(?:\\?resource-origin=.*" + entityResourceOrigin + ".*|$)"));
+    boolean hasPermission = getPermissions(scopeString).hasPermission(crudOperation, resourceType.name(), entityResourceOrigin);
 
-    LOG.info("Checked permission:\n\n\tCrudOperation=[{}]\n\tResourceType=[{}]\n\tentityResourceOrigin=[{}]\n\tscopes=[{}],\n\tcrudsRegex=[{}]\n\t\thasPermission=[{}]",
-      crudOperation, resourceType, entityResourceOrigin, scopes, crudsRegex,hasPermission);
+    LOG.info("Checked permission:\n\n\tCrudOperation=[{}]\n\tResourceType=[{}]\n\tentityResourceOrigin=[{}]\n\tscopes=[{}]\n\t\thasPermission=[{}]",
+      crudOperation, resourceType, entityResourceOrigin, scopeString, hasPermission);
 
     return hasPermission;
   }
@@ -0,0 +1,92 @@
+package ca.uhn.fhir.jpa.starter.koppeltaal.util;
+
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+
+import java.util.function.Supplier;
+
+/**
+ * <p>Request scoped slot for the current (previous) version of the resource a request operates on. On an update the
+ * authorization and the resource-origin checks both need it, the first one reads it and the second one reuses it.</p>
+ *
+ * <p>The slot is only reused for the same resource, for the same version when a version is requested and when it
+ * matches the version in the <code>If-Match</code> header. It is cleared as soon as the resource is written. Deleted
+ * resources are never kept.</p>
+ */
+public class PreviousResourceSlot {
+
+  static final String USER_DATA_KEY = PreviousResourceSlot.class.getName();
+
+  public static IBaseResource read(RequestDetails requestDetails, IFhirResourceDao<?> resourceDao, IIdType resourceId) {
+    return read(requestDetails, resourceId, () -> resourceDao.read(resourceId, requestDetails));
+  }
+
+  public static IBaseResource read(RequestDetails requestDetails, IFhirResourceDao<?> resourceDao, IIdType resourceId, boolean allowDeleted) {
+    return read(requestDetails, resourceId, () -> resourceDao.read(resourceId, requestDetails, allowDeleted));
+  }
+
+  /**
+   * Clears the slot when it holds the given resource, e.g. because it was just updated.
+   */
+  public static void evict(RequestDetails requestDetails, IIdType resourceId) {
+    if (requestDetails == null) return;
+
+    final Object slot = requestDetails.getUserData().get(USER_DATA_KEY);
+    if (slot instanceof IBaseResource && isSameResource(((IBaseResource) slot).getIdElement(), resourceId)) {
+      requestDetails.getUserData().remove(USER_DATA_KEY);
+    }
+  }
+
+  private static IBaseResource read(RequestDetails requestDetails, IIdType resourceId, Supplier<IBaseResource> reader) {
+    final IBaseResource previous = get(requestDetails, resourceId);
+    if (previous != null) {
+      return previous;
+    }
+
+    final IBaseResource resource = reader.get();
+    if (resource != null && !resource.isDeleted()) {
+      requestDetails.getUserData().put(USER_DATA_KEY, resource);
+    }
+    return resource;
+  }
+
+  static IBaseResource get(RequestDetails requestDetails, IIdType resourceId) {
+    final Object slot = requestDetails.getUserData().get(USER_DATA_KEY);
+    if (!(slot instanceof IBaseResource)) return null;
+
+    final IBaseResource previous = (IBaseResource) slot;
+    final IIdType previousId = previous.getIdElement();
+    if (!isSameResource(previousId, resourceId)) return null;
+
+    if (resourceId.hasVersionIdPart() && !StringUtils.equals(resourceId.getVersionIdPart(), previousId.getVersionIdPart())) {
+      return null;
+    }
+
+    final String ifMatchVersion = getIfMatchVersion(requestDetails);
+    if (ifMatchVersion != null && !StringUtils.equals(ifMatchVersion, previousId.getVersionIdPart())) {
+      return null;
+    }
+
+    return previous;
+  }
+
+  private static boolean isSameResource(IIdType previousId, IIdType resourceId) {
+    if (previousId == null || resourceId == null) return false;
+
+    return StringUtils.equals(previousId.getIdPart(), resourceId.getIdPart())
+      && (!resourceId.hasResourceType() || StringUtils.equals(previousId.getResourceType(), resourceId.getResourceType()));
+  }
+
+  /**
+   * @return the version from an <code>If-Match: W/"3"</code> header, <code>null</code> when not present
+   */
+  private static String getIfMatchVersion(RequestDetails requestDetails) {
+    final String ifMatch = requestDetails.getHeader("If-Match");
+    if (StringUtils.isBlank(ifMatch)) return null;
+
+    return StringUtils.strip(StringUtils.removeStart(ifMatch.trim(), "W/"), "\"");
+  }
+}
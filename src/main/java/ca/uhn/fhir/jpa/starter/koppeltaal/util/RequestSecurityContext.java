@@ -0,0 +1,110 @@
+package ca.uhn.fhir.jpa.starter.koppeltaal.util;
+
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.interfaces.DecodedJWT;
+import jakarta.servlet.http.HttpServletRequest;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * <p>The access token of a single incoming request, together with the values every interceptor needs from it: the
+ * client id (<code>azp</code> claim) and the scopes.</p>
+ *
+ * <p>The {@link ca.uhn.fhir.jpa.starter.koppeltaal.interceptor.JwtSecurityInterceptor} stores the verified token in
+ * {@link RequestDetails#getUserData()}, so the token is decoded once per request instead of once per interceptor.
+ * When security is disabled the Authorization header is decoded on first use and stored in the same way.</p>
+ */
+public class RequestSecurityContext {
+
+  public static final String USER_DATA_KEY = RequestSecurityContext.class.getName();
+
+  private final DecodedJWT accessToken;
+  private final String clientId;
+  private final String scope;
+  private final List<String> scopes;
+
+  private RequestSecurityContext(DecodedJWT accessToken) {
+    this.accessToken = accessToken;
+
+    final String azp = accessToken.getClaim("azp").asString();
+    this.clientId = StringUtils.isBlank(azp) ? null : azp;
+
+    this.scope = accessToken.getClaim("scope").asString();
+    this.scopes = scope == null
+      ? Collections.emptyList()
+      : Collections.unmodifiableList(Arrays.asList(StringUtils.split(scope, ' ')));
+  }
+
+  public static RequestSecurityContext of(DecodedJWT accessToken) {
+    return new RequestSecurityContext(accessToken);
+  }
+
+  /**
+   * Makes the context available to interceptors that run before the {@link RequestDetails} exist.
+   */
+  public static void set(HttpServletRequest request, RequestSecurityContext context) {
+    request.setAttribute(USER_DATA_KEY, context);
+  }
+
+  public static void set(RequestDetails requestDetails, RequestSecurityContext context) {
+    requestDetails.getUserData().put(USER_DATA_KEY, context);
+  }
+
+  /**
+   * @return the security context of the request, or empty when the request has no bearer token
+   */
+  public static Optional<RequestSecurityContext> get(RequestDetails requestDetails) {
+    final Object existing = requestDetails.getUserData().get(USER_DATA_KEY);
+    if (existing instanceof RequestSecurityContext) {
+      return Optional.of((RequestSecurityContext) existing);
+    }
+
+    if (requestDetails instanceof ServletRequestDetails) {
+      final HttpServletRequest servletRequest = ((ServletRequestDetails) requestDetails).getServletRequest();
+      final Object fromRequest = servletRequest != null ? servletRequest.getAttribute(USER_DATA_KEY) : null;
+      if (fromRequest instanceof RequestSecurityContext) {
+        set(requestDetails, (RequestSecurityContext) fromRequest);
+        return Optional.of((RequestSecurityContext) fromRequest);
+      }
+    }
+
+    final String token = getBearerToken(requestDetails.getHeader("Authorization"));
+    if (StringUtils.isBlank(token)) {
+      return Optional.empty();
+    }
+
+    // Not verified here, requests are verified by the JwtSecurityInterceptor when security is enabled
+    final RequestSecurityContext context = of(JWT.decode(token));
+    set(requestDetails, context);
+    return Optional.of(context);
+  }
+
+  public static String getBearerToken(String authorizationHeader) {
+    return StringUtils.trim(StringUtils.removeStartIgnoreCase(authorizationHeader, "Bearer"));
+  }
+
+  public DecodedJWT getAccessToken() {
+    return accessToken;
+  }
+
+  public Optional<String> getClientId() {
+    return Optional.ofNullable(clientId);
+  }
+
+  /**
+   * @return the complete scope claim, space separated
+   */
+  public String getScope() {
+    return scope;
+  }
+
+  public List<String> getScopes() {
+    return scopes;
+  }
+}
@@ -1,13 +1,11 @@
 package ca.uhn.fhir.jpa.starter.koppeltaal.util;
 
 import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.starter.koppeltaal.service.DeviceCache;
+import ca.uhn.fhir.jpa.starter.koppeltaal.service.ResourceOriginIndex;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
-import com.auth0.jwt.JWT;
-import com.auth0.jwt.interfaces.Claim;
-import com.auth0.jwt.interfaces.DecodedJWT;
-import org.apache.commons.lang3.StringUtils;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IIdType;
 import org.hl7.fhir.r4.model.*;
@@ -18,19 +16,46 @@ public class ResourceOriginUtil {
 
   public final static String RESOURCE_ORIGIN_SYSTEM = "http://koppeltaal.nl/fhir/StructureDefinition/resource-origin";
 
-  public static Optional<String> getRequesterClientId(RequestDetails requestDetails) {
-    String authorization = requestDetails.getHeader("Authorization");
-    String token = StringUtils.trim(StringUtils.removeStartIgnoreCase(authorization, "Bearer"));
+  // Set on startup when the device cache is enabled, see DeviceCache
+  private static volatile DeviceCache deviceCache;
 
-    if (StringUtils.isBlank(token)) return Optional.empty();
+  // Set on startup when the resource-origin index is enabled, see ResourceOriginIndex
+  private static volatile ResourceOriginIndex resourceOriginIndex;
 
-    // Already validated by the JwtSecurityInterceptor
-    DecodedJWT decode = JWT.decode(token);
+  public static void setDeviceCache(DeviceCache deviceCache) {
+    ResourceOriginUtil.deviceCache = deviceCache;
+  }
+
+  public static void setResourceOriginIndex(ResourceOriginIndex resourceOriginIndex) {
+    ResourceOriginUtil.resourceOriginIndex = resourceOriginIndex;
+  }
 
-    final Claim azpClaim = decode.getClaim("azp");
-    String resourceOrigin = azpClaim.asString();
+  /**
+   * Looks up the resource-origin of an existing resource without reading the resource.
+   *
+   * @return the resource-origin reference (e.g. <code>Device/123</code>), empty when it is not known and the resource
+   * has to be read instead
+   */
+  public static Optional<String> getIndexedResourceOrigin(String resourceType, IIdType resourceId) {
+    final ResourceOriginIndex index = resourceOriginIndex;
+    if (index == null || resourceId == null || !resourceId.hasIdPart()) return Optional.empty();
+
+    return index.getResourceOrigin(resourceType, resourceId.getIdPart());
+  }
 
-    return StringUtils.isBlank(resourceOrigin) ? Optional.empty() : Optional.of(resourceOrigin);
+  /**
+   * Adds a resource that was read to the resource-origin index, so the next lookup does not have to read it.
+   */
+  public static void indexResourceOrigin(IBaseResource resource) {
+    final ResourceOriginIndex index = resourceOriginIndex;
+    if (index != null && resource != null && !resource.isDeleted()) {
+      index.index(resource);
+    }
+  }
+
+  public static Optional<String> getRequesterClientId(RequestDetails requestDetails) {
+    // Already validated by the JwtSecurityInterceptor
+    return RequestSecurityContext.get(requestDetails).flatMap(RequestSecurityContext::getClientId);
   }
 
   public static Optional<IIdType> getResourceOriginDeviceId(IBaseResource resource) {
@@ -52,7 +77,34 @@ public class ResourceOriginUtil {
     return getDevice(clientIdOptional.get(), deviceDao, requestDetails);
   }
 
+  /**
+   * Resolves the Device of the requester to its id, without reading the Device when the id is cached.
+   *
+   * @return the versionless Device id (e.g. <code>Device/123</code>), empty when there is no client id or the Device
+   * does not exist
+   */
+  public static Optional<String> getDeviceId(RequestDetails requestDetails, IFhirResourceDao<Device> deviceDao) {
+    final Optional<String> clientIdOptional = getRequesterClientId(requestDetails);
+    if (clientIdOptional.isEmpty()) return Optional.empty();
+
+    final String clientId = clientIdOptional.get();
+    final DeviceCache cache = deviceCache;
+    if (cache != null) {
+      return cache.getDeviceId(clientId, (id) -> readDevice(id, deviceDao, requestDetails));
+    }
+    return readDevice(clientId, deviceDao, requestDetails)
+      .map((device) -> device.getIdElement().toUnqualifiedVersionless().getValue());
+  }
+
   private static Optional<Device> getDevice(String clientId, IFhirResourceDao<Device> deviceDao, RequestDetails requestDetails) {
+    final DeviceCache cache = deviceCache;
+    if (cache != null) {
+      return cache.get(clientId, (id) -> readDevice(id, deviceDao, requestDetails));
+    }
+    return readDevice(clientId, deviceDao, requestDetails);
+  }
+
+  private static Optional<Device> readDevice(String clientId, IFhirResourceDao<Device> deviceDao, RequestDetails requestDetails) {
     try {
       return Optional.of(
         deviceDao.read(new IdType(clientId), requestDetails)
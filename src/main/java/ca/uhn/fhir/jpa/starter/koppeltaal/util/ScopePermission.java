@@ -0,0 +1,146 @@
+package ca.uhn.fhir.jpa.starter.koppeltaal.util;
+
+import ca.uhn.fhir.jpa.starter.koppeltaal.dto.CrudOperation;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.IdType;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * <p>A single parsed system scope, for example <code>system/Task.crus?resource-origin=Device/1,Device/2</code>.</p>
+ *
+ * <p>The CRUDS letters are kept as a bitmask and the resource-origins as a set of Device ids, so a permission check
+ * is a bit test and a hash lookup. Instances are immutable and shared between requests through the cache in
+ * {@link PermissionUtil#getPermissions(String)}.</p>
+ */
+public final class ScopePermission {
+
+  public static final String ALL_RESOURCE_TYPES = "*";
+
+  private static final String SYSTEM_PREFIX = "system/";
+  private static final String RESOURCE_ORIGIN_PARAMETER = "?resource-origin=";
+  private static final int SEARCH = 1 << CrudOperation.values().length;
+
+  private final String scope;
+  private final String resourceType;
+  private final int cruds;
+  private final Set<String> resourceOrigins;
+  private final Set<String> resourceOriginIds;
+
+  private ScopePermission(String scope, String resourceType, int cruds, Set<String> resourceOrigins) {
+    this.scope = scope;
+    this.resourceType = resourceType;
+    this.cruds = cruds;
+    this.resourceOrigins = resourceOrigins;
+    this.resourceOriginIds = resourceOrigins == null ? null : resourceOrigins.stream()
+      .map(ScopePermission::getIdPart)
+      .collect(Collectors.toUnmodifiableSet());
+  }
+
+  /**
+   * @param scope a single scope from the <code>scope</code> claim
+   * @return the parsed permission, or empty when the scope is not a (valid) system scope
+   */
+  public static Optional<ScopePermission> parse(String scope) {
+    if (!StringUtils.startsWith(scope, SYSTEM_PREFIX)) return Optional.empty();
+
+    String permission = scope.substring(SYSTEM_PREFIX.length());
+    Set<String> resourceOrigins = null;
+
+    final int queryStart = permission.indexOf('?');
+    if (queryStart >= 0) {
+      if (!permission.startsWith(RESOURCE_ORIGIN_PARAMETER, queryStart)) return Optional.empty();
+
+      resourceOrigins = new LinkedHashSet<>();
+      for (String resourceOrigin : StringUtils.split(permission.substring(queryStart + RESOURCE_ORIGIN_PARAMETER.length()), ',')) {
+        if (StringUtils.isNotBlank(resourceOrigin)) {
+          resourceOrigins.add(resourceOrigin.trim());
+        }
+      }
+      resourceOrigins = Collections.unmodifiableSet(resourceOrigins);
+      permission = permission.substring(0, queryStart);
+    }
+
+    final int dot = permission.indexOf('.');
+    if (dot <= 0 || dot == permission.length() - 1) return Optional.empty();
+
+    int cruds = 0;
+    for (char letter : permission.substring(dot + 1).toCharArray()) {
+      switch (letter) {
+        case 'c':
+          cruds |= bit(CrudOperation.CREATE);
+          break;
+        case 'r':
+          cruds |= bit(CrudOperation.READ);
+          break;
+        case 'u':
+          cruds |= bit(CrudOperation.UPDATE);
+          break;
+        case 'd':
+          cruds |= bit(CrudOperation.DELETE);
+          break;
+        case 's':
+          cruds |= SEARCH;
+          break;
+        default:
+          return Optional.empty();
+      }
+    }
+
+    return Optional.of(new ScopePermission(scope, permission.substring(0, dot), cruds, resourceOrigins));
+  }
+
+  public boolean appliesTo(String resourceName) {
+    return ALL_RESOURCE_TYPES.equals(resourceType) || resourceType.equals(resourceName);
+  }
+
+  public boolean allows(CrudOperation crudOperation) {
+    return (cruds & bit(crudOperation)) != 0;
+  }
+
+  /**
+   * @param resourceOrigin the resource-origin of an existing resource, either a Device reference or a Device id.
+   *                       <code>null</code> when the resource has none.
+   * @return whether the permission covers resources with this resource-origin
+   */
+  public boolean allowsResourceOrigin(String resourceOrigin) {
+    if (resourceOriginIds == null) return true;
+
+    return resourceOrigin != null && resourceOriginIds.contains(getIdPart(resourceOrigin));
+  }
+
+  /**
+   * @return the raw scope this permission was parsed from
+   */
+  public String getScope() {
+    return scope;
+  }
+
+  public String getResourceType() {
+    return resourceType;
+  }
+
+  /**
+   * @return the resource-origins as written in the scope, empty when the permission is not restricted
+   */
+  public Set<String> getResourceOrigins() {
+    return resourceOrigins == null ? Collections.emptySet() : resourceOrigins;
+  }
+
+  private static int bit(CrudOperation crudOperation) {
+    return 1 << crudOperation.ordinal();
+  }
+
+  private static String getIdPart(String reference) {
+    return reference.indexOf('/') < 0 ? reference : new IdType(reference).getIdPart();
+  }
+
+  @Override
+  public String toString() {
+    return scope;
+  }
+}
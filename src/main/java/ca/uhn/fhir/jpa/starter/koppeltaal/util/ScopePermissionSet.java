@@ -0,0 +1,65 @@
+package ca.uhn.fhir.jpa.starter.koppeltaal.util;
+
+import ca.uhn.fhir.jpa.starter.koppeltaal.dto.CrudOperation;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/**
+ * All system permissions of a complete <code>scope</code> claim. Scopes that are not system scopes (e.g.
+ * <code>openid</code>) are ignored.
+ */
+public final class ScopePermissionSet {
+
+  public static final ScopePermissionSet EMPTY = new ScopePermissionSet(Collections.emptyList());
+
+  private final List<ScopePermission> permissions;
+
+  private ScopePermissionSet(List<ScopePermission> permissions) {
+    this.permissions = permissions;
+  }
+
+  public static ScopePermissionSet parse(String scopeString) {
+    if (StringUtils.isBlank(scopeString)) return EMPTY;
+
+    return new ScopePermissionSet(Arrays.stream(StringUtils.split(scopeString, ' '))
+      .map(ScopePermission::parse)
+      .flatMap(Optional::stream)
+      .collect(Collectors.toUnmodifiableList()));
+  }
+
+  /**
+   * @return the permissions for the resource type that allow the operation, regardless of their resource-origins
+   */
+  public List<ScopePermission> getPermissions(String resourceName, CrudOperation crudOperation) {
+    return permissions.stream()
+      .filter((permission) -> permission.appliesTo(resourceName) && permission.allows(crudOperation))
+      .collect(Collectors.toList());
+  }
+
+  public boolean hasPermission(CrudOperation crudOperation, String resourceName, String resourceOrigin) {
+    for (ScopePermission permission : permissions) {
+      if (permission.appliesTo(resourceName) && permission.allows(crudOperation) && permission.allowsResourceOrigin(resourceOrigin)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the permissions that allow the operation, e.g. to keep the READ permissions of a subscriber
+   */
+  public ScopePermissionSet forOperation(CrudOperation crudOperation) {
+    return new ScopePermissionSet(permissions.stream()
+      .filter((permission) -> permission.allows(crudOperation))
+      .collect(Collectors.toUnmodifiableList()));
+  }
+
+  public List<ScopePermission> getPermissions() {
+    return permissions;
+  }
+}
@@ -0,0 +1,66 @@
+package ca.uhn.fhir.jpa.starter.koppeltaal.util;
+
+import ca.uhn.fhir.jpa.starter.koppeltaal.dto.CrudOperation;
+
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * <p>What is needed to narrow the notifications of a Subscription: the Device in its resource-origin and the client id
+ * of that Device. Built once per Subscription, see
+ * {@link ca.uhn.fhir.jpa.starter.koppeltaal.service.SubscriptionProfileCache}.</p>
+ *
+ * <p>The scope of the client can change with every token, so it is not part of the profile. The READ permissions of
+ * the last scope seen are kept and only parsed again when the scope changes.</p>
+ */
+public final class SubscriptionDeliveryProfile {
+
+  private final String subscriptionId;
+  private final String deviceId;
+  private final String clientId;
+  private volatile ReadPermissions readPermissions;
+
+  /**
+   * @param deviceId the id of the resource-origin Device, null when the Subscription has no resource-origin
+   * @param clientId the client id of the Device, null when the Device has none
+   */
+  public SubscriptionDeliveryProfile(String subscriptionId, String deviceId, String clientId) {
+    this.subscriptionId = subscriptionId;
+    this.deviceId = deviceId;
+    this.clientId = clientId;
+  }
+
+  public String getSubscriptionId() {
+    return subscriptionId;
+  }
+
+  public Optional<String> getDeviceId() {
+    return Optional.ofNullable(deviceId);
+  }
+
+  public Optional<String> getClientId() {
+    return Optional.ofNullable(clientId);
+  }
+
+  /**
+   * @param scope the current scope of the client
+   */
+  public ScopePermissionSet getReadPermissions(String scope) {
+    ReadPermissions current = readPermissions;
+    if (current == null || !Objects.equals(current.scope, scope)) {
+      current = new ReadPermissions(scope, PermissionUtil.getPermissions(scope).forOperation(CrudOperation.READ));
+      readPermissions = current;
+    }
+    return current.permissions;
+  }
+
+  private static final class ReadPermissions {
+    private final String scope;
+    private final ScopePermissionSet permissions;
+
+    private ReadPermissions(String scope, ScopePermissionSet permissions) {
+      this.scope = scope;
+      this.permissions = permissions;
+    }
+  }
+}
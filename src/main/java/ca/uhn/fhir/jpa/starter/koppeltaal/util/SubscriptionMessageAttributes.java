@@ -0,0 +1,66 @@
+package ca.uhn.fhir.jpa.starter.koppeltaal.util;
+
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.messaging.BaseResourceMessage;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.Device;
+import org.hl7.fhir.r4.model.IdType;
+
+import java.util.Optional;
+
+/**
+ * Correlation data of the request that modified a resource, carried as attributes on the
+ * {@link ca.uhn.fhir.jpa.subscription.model.ResourceModifiedMessage}. HAPI copies the attributes onto every
+ * {@link ca.uhn.fhir.jpa.subscription.model.ResourceDeliveryMessage}, so the data is available when the notification
+ * is delivered, also when that happens on another node or after a restart.
+ */
+public class SubscriptionMessageAttributes {
+
+  public static final String TRACE_ID = "koppeltaal-trace-id";
+  public static final String REQUEST_ID = "koppeltaal-request-id";
+  public static final String REQUESTING_DEVICE = "koppeltaal-requesting-device";
+  public static final String ATTEMPTS = "koppeltaal-attempts";
+
+  public static void populate(BaseResourceMessage message, RequestDetails requestDetails, IFhirResourceDao<Device> deviceDao) {
+    if (requestDetails == null) return;
+
+    setIfNotBlank(message, TRACE_ID, requestDetails.getTransactionGuid());
+    setIfNotBlank(message, REQUEST_ID, requestDetails.getRequestId());
+
+    ResourceOriginUtil.getDeviceId(requestDetails, deviceDao)
+      .ifPresent((deviceId) -> message.setAttribute(REQUESTING_DEVICE, deviceId));
+  }
+
+  /**
+   * @return the trace id of the originating request, falls back to the transaction id of the message
+   */
+  public static String getTraceId(BaseResourceMessage message) {
+    return message.getAttribute(TRACE_ID).orElse(message.getTransactionId());
+  }
+
+  public static Optional<String> getRequestId(BaseResourceMessage message) {
+    return message.getAttribute(REQUEST_ID);
+  }
+
+  public static Optional<IdType> getRequestingDeviceIdType(BaseResourceMessage message) {
+    return message.getAttribute(REQUESTING_DEVICE).map(IdType::new);
+  }
+
+  /**
+   * @return the failed delivery attempts before the notification was dead-lettered and replayed, 0 when it was not
+   */
+  public static int getAttempts(BaseResourceMessage message) {
+    return message.getAttribute(ATTEMPTS).map(Integer::parseInt).orElse(0);
+  }
+
+  public static void setAttempts(BaseResourceMessage message, int attempts) {
+    message.setAttribute(ATTEMPTS, String.valueOf(attempts));
+  }
+
+  private static void setIfNotBlank(BaseResourceMessage message, String key, String value) {
+    if (StringUtils.isNotBlank(value)) {
+      message.setAttribute(key, value);
+    }
+  }
+}
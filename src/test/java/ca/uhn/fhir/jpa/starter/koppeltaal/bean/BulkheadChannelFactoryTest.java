@@ -0,0 +1,113 @@
+package ca.uhn.fhir.jpa.starter.koppeltaal.bean;
+
+import ca.uhn.fhir.jpa.starter.koppeltaal.config.SubscriptionBulkheadProperties;
+import ca.uhn.fhir.jpa.starter.koppeltaal.service.KoppeltaalSchemaInitializer;
+import ca.uhn.fhir.jpa.starter.koppeltaal.service.SubscriptionRetryStore;
+import ca.uhn.fhir.jpa.subscription.channel.api.ChannelConsumerSettings;
+import ca.uhn.fhir.jpa.subscription.channel.api.ChannelProducerSettings;
+import ca.uhn.fhir.jpa.subscription.channel.api.IChannelProducer;
+import ca.uhn.fhir.jpa.subscription.channel.api.IChannelReceiver;
+import ca.uhn.fhir.jpa.subscription.channel.impl.RetryPolicyProvider;
+import ca.uhn.fhir.jpa.subscription.model.ResourceDeliveryJsonMessage;
+import ca.uhn.fhir.jpa.subscription.model.ResourceDeliveryMessage;
+import ca.uhn.fhir.jpa.subscription.model.ResourceModifiedJsonMessage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.r4.model.IdType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import javax.sql.DataSource;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BulkheadChannelFactoryTest {
+
+  private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+  private final SubscriptionBulkheadProperties properties = new SubscriptionBulkheadProperties();
+  private SubscriptionRetryStore retryStore;
+  private BulkheadChannelFactory factory;
+
+  @BeforeEach
+  void init() {
+    properties.setQueueSize(2);
+    properties.setConcurrentConsumers(1);
+    DataSource dataSource = new DriverManagerDataSource("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+    new KoppeltaalSchemaInitializer(dataSource).init();
+    retryStore = new SubscriptionRetryStore(properties, dataSource, meterRegistry);
+    factory = new BulkheadChannelFactory((name, settings) -> name, new RetryPolicyProvider(), properties, retryStore,
+      meterRegistry);
+  }
+
+  @Test
+  public void shouldStoreWhatDoesNotFitInTheQueueOfASlowSubscription() throws InterruptedException {
+    CountDownLatch slow = new CountDownLatch(1);
+    Set<String> slowDelivered = ConcurrentHashMap.newKeySet();
+    IChannelReceiver slowReceiver = factory.getOrCreateReceiver("resthook-slow", ResourceDeliveryJsonMessage.class, new ChannelConsumerSettings());
+    slowReceiver.subscribe((message) -> {
+      await(slow);
+      slowDelivered.add(((ResourceDeliveryJsonMessage) message).getPayload().getPayloadId());
+    });
+    CountDownLatch fast = new CountDownLatch(3);
+    IChannelReceiver fastReceiver = factory.getOrCreateReceiver("resthook-fast", ResourceDeliveryJsonMessage.class, new ChannelConsumerSettings());
+    fastReceiver.subscribe((message) -> fast.countDown());
+
+    IChannelProducer slowProducer = factory.getOrCreateProducer("resthook-slow", ResourceDeliveryJsonMessage.class, new ChannelProducerSettings());
+    IChannelProducer fastProducer = factory.getOrCreateProducer("resthook-fast", ResourceDeliveryJsonMessage.class, new ChannelProducerSettings());
+    assertSame(slowReceiver, slowProducer);
+
+    // 1 in delivery, 2 queued and 7 stored, without blocking the sender
+    List<String> ids = IntStream.range(0, 10).mapToObj((i) -> "Task/" + i + "/_history/1").collect(Collectors.toList());
+    ids.forEach((id) -> slowProducer.send(newMessage(id)));
+    // the other Subscription is not held up
+    ids.subList(0, 3).forEach((id) -> fastProducer.send(newMessage(id)));
+
+    assertTrue(fast.await(5, TimeUnit.SECONDS));
+    assertEquals(7, retryStore.count("resthook-slow"));
+    assertEquals(0, retryStore.count("resthook-fast"));
+    assertEquals(7, meterRegistry.get("koppeltaal.subscription.bulkhead.overflow").tag("channel", "resthook-slow").counter().count());
+
+    // nothing is taken back while the queue is full
+    factory.drain();
+    assertEquals(7, retryStore.count("resthook-slow"));
+
+    slow.countDown();
+    long deadline = System.currentTimeMillis() + 5000;
+    while (slowDelivered.size() < ids.size() && System.currentTimeMillis() < deadline) {
+      factory.drain();
+      Thread.sleep(10);
+    }
+    assertEquals(Set.copyOf(ids), slowDelivered);
+    assertEquals(0, retryStore.count("resthook-slow"));
+  }
+
+  @Test
+  public void shouldLeaveOtherChannelsToHapi() {
+    IChannelReceiver receiver = factory.getOrCreateReceiver("subscription-matching", ResourceModifiedJsonMessage.class, new ChannelConsumerSettings());
+
+    assertNotNull(receiver);
+    assertTrue(meterRegistry.find("koppeltaal.subscription.bulkhead.queue").gauges().isEmpty());
+  }
+
+  private static ResourceDeliveryJsonMessage newMessage(String id) {
+    ResourceDeliveryMessage message = new ResourceDeliveryMessage();
+    message.setPayloadId(new IdType(id));
+    return new ResourceDeliveryJsonMessage(message);
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
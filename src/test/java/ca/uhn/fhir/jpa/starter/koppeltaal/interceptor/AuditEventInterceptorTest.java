@@ -0,0 +1,167 @@
+package ca.uhn.fhir.jpa.starter.koppeltaal.interceptor;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.starter.koppeltaal.config.FhirServerAuditLogConfiguration;
+import ca.uhn.fhir.jpa.starter.koppeltaal.dto.AuditEventDto;
+import ca.uhn.fhir.jpa.starter.koppeltaal.config.FhirServerSecurityConfiguration;
+import ca.uhn.fhir.jpa.starter.koppeltaal.service.AuditEventService;
+import ca.uhn.fhir.jpa.starter.koppeltaal.service.DeviceCache;
+import ca.uhn.fhir.jpa.starter.koppeltaal.util.RequestSecurityContext;
+import ca.uhn.fhir.jpa.starter.koppeltaal.util.ResourceOriginUtil;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.algorithms.Algorithm;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.servlet.http.HttpServletRequest;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Device;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Task;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+public class AuditEventInterceptorTest {
+
+  @Mock
+  DaoRegistry daoRegistry;
+  @Mock
+  AuditEventService auditEventService;
+  @Mock
+  ServletRequestDetails requestDetails;
+  @Mock
+  HttpServletRequest servletRequest;
+  @Mock
+  IFhirResourceDao<Device> deviceDao;
+
+  FhirServerAuditLogConfiguration configuration = new FhirServerAuditLogConfiguration();
+
+  @BeforeEach
+  public void init() {
+    when(requestDetails.getRestOperationType()).thenReturn(RestOperationTypeEnum.SEARCH_TYPE);
+    when(requestDetails.getServletRequest()).thenReturn(servletRequest);
+    when(requestDetails.getUserData()).thenReturn(new HashMap<>());
+    when(requestDetails.getCompleteUrl()).thenReturn("https://example.com/fhir/Task?status=ready");
+    when(requestDetails.getFhirServerBase()).thenReturn("https://example.com/fhir");
+    when(servletRequest.getMethod()).thenReturn("GET");
+    when(servletRequest.getRequestURL()).thenReturn(new StringBuffer("https://example.com/fhir/Task"));
+    when(daoRegistry.getResourceDao(Device.class)).thenReturn(deviceDao);
+  }
+
+  @AfterEach
+  public void cleanUp() {
+    ResourceOriginUtil.setDeviceCache(null);
+  }
+
+  @Test
+  public void testFullSearch() {
+    Bundle bundle = newSearchResult();
+
+    AuditEventDto dto = outgoingResponse(bundle);
+
+    assertEquals(2, dto.getResources().size());
+    assertNull(dto.getResultCount());
+  }
+
+  @Test
+  public void testCompactSearch() {
+    configuration.getSearchAudit().setMode(FhirServerAuditLogConfiguration.SearchAuditMode.COMPACT);
+    Bundle bundle = newSearchResult();
+
+    AuditEventDto dto = outgoingResponse(bundle);
+
+    assertTrue(dto.getResources().isEmpty());
+    assertEquals("/Task?status=ready", dto.getQuery());
+    assertEquals(2, dto.getResultCount());
+    assertEquals(AbstractAuditEventInterceptor.digest(List.of("Task/1", "Task/2")), dto.getResultDigest());
+    assertEquals(64, dto.getResultDigest().length());
+    assertNull(dto.getResultIds());
+    // the returned resources are left alone
+    assertEquals("1", bundle.getEntry().get(0).getResource().getIdElement().getValue());
+  }
+
+  @Test
+  public void testCompactSearchWithIdList() {
+    configuration.getSearchAudit().setMode(FhirServerAuditLogConfiguration.SearchAuditMode.COMPACT);
+    configuration.getSearchAudit().setIdList(true);
+
+    AuditEventDto dto = outgoingResponse(newSearchResult());
+
+    assertEquals(List.of("Task/1", "Task/2"), dto.getResultIds());
+  }
+
+  @Test
+  public void testDigestDependsOnIdsAndOrder() {
+    String digest = AbstractAuditEventInterceptor.digest(List.of("Task/1", "Task/2"));
+    assertEquals(digest, AbstractAuditEventInterceptor.digest(List.of("Task/1", "Task/2")));
+    assertNotEquals(digest, AbstractAuditEventInterceptor.digest(List.of("Task/2", "Task/1")));
+    assertNotEquals(digest, AbstractAuditEventInterceptor.digest(List.of("Task/1Task/2")));
+  }
+
+  @Test
+  public void testAgentWithoutDeviceReads() {
+    Map<Object, Object> userData = new HashMap<>();
+    when(requestDetails.getUserData()).thenReturn(userData);
+    RequestSecurityContext.set(requestDetails, RequestSecurityContext.of(
+      JWT.decode(JWT.create().withClaim("azp", "client-1").sign(Algorithm.none()))));
+    Device device = new Device();
+    device.setId("Device/client-1/_history/2");
+    when(deviceDao.read(any(IdType.class), any())).thenReturn(device);
+    ResourceOriginUtil.setDeviceCache(new DeviceCache(new FhirServerSecurityConfiguration(), new SimpleMeterRegistry()));
+
+    AuditEventInterceptor interceptor = new AuditEventInterceptor(daoRegistry, auditEventService, configuration);
+    interceptor.outgoingResponse(requestDetails, requestDetails, newSearchResult());
+    verify(deviceDao, times(1)).read(any(IdType.class), any());
+
+    clearInvocations(deviceDao);
+    for (int i = 0; i < 10; i++) {
+      interceptor.outgoingResponse(requestDetails, requestDetails, newSearchResult());
+    }
+    verifyNoInteractions(deviceDao);
+
+    ArgumentCaptor<AuditEventDto> dto = ArgumentCaptor.forClass(AuditEventDto.class);
+    verify(auditEventService, times(11)).submitAuditEvent(dto.capture(), any());
+    assertEquals("Device/client-1", dto.getValue().getAgents().get(0).getAgent().getReference());
+  }
+
+  private AuditEventDto outgoingResponse(Bundle bundle) {
+    AuditEventInterceptor interceptor = new AuditEventInterceptor(daoRegistry, auditEventService, configuration);
+    interceptor.outgoingResponse(requestDetails, requestDetails, bundle);
+
+    ArgumentCaptor<AuditEventDto> dto = ArgumentCaptor.forClass(AuditEventDto.class);
+    verify(auditEventService).submitAuditEvent(dto.capture(), any());
+    assertEquals(AuditEventDto.EventType.Search, dto.getValue().getEventType());
+    assertTrue(dto.getValue().getAgents().get(0).getAgent().isEmpty());
+    return dto.getValue();
+  }
+
+  private static Bundle newSearchResult() {
+    Bundle bundle = new Bundle();
+    bundle.setId(new IdType("search-id"));
+    bundle.setType(Bundle.BundleType.SEARCHSET);
+    for (String id : List.of("1", "2")) {
+      Task task = new Task();
+      task.setId(id);
+      bundle.addEntry().setResource(task);
+    }
+    return bundle;
+  }
+}
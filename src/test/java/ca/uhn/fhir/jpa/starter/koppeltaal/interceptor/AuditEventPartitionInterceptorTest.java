@@ -0,0 +1,78 @@
+package ca.uhn.fhir.jpa.starter.koppeltaal.interceptor;
+
+import ca.uhn.fhir.interceptor.model.ReadPartitionIdRequestDetails;
+import ca.uhn.fhir.interceptor.model.RequestPartitionId;
+import ca.uhn.fhir.jpa.entity.PartitionEntity;
+import ca.uhn.fhir.jpa.model.config.PartitionSettings;
+import ca.uhn.fhir.jpa.partition.IPartitionLookupSvc;
+import ca.uhn.fhir.jpa.starter.koppeltaal.config.FhirServerAuditLogConfiguration;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import org.hl7.fhir.r4.model.AuditEvent;
+import org.hl7.fhir.r4.model.Task;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class AuditEventPartitionInterceptorTest {
+
+  @Mock
+  IPartitionLookupSvc partitionLookupSvc;
+
+  PartitionSettings partitionSettings = new PartitionSettings();
+  AuditEventPartitionInterceptor interceptor;
+
+  @BeforeEach
+  public void init() {
+    FhirServerAuditLogConfiguration configuration = new FhirServerAuditLogConfiguration();
+    configuration.getPartition().setEnabled(true);
+    configuration.getPartition().setId(5);
+    configuration.getPartition().setName("audit");
+    interceptor = new AuditEventPartitionInterceptor(configuration, partitionSettings, partitionLookupSvc);
+  }
+
+  @Test
+  public void testRouting() {
+    assertEquals(RequestPartitionId.fromPartitionIdAndName(5, "audit"), interceptor.identifyForCreate(new AuditEvent()));
+    assertEquals(RequestPartitionId.defaultPartition(), interceptor.identifyForCreate(new Task()));
+
+    assertEquals(Arrays.asList(5, null), interceptor.identifyForRead(ReadPartitionIdRequestDetails.forSearchType("AuditEvent", null, null)).getPartitionIds());
+    assertEquals(RequestPartitionId.defaultPartition(), interceptor.identifyForRead(ReadPartitionIdRequestDetails.forSearchType("Task", null, null)));
+  }
+
+  @Test
+  public void testStartCreatesPartition() {
+    assertFalse(interceptor.start());
+    verifyNoInteractions(partitionLookupSvc);
+
+    partitionSettings.setPartitioningEnabled(true);
+    partitionSettings.setAllowReferencesAcrossPartitions(PartitionSettings.CrossPartitionReferenceMode.ALLOWED_UNQUALIFIED);
+    when(partitionLookupSvc.getPartitionById(5)).thenThrow(new ResourceNotFoundException("Partition 5"));
+
+    assertTrue(interceptor.start());
+
+    ArgumentCaptor<PartitionEntity> partition = ArgumentCaptor.forClass(PartitionEntity.class);
+    verify(partitionLookupSvc).createPartition(partition.capture(), any(RequestDetails.class));
+    assertEquals(5, partition.getValue().getId());
+    assertEquals("audit", partition.getValue().getName());
+  }
+
+  @Test
+  public void testStartFailsWithoutReferencesAcrossPartitions() {
+    partitionSettings.setPartitioningEnabled(true);
+    partitionSettings.setAllowReferencesAcrossPartitions(PartitionSettings.CrossPartitionReferenceMode.NOT_ALLOWED);
+
+    assertThrows(IllegalStateException.class, interceptor::start);
+    verifyNoInteractions(partitionLookupSvc);
+  }
+}
@@ -7,15 +7,16 @@ import ca.uhn.fhir.jpa.api.model.DaoMethodOutcome;
 import ca.uhn.fhir.jpa.starter.koppeltaal.config.FhirServerAuditLogConfiguration;
 import ca.uhn.fhir.jpa.starter.koppeltaal.service.AuditEventBuilder;
 import ca.uhn.fhir.jpa.starter.koppeltaal.service.AuditEventService;
-import ca.uhn.fhir.jpa.starter.koppeltaal.util.RequestIdHolder;
+import ca.uhn.fhir.jpa.starter.koppeltaal.service.AuditEventSpool;
 import ca.uhn.fhir.jpa.starter.koppeltaal.util.ResourceOriginUtil;
+import ca.uhn.fhir.jpa.starter.koppeltaal.util.SubscriptionMessageAttributes;
 import ca.uhn.fhir.jpa.subscription.model.CanonicalSubscription;
 import ca.uhn.fhir.jpa.subscription.model.ResourceDeliveryMessage;
 import ca.uhn.fhir.rest.api.EncodingEnum;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.lucene.util.SameThreadExecutorService;
 import org.hl7.fhir.r4.model.*;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -23,8 +24,8 @@ import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.transaction.PlatformTransactionManager;
 
-import java.util.Optional;
 import java.util.UUID;
 
 import static ca.uhn.fhir.jpa.starter.koppeltaal.interceptor.InjectTraceIdInterceptor.TRACE_ID_HEADER_KEY;
@@ -36,6 +37,7 @@ import static org.mockito.Mockito.*;
 @ExtendWith(MockitoExtension.class)
 public class AuditEventSubscriptionInterceptorTest {
   AuditEventSubscriptionInterceptor interceptor;
+  AuditEventService auditEventService;
 
   String currentTraceId;
   String currentRequestId;
@@ -86,23 +88,19 @@ public class AuditEventSubscriptionInterceptorTest {
     AuditEventBuilder auditEventBuilder = new AuditEventBuilder(daoRegistry, fhirServerAuditLogConfiguration);
     auditEventBuilder.init();
 
-    AuditEventService auditEventService = new AuditEventService(daoRegistry, auditEventBuilder) {
+    fhirContext = FhirContext.forR4();
+    AuditEventSpool spool = new AuditEventSpool(fhirServerAuditLogConfiguration, fhirContext);
+    auditEventService = new AuditEventService(daoRegistry, auditEventBuilder, spool, fhirServerAuditLogConfiguration, mock(PlatformTransactionManager.class), new SimpleMeterRegistry()) {
       @Override
       public void init() {
-        super.executorService = new SameThreadExecutorService();
-        super.sleepTime = 0;
+        // no writer threads, the tests flush the queued AuditEvents themselves
       }
     };
     auditEventService.init();
-    RequestIdHolder requestIdHolder = new RequestIdHolder();
     currentTraceId = UUID.randomUUID().toString();
     currentRequestId = UUID.randomUUID().toString();
-    Device requestingDevice = new Device();
-    requestingDevice.setId("req-dev-id");
-    requestIdHolder.addMapping(currentTraceId, currentRequestId, Optional.of(requestingDevice));
-    fhirContext = FhirContext.forR4();
 
-    interceptor = new AuditEventSubscriptionInterceptor(daoRegistry, auditEventService, fhirContext, requestIdHolder);
+    interceptor = new AuditEventSubscriptionInterceptor(daoRegistry, auditEventService, fhirContext);
   }
 
   private <T extends Resource> T setBaseValues(T resource) {
@@ -117,6 +115,7 @@ public class AuditEventSubscriptionInterceptorTest {
     patient.addExtension(ResourceOriginUtil.RESOURCE_ORIGIN_SYSTEM, new Reference(sourceDevice));
     message.setPayload(fhirContext, patient, EncodingEnum.JSON);
     message.setTransactionId(currentTraceId);
+    message.setAttribute(SubscriptionMessageAttributes.REQUESTING_DEVICE, "Device/req-dev-id");
     CanonicalSubscription subscription = new CanonicalSubscription();
     subscription.setIdElement(new IdType("Subscription", UUID.randomUUID().toString()));
 
@@ -125,6 +124,7 @@ public class AuditEventSubscriptionInterceptorTest {
 
     message.setSubscription(subscription);
     interceptor.outgoingSubscriptionSucceeded(message);
+    auditEventService.flush();
 
     ArgumentCaptor<AuditEvent> argument = ArgumentCaptor.forClass(AuditEvent.class);
     verify(auditEventDao, atLeastOnce()).create(argument.capture(), any(RequestDetails.class));
@@ -138,6 +138,11 @@ public class AuditEventSubscriptionInterceptorTest {
       .findFirst().orElseThrow(() -> new AssertionError("No destination agent found"));
     assert "https://example.com/fhir/notify".equals(destinationAgent.getNetwork().getAddress());
 
+    AuditEvent.AuditEventAgentComponent sourceAgent = value.getAgent().stream()
+      .filter(a -> a.getType().getCodingFirstRep().equalsShallow(AuditEventBuilder.CODING_SOURCE_ROLE_ID))
+      .findFirst().orElseThrow(() -> new AssertionError("No source agent found"));
+    assert "Device/req-dev-id".equals(sourceAgent.getWho().getReference());
+
     String traceIdOnSubscription = value.getExtensionByUrl("http://koppeltaal.nl/fhir/StructureDefinition/trace-id").getValue().toString();
     assert currentTraceId.equals(traceIdOnSubscription);
     String requestIdOnSubscription = value.getExtensionByUrl("http://koppeltaal.nl/fhir/StructureDefinition/request-id").getValue().toString();
@@ -162,6 +167,7 @@ public class AuditEventSubscriptionInterceptorTest {
     message.setSubscription(subscription);
 
     interceptor.outgoingSubscriptionFailed(message, new Exception("My error message"));
+    auditEventService.flush();
 
     ArgumentCaptor<AuditEvent> argument = ArgumentCaptor.forClass(AuditEvent.class);
     verify(auditEventDao, atLeastOnce()).create(argument.capture(), any(RequestDetails.class));
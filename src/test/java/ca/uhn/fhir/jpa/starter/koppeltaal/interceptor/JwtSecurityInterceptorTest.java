@@ -0,0 +1,93 @@
+package ca.uhn.fhir.jpa.starter.koppeltaal.interceptor;
+
+import ca.uhn.fhir.jpa.starter.koppeltaal.service.Oauth2AccessTokenService;
+import ca.uhn.fhir.jpa.starter.koppeltaal.util.PermissionUtil;
+import ca.uhn.fhir.jpa.starter.koppeltaal.util.ResourceOriginUtil;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.server.exceptions.AuthenticationException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.algorithms.Algorithm;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.MockedStatic;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+class JwtSecurityInterceptorTest {
+
+  private final String token = JWT.create()
+    .withClaim("azp", "client-id")
+    .withClaim("scope", "system/Task.cruds system/Patient.r")
+    .sign(Algorithm.HMAC256("super-secret"));
+
+  private Oauth2AccessTokenService oauth2AccessTokenService;
+  private JwtSecurityInterceptor interceptor;
+
+  @BeforeEach
+  void init() {
+    oauth2AccessTokenService = mock(Oauth2AccessTokenService.class);
+    interceptor = new JwtSecurityInterceptor(oauth2AccessTokenService);
+  }
+
+  @Test
+  public void shouldDecodeTokenOncePerRequest() {
+    when(oauth2AccessTokenService.verifyToken(token)).thenAnswer((invocation) -> Optional.of(JWT.decode(token)));
+
+    MockHttpServletRequest request = request();
+    ServletRequestDetails requestDetails = requestDetails(request);
+
+    try (MockedStatic<JWT> jwt = mockStatic(JWT.class, CALLS_REAL_METHODS)) {
+      interceptor.incomingRequestPreProcessed(request);
+      interceptor.incomingRequestPostProcessed(requestDetails, request);
+
+      assertEquals(Optional.of("client-id"), ResourceOriginUtil.getRequesterClientId(requestDetails));
+      assertEquals("system/Task.cruds system/Patient.r", PermissionUtil.getFullScope(requestDetails));
+      assertEquals(List.of("system/Task.cruds"), PermissionUtil.getScopesForRequest(requestDetails));
+      assertEquals(Optional.of("client-id"), ResourceOriginUtil.getRequesterClientId(requestDetails));
+
+      jwt.verify(() -> JWT.decode(anyString()), times(1));
+    }
+  }
+
+  @Test
+  public void shouldDecodeOnceWithoutSecurityInterceptor() {
+    ServletRequestDetails requestDetails = requestDetails(request());
+
+    try (MockedStatic<JWT> jwt = mockStatic(JWT.class, CALLS_REAL_METHODS)) {
+      assertEquals(Optional.of("client-id"), ResourceOriginUtil.getRequesterClientId(requestDetails));
+      assertEquals(List.of("system/Task.cruds"), PermissionUtil.getScopesForRequest(requestDetails));
+      PermissionUtil.getFullScope(requestDetails);
+
+      jwt.verify(() -> JWT.decode(anyString()), times(1));
+    }
+  }
+
+  @Test
+  public void shouldRejectInvalidToken() {
+    when(oauth2AccessTokenService.verifyToken(token)).thenReturn(Optional.empty());
+
+    assertThrows(AuthenticationException.class, () -> interceptor.incomingRequestPreProcessed(request()));
+  }
+
+  private MockHttpServletRequest request() {
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/fhir/Task");
+    request.addHeader("Authorization", "Bearer " + token);
+    return request;
+  }
+
+  private static ServletRequestDetails requestDetails(MockHttpServletRequest request) {
+    ServletRequestDetails requestDetails = new ServletRequestDetails();
+    requestDetails.setServletRequest(request);
+    requestDetails.setResourceName("Task");
+    requestDetails.setRequestType(RequestTypeEnum.GET);
+    return requestDetails;
+  }
+}
@@ -9,6 +9,7 @@ import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
 import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
 import org.hl7.fhir.r4.model.ActivityDefinition;
 import org.hl7.fhir.r4.model.Device;
 import org.hl7.fhir.r4.model.IdType;
@@ -212,6 +213,25 @@ class ResourceOriginAuthorizationInterceptorTest extends BaseResourceOriginTest
     );
   }
 
+  @Test
+  public void shouldUseIndexedResourceOriginWithoutReadingTheResource() {
+    final IdType resourceId = new IdType(ResourceType.Task.name(), 12L);
+
+    RequestDetails requestDetails = getRequestDetailsAndConfigurePermission(RequestTypeEnum.PUT, ResourceType.Task, resourceId, "u", "Device/456");
+
+    resourceOriginUtil.when(() -> ResourceOriginUtil.getIndexedResourceOrigin(eq("Task"), any(IIdType.class)))
+      .thenReturn(Optional.of("Device/456"));
+
+    try {
+      interceptor.authorizeRequest(requestDetails);
+
+      verify(daoRegistry.getResourceDao("Task"), never()).read(any(IIdType.class), any(RequestDetails.class), anyBoolean());
+    } finally {
+      resourceOriginUtil.when(() -> ResourceOriginUtil.getIndexedResourceOrigin(any(), any()))
+        .thenReturn(Optional.empty());
+    }
+  }
+
   @Test
   public void shouldBeAbleToModifySearchParameterWithoutResourceOrigin() {
     final IdType resourceId = new IdType(ResourceType.SearchParameter.name(), 14L);
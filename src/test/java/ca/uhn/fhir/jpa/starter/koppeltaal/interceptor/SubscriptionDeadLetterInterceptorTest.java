@@ -0,0 +1,69 @@
+package ca.uhn.fhir.jpa.starter.koppeltaal.interceptor;
+
+import ca.uhn.fhir.jpa.starter.koppeltaal.config.SubscriptionRetryProperties;
+import ca.uhn.fhir.jpa.starter.koppeltaal.service.SubscriptionDeadLetterStore;
+import ca.uhn.fhir.jpa.subscription.model.ResourceDeliveryMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.retry.context.RetryContextSupport;
+import org.springframework.retry.support.RetrySynchronizationManager;
+
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class SubscriptionDeadLetterInterceptorTest {
+
+  private final SubscriptionDeadLetterStore deadLetterStore = mock(SubscriptionDeadLetterStore.class);
+  private final SubscriptionRetryProperties retryProperties = new SubscriptionRetryProperties();
+  private final ResourceDeliveryMessage message = new ResourceDeliveryMessage();
+  private SubscriptionDeadLetterInterceptor interceptor;
+
+  @BeforeEach
+  void init() {
+    retryProperties.setMaxAttempts(3);
+    interceptor = new SubscriptionDeadLetterInterceptor(deadLetterStore, retryProperties);
+  }
+
+  @AfterEach
+  void clear() {
+    RetrySynchronizationManager.clear();
+  }
+
+  @Test
+  public void shouldNotDeadLetterAnAttemptThatIsRetried() {
+    // not in a retry, the first attempt
+    interceptor.afterDeliveryFailed(message, new RuntimeException("Connection refused"));
+    // the second attempt
+    retrying(1);
+    interceptor.afterDeliveryFailed(message, new RuntimeException("Connection refused"));
+
+    verifyNoInteractions(deadLetterStore);
+  }
+
+  @Test
+  public void shouldDeadLetterTheLastAttempt() {
+    retrying(2);
+
+    interceptor.afterDeliveryFailed(message, new RuntimeException("Connection refused"));
+
+    verify(deadLetterStore).add(same(message), eq("Connection refused"), eq(3));
+  }
+
+  @Test
+  public void shouldDeadLetterTheFirstAttemptWithoutRetries() {
+    retryProperties.setMaxAttempts(1);
+
+    interceptor.afterDeliveryFailed(message, null);
+
+    verify(deadLetterStore).add(same(message), isNull(), eq(1));
+  }
+
+  private static void retrying(int failedAttempts) {
+    RetryContextSupport context = new RetryContextSupport(null);
+    for (int i = 0; i < failedAttempts; i++) {
+      context.registerThrowable(new RuntimeException("Connection refused"));
+    }
+    RetrySynchronizationManager.register(context);
+  }
+}
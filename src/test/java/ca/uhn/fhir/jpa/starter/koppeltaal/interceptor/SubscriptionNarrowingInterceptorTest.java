@@ -5,12 +5,16 @@ import ca.uhn.fhir.context.FhirVersionEnum;
 import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
 import ca.uhn.fhir.jpa.api.dao.IFhirSystemDao;
+import ca.uhn.fhir.jpa.starter.koppeltaal.config.FhirServerSecurityConfiguration;
+import ca.uhn.fhir.jpa.starter.koppeltaal.service.SubscriptionProfileCache;
 import ca.uhn.fhir.jpa.starter.koppeltaal.util.PermissionUtil;
 import ca.uhn.fhir.jpa.starter.koppeltaal.util.ResourceOriginUtil;
 import ca.uhn.fhir.jpa.subscription.model.CanonicalSubscription;
-import ca.uhn.fhir.jpa.subscription.model.ResourceDeliveryMessage;
-import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.jpa.subscription.model.ResourceModifiedMessage;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.messaging.BaseResourceMessage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.*;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -20,12 +24,10 @@ import org.mockito.junit.jupiter.MockitoExtension;
 
 import java.util.UUID;
 
-import static org.junit.jupiter.api.Assertions.assertFalse;
-import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
-import static org.mockito.Mockito.mock;
-import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.*;
 
 @ExtendWith(MockitoExtension.class)
 class SubscriptionNarrowingInterceptorTest {
@@ -33,9 +35,13 @@ class SubscriptionNarrowingInterceptorTest {
   private SubscriptionNarrowingInterceptor interceptor;
 
   private FhirContext fhirContext = new FhirContext(FhirVersionEnum.R4);
+  private DaoRegistry daoRegistry;
+  private IFhirResourceDao deviceDaoMock;
+  private IFhirResourceDao subscriptionDaoMock;
 
   @BeforeEach
   void init(@Mock DaoRegistry daoRegistry) {
+    this.daoRegistry = daoRegistry;
     IFhirSystemDao systemDaoMock = mock(IFhirSystemDao.class);
 
     when(daoRegistry.getSystemDao())
@@ -44,7 +50,7 @@ class SubscriptionNarrowingInterceptorTest {
     when(systemDaoMock.getContext())
       .thenReturn(fhirContext);
 
-    IFhirResourceDao deviceDaoMock = mock(IFhirResourceDao.class);
+    deviceDaoMock = mock(IFhirResourceDao.class);
 
     when(daoRegistry.getResourceDao(eq(Device.class)))
       .thenReturn(deviceDaoMock);
@@ -58,7 +64,7 @@ class SubscriptionNarrowingInterceptorTest {
     when(deviceDaoMock.read(any(), any()))
       .thenReturn(subscriptionResourceOrigin);
 
-    IFhirResourceDao subscriptionDaoMock = mock(IFhirResourceDao.class);
+    subscriptionDaoMock = mock(IFhirResourceDao.class);
 
     when(daoRegistry.getResourceDao(eq(Subscription.class)))
       .thenReturn(subscriptionDaoMock);
@@ -75,39 +81,109 @@ class SubscriptionNarrowingInterceptorTest {
   @Test
   public void shouldNotSendSubscription() {
 
-    ResourceDeliveryMessage resourceDeliveryMessage = new ResourceDeliveryMessage();
     CanonicalSubscription canonicalSubscription = new CanonicalSubscription();
     canonicalSubscription.setIdElement(new IdType("sub-id"));
 
-    Task thePayload = new Task();
-    thePayload.setId(UUID.randomUUID().toString());
-    thePayload.addExtension(new Extension(ResourceOriginUtil.RESOURCE_ORIGIN_SYSTEM, new Reference("Device/456")));
-
-    resourceDeliveryMessage.setPayload(fhirContext, thePayload, EncodingEnum.JSON);
+    ResourceModifiedMessage resourceModifiedMessage = newModifiedMessage("Device/456");
 
     PermissionUtil.createOrUpdateScope("default-client-id", "system/Task.r?resource-origin=Device/789");
 
     assertFalse(
-      interceptor.subscriptionBeforeDelivery(resourceDeliveryMessage, canonicalSubscription)
+      interceptor.subscriptionResourceMatched(canonicalSubscription, resourceModifiedMessage)
     );
   }
 
   @Test
   public void shouldSendSubscription() {
-    ResourceDeliveryMessage resourceDeliveryMessage = new ResourceDeliveryMessage();
     CanonicalSubscription canonicalSubscription = new CanonicalSubscription();
     canonicalSubscription.setIdElement(new IdType("sub-id"));
 
-    Task thePayload = new Task();
-    thePayload.setId(UUID.randomUUID().toString());
-    thePayload.addExtension(new Extension(ResourceOriginUtil.RESOURCE_ORIGIN_SYSTEM, new Reference("Device/456")));
-
-    resourceDeliveryMessage.setPayload(fhirContext, thePayload, EncodingEnum.JSON);
+    ResourceModifiedMessage resourceModifiedMessage = newModifiedMessage("Device/456");
 
     PermissionUtil.createOrUpdateScope("default-client-id", "system/Task.r?resource-origin=Device/456");
 
     assertTrue(
-      interceptor.subscriptionBeforeDelivery(resourceDeliveryMessage, canonicalSubscription)
+      interceptor.subscriptionResourceMatched(canonicalSubscription, resourceModifiedMessage)
     );
   }
+
+  @Test
+  public void shouldReadSubscriptionAndDeviceOncePerProfile() {
+    interceptor = new SubscriptionNarrowingInterceptor(daoRegistry,
+      new SubscriptionProfileCache(new FhirServerSecurityConfiguration(), new SimpleMeterRegistry()));
+    CanonicalSubscription canonicalSubscription = new CanonicalSubscription();
+    canonicalSubscription.setIdElement(new IdType("sub-id"));
+
+    PermissionUtil.createOrUpdateScope("default-client-id", "system/Task.r?resource-origin=Device/456");
+    for (int i = 0; i < 50; i++) {
+      assertTrue(interceptor.subscriptionResourceMatched(canonicalSubscription, newModifiedMessage("Device/456")));
+      assertFalse(interceptor.subscriptionResourceMatched(canonicalSubscription, newModifiedMessage("Device/789")));
+    }
+    verify(subscriptionDaoMock, times(1)).read(any(IdType.class), any(RequestDetails.class));
+    verify(deviceDaoMock, times(1)).read(any(), any());
+
+    // a new scope is used without rebuilding the profile
+    PermissionUtil.createOrUpdateScope("default-client-id", "system/Task.r?resource-origin=Device/789");
+    assertTrue(interceptor.subscriptionResourceMatched(canonicalSubscription, newModifiedMessage("Device/789")));
+    verify(deviceDaoMock, times(1)).read(any(), any());
+
+    Device device = new Device();
+    device.setId("Device/123");
+    interceptor.resourceUpdated(device, device);
+    interceptor.subscriptionResourceMatched(canonicalSubscription, newModifiedMessage("Device/789"));
+    verify(deviceDaoMock, times(2)).read(any(), any());
+
+    Subscription subscription = new Subscription();
+    subscription.setId("Subscription/sub-id");
+    interceptor.resourceDeleted(subscription);
+    interceptor.subscriptionResourceMatched(canonicalSubscription, newModifiedMessage("Device/789"));
+    verify(subscriptionDaoMock, times(3)).read(any(IdType.class), any(RequestDetails.class));
+  }
+
+  /**
+   * A change matched against 50 Subscriptions of which 45 belong to a client that may not read it: only 5 delivery
+   * messages are created and the payload is decoded once for all of them.
+   */
+  @Test
+  public void shouldOnlyDeliverToAuthorizedSubscribers() {
+    interceptor = new SubscriptionNarrowingInterceptor(daoRegistry,
+      new SubscriptionProfileCache(new FhirServerSecurityConfiguration(), new SimpleMeterRegistry()));
+    Device authorized = new Device();
+    authorized.addIdentifier().setSystem("http://vzvz.nl/fhir/NamingSystem/koppeltaal-client-id").setValue("authorized-client-id");
+    Device unauthorized = new Device();
+    unauthorized.addIdentifier().setSystem("http://vzvz.nl/fhir/NamingSystem/koppeltaal-client-id").setValue("unauthorized-client-id");
+    when(deviceDaoMock.read(eq(new IdType("Device/authorized")), any())).thenReturn(authorized);
+    when(deviceDaoMock.read(eq(new IdType("Device/unauthorized")), any())).thenReturn(unauthorized);
+    reset(subscriptionDaoMock);
+    when(subscriptionDaoMock.read(any(IdType.class), any(RequestDetails.class))).thenAnswer((invocation) -> {
+      int index = Integer.parseInt(invocation.<IdType>getArgument(0).getIdPart());
+      Subscription subscription = new Subscription();
+      subscription.addExtension(new Extension(ResourceOriginUtil.RESOURCE_ORIGIN_SYSTEM,
+        new Reference(index < 5 ? "Device/authorized" : "Device/unauthorized")));
+      return subscription;
+    });
+    PermissionUtil.createOrUpdateScope("authorized-client-id", "system/Task.r?resource-origin=Device/456");
+    PermissionUtil.createOrUpdateScope("unauthorized-client-id", "system/Task.r?resource-origin=Device/789");
+
+    ResourceModifiedMessage message = newModifiedMessage("Device/456");
+    IBaseResource payload = message.getNewPayload(fhirContext);
+    int deliveries = 0;
+    for (int i = 0; i < 50; i++) {
+      CanonicalSubscription canonicalSubscription = new CanonicalSubscription();
+      canonicalSubscription.setIdElement(new IdType("Subscription/" + i));
+      if (interceptor.subscriptionResourceMatched(canonicalSubscription, message)) {
+        deliveries++;
+      }
+      assertSame(payload, message.getNewPayload(fhirContext));
+    }
+
+    assertEquals(5, deliveries);
+  }
+
+  private ResourceModifiedMessage newModifiedMessage(String resourceOrigin) {
+    Task thePayload = new Task();
+    thePayload.setId(UUID.randomUUID().toString());
+    thePayload.addExtension(new Extension(ResourceOriginUtil.RESOURCE_ORIGIN_SYSTEM, new Reference(resourceOrigin)));
+    return new ResourceModifiedMessage(fhirContext, thePayload, BaseResourceMessage.OperationTypeEnum.UPDATE);
+  }
 }
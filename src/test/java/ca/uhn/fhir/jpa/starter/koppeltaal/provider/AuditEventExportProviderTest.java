@@ -0,0 +1,238 @@
+package ca.uhn.fhir.jpa.starter.koppeltaal.provider;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.jpa.starter.koppeltaal.config.FhirServerAuditLogConfiguration;
+import ca.uhn.fhir.jpa.starter.koppeltaal.config.FhirServerSecurityConfiguration;
+import ca.uhn.fhir.jpa.starter.koppeltaal.util.RequestSecurityContext;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.ParamPrefixEnum;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
+import ca.uhn.fhir.rest.server.exceptions.MethodNotAllowedException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.algorithms.Algorithm;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletResponse;
+import org.hl7.fhir.r4.model.AuditEvent;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@SuppressWarnings("unchecked")
+class AuditEventExportProviderTest {
+
+  private final FhirServerAuditLogConfiguration configuration = new FhirServerAuditLogConfiguration();
+  private final FhirServerSecurityConfiguration securityConfiguration = new FhirServerSecurityConfiguration();
+  private final List<AuditEvent> stored = new ArrayList<>();
+  private final List<SearchParameterMap> searches = new ArrayList<>();
+  private AuditEventExportProvider provider;
+
+  @BeforeEach
+  void init() {
+    DaoRegistry daoRegistry = mock(DaoRegistry.class);
+    IFhirResourceDao<AuditEvent> auditEventDao = mock(IFhirResourceDao.class);
+    when(daoRegistry.getResourceDao(AuditEvent.class)).thenReturn(auditEventDao);
+    when(auditEventDao.search(any(), any(RequestDetails.class))).thenAnswer((invocation) -> {
+      SearchParameterMap map = invocation.getArgument(0);
+      searches.add(map);
+      return new SimpleBundleProvider(search(map));
+    });
+
+    configuration.getExport().setBatchSize(3);
+    provider = new AuditEventExportProvider(daoRegistry, FhirContext.forR4Cached(), configuration, securityConfiguration);
+  }
+
+  @Test
+  public void shouldExportEveryAuditEventOnceWithSharedDates() throws IOException {
+    // 4 AuditEvents share the same millisecond, more than a batch
+    for (int i = 0; i < 10; i++) {
+      store("event-" + i, i < 2 ? 1000 : i < 6 ? 2000 : 3000 + i, "Device/1");
+    }
+
+    List<String> ids = export(new AuditEventExportProvider.Query(null, null, null, List.of()));
+
+    assertEquals(stored.stream().map((event) -> event.getIdElement().getIdPart()).collect(Collectors.toList()), ids);
+    assertTrue(searches.size() > 3);
+    // never more than a batch plus the AuditEvents sharing the date of the previous batch
+    searches.forEach((map) -> assertTrue(map.getCount() <= 3 + 4));
+  }
+
+  @Test
+  public void shouldFilterOnDatesDeviceAndResourceOrigin() throws IOException {
+    store("early", 1000, "Device/1");
+    store("device-1", 2000, "Device/1");
+    store("device-2", 2000, "Device/2");
+    store("late", 5000, "Device/1");
+
+    List<String> ids = export(new AuditEventExportProvider.Query(new Date(1500), new Date(5000), "Device/1", List.of("Device/1")));
+
+    assertEquals(List.of("device-1"), ids);
+    assertEquals(List.of("Device/1"), searches.get(0).get(AuditEventExportProvider.RESOURCE_ORIGIN).get(0).stream()
+      .map((param) -> ((ReferenceParam) param).getValue()).collect(Collectors.toList()));
+  }
+
+  @Test
+  public void shouldStreamGzippedNdjson() throws IOException {
+    store("event-1", 1000, "Device/1");
+    store("event-2", 2000, "Device/1");
+
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    HttpServletResponse response = newResponse(body);
+    ServletRequestDetails requestDetails = newRequest(RequestTypeEnum.GET, "system/AuditEvent.rs?resource-origin=Device/1,Device/2");
+    when(requestDetails.getServletResponse()).thenReturn(response);
+    when(requestDetails.getHeader("Accept-Encoding")).thenReturn("gzip, deflate");
+    provider.export(new DateTimeType(new Date(0)), null, new StringType("1"), requestDetails);
+
+    verify(response).setContentType(AuditEventExportProvider.CONTENT_TYPE);
+    verify(response).setHeader("Content-Encoding", "gzip");
+    String ndjson = new String(new GZIPInputStream(new ByteArrayInputStream(body.toByteArray())).readAllBytes(), StandardCharsets.UTF_8);
+    String[] lines = ndjson.split("\n");
+    assertEquals(2, lines.length);
+    assertEquals("event-1", FhirContext.forR4Cached().newJsonParser().parseResource(AuditEvent.class, lines[0]).getIdElement().getIdPart());
+    assertEquals(2, searches.get(0).get(AuditEventExportProvider.RESOURCE_ORIGIN).get(0).size());
+  }
+
+  @Test
+  public void shouldOnlyExportTheResourceOriginsOfTheToken() throws IOException {
+    store("device-1", 1000, "Device/1");
+    store("device-2", 2000, "Device/2");
+    HttpServletResponse response = newResponse(new ByteArrayOutputStream());
+    ServletRequestDetails requestDetails = newRequest(RequestTypeEnum.GET, "system/AuditEvent.rs?resource-origin=Device/1");
+    when(requestDetails.getServletResponse()).thenReturn(response);
+    // a resource-origin parameter of the client does not widen the export
+    when(requestDetails.getParameters()).thenReturn(Map.of(AuditEventExportProvider.RESOURCE_ORIGIN, new String[]{"Device/2"}));
+
+    provider.export(null, null, null, requestDetails);
+
+    assertEquals(List.of("Device/1"), searches.get(0).get(AuditEventExportProvider.RESOURCE_ORIGIN).get(0).stream()
+      .map((param) -> ((ReferenceParam) param).getValue()).collect(Collectors.toList()));
+  }
+
+  @Test
+  public void shouldExportEverythingForAnUnlimitedReadPermission() throws IOException {
+    HttpServletResponse response = newResponse(new ByteArrayOutputStream());
+    ServletRequestDetails requestDetails = newRequest(RequestTypeEnum.GET,
+      "system/AuditEvent.rs?resource-origin=Device/1 system/AuditEvent.r");
+    when(requestDetails.getServletResponse()).thenReturn(response);
+
+    provider.export(null, null, null, requestDetails);
+
+    assertFalse(searches.get(0).containsKey(AuditEventExportProvider.RESOURCE_ORIGIN));
+  }
+
+  @Test
+  public void shouldRejectAPostFromAClientThatMayCreateAuditEvents() {
+    ServletRequestDetails requestDetails = newRequest(RequestTypeEnum.POST, "system/AuditEvent.c");
+
+    assertThrows(MethodNotAllowedException.class, () -> provider.export(null, null, null, requestDetails));
+    verify(requestDetails, never()).getServletResponse();
+    assertTrue(searches.isEmpty());
+  }
+
+  @Test
+  public void shouldRejectAClientWithoutReadPermission() {
+    ServletRequestDetails requestDetails = newRequest(RequestTypeEnum.GET, "system/AuditEvent.c system/Task.rs");
+
+    assertThrows(ForbiddenOperationException.class, () -> provider.export(null, null, null, requestDetails));
+    assertTrue(searches.isEmpty());
+  }
+
+  private static HttpServletResponse newResponse(ByteArrayOutputStream body) throws IOException {
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override
+      public boolean isReady() {
+        return true;
+      }
+
+      @Override
+      public void setWriteListener(WriteListener writeListener) {
+      }
+
+      @Override
+      public void write(int b) {
+        body.write(b);
+      }
+    });
+    return response;
+  }
+
+  private static ServletRequestDetails newRequest(RequestTypeEnum requestType, String scope) {
+    ServletRequestDetails requestDetails = mock(ServletRequestDetails.class);
+    when(requestDetails.getRequestType()).thenReturn(requestType);
+    when(requestDetails.getUserData()).thenReturn(new HashMap<>());
+    when(requestDetails.getParameters()).thenReturn(Map.of());
+    RequestSecurityContext.set(requestDetails, RequestSecurityContext.of(
+      JWT.decode(JWT.create().withClaim("azp", "client-1").withClaim("scope", scope).sign(Algorithm.none()))));
+    return requestDetails;
+  }
+
+  private List<String> export(AuditEventExportProvider.Query query) throws IOException {
+    StringWriter writer = new StringWriter();
+    provider.export(query, writer);
+    return writer.toString().lines()
+      .map((line) -> FhirContext.forR4Cached().newJsonParser().parseResource(AuditEvent.class, line).getIdElement().getIdPart())
+      .collect(Collectors.toList());
+  }
+
+  private void store(String id, long date, String device) {
+    AuditEvent auditEvent = new AuditEvent();
+    auditEvent.setId(id);
+    auditEvent.setRecorded(new Date(date));
+    auditEvent.addAgent().getWho().setReference(device);
+    stored.add(auditEvent);
+  }
+
+  /**
+   * Applies the date and agent parameters and the sort the way the database does.
+   */
+  private List<AuditEvent> search(SearchParameterMap map) {
+    long from = Long.MIN_VALUE;
+    long until = Long.MAX_VALUE;
+    if (map.containsKey("date")) {
+      for (List<IQueryParameterType> params : map.get("date")) {
+        DateParam param = (DateParam) params.get(0);
+        if (param.getPrefix() == ParamPrefixEnum.GREATERTHAN_OR_EQUALS) from = param.getValue().getTime();
+        if (param.getPrefix() == ParamPrefixEnum.LESSTHAN) until = param.getValue().getTime();
+      }
+    }
+    final long lower = from;
+    final long upper = until;
+    final String agent = map.containsKey("agent") ? ((ReferenceParam) map.get("agent").get(0).get(0)).getValue() : null;
+
+    return stored.stream()
+      .filter((event) -> event.getRecorded().getTime() >= lower && event.getRecorded().getTime() < upper)
+      .filter((event) -> agent == null || agent.equals(event.getAgentFirstRep().getWho().getReference()))
+      .sorted(Comparator.comparing(AuditEvent::getRecorded).thenComparing((event) -> event.getIdElement().getIdPart()))
+      .limit(map.getCount())
+      .collect(Collectors.toList());
+  }
+}
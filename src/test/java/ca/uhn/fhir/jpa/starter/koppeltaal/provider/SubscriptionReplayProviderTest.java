@@ -0,0 +1,118 @@
+package ca.uhn.fhir.jpa.starter.koppeltaal.provider;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.starter.koppeltaal.config.FhirServerSecurityConfiguration;
+import ca.uhn.fhir.jpa.starter.koppeltaal.service.SubscriptionDeadLetterStore;
+import ca.uhn.fhir.jpa.starter.koppeltaal.util.RequestSecurityContext;
+import ca.uhn.fhir.jpa.starter.koppeltaal.util.ResourceOriginUtil;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.algorithms.Algorithm;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.Subscription;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Date;
+import java.util.HashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@SuppressWarnings("unchecked")
+class SubscriptionReplayProviderTest {
+
+  private final FhirServerSecurityConfiguration securityConfiguration = new FhirServerSecurityConfiguration();
+  private final SubscriptionDeadLetterStore deadLetterStore = mock(SubscriptionDeadLetterStore.class);
+  private SubscriptionReplayProvider provider;
+
+  @BeforeEach
+  void init() {
+    DaoRegistry daoRegistry = mock(DaoRegistry.class);
+    IFhirResourceDao<Subscription> subscriptionDao = mock(IFhirResourceDao.class);
+    when(daoRegistry.getResourceDao(Subscription.class)).thenReturn(subscriptionDao);
+    when(subscriptionDao.read(any(IIdType.class), any(RequestDetails.class))).thenAnswer((invocation) -> {
+      Subscription subscription = new Subscription();
+      subscription.setId(invocation.<IIdType>getArgument(0));
+      // Subscription/1 was created by Device/1, Subscription/2 by Device/2
+      subscription.addExtension(ResourceOriginUtil.RESOURCE_ORIGIN_SYSTEM,
+        new Reference("Device/" + invocation.<IIdType>getArgument(0).getIdPart()));
+      return subscription;
+    });
+    when(deadLetterStore.requestReplay(any(), any())).thenReturn(2);
+
+    provider = new SubscriptionReplayProvider(deadLetterStore, daoRegistry, securityConfiguration);
+  }
+
+  @Test
+  public void shouldReplayTheNotificationsOfAnOwnSubscription() {
+    Date since = new Date(1000);
+
+    Parameters result = provider.replayFailedNotifications(new StringType("Subscription/1"), new DateTimeType(since),
+      newRequest("system/Subscription.cruds?resource-origin=Device/1"));
+
+    verify(deadLetterStore).requestReplay("1", since);
+    assertEquals(2, ((IntegerType) result.getParameter("count").getValue()).getValue());
+  }
+
+  @Test
+  public void shouldRejectTheNotificationsOfASubscriptionOfAnotherOrigin() {
+    RequestDetails requestDetails = newRequest("system/Subscription.cruds?resource-origin=Device/1");
+
+    assertThrows(ForbiddenOperationException.class,
+      () -> provider.replayFailedNotifications(new StringType("2"), null, requestDetails));
+    verify(deadLetterStore, never()).requestReplay(any(), any());
+  }
+
+  @Test
+  public void shouldRejectAReadOnlyClient() {
+    RequestDetails requestDetails = newRequest("system/Subscription.rs?resource-origin=Device/1");
+
+    assertThrows(ForbiddenOperationException.class,
+      () -> provider.replayFailedNotifications(new StringType("1"), null, requestDetails));
+    verify(deadLetterStore, never()).requestReplay(any(), any());
+  }
+
+  @Test
+  public void shouldRejectARestrictedClientReplayingAllSubscriptions() {
+    RequestDetails requestDetails = newRequest("system/Subscription.cruds?resource-origin=Device/1");
+
+    assertThrows(ForbiddenOperationException.class, () -> provider.replayFailedNotifications(null, null, requestDetails));
+    verify(deadLetterStore, never()).requestReplay(any(), any());
+  }
+
+  @Test
+  public void shouldReplayAllSubscriptionsForAnUnrestrictedClient() {
+    provider.replayFailedNotifications(null, null, newRequest("system/Subscription.u"));
+
+    verify(deadLetterStore).requestReplay(null, null);
+  }
+
+  @Test
+  public void shouldNotAuthorizeWhenSecurityIsDisabled() {
+    securityConfiguration.setEnabled(false);
+    RequestDetails requestDetails = mock(RequestDetails.class);
+
+    provider.replayFailedNotifications(new StringType("2"), null, requestDetails);
+
+    verify(deadLetterStore).requestReplay("2", null);
+    verifyNoInteractions(requestDetails);
+  }
+
+  private static ServletRequestDetails newRequest(String scope) {
+    ServletRequestDetails requestDetails = mock(ServletRequestDetails.class);
+    when(requestDetails.getUserData()).thenReturn(new HashMap<>());
+    RequestSecurityContext.set(requestDetails, RequestSecurityContext.of(
+      JWT.decode(JWT.create().withClaim("azp", "client-1").withClaim("scope", scope).sign(Algorithm.none()))));
+    return requestDetails;
+  }
+}
@@ -1,5 +1,6 @@
 package ca.uhn.fhir.jpa.starter.koppeltaal.service;
 
+import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
 import ca.uhn.fhir.jpa.api.model.DaoMethodOutcome;
@@ -21,6 +22,7 @@ import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
 import java.nio.charset.StandardCharsets;
+import java.util.Date;
 import java.util.List;
 import java.util.stream.Stream;
 
@@ -226,6 +228,70 @@ public class AuditEventBuilderTest {
     assertEquals("Task?status=active", new String(entity2.getQuery(), StandardCharsets.UTF_8));
   }
 
+  @Test
+  public void testSharedTemplateParts() {
+    AuditEventDto dto = new AuditEventDto();
+    dto.setEventType(AuditEventDto.EventType.Search);
+    dto.setQuery("/Task?status=active&_count=10");
+    dto.addResource(new Reference(new Task().setId(new IdType("Task", "1"))));
+
+    AuditEvent first = auditEventBuilder.build(dto);
+    AuditEvent second = auditEventBuilder.build(dto);
+
+    assertSame(first.getType(), second.getType());
+    assertSame(first.getSubtype(), second.getSubtype());
+    assertSame(first.getSource().getObserver(), second.getSource().getObserver());
+    assertSame(first.getEntity().get(1).getType(), second.getEntity().get(1).getType());
+    assertNotSame(first.getMeta(), second.getMeta());
+    assertEquals(AuditEventBuilder.META_PROFILE_URL, first.getMeta().getProfile().get(0).getValue());
+
+    // same encoding as the commons-codec encoder of Base64BinaryType
+    assertEquals(new Base64BinaryType(dto.getQuery().getBytes(StandardCharsets.UTF_8)).getValueAsString(),
+      first.getEntity().get(0).getQueryElement().getValueAsString());
+  }
+
+  @Test
+  public void testCompactSearchResult() {
+    AuditEventDto dto = new AuditEventDto();
+    dto.setEventType(AuditEventDto.EventType.Search);
+    dto.setQuery("/Task?status=active");
+    dto.setResultCount(2);
+    dto.setResultDigest("abc123");
+    dto.setResultIds(List.of("Task/1", "Task/2"));
+
+    AuditEvent event = auditEventBuilder.build(dto);
+
+    AuditEvent.AuditEventEntityComponent queryEntity = event.getEntity().get(0);
+    assertEquals(2, queryEntity.getDetail().size());
+    assertEquals(AuditEventBuilder.DETAIL_RESULT_COUNT, queryEntity.getDetail().get(0).getType());
+    assertEquals("2", queryEntity.getDetail().get(0).getValue().primitiveValue());
+    assertEquals(AuditEventBuilder.DETAIL_RESULT_DIGEST, queryEntity.getDetail().get(1).getType());
+    assertEquals("abc123", queryEntity.getDetail().get(1).getValue().primitiveValue());
+
+    String json = FhirContext.forR4Cached().newJsonParser().encodeResourceToString(event);
+    AuditEvent parsed = FhirContext.forR4Cached().newJsonParser().parseResource(AuditEvent.class, json);
+    Binary resultIds = (Binary) parsed.getContained().get(0);
+    assertEquals("Task/1\nTask/2", new String(resultIds.getData(), StandardCharsets.UTF_8));
+    assertEquals("#" + resultIds.getIdElement().getIdPart(), parsed.getEntity().get(1).getWhat().getReference());
+  }
+
+  @Test
+  public void testOccurrenceCount() {
+    AuditEventDto dto = new AuditEventDto();
+    dto.setEventType(AuditEventDto.EventType.Search);
+    dto.setQuery("/Task?status=active");
+    assertFalse(auditEventBuilder.build(dto).hasExtension(AuditEventBuilder.OCCURRENCE_COUNT_URL));
+
+    Date last = new Date(dto.getDateTime().getTime() + 30_000);
+    dto.setOccurrences(12);
+    dto.setLastDateTime(last);
+    AuditEvent event = auditEventBuilder.build(dto);
+
+    assertEquals(12, ((PositiveIntType) event.getExtensionByUrl(AuditEventBuilder.OCCURRENCE_COUNT_URL).getValue()).getValue());
+    assertEquals(dto.getDateTime(), event.getPeriod().getStart());
+    assertEquals(last, event.getPeriod().getEnd());
+  }
+
   @Test
   public void testExtractResourceTypeFromQuery() {
     assertEquals("Patient", AuditEventBuilder.extractResourceTypeFromQuery("/Patient?resource-origin=x"));
@@ -0,0 +1,142 @@
+package ca.uhn.fhir.jpa.starter.koppeltaal.service;
+
+import ca.uhn.fhir.jpa.starter.koppeltaal.config.FhirServerAuditLogConfiguration;
+import ca.uhn.fhir.jpa.starter.koppeltaal.dto.AuditEventDto;
+import com.github.benmanes.caffeine.cache.Scheduler;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AuditEventPolicyTest {
+
+  private final AtomicLong time = new AtomicLong();
+  private final List<AuditEventDto> held = new ArrayList<>();
+  private final List<AuditEventDto> emitted = new ArrayList<>();
+  private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+  @Test
+  public void testDeduplicateSearches() {
+    AuditEventPolicy policy = newPolicy(newPolicy(AuditEventDto.EventType.Search, FhirServerAuditLogConfiguration.PolicyMode.DEDUPLICATE));
+
+    for (int i = 0; i < 5; i++) {
+      assertFalse(policy.accept(newSearch("/Task?status=active"), "device-1"));
+    }
+    assertFalse(policy.accept(newSearch("/Task?status=active"), "device-2"));
+    assertFalse(policy.accept(newSearch("/Task?status=ready"), "device-1"));
+
+    policy.cleanUp();
+    assertTrue(emitted.isEmpty());
+    // the first occurrence of each aggregate
+    assertEquals(3, held.size());
+
+    time.addAndGet(TimeUnit.SECONDS.toNanos(61));
+    policy.cleanUp();
+
+    assertEquals(3, emitted.size());
+    AuditEventDto aggregated = emitted.stream()
+      .filter((dto) -> dto.getOccurrences() > 1)
+      .findFirst()
+      .orElseThrow();
+    assertEquals(5, aggregated.getOccurrences());
+    assertNotNull(aggregated.getLastDateTime());
+    assertEquals(4, meterRegistry.counter("koppeltaal.audit.aggregated").count());
+  }
+
+  @Test
+  public void testFlushEmitsHeldEvents() {
+    AuditEventPolicy policy = newPolicy(newPolicy(AuditEventDto.EventType.Search, FhirServerAuditLogConfiguration.PolicyMode.DEDUPLICATE));
+
+    policy.accept(newSearch("/Task?status=active"), "device-1");
+    policy.accept(newSearch("/Task?status=active"), "device-1");
+    policy.flush();
+
+    assertEquals(1, emitted.size());
+    assertEquals(2, emitted.get(0).getOccurrences());
+    assertSame(held.get(0), emitted.get(0));
+  }
+
+  @Test
+  public void testSample() {
+    FhirServerAuditLogConfiguration.Policy none = newPolicy(AuditEventDto.EventType.Capability, FhirServerAuditLogConfiguration.PolicyMode.SAMPLE);
+    none.setRate(0);
+    AuditEventPolicy policy = newPolicy(none);
+
+    AuditEventDto dto = new AuditEventDto();
+    dto.setEventType(AuditEventDto.EventType.Capability);
+    dto.setOutcome("0");
+    assertFalse(policy.accept(dto, "device-1"));
+    assertEquals(1, meterRegistry.counter("koppeltaal.audit.sampled-out").count());
+
+    // other event types are not sampled
+    assertTrue(policy.accept(newSearch("/Task"), "device-1"));
+  }
+
+  @Test
+  public void testWritesAndFailuresAreAlwaysCaptured() {
+    FhirServerAuditLogConfiguration.Policy all = new FhirServerAuditLogConfiguration.Policy();
+    all.setMode(FhirServerAuditLogConfiguration.PolicyMode.SAMPLE);
+    all.setRate(0);
+    AuditEventPolicy policy = newPolicy(all);
+
+    AuditEventDto update = new AuditEventDto();
+    update.setEventType(AuditEventDto.EventType.Update);
+    update.setOutcome("0");
+    update.addResource(new Reference("Task/1"));
+    assertTrue(policy.accept(update, "device-1"));
+
+    AuditEventDto failedSearch = newSearch("/Task");
+    failedSearch.setOutcome("4");
+    assertTrue(policy.accept(failedSearch, "device-1"));
+
+    assertFalse(policy.accept(newSearch("/Task"), "device-1"));
+  }
+
+  @Test
+  public void testMatchResourceTypeAndClient() {
+    FhirServerAuditLogConfiguration.Policy patients = newPolicy(AuditEventDto.EventType.Read, FhirServerAuditLogConfiguration.PolicyMode.SAMPLE);
+    patients.setResourceType("Patient");
+    patients.setClientId("device-1");
+    patients.setRate(0);
+    AuditEventPolicy policy = newPolicy(patients);
+
+    assertFalse(policy.accept(newRead("Patient/1"), "device-1"));
+    assertTrue(policy.accept(newRead("Patient/1"), "device-2"));
+    assertTrue(policy.accept(newRead("Task/1"), "device-1"));
+  }
+
+  private AuditEventPolicy newPolicy(FhirServerAuditLogConfiguration.Policy policy) {
+    return new AuditEventPolicy(List.of(policy), (dto, window) -> held.add(dto), emitted::add, meterRegistry, time::get,
+      Scheduler.disabledScheduler());
+  }
+
+  private static FhirServerAuditLogConfiguration.Policy newPolicy(AuditEventDto.EventType eventType,
+                                                                  FhirServerAuditLogConfiguration.PolicyMode mode) {
+    FhirServerAuditLogConfiguration.Policy policy = new FhirServerAuditLogConfiguration.Policy();
+    policy.setEventType(eventType);
+    policy.setMode(mode);
+    return policy;
+  }
+
+  private static AuditEventDto newSearch(String query) {
+    AuditEventDto dto = new AuditEventDto();
+    dto.setEventType(AuditEventDto.EventType.Search);
+    dto.setOutcome("0");
+    dto.setQuery(query);
+    return dto;
+  }
+
+  private static AuditEventDto newRead(String reference) {
+    AuditEventDto dto = new AuditEventDto();
+    dto.setEventType(AuditEventDto.EventType.Read);
+    dto.setOutcome("0");
+    dto.addResource(new Reference(reference));
+    return dto;
+  }
+}
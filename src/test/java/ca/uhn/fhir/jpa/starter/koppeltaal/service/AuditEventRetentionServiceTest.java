@@ -0,0 +1,121 @@
+package ca.uhn.fhir.jpa.starter.koppeltaal.service;
+
+import ca.uhn.fhir.batch2.api.IJobCoordinator;
+import ca.uhn.fhir.batch2.jobs.expunge.DeleteExpungeAppCtx;
+import ca.uhn.fhir.batch2.model.JobInstance;
+import ca.uhn.fhir.batch2.model.StatusEnum;
+import ca.uhn.fhir.interceptor.model.RequestPartitionId;
+import ca.uhn.fhir.jpa.api.config.JpaStorageSettings;
+import ca.uhn.fhir.jpa.model.sched.ISchedulerService;
+import ca.uhn.fhir.jpa.starter.koppeltaal.config.FhirServerAuditLogConfiguration;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.api.server.storage.IDeleteExpungeJobSubmitter;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class AuditEventRetentionServiceTest {
+
+  @Mock
+  ISchedulerService schedulerService;
+  @Mock
+  IDeleteExpungeJobSubmitter deleteExpungeJobSubmitter;
+  @Mock
+  IJobCoordinator jobCoordinator;
+
+  FhirServerAuditLogConfiguration configuration = new FhirServerAuditLogConfiguration();
+  JpaStorageSettings storageSettings = new JpaStorageSettings();
+  AuditEventRetentionService retentionService;
+
+  @BeforeEach
+  public void init() {
+    configuration.getRetention().setEnabled(true);
+    configuration.getRetention().setPeriod(30);
+    configuration.getRetention().setChunkSize(250);
+    Clock clock = Clock.fixed(Instant.parse("2024-03-31T10:15:00Z"), ZoneOffset.UTC);
+    retentionService = new AuditEventRetentionService(configuration, storageSettings, schedulerService,
+      deleteExpungeJobSubmitter, jobCoordinator, clock);
+  }
+
+  @Test
+  public void testPurge() {
+    when(deleteExpungeJobSubmitter.submitJob(anyInt(), anyList(), anyBoolean(), any(), any())).thenReturn("job-1");
+
+    assertEquals("job-1", retentionService.purge());
+
+    ArgumentCaptor<RequestDetails> requestDetails = ArgumentCaptor.forClass(RequestDetails.class);
+    verify(deleteExpungeJobSubmitter).submitJob(eq(250), eq(List.of("AuditEvent?date=lt2024-03-01")), eq(false), isNull(), requestDetails.capture());
+    assertEquals(RequestPartitionId.defaultPartition(), ((SystemRequestDetails) requestDetails.getValue()).getRequestPartitionId());
+  }
+
+  @Test
+  public void testPurgeInAuditAndDefaultPartition() {
+    configuration.getPartition().setEnabled(true);
+    configuration.getPartition().setId(7);
+    when(deleteExpungeJobSubmitter.submitJob(anyInt(), anyList(), anyBoolean(), any(), any())).thenReturn("job-1");
+
+    retentionService.purge();
+
+    ArgumentCaptor<RequestDetails> requestDetails = ArgumentCaptor.forClass(RequestDetails.class);
+    verify(deleteExpungeJobSubmitter).submitJob(anyInt(), anyList(), anyBoolean(), any(), requestDetails.capture());
+    assertEquals(Arrays.asList(7, null), ((SystemRequestDetails) requestDetails.getValue()).getRequestPartitionId().getPartitionIds());
+  }
+
+  @Test
+  public void testNoNewJobWhileRunning() {
+    when(deleteExpungeJobSubmitter.submitJob(anyInt(), anyList(), anyBoolean(), any(), any())).thenReturn("job-2");
+    // started by another instance of the cluster
+    JobInstance running = jobInstance("job-1", "AuditEvent?date=lt2024-02-29");
+    when(jobCoordinator.getJobInstancesByJobDefinitionIdAndStatuses(eq(DeleteExpungeAppCtx.JOB_DELETE_EXPUNGE),
+      eq(StatusEnum.getNotEndedStatuses()), anyInt(), eq(0))).thenReturn(List.of(running), List.of());
+
+    assertNull(retentionService.purge());
+    assertEquals("job-2", retentionService.purge());
+    verify(deleteExpungeJobSubmitter, times(1)).submitJob(anyInt(), anyList(), anyBoolean(), any(), any());
+  }
+
+  @Test
+  public void testOtherDeleteExpungeJobsDoNotBlock() {
+    when(deleteExpungeJobSubmitter.submitJob(anyInt(), anyList(), anyBoolean(), any(), any())).thenReturn("job-2");
+    when(jobCoordinator.getJobInstancesByJobDefinitionIdAndStatuses(any(), any(), anyInt(), anyInt()))
+      .thenReturn(List.of(jobInstance("job-1", "Task?status=cancelled")));
+
+    assertEquals("job-2", retentionService.purge());
+  }
+
+  @Test
+  public void testNotScheduledWithoutDeleteExpunge() {
+    storageSettings.setDeleteExpungeEnabled(false);
+    retentionService.init();
+    verifyNoInteractions(schedulerService);
+
+    storageSettings.setDeleteExpungeEnabled(true);
+    storageSettings.setExpungeEnabled(true);
+    storageSettings.setAllowMultipleDelete(true);
+    retentionService.init();
+    verify(schedulerService).scheduleClusteredJob(eq(3_600_000L), any());
+  }
+
+  private static JobInstance jobInstance(String id, String url) {
+    JobInstance instance = new JobInstance();
+    instance.setInstanceId(id);
+    instance.setStatus(StatusEnum.IN_PROGRESS);
+    instance.setParameters("{\"partitionedUrl\":[{\"url\":\"" + url + "\"}]}");
+    return instance;
+  }
+}
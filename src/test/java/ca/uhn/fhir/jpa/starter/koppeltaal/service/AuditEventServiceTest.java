@@ -0,0 +1,417 @@
+package ca.uhn.fhir.jpa.starter.koppeltaal.service;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.api.dao.IFhirSystemDao;
+import ca.uhn.fhir.jpa.api.model.DaoMethodOutcome;
+import ca.uhn.fhir.jpa.starter.koppeltaal.config.FhirServerAuditLogConfiguration;
+import ca.uhn.fhir.jpa.starter.koppeltaal.dto.AuditEventDto;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.r4.model.AuditEvent;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.mockito.stubbing.Answer;
+import org.springframework.boot.actuate.health.Status;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@SuppressWarnings("unchecked")
+class AuditEventServiceTest {
+
+  private final FhirServerAuditLogConfiguration configuration = new FhirServerAuditLogConfiguration();
+  private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+  private DaoRegistry daoRegistry;
+  private IFhirResourceDao<AuditEvent> auditEventDao;
+  private IFhirSystemDao<Bundle, ?> systemDao;
+  private AuditEventBuilder auditEventBuilder;
+  private AuditEventService auditEventService;
+  private Instant now = Instant.parse("2024-03-31T10:15:00Z");
+  private final Clock clock = new Clock() {
+    @Override
+    public ZoneId getZone() {
+      return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+      return this;
+    }
+
+    @Override
+    public Instant instant() {
+      return now;
+    }
+  };
+
+  @BeforeEach
+  void init() {
+    daoRegistry = mock(DaoRegistry.class);
+    auditEventDao = mock(IFhirResourceDao.class);
+    systemDao = mock(IFhirSystemDao.class);
+    auditEventBuilder = mock(AuditEventBuilder.class);
+    when(daoRegistry.getResourceDao(AuditEvent.class)).thenReturn(auditEventDao);
+    when(daoRegistry.getSystemDao()).thenReturn(systemDao);
+    when(auditEventBuilder.build(any())).thenAnswer((invocation) -> new AuditEvent());
+
+    DaoMethodOutcome outcome = new DaoMethodOutcome();
+    outcome.setCreated(true);
+    when(auditEventDao.create(any(), any(RequestDetails.class))).thenReturn(outcome);
+  }
+
+  @AfterEach
+  void shutdown() {
+    if (auditEventService != null) {
+      auditEventService.shutdown();
+    }
+  }
+
+  @Test
+  public void shouldWriteQueuedEventsInOneTransaction() {
+    auditEventService = newAuditEventService();
+
+    submit(3);
+    auditEventService.flush();
+
+    ArgumentCaptor<Bundle> transaction = ArgumentCaptor.forClass(Bundle.class);
+    verify(systemDao).transaction(any(), transaction.capture());
+    assertEquals(3, transaction.getValue().getEntry().size());
+    verify(auditEventDao, never()).create(any(), any(RequestDetails.class));
+    assertEquals(3.0, meterRegistry.get("koppeltaal.audit.batch.size").summary().totalAmount());
+  }
+
+  @Test
+  public void shouldWriteOneByOneWhenTheTransactionFails() {
+    when(systemDao.transaction(any(), any())).thenThrow(new InternalErrorException("Invalid AuditEvent"));
+    auditEventService = newAuditEventService();
+
+    submit(3);
+    auditEventService.flush();
+
+    verify(auditEventDao, times(3)).create(any(), any(RequestDetails.class));
+  }
+
+  @Test
+  public void shouldDropWhenTheQueueIsFull() {
+    configuration.getWriter().setQueueCapacity(1);
+    configuration.getWriter().setOverflow(FhirServerAuditLogConfiguration.OverflowPolicy.DROP);
+    auditEventService = newAuditEventService();
+
+    submit(2);
+
+    assertEquals(1.0, meterRegistry.get("koppeltaal.audit.dropped").counter().count());
+    assertEquals(1.0, meterRegistry.get("koppeltaal.audit.queue.depth").gauge().value());
+    verify(auditEventDao, never()).create(any(), any(RequestDetails.class));
+  }
+
+  @Test
+  public void shouldWriteOnTheCallerWhenTheQueueIsFull() {
+    configuration.getWriter().setQueueCapacity(1);
+    auditEventService = newAuditEventService();
+
+    submit(2);
+
+    verify(auditEventDao, times(1)).create(any(), any(RequestDetails.class));
+    assertEquals(0.0, meterRegistry.get("koppeltaal.audit.dropped").counter().count());
+  }
+
+  @Test
+  public void shouldWriteInTheBackground() {
+    configuration.getWriter().setThreads(1);
+    auditEventService = newAuditEventService();
+    auditEventService.init();
+
+    submit(1);
+
+    verify(auditEventDao, timeout(5000)).create(any(), any(RequestDetails.class));
+  }
+
+  @Test
+  public void shouldRecordMetrics() {
+    when(systemDao.transaction(any(), any())).thenThrow(new InternalErrorException("Invalid AuditEvent"));
+    when(auditEventDao.create(any(), any(RequestDetails.class)))
+      .thenReturn(new DaoMethodOutcome().setCreated(true))
+      .thenThrow(new InternalErrorException("Invalid AuditEvent"));
+    when(auditEventBuilder.build(any())).thenAnswer((invocation) -> new AuditEvent().setRecorded(Date.from(now)));
+    auditEventService = newAuditEventService();
+
+    submit(2);
+    now = now.plusSeconds(3);
+    auditEventService.flush();
+
+    assertEquals(2.0, meterRegistry.get("koppeltaal.audit.submitted").counter().count());
+    assertEquals(1.0, meterRegistry.get("koppeltaal.audit.persisted").counter().count());
+    assertEquals(1.0, meterRegistry.get("koppeltaal.audit.failed").counter().count());
+    assertEquals(3000.0, meterRegistry.get("koppeltaal.audit.lag").timer().totalTime(TimeUnit.MILLISECONDS));
+    assertEquals(2, meterRegistry.get("koppeltaal.audit.dao").tag("operation", "create").timer().count());
+    assertEquals(1, meterRegistry.get("koppeltaal.audit.dao").tag("operation", "transaction").timer().count());
+  }
+
+  @Test
+  public void shouldBeDownWhenTheLagExceedsTheMaximum() {
+    configuration.getHealth().setMaxLag(60);
+    auditEventService = newAuditEventService();
+    AuditEventHealthIndicator healthIndicator = new AuditEventHealthIndicator(auditEventService, configuration);
+
+    assertEquals(Status.UP, healthIndicator.health().getStatus());
+
+    submit(1);
+    now = now.plusSeconds(60);
+    assertEquals(Duration.ofSeconds(60), auditEventService.getLag());
+    assertEquals(Status.UP, healthIndicator.health().getStatus());
+
+    now = now.plusSeconds(1);
+    assertEquals(Status.DOWN, healthIndicator.health().getStatus());
+    assertEquals(1, healthIndicator.health().getDetails().get("queueDepth"));
+    assertEquals(61_000.0, meterRegistry.get("koppeltaal.audit.queue.lag").timeGauge().value(TimeUnit.MILLISECONDS));
+
+    auditEventService.flush();
+    assertEquals(Status.UP, healthIndicator.health().getStatus());
+  }
+
+  @Test
+  public void shouldMeasureTheLagFromWhenTheAuditEventWasQueued() {
+    configuration.getHealth().setMaxLag(60);
+    // an aggregated AuditEvent is recorded at its first occurrence
+    when(auditEventBuilder.build(any())).thenAnswer((invocation) -> new AuditEvent().setRecorded(Date.from(now.minusSeconds(600))));
+    auditEventService = newAuditEventService();
+    AuditEventHealthIndicator healthIndicator = new AuditEventHealthIndicator(auditEventService, configuration);
+
+    submit(1);
+    now = now.plusSeconds(5);
+
+    assertEquals(Duration.ofSeconds(5), auditEventService.getLag());
+    assertEquals(Status.UP, healthIndicator.health().getStatus());
+  }
+
+  @Test
+  public void shouldBeDownWhenAnAuditEventWasGivenUp() {
+    configuration.getHealth().setMaxLag(60);
+    configuration.getWriter().setMaxAttempts(1);
+    when(auditEventDao.create(any(), any(RequestDetails.class))).thenThrow(new InternalErrorException("Invalid AuditEvent"));
+    auditEventService = newAuditEventService();
+    AuditEventHealthIndicator healthIndicator = new AuditEventHealthIndicator(auditEventService, configuration);
+
+    submit(1);
+    auditEventService.flush();
+
+    assertEquals(Status.DOWN, healthIndicator.health().getStatus());
+    assertEquals(1L, healthIndicator.health().getDetails().get("failed"));
+
+    now = now.plusSeconds(61);
+    assertEquals(Status.UP, healthIndicator.health().getStatus());
+    assertEquals(1L, healthIndicator.health().getDetails().get("failed"));
+  }
+
+  @Test
+  public void shouldBeDownWhenASpooledAuditEventIsStuck(@TempDir Path directory) {
+    configuration.getHealth().setMaxLag(60);
+    configuration.getWriter().setRetryBackoff(TimeUnit.HOURS.toMillis(1));
+    configuration.getSpool().setEnabled(true);
+    configuration.getSpool().setDirectory(directory.toString());
+    when(auditEventDao.update(any(), any(RequestDetails.class))).thenThrow(new InternalErrorException("Database unavailable"));
+    AuditEventSpool spool = new AuditEventSpool(configuration, FhirContext.forR4Cached(), clock);
+    auditEventService = new AuditEventService(daoRegistry, auditEventBuilder, spool, configuration,
+      mock(PlatformTransactionManager.class), meterRegistry, clock);
+    AuditEventHealthIndicator healthIndicator = new AuditEventHealthIndicator(auditEventService, configuration);
+
+    // no longer queued, but waiting for the next attempt
+    submit(1);
+    auditEventService.flush();
+    assertEquals(Status.UP, healthIndicator.health().getStatus());
+    assertEquals(1, healthIndicator.health().getDetails().get("retrying"));
+
+    now = now.plusSeconds(61);
+    assertEquals(Duration.ZERO, auditEventService.getLag());
+    assertEquals(Status.DOWN, healthIndicator.health().getStatus());
+    assertEquals(1, healthIndicator.health().getDetails().get("stuckPending"));
+    spool.close();
+  }
+
+  /**
+   * The audited resources are inserted in a transaction while the writer checks, on its own connection, whether the
+   * resource referenced by the AuditEvent has been committed. Every 10th transaction is rolled back.
+   */
+  @Test
+  public void shouldOnlyWriteAfterTheTransactionCommits() throws Exception {
+    DriverManagerDataSource dataSource = new DriverManagerDataSource("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+    JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+    jdbcTemplate.execute("CREATE TABLE AUDITED_RESOURCE (ID VARCHAR(64) PRIMARY KEY)");
+    TransactionTemplate transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+
+    AtomicInteger written = new AtomicInteger();
+    AtomicInteger integrityFailures = new AtomicInteger();
+    Consumer<Resource> checkReference = (auditEvent) -> {
+      String id = ((AuditEvent) auditEvent).getEntityFirstRep().getWhat().getReferenceElement().getIdPart();
+      if (jdbcTemplate.queryForObject("SELECT COUNT(*) FROM AUDITED_RESOURCE WHERE ID = ?", Integer.class, id) == 0) {
+        integrityFailures.incrementAndGet();
+      }
+      written.incrementAndGet();
+    };
+    when(auditEventBuilder.build(any())).thenAnswer((invocation) -> {
+      AuditEvent auditEvent = new AuditEvent();
+      auditEvent.addEntity().setWhat(invocation.<AuditEventDto>getArgument(0).getResources().get(0));
+      return auditEvent;
+    });
+    when(auditEventDao.create(any(), any(RequestDetails.class))).thenAnswer((invocation) -> {
+      checkReference.accept(invocation.getArgument(0));
+      return new DaoMethodOutcome().setCreated(true);
+    });
+    when(systemDao.transaction(any(), any())).thenAnswer((invocation) -> {
+      invocation.<Bundle>getArgument(1).getEntry().forEach((entry) -> checkReference.accept(entry.getResource()));
+      return null;
+    });
+
+    configuration.getWriter().setBatchSize(10);
+    configuration.getWriter().setFlushInterval(5);
+    auditEventService = newAuditEventService();
+    auditEventService.init();
+
+    int transactions = 400;
+    ExecutorService requests = Executors.newFixedThreadPool(8);
+    for (int i = 0; i < transactions; i++) {
+      final int request = i;
+      requests.submit(() -> {
+        try {
+          transactionTemplate.executeWithoutResult((status) -> {
+            String id = "resource-" + request;
+            jdbcTemplate.update("INSERT INTO AUDITED_RESOURCE (ID) VALUES (?)", id);
+
+            AuditEventDto dto = new AuditEventDto();
+            dto.addResource(new Reference("Patient/" + id));
+            auditEventService.submitAuditEvent(dto, null);
+
+            jdbcTemplate.queryForObject("SELECT COUNT(*) FROM AUDITED_RESOURCE", Integer.class);
+            if (request % 10 == 0) {
+              throw new IllegalStateException("Rollback");
+            }
+          });
+        } catch (IllegalStateException e) {
+          // rolled back, no AuditEvent expected
+        }
+      });
+    }
+    requests.shutdown();
+    requests.awaitTermination(30, TimeUnit.SECONDS);
+    auditEventService.shutdown();
+
+    assertEquals(transactions - transactions / 10, written.get());
+    assertEquals(0, integrityFailures.get());
+  }
+
+  /**
+   * Writes on the request threads because the queue is full, with DAOs that join the current transaction like HAPI's.
+   * An AuditEvent written from <code>afterCommit</code> would join the committed transaction of the request and never
+   * be committed itself.
+   */
+  @Test
+  public void shouldCommitAuditEventsWrittenOnTheCallerAfterTheTransactionCommits() throws Exception {
+    DriverManagerDataSource dataSource = new DriverManagerDataSource("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+    JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+    jdbcTemplate.execute("CREATE TABLE AUDITED_RESOURCE (ID VARCHAR(64) PRIMARY KEY)");
+    jdbcTemplate.execute("CREATE TABLE AUDIT_EVENT (ID VARCHAR(64) PRIMARY KEY, WHAT VARCHAR(64))");
+    DataSourceTransactionManager transactionManager = new DataSourceTransactionManager(dataSource);
+    TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+
+    AtomicInteger integrityFailures = new AtomicInteger();
+    AtomicInteger committed = new AtomicInteger();
+    Consumer<Resource> insert = (resource) -> {
+      String what = ((AuditEvent) resource).getEntityFirstRep().getWhat().getReferenceElement().getIdPart();
+      if (jdbcTemplate.queryForObject("SELECT COUNT(*) FROM AUDITED_RESOURCE WHERE ID = ?", Integer.class, what) == 0) {
+        integrityFailures.incrementAndGet();
+      }
+      jdbcTemplate.update("INSERT INTO AUDIT_EVENT (ID, WHAT) VALUES (?, ?)", UUID.randomUUID().toString(), what);
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+        @Override
+        public void afterCommit() {
+          committed.incrementAndGet();
+        }
+      });
+    };
+    when(auditEventBuilder.build(any())).thenAnswer((invocation) -> {
+      AuditEvent auditEvent = new AuditEvent();
+      auditEvent.addEntity().setWhat(invocation.<AuditEventDto>getArgument(0).getResources().get(0));
+      return auditEvent;
+    });
+    Answer<DaoMethodOutcome> write = (invocation) -> transactionTemplate.execute((status) -> {
+      insert.accept(invocation.getArgument(0));
+      return new DaoMethodOutcome().setCreated(true);
+    });
+    when(auditEventDao.create(any(), any(RequestDetails.class))).thenAnswer(write);
+    when(auditEventDao.update(any(), any(RequestDetails.class))).thenAnswer(write);
+    when(systemDao.transaction(any(), any())).thenAnswer((invocation) -> transactionTemplate.execute((status) -> {
+      invocation.<Bundle>getArgument(1).getEntry().forEach((entry) -> insert.accept(entry.getResource()));
+      return null;
+    }));
+
+    configuration.getWriter().setQueueCapacity(1);
+    configuration.getWriter().setThreads(1);
+    auditEventService = newAuditEventService(transactionManager);
+    auditEventService.init();
+
+    int transactions = 200;
+    ExecutorService requests = Executors.newFixedThreadPool(8);
+    for (int i = 0; i < transactions; i++) {
+      final String id = "resource-" + i;
+      requests.submit(() -> transactionTemplate.executeWithoutResult((status) -> {
+        jdbcTemplate.update("INSERT INTO AUDITED_RESOURCE (ID) VALUES (?)", id);
+
+        AuditEventDto dto = new AuditEventDto();
+        dto.addResource(new Reference("Patient/" + id));
+        auditEventService.submitAuditEvent(dto, null);
+      }));
+    }
+    requests.shutdown();
+    requests.awaitTermination(30, TimeUnit.SECONDS);
+    auditEventService.shutdown();
+
+    assertEquals(transactions, committed.get());
+    assertEquals(transactions, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM AUDIT_EVENT", Integer.class));
+    assertEquals(0, integrityFailures.get());
+  }
+
+  private AuditEventService newAuditEventService() {
+    return newAuditEventService(mock(PlatformTransactionManager.class));
+  }
+
+  private AuditEventService newAuditEventService(PlatformTransactionManager transactionManager) {
+    return new AuditEventService(daoRegistry, auditEventBuilder, new AuditEventSpool(configuration, FhirContext.forR4Cached()), configuration, transactionManager, meterRegistry, clock);
+  }
+
+  private void submit(int count) {
+    for (int i = 0; i < count; i++) {
+      auditEventService.submitAuditEvent(new AuditEventDto(), null);
+    }
+  }
+}
@@ -0,0 +1,328 @@
+package ca.uhn.fhir.jpa.starter.koppeltaal.service;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.api.dao.IFhirSystemDao;
+import ca.uhn.fhir.jpa.api.model.DaoMethodOutcome;
+import ca.uhn.fhir.jpa.starter.koppeltaal.config.FhirServerAuditLogConfiguration;
+import ca.uhn.fhir.jpa.starter.koppeltaal.dto.AuditEventDto;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.AuditEvent;
+import org.hl7.fhir.r4.model.Bundle;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@SuppressWarnings("unchecked")
+class AuditEventSpoolTest {
+
+  private final FhirContext fhirContext = FhirContext.forR4Cached();
+  private final FhirServerAuditLogConfiguration configuration = new FhirServerAuditLogConfiguration();
+
+  @TempDir
+  Path directory;
+
+  @BeforeEach
+  void init() {
+    configuration.getSpool().setEnabled(true);
+    configuration.getSpool().setDirectory(directory.toString());
+  }
+
+  @Test
+  public void shouldRecoverEventsAfterTheCheckpoint() {
+    AuditEventSpool spool = new AuditEventSpool(configuration, fhirContext);
+    long first = spool.append(auditEvent("1"));
+    spool.append(auditEvent("2"));
+    spool.append(auditEvent("3"));
+    spool.completed(List.of(first));
+    spool.close();
+
+    List<AuditEventSpool.SpooledAuditEvent> recovered = new AuditEventSpool(configuration, fhirContext).takeRecovered();
+
+    assertEquals(List.of("2", "3"), recovered.stream()
+      .map((spooled) -> spooled.getAuditEvent().getIdElement().getIdPart())
+      .collect(Collectors.toList()));
+  }
+
+  @Test
+  public void shouldIgnoreAPartiallyWrittenRecord() throws IOException {
+    AuditEventSpool spool = new AuditEventSpool(configuration, fhirContext);
+    long sequence = spool.append(auditEvent("1"));
+    spool.close();
+    try (Stream<Path> segments = Files.list(directory)) {
+      Path segment = segments.filter((path) -> path.toString().endsWith(".spool")).findFirst().orElseThrow();
+      Files.write(segment, new byte[]{0, 0, 1, 0, 0, 0}, StandardOpenOption.APPEND);
+    }
+
+    AuditEventSpool reopened = new AuditEventSpool(configuration, fhirContext);
+
+    assertEquals(1, reopened.takeRecovered().size());
+    assertEquals(sequence + 1, reopened.append(auditEvent("2")));
+    reopened.close();
+  }
+
+  @Test
+  public void shouldDeleteWrittenSegments() throws IOException {
+    configuration.getSpool().setSegmentSize(1);
+    AuditEventSpool spool = new AuditEventSpool(configuration, fhirContext);
+    List<Long> sequences = List.of(spool.append(auditEvent("1")), spool.append(auditEvent("2")), spool.append(auditEvent("3")));
+
+    spool.completed(sequences);
+    spool.close();
+
+    try (Stream<Path> segments = Files.list(directory)) {
+      assertEquals(1, segments.filter((path) -> path.toString().endsWith(".spool")).count());
+    }
+    assertTrue(new AuditEventSpool(configuration, fhirContext).takeRecovered().isEmpty());
+  }
+
+  /**
+   * The writer is killed after the second batch is committed but before it is marked as written. After a restart
+   * the AuditEvents of that batch must not be written again, those of the third batch must still be written.
+   */
+  @Test
+  public void shouldNotLoseOrDuplicateEventsWhenTheWriterIsKilledMidBatch() {
+    Map<String, AuditEvent> stored = new ConcurrentHashMap<>();
+    AtomicInteger duplicates = new AtomicInteger();
+    AtomicInteger transactions = new AtomicInteger();
+    DaoRegistry daoRegistry = daoRegistry(stored, duplicates, transactions);
+    configuration.getWriter().setBatchSize(5);
+
+    AuditEventSpool spool = new AuditEventSpool(configuration, fhirContext);
+    AuditEventService killed = newAuditEventService(daoRegistry, spool);
+    for (int i = 0; i < 15; i++) {
+      killed.submitAuditEvent(new AuditEventDto(), null);
+    }
+    assertThrows(WriterKilled.class, killed::flush);
+    assertEquals(10, stored.size());
+    // the page cache survives the killed process, closing the channel is all that's left of a real kill
+    spool.close();
+
+    AuditEventSpool reopened = new AuditEventSpool(configuration, fhirContext);
+    newAuditEventService(daoRegistry, reopened).recover();
+    reopened.close();
+
+    assertEquals(15, stored.size());
+    assertEquals(0, duplicates.get());
+    assertTrue(new AuditEventSpool(configuration, fhirContext).takeRecovered().isEmpty());
+  }
+
+  private AuditEventService newAuditEventService(DaoRegistry daoRegistry, AuditEventSpool spool) {
+    AuditEventBuilder auditEventBuilder = mock(AuditEventBuilder.class);
+    when(auditEventBuilder.build(any())).thenAnswer((invocation) -> new AuditEvent());
+    return new AuditEventService(daoRegistry, auditEventBuilder, spool, configuration, mock(PlatformTransactionManager.class), new SimpleMeterRegistry());
+  }
+
+  /**
+   * The batch is rejected and one of the AuditEvents can not be written on its own either. That AuditEvent must be
+   * written by a retry, the others must not be written twice.
+   */
+  @Test
+  public void shouldRetryTheEventsThatFailedToBeWritten() throws IOException {
+    configuration.getWriter().setRetryBackoff(1);
+    Map<String, AuditEvent> stored = new ConcurrentHashMap<>();
+    AtomicInteger duplicates = new AtomicInteger();
+    AtomicInteger updates = new AtomicInteger();
+    DaoRegistry daoRegistry = daoRegistry(stored, duplicates, new AtomicInteger());
+    IFhirResourceDao<AuditEvent> auditEventDao = daoRegistry.getResourceDao(AuditEvent.class);
+    IFhirSystemDao<Bundle, ?> systemDao = (IFhirSystemDao<Bundle, ?>) daoRegistry.getSystemDao();
+    doThrow(new InternalErrorException("Database unavailable")).when(systemDao).transaction(any(), any());
+    doAnswer((invocation) -> {
+      if (updates.incrementAndGet() == 1) throw new InternalErrorException("Database unavailable");
+      store(stored, duplicates, invocation.getArgument(0));
+      return new DaoMethodOutcome().setCreated(true);
+    }).when(auditEventDao).update(any(), any(RequestDetails.class));
+
+    AuditEventSpool spool = new AuditEventSpool(configuration, fhirContext);
+    AuditEventService auditEventService = newAuditEventService(daoRegistry, spool);
+    for (int i = 0; i < 3; i++) {
+      auditEventService.submitAuditEvent(new AuditEventDto(), null);
+    }
+    auditEventService.flush();
+    await().atMost(5, TimeUnit.SECONDS).until(() -> checkpoint() == 3);
+    spool.close();
+
+    assertEquals(3, stored.size());
+    assertEquals(0, duplicates.get());
+    assertTrue(new AuditEventSpool(configuration, fhirContext).takeRecovered().isEmpty());
+    assertFalse(Files.exists(directory.resolve("dead-letter.ndjson")));
+  }
+
+  /**
+   * An AuditEvent that fails every attempt must be moved to the dead-letter file, so the checkpoint moves past it
+   * and its segment is deleted.
+   */
+  @Test
+  public void shouldDeadLetterAnEventThatKeepsFailing() throws IOException {
+    configuration.getSpool().setSegmentSize(1);
+    configuration.getWriter().setRetryBackoff(1);
+    Map<String, AuditEvent> stored = new ConcurrentHashMap<>();
+    AtomicInteger invalidUpdates = new AtomicInteger();
+    DaoRegistry daoRegistry = daoRegistry(stored, new AtomicInteger(), new AtomicInteger());
+    IFhirResourceDao<AuditEvent> auditEventDao = daoRegistry.getResourceDao(AuditEvent.class);
+    IFhirSystemDao<Bundle, ?> systemDao = (IFhirSystemDao<Bundle, ?>) daoRegistry.getSystemDao();
+    doThrow(new InternalErrorException("Invalid AuditEvent")).when(systemDao).transaction(any(), any());
+    doAnswer((invocation) -> {
+      AuditEvent auditEvent = invocation.getArgument(0);
+      if (auditEvent.hasOutcomeDesc()) {
+        invalidUpdates.incrementAndGet();
+        throw new InternalErrorException("Invalid AuditEvent");
+      }
+      stored.put(auditEvent.getIdElement().getIdPart(), auditEvent);
+      return new DaoMethodOutcome().setCreated(true);
+    }).when(auditEventDao).update(any(), any(RequestDetails.class));
+
+    AuditEventBuilder auditEventBuilder = mock(AuditEventBuilder.class);
+    when(auditEventBuilder.build(any()))
+      .thenReturn(new AuditEvent().setOutcomeDesc("invalid"), new AuditEvent(), new AuditEvent());
+    AuditEventSpool spool = new AuditEventSpool(configuration, fhirContext);
+    AuditEventService auditEventService = new AuditEventService(daoRegistry, auditEventBuilder, spool, configuration,
+      mock(PlatformTransactionManager.class), new SimpleMeterRegistry());
+    for (int i = 0; i < 3; i++) {
+      auditEventService.submitAuditEvent(new AuditEventDto(), null);
+    }
+    auditEventService.flush();
+    await().atMost(5, TimeUnit.SECONDS).until(() -> checkpoint() == 3);
+    spool.close();
+
+    assertEquals(2, stored.size());
+    assertEquals(3, invalidUpdates.get());
+    List<String> deadLetters = Files.readAllLines(directory.resolve("dead-letter.ndjson"));
+    assertEquals(1, deadLetters.size());
+    assertEquals("invalid", fhirContext.newJsonParser().parseResource(AuditEvent.class, deadLetters.get(0)).getOutcomeDesc());
+    try (Stream<Path> segments = Files.list(directory)) {
+      assertEquals(1, segments.filter((path) -> path.toString().endsWith(".spool")).count());
+    }
+    assertTrue(new AuditEventSpool(configuration, fhirContext).takeRecovered().isEmpty());
+  }
+
+  /**
+   * Identical searches are held for the window of the deduplicate policy. When the server stops before the window
+   * has passed, the first occurrence must be recovered.
+   */
+  @Test
+  public void shouldRecoverTheFirstOccurrenceOfHeldEvents() {
+    configuration.setPolicies(List.of(deduplicateSearches()));
+    Map<String, AuditEvent> stored = new ConcurrentHashMap<>();
+    DaoRegistry daoRegistry = daoRegistry(stored, new AtomicInteger(), new AtomicInteger());
+
+    AuditEventSpool spool = new AuditEventSpool(configuration, fhirContext);
+    AuditEventService auditEventService = newAuditEventService(daoRegistry, spool);
+    for (int i = 0; i < 3; i++) {
+      auditEventService.submitAuditEvent(search("/Task?status=active"), null);
+    }
+    spool.close();
+    assertTrue(stored.isEmpty());
+
+    AuditEventSpool reopened = new AuditEventSpool(configuration, fhirContext);
+    newAuditEventService(daoRegistry, reopened).recover();
+    reopened.close();
+
+    assertEquals(1, stored.size());
+  }
+
+  @Test
+  public void shouldWriteTheAggregatedEventInPlaceOfTheFirstOccurrence() {
+    configuration.setPolicies(List.of(deduplicateSearches()));
+    Map<String, AuditEvent> stored = new ConcurrentHashMap<>();
+    AtomicInteger duplicates = new AtomicInteger();
+    DaoRegistry daoRegistry = daoRegistry(stored, duplicates, new AtomicInteger());
+
+    AuditEventSpool spool = new AuditEventSpool(configuration, fhirContext);
+    AuditEventService auditEventService = newAuditEventService(daoRegistry, spool);
+    for (int i = 0; i < 3; i++) {
+      auditEventService.submitAuditEvent(search("/Task?status=active"), null);
+    }
+    auditEventService.shutdown();
+    spool.close();
+
+    assertEquals(1, stored.size());
+    assertEquals(0, duplicates.get());
+    assertTrue(new AuditEventSpool(configuration, fhirContext).takeRecovered().isEmpty());
+  }
+
+  private static FhirServerAuditLogConfiguration.Policy deduplicateSearches() {
+    FhirServerAuditLogConfiguration.Policy policy = new FhirServerAuditLogConfiguration.Policy();
+    policy.setEventType(AuditEventDto.EventType.Search);
+    policy.setMode(FhirServerAuditLogConfiguration.PolicyMode.DEDUPLICATE);
+    policy.setWindow(60);
+    return policy;
+  }
+
+  private static AuditEventDto search(String query) {
+    AuditEventDto dto = new AuditEventDto();
+    dto.setEventType(AuditEventDto.EventType.Search);
+    dto.setQuery(query);
+    return dto;
+  }
+
+  private long checkpoint() throws IOException {
+    Path checkpoint = directory.resolve("checkpoint");
+    return Files.exists(checkpoint) ? Long.parseLong(Files.readString(checkpoint).trim()) : 0;
+  }
+
+  private DaoRegistry daoRegistry(Map<String, AuditEvent> stored, AtomicInteger duplicates, AtomicInteger transactions) {
+    IFhirResourceDao<AuditEvent> auditEventDao = mock(IFhirResourceDao.class);
+    IFhirSystemDao<Bundle, ?> systemDao = mock(IFhirSystemDao.class);
+    DaoRegistry daoRegistry = mock(DaoRegistry.class);
+    when(daoRegistry.getResourceDao(AuditEvent.class)).thenReturn(auditEventDao);
+    when(daoRegistry.getSystemDao()).thenReturn(systemDao);
+
+    when(auditEventDao.update(any(), any(RequestDetails.class))).thenAnswer((invocation) -> {
+      store(stored, duplicates, invocation.getArgument(0));
+      return new DaoMethodOutcome().setCreated(true);
+    });
+    when(auditEventDao.read(any(IIdType.class), any(RequestDetails.class))).thenAnswer((invocation) -> {
+      AuditEvent auditEvent = stored.get(invocation.<IIdType>getArgument(0).getIdPart());
+      if (auditEvent == null) throw new ResourceNotFoundException(invocation.<IIdType>getArgument(0));
+      return auditEvent;
+    });
+    when(systemDao.transaction(any(), any())).thenAnswer((invocation) -> {
+      invocation.<Bundle>getArgument(1).getEntry()
+        .forEach((entry) -> store(stored, duplicates, (AuditEvent) entry.getResource()));
+      if (transactions.incrementAndGet() == 2) {
+        throw new WriterKilled();
+      }
+      return null;
+    });
+    return daoRegistry;
+  }
+
+  private static void store(Map<String, AuditEvent> stored, AtomicInteger duplicates, AuditEvent auditEvent) {
+    if (stored.putIfAbsent(auditEvent.getIdElement().getIdPart(), auditEvent) != null) {
+      duplicates.incrementAndGet();
+    }
+  }
+
+  private static AuditEvent auditEvent(String id) {
+    AuditEvent auditEvent = new AuditEvent();
+    auditEvent.setId(id);
+    return auditEvent;
+  }
+
+  private static class WriterKilled extends Error {
+  }
+}
@@ -0,0 +1,102 @@
+package ca.uhn.fhir.jpa.starter.koppeltaal.service;
+
+import ca.uhn.fhir.jpa.starter.koppeltaal.config.FhirServerSecurityConfiguration;
+import com.auth0.jwk.Jwk;
+import com.auth0.jwk.NetworkException;
+import com.auth0.jwk.SigningKeyNotFoundException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class CachingJwkProviderTest {
+
+  private final AtomicLong now = new AtomicLong(1_000_000L);
+  private final AtomicInteger fetches = new AtomicInteger();
+  private final AtomicBoolean endpointDown = new AtomicBoolean();
+  private List<Jwk> keys;
+  private SimpleMeterRegistry meterRegistry;
+  private CachingJwkProvider provider;
+
+  @BeforeEach
+  void init() {
+    keys = List.of(jwk("key-1"));
+    meterRegistry = new SimpleMeterRegistry();
+
+    FhirServerSecurityConfiguration.Jwks settings = new FhirServerSecurityConfiguration.Jwks();
+    settings.setCacheTtl(600);
+    settings.setMinRefetchInterval(10);
+    settings.setMaxStale(3600);
+
+    provider = new CachingJwkProvider("https://auth.example.com/.well-known/jwks.json", () -> {
+      fetches.incrementAndGet();
+      if (endpointDown.get()) {
+        throw new NetworkException("JWKS endpoint down", null);
+      }
+      return keys;
+    }, settings, null, meterRegistry, now::get);
+  }
+
+  @Test
+  public void shouldFetchOnceWhileFresh() throws Exception {
+    assertEquals("key-1", provider.get("key-1").getId());
+    now.addAndGet(599_000L);
+    assertEquals("key-1", provider.get("key-1").getId());
+    assertEquals("key-1", provider.get("key-1").getId());
+
+    assertEquals(1, fetches.get());
+    assertEquals(2.0, meterRegistry.get("koppeltaal.jwks.cache").tag("result", "hit").counter().count());
+    assertEquals(1.0, meterRegistry.get("koppeltaal.jwks.cache").tag("result", "miss").counter().count());
+  }
+
+  @Test
+  public void shouldRefetchOnUnknownKidAtMostOncePerInterval() throws Exception {
+    provider.get("key-1");
+    keys = List.of(jwk("key-1"), jwk("key-2"));
+
+    now.addAndGet(5_000L);
+    assertThrows(SigningKeyNotFoundException.class, () -> provider.get("key-2"));
+    assertEquals(1, fetches.get());
+
+    now.addAndGet(5_000L);
+    assertEquals("key-2", provider.get("key-2").getId());
+    assertEquals(2, fetches.get());
+  }
+
+  @Test
+  public void shouldServeStaleKeysWhenEndpointIsDown() throws Exception {
+    provider.get("key-1");
+    endpointDown.set(true);
+
+    now.addAndGet(601_000L);
+    assertEquals("key-1", provider.get("key-1").getId());
+    assertEquals(1.0, meterRegistry.get("koppeltaal.jwks.cache").tag("result", "stale").counter().count());
+
+    now.addAndGet(3_600_000L);
+    assertThrows(NetworkException.class, () -> provider.get("key-1"));
+  }
+
+  @Test
+  public void shouldRevalidateExpiredKeys() throws Exception {
+    provider.get("key-1");
+
+    now.addAndGet(601_000L);
+    provider.get("key-1");
+    assertEquals(2, fetches.get());
+
+    provider.get("key-1");
+    assertEquals(2, fetches.get());
+  }
+
+  private static Jwk jwk(String kid) {
+    return Jwk.fromValues(Map.of("kid", kid, "kty", "RSA", "alg", "RS256"));
+  }
+}
@@ -0,0 +1,100 @@
+package ca.uhn.fhir.jpa.starter.koppeltaal.service;
+
+import ca.uhn.fhir.jpa.starter.koppeltaal.config.FhirServerSecurityConfiguration;
+import ca.uhn.fhir.jpa.starter.koppeltaal.interceptor.DeviceCacheEvictionInterceptor;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.r4.model.Device;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeviceCacheTest {
+
+  private final AtomicInteger reads = new AtomicInteger();
+  private SimpleMeterRegistry meterRegistry;
+  private DeviceCache deviceCache;
+  private Function<String, Optional<Device>> loader;
+
+  @BeforeEach
+  void init() {
+    meterRegistry = new SimpleMeterRegistry();
+    deviceCache = new DeviceCache(new FhirServerSecurityConfiguration(), meterRegistry);
+    loader = (clientId) -> {
+      reads.incrementAndGet();
+      Device device = new Device();
+      device.setId("Device/" + clientId);
+      return "unknown".equals(clientId) ? Optional.empty() : Optional.of(device);
+    };
+  }
+
+  @Test
+  public void shouldReadDeviceOnce() {
+    for (int i = 0; i < 5; i++) {
+      assertEquals("client-1", deviceCache.get("client-1", loader).orElseThrow().getIdElement().getIdPart());
+    }
+
+    assertEquals(1, reads.get());
+    assertEquals(4.0, meterRegistry.get("cache.gets").tag("cache", "koppeltaal.devices").tag("result", "hit").functionCounter().count());
+  }
+
+  @Test
+  public void shouldNotCacheUnknownDevices() {
+    assertTrue(deviceCache.get("unknown", loader).isEmpty());
+    assertTrue(deviceCache.get("unknown", loader).isEmpty());
+
+    assertEquals(2, reads.get());
+  }
+
+  @Test
+  public void shouldReturnCopies() {
+    deviceCache.get("client-1", loader).orElseThrow().setStatus(Device.FHIRDeviceStatus.INACTIVE);
+
+    assertNull(deviceCache.get("client-1", loader).orElseThrow().getStatus());
+  }
+
+  @Test
+  public void shouldKeepDeviceIdsUntilDeleted() {
+    DeviceCacheEvictionInterceptor interceptor = new DeviceCacheEvictionInterceptor(deviceCache);
+    Device device = new Device();
+    device.setId("Device/client-1/_history/3");
+
+    assertEquals("Device/client-1", deviceCache.getDeviceId("client-1", loader).orElseThrow());
+    interceptor.updated(device, device);
+    assertEquals("Device/client-1", deviceCache.getDeviceId("client-1", loader).orElseThrow());
+    assertEquals(1, reads.get());
+
+    interceptor.deleted(device);
+    assertEquals("Device/client-1", deviceCache.getDeviceId("client-1", loader).orElseThrow());
+    assertEquals(2, reads.get());
+
+    assertTrue(deviceCache.getDeviceId("unknown", loader).isEmpty());
+  }
+
+  @Test
+  public void shouldEvictUpdatedAndDeletedDevices() {
+    DeviceCacheEvictionInterceptor interceptor = new DeviceCacheEvictionInterceptor(deviceCache);
+    Device device = new Device();
+    device.setId("Device/client-1");
+
+    deviceCache.get("client-1", loader);
+    interceptor.updated(device, device);
+    deviceCache.get("client-1", loader);
+    assertEquals(2, reads.get());
+
+    interceptor.deleted(device);
+    deviceCache.get("client-1", loader);
+    assertEquals(3, reads.get());
+
+    Patient patient = new Patient();
+    patient.setId("Patient/client-1");
+    interceptor.updated(patient, patient);
+    deviceCache.get("client-1", loader);
+    assertEquals(3, reads.get());
+  }
+}
@@ -0,0 +1,49 @@
+package ca.uhn.fhir.jpa.starter.koppeltaal.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InMemoryScopeStoreTest {
+
+  private final AtomicLong now = new AtomicLong(1_000_000L);
+  private final InMemoryScopeStore store = new InMemoryScopeStore(100, Duration.ofMinutes(10), Duration.ofMinutes(1), now::get);
+
+  @Test
+  public void shouldExpireScopes() {
+    store.putScope("client-1", "system/Task.r");
+    assertEquals(Optional.of("system/Task.r"), store.getScope("client-1"));
+
+    now.addAndGet(Duration.ofMinutes(10).toMillis());
+    assertEquals(Optional.empty(), store.getScope("client-1"));
+  }
+
+  @Test
+  public void shouldCoalesceUnchangedScopes() {
+    assertTrue(store.update("client-1", "system/Task.r"));
+    assertFalse(store.update("client-1", "system/Task.r"));
+
+    // a changed scope is always written
+    assertTrue(store.update("client-1", "system/Task.cr"));
+    assertEquals(Optional.of("system/Task.cr"), store.getScope("client-1"));
+
+    now.addAndGet(Duration.ofMinutes(1).toMillis());
+    assertTrue(store.update("client-1", "system/Task.cr"));
+  }
+
+  @Test
+  public void shouldKeepActiveClients() {
+    for (int minute = 0; minute < 30; minute++) {
+      store.putScope("client-1", "system/Task.r");
+      now.addAndGet(Duration.ofMinutes(1).toMillis());
+    }
+
+    assertEquals(Optional.of("system/Task.r"), store.getScope("client-1"));
+  }
+}
@@ -0,0 +1,70 @@
+package ca.uhn.fhir.jpa.starter.koppeltaal.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.*;
+
+class JdbcScopeStoreTest {
+
+  private final AtomicLong now = new AtomicLong(1_000_000L);
+  private JdbcTemplate jdbcTemplate;
+
+  @BeforeEach
+  void init() {
+    jdbcTemplate = spy(new JdbcTemplate(new DriverManagerDataSource("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1")));
+    new KoppeltaalSchemaInitializer(jdbcTemplate).init();
+  }
+
+  @Test
+  public void shouldShareScopesBetweenReplicas() {
+    JdbcScopeStore replica1 = store();
+    JdbcScopeStore replica2 = store();
+
+    replica1.putScope("client-1", "system/Task.r");
+    assertEquals(Optional.of("system/Task.r"), replica2.getScope("client-1"));
+
+    // replica 2 serves the scope from memory until the write interval passed
+    replica1.putScope("client-1", "system/Task.cr");
+    assertEquals(Optional.of("system/Task.r"), replica2.getScope("client-1"));
+
+    now.addAndGet(Duration.ofMinutes(1).toMillis());
+    assertEquals(Optional.of("system/Task.cr"), replica2.getScope("client-1"));
+  }
+
+  @Test
+  public void shouldCoalesceWrites() {
+    JdbcScopeStore store = store();
+
+    for (int i = 0; i < 100; i++) {
+      store.putScope("client-1", "system/Task.r");
+    }
+
+    verify(jdbcTemplate, times(1)).update(startsWith("UPDATE"), any(Object[].class));
+    verify(jdbcTemplate, times(1)).update(startsWith("INSERT"), any(Object[].class));
+
+    now.addAndGet(Duration.ofMinutes(1).toMillis());
+    store.putScope("client-1", "system/Task.r");
+    verify(jdbcTemplate, times(2)).update(startsWith("UPDATE"), any(Object[].class));
+  }
+
+  @Test
+  public void shouldExpireScopes() {
+    store().putScope("client-1", "system/Task.r");
+
+    now.addAndGet(Duration.ofDays(1).toMillis());
+    assertEquals(Optional.empty(), store().getScope("client-1"));
+  }
+
+  private JdbcScopeStore store() {
+    return new JdbcScopeStore(jdbcTemplate, 100, Duration.ofDays(1), Duration.ofMinutes(1), now::get);
+  }
+}
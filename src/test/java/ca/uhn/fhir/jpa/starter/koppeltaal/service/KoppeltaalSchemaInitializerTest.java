@@ -0,0 +1,54 @@
+package ca.uhn.fhir.jpa.starter.koppeltaal.service;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import java.sql.SQLException;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+class KoppeltaalSchemaInitializerTest {
+
+  @Test
+  public void shouldCreateTheTablesOnce() {
+    JdbcTemplate jdbcTemplate = new JdbcTemplate(new DriverManagerDataSource("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1"));
+
+    new KoppeltaalSchemaInitializer(jdbcTemplate).init();
+    // a second replica or a restart
+    new KoppeltaalSchemaInitializer(jdbcTemplate).init();
+
+    for (String table : new String[]{JdbcScopeStore.TABLE_NAME, ResourceOriginIndex.TABLE_NAME,
+      SubscriptionRetryStore.TABLE_NAME, SubscriptionDeadLetterStore.TABLE_NAME}) {
+      assertEquals(0, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM " + table, Integer.class));
+    }
+  }
+
+  @Test
+  public void shouldIgnoreATableCreatedByAnotherReplica() {
+    JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+    // what Postgres reports when two replicas run CREATE TABLE IF NOT EXISTS at the same time
+    doThrow(new DuplicateKeyException("StatementCallback", new SQLException(
+      "duplicate key value violates unique constraint \"pg_type_typname_nsp_index\"", "23505")))
+      .doNothing()
+      .when(jdbcTemplate).execute(anyString());
+
+    new KoppeltaalSchemaInitializer(jdbcTemplate).init();
+
+    verify(jdbcTemplate, times(6)).execute(anyString());
+  }
+
+  @Test
+  public void shouldFailOnOtherErrors() {
+    JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+    doThrow(new DataAccessResourceFailureException("StatementCallback", new SQLException("permission denied", "42501")))
+      .when(jdbcTemplate).execute(anyString());
+
+    assertThrows(DataAccessResourceFailureException.class, () -> new KoppeltaalSchemaInitializer(jdbcTemplate).init());
+  }
+}
@@ -0,0 +1,117 @@
+package ca.uhn.fhir.jpa.starter.koppeltaal.service;
+
+import ca.uhn.fhir.jpa.starter.koppeltaal.config.FhirServerSecurityConfiguration;
+import ca.uhn.fhir.jpa.starter.koppeltaal.util.ResourceOriginUtil;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Task;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.*;
+
+class ResourceOriginIndexTest {
+
+  private DriverManagerDataSource dataSource;
+  private JdbcTemplate jdbcTemplate;
+  private ResourceOriginIndex index;
+
+  @BeforeEach
+  void init() {
+    dataSource = new DriverManagerDataSource("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+    jdbcTemplate = spy(new JdbcTemplate(dataSource));
+    new KoppeltaalSchemaInitializer(jdbcTemplate).init();
+    index = newIndex();
+  }
+
+  @AfterEach
+  void reset() {
+    ResourceOriginUtil.setResourceOriginIndex(null);
+  }
+
+  @Test
+  public void shouldIndexResourceOrigin() {
+    index.index(task("1", "Device/123"));
+
+    assertEquals(Optional.of("Device/123"), index.getResourceOrigin("Task", "1"));
+    assertEquals(Optional.empty(), index.getResourceOrigin("Task", "2"));
+    assertEquals(Optional.empty(), index.getResourceOrigin("Patient", "1"));
+
+    // another replica reads the same table
+    assertEquals(Optional.of("Device/123"), newIndex().getResourceOrigin("Task", "1"));
+  }
+
+  @Test
+  public void shouldServeLookupsFromMemory() {
+    index.index(task("1", "Device/123"));
+    index.getResourceOrigin("Task", "1");
+    index.getResourceOrigin("Task", "1");
+
+    verify(jdbcTemplate, never()).queryForList(startsWith("SELECT"), eq(String.class), any(Object[].class));
+
+    // indexing an unchanged resource-origin again is a no-op
+    index.index(task("1", "Device/123"));
+    verify(jdbcTemplate, times(1)).update(startsWith("INSERT"), any(Object[].class));
+  }
+
+  @Test
+  public void shouldRemoveDeletedResources() {
+    index.index(task("1", "Device/123"));
+    index.remove("Task", "1");
+
+    assertEquals(Optional.empty(), index.getResourceOrigin("Task", "1"));
+  }
+
+  @Test
+  public void shouldNotCacheTheResourceOriginOfARolledBackResource() {
+    TransactionTemplate transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+
+    transactionTemplate.executeWithoutResult((status) -> {
+      index.index(task("1", "Device/123"));
+      status.setRollbackOnly();
+    });
+
+    assertEquals(Optional.empty(), index.getResourceOrigin("Task", "1"));
+
+    transactionTemplate.executeWithoutResult((status) -> index.index(task("1", "Device/456")));
+    clearInvocations(jdbcTemplate);
+
+    assertEquals(Optional.of("Device/456"), index.getResourceOrigin("Task", "1"));
+    verify(jdbcTemplate, never()).queryForList(startsWith("SELECT"), eq(String.class), any(Object[].class));
+  }
+
+  @Test
+  public void shouldIgnoreResourcesWithoutResourceOrigin() {
+    Task task = new Task();
+    task.setId("Task/1");
+    index.index(task);
+
+    assertEquals(Optional.empty(), index.getResourceOrigin("Task", "1"));
+  }
+
+  private ResourceOriginIndex newIndex() {
+    ResourceOriginIndex resourceOriginIndex = new ResourceOriginIndex(
+      new FhirServerSecurityConfiguration.ResourceOriginIndex(), jdbcTemplate, new SimpleMeterRegistry());
+    resourceOriginIndex.init();
+    return resourceOriginIndex;
+  }
+
+  private static Task task(String id, String resourceOrigin) {
+    Task task = new Task();
+    task.setId("Task/" + id);
+    task.addExtension(new Extension(ResourceOriginUtil.RESOURCE_ORIGIN_SYSTEM, new Reference(resourceOrigin)));
+    return task;
+  }
+}
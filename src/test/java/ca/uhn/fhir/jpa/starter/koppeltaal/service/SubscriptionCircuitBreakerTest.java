@@ -0,0 +1,157 @@
+package ca.uhn.fhir.jpa.starter.koppeltaal.service;
+
+import ca.uhn.fhir.jpa.starter.koppeltaal.config.SubscriptionRetryProperties;
+import ca.uhn.fhir.jpa.starter.koppeltaal.interceptor.SubscriptionCircuitBreakerInterceptor;
+import ca.uhn.fhir.jpa.subscription.model.CanonicalSubscription;
+import ca.uhn.fhir.jpa.subscription.model.CanonicalSubscriptionChannelType;
+import ca.uhn.fhir.jpa.subscription.model.ResourceDeliveryMessage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.r4.model.IdType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+class SubscriptionCircuitBreakerTest {
+
+  private static final String DOWN = "https://down.example.com/fhir/notify";
+  private static final String UP = "https://up.example.com/fhir/notify";
+
+  private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+  private final MutableClock clock = new MutableClock();
+  private SubscriptionCircuitBreaker circuitBreaker;
+  private final SubscriptionDeadLetterStore deadLetterStore = mock(SubscriptionDeadLetterStore.class);
+  private SubscriptionCircuitBreakerInterceptor interceptor;
+
+  @BeforeEach
+  void init() {
+    SubscriptionRetryProperties retryProperties = new SubscriptionRetryProperties();
+    retryProperties.getCircuitBreaker().setFailureThreshold(3);
+    retryProperties.getCircuitBreaker().setOpenDuration(30);
+    circuitBreaker = new SubscriptionCircuitBreaker(retryProperties, meterRegistry, clock);
+    interceptor = new SubscriptionCircuitBreakerInterceptor(circuitBreaker, deadLetterStore);
+  }
+
+  @Test
+  public void shouldOpenOnlyTheBreakerOfTheFailingHost() {
+    for (int i = 0; i < 3; i++) {
+      assertTrue(interceptor.beforeDelivery(newMessage(DOWN, CanonicalSubscriptionChannelType.RESTHOOK)));
+      interceptor.afterDeliveryFailed(newMessage(DOWN, CanonicalSubscriptionChannelType.RESTHOOK), new RuntimeException());
+    }
+
+    assertEquals(SubscriptionCircuitBreaker.State.OPEN, circuitBreaker.getState(DOWN));
+    // other paths on the same host share the breaker
+    assertFalse(interceptor.beforeDelivery(newMessage("https://DOWN.example.com/other", CanonicalSubscriptionChannelType.RESTHOOK)));
+    assertTrue(interceptor.beforeDelivery(newMessage(UP, CanonicalSubscriptionChannelType.RESTHOOK)));
+    // only REST-hooks are guarded
+    assertTrue(interceptor.beforeDelivery(newMessage(DOWN, CanonicalSubscriptionChannelType.MESSAGE)));
+
+    assertEquals(2, meterRegistry.get("koppeltaal.subscription.circuit-breaker.state").tag("host", "down.example.com").gauge().value());
+    assertEquals(1, meterRegistry.get("koppeltaal.subscription.circuit-breaker.rejected").tag("host", "down.example.com").counter().count());
+    // the rejected delivery is kept for a replay
+    verify(deadLetterStore).add(any(ResourceDeliveryMessage.class), contains("https://DOWN.example.com/other"), eq(0));
+  }
+
+  @Test
+  public void shouldResetTheFailuresOnSuccess() {
+    circuitBreaker.deliveryFailed(DOWN);
+    circuitBreaker.deliveryFailed(DOWN);
+    circuitBreaker.deliverySucceeded(DOWN);
+    circuitBreaker.deliveryFailed(DOWN);
+    circuitBreaker.deliveryFailed(DOWN);
+
+    assertEquals(SubscriptionCircuitBreaker.State.CLOSED, circuitBreaker.getState(DOWN));
+    assertTrue(circuitBreaker.allowDelivery(DOWN));
+  }
+
+  @Test
+  public void shouldLetASingleTrialThroughAfterTheOpenDuration() {
+    for (int i = 0; i < 3; i++) {
+      circuitBreaker.deliveryFailed(DOWN);
+    }
+    clock.advance(Duration.ofSeconds(29));
+    assertFalse(circuitBreaker.allowDelivery(DOWN));
+
+    clock.advance(Duration.ofSeconds(1));
+    assertTrue(circuitBreaker.allowDelivery(DOWN));
+    assertEquals(SubscriptionCircuitBreaker.State.HALF_OPEN, circuitBreaker.getState(DOWN));
+    assertFalse(circuitBreaker.allowDelivery(DOWN));
+
+    // a failed trial opens the breaker again
+    circuitBreaker.deliveryFailed(DOWN);
+    assertEquals(SubscriptionCircuitBreaker.State.OPEN, circuitBreaker.getState(DOWN));
+    assertFalse(circuitBreaker.allowDelivery(DOWN));
+
+    // a successful trial closes it
+    clock.advance(Duration.ofSeconds(30));
+    assertTrue(circuitBreaker.allowDelivery(DOWN));
+    circuitBreaker.deliverySucceeded(DOWN);
+    assertEquals(SubscriptionCircuitBreaker.State.CLOSED, circuitBreaker.getState(DOWN));
+    assertEquals(0, meterRegistry.get("koppeltaal.subscription.circuit-breaker.state").tag("host", "down.example.com").gauge().value());
+  }
+
+  @Test
+  public void shouldAllowEverythingWhenDisabled() {
+    SubscriptionRetryProperties retryProperties = new SubscriptionRetryProperties();
+    retryProperties.getCircuitBreaker().setEnabled(false);
+    circuitBreaker = new SubscriptionCircuitBreaker(retryProperties, meterRegistry, clock);
+
+    for (int i = 0; i < 10; i++) {
+      circuitBreaker.deliveryFailed(DOWN);
+    }
+
+    assertTrue(circuitBreaker.allowDelivery(DOWN));
+    assertTrue(meterRegistry.find("koppeltaal.subscription.circuit-breaker.state").gauges().isEmpty());
+  }
+
+  @Test
+  public void shouldUseTheHostAndPortAsKey() {
+    assertEquals("example.com:8443", SubscriptionCircuitBreaker.getHost("https://Example.com:8443/notify"));
+    assertEquals("not a url", SubscriptionCircuitBreaker.getHost("not a url"));
+    assertEquals("", SubscriptionCircuitBreaker.getHost(null));
+  }
+
+  private static ResourceDeliveryMessage newMessage(String endpoint, CanonicalSubscriptionChannelType channelType) {
+    CanonicalSubscription subscription = new CanonicalSubscription();
+    subscription.setIdElement(new IdType("Subscription/1"));
+    subscription.setEndpointUrl(endpoint);
+    subscription.setChannelType(channelType);
+    ResourceDeliveryMessage message = new ResourceDeliveryMessage();
+    message.setSubscription(subscription);
+    return message;
+  }
+
+  private static class MutableClock extends Clock {
+    private Instant instant = Instant.parse("2026-01-01T00:00:00Z");
+
+    void advance(Duration duration) {
+      instant = instant.plus(duration);
+    }
+
+    @Override
+    public ZoneId getZone() {
+      return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+      return this;
+    }
+
+    @Override
+    public Instant instant() {
+      return instant;
+    }
+  }
+}
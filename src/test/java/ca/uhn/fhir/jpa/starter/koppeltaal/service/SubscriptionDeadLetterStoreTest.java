@@ -0,0 +1,177 @@
+package ca.uhn.fhir.jpa.starter.koppeltaal.service;
+
+import ca.uhn.fhir.jpa.starter.koppeltaal.config.SubscriptionRetryProperties;
+import ca.uhn.fhir.jpa.starter.koppeltaal.interceptor.SubscriptionDeadLetterInterceptor;
+import ca.uhn.fhir.jpa.starter.koppeltaal.util.SubscriptionMessageAttributes;
+import ca.uhn.fhir.jpa.subscription.channel.subscription.SubscriptionChannelRegistry;
+import ca.uhn.fhir.jpa.subscription.match.registry.ActiveSubscription;
+import ca.uhn.fhir.jpa.subscription.match.registry.SubscriptionRegistry;
+import ca.uhn.fhir.jpa.subscription.model.CanonicalSubscription;
+import ca.uhn.fhir.jpa.subscription.model.ResourceDeliveryJsonMessage;
+import ca.uhn.fhir.jpa.subscription.model.ResourceDeliveryMessage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.r4.model.IdType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageDeliveryException;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class SubscriptionDeadLetterStoreTest {
+
+  private static final Instant NOW = Instant.parse("2026-01-01T12:00:00Z");
+
+  private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+  private final SubscriptionRegistry subscriptionRegistry = mock(SubscriptionRegistry.class);
+  private final SubscriptionChannelRegistry subscriptionChannelRegistry = mock(SubscriptionChannelRegistry.class);
+  private final MessageChannel channel = mock(MessageChannel.class);
+  private final SubscriptionRetryProperties retryProperties = new SubscriptionRetryProperties();
+  private JdbcTemplate jdbcTemplate;
+  private SubscriptionDeadLetterStore store;
+
+  @BeforeEach
+  void init() {
+    retryProperties.setMaxAttempts(3);
+    retryProperties.getDeadLetter().setReplayBatchSize(2);
+    jdbcTemplate = new JdbcTemplate(new DriverManagerDataSource("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1"));
+    new KoppeltaalSchemaInitializer(jdbcTemplate).init();
+    store = newStore(Clock.fixed(NOW, ZoneOffset.UTC));
+
+    ActiveSubscription activeSubscription = mock(ActiveSubscription.class);
+    when(activeSubscription.getChannelName()).thenReturn("resthook-1");
+    when(activeSubscription.getSubscription()).thenReturn(subscription("1", "https://fixed.example.com/notify"));
+    when(subscriptionRegistry.get("1")).thenReturn(activeSubscription);
+    when(subscriptionChannelRegistry.getDeliverySenderChannel("resthook-1")).thenReturn(channel);
+  }
+
+  @Test
+  public void shouldDeadLetterTheLastFailedAttempt() {
+    SubscriptionDeadLetterInterceptor interceptor = new SubscriptionDeadLetterInterceptor(store, retryProperties);
+    ResourceDeliveryMessage message = message("1", "Task/1/_history/2");
+    message.setAttribute(SubscriptionMessageAttributes.TRACE_ID, "trace-1");
+    message.setAttribute(SubscriptionMessageAttributes.REQUEST_ID, "request-1");
+
+    // not in a retry, so this is the first attempt of 3
+    interceptor.afterDeliveryFailed(message, new RuntimeException("Connection refused"));
+    assertEquals(0, store.count("1"));
+
+    store.add(message, "Connection refused", 3);
+
+    Map<String, Object> row = jdbcTemplate.queryForMap("SELECT * FROM " + SubscriptionDeadLetterStore.TABLE_NAME);
+    assertEquals("1", row.get("SUBSCRIPTION_ID"));
+    assertEquals("Task/1/_history/2", row.get("RESOURCE_REFERENCE"));
+    assertEquals("trace-1", row.get("TRACE_ID"));
+    assertEquals("request-1", row.get("REQUEST_ID"));
+    assertEquals("Connection refused", row.get("ERROR"));
+    assertEquals(3, row.get("ATTEMPTS"));
+    assertEquals(1, meterRegistry.get("koppeltaal.subscription.dead-letter.added").counter().count());
+  }
+
+  @Test
+  public void shouldReplayInBatchesWithTheCurrentSubscription() {
+    for (int i = 0; i < 3; i++) {
+      store.add(message("1", "Task/" + i + "/_history/1"), "Read timed out", 3);
+    }
+
+    // nothing is replayed until asked for
+    assertEquals(0, store.replay());
+    assertEquals(3, store.requestReplay("1", null));
+
+    assertEquals(2, store.replay());
+    assertEquals(1, store.count("1"));
+    assertEquals(1, store.replay());
+    assertEquals(0, store.count("1"));
+
+    ArgumentCaptor<ResourceDeliveryJsonMessage> captor = ArgumentCaptor.forClass(ResourceDeliveryJsonMessage.class);
+    verify(channel, times(3)).send(captor.capture());
+    List<ResourceDeliveryMessage> sent = captor.getAllValues().stream().map(ResourceDeliveryJsonMessage::getPayload).toList();
+    assertEquals(Set.of("Task/0/_history/1", "Task/1/_history/1", "Task/2/_history/1"),
+      sent.stream().map(ResourceDeliveryMessage::getPayloadId).collect(Collectors.toSet()));
+    assertEquals("https://fixed.example.com/notify", sent.get(0).getSubscription().getEndpointUrl());
+    assertEquals(3, SubscriptionMessageAttributes.getAttempts(sent.get(0)));
+    assertEquals(3, meterRegistry.get("koppeltaal.subscription.dead-letter.replayed").counter().count());
+  }
+
+  @Test
+  public void shouldKeepTheNotificationsTheChannelRejects() {
+    for (int i = 0; i < 3; i++) {
+      store.add(message("1", "Task/" + i + "/_history/1"), "Read timed out", 3);
+    }
+    store.requestReplay("1", null);
+    doThrow(new MessageDeliveryException("Executor is shutting down")).doReturn(true).when(channel).send(any());
+
+    // the rejected one does not end the batch
+    assertEquals(1, store.replay());
+    assertEquals(2, store.count("1"));
+    assertEquals(2, store.replay());
+    assertEquals(0, store.count("1"));
+    verify(channel, times(4)).send(any());
+  }
+
+  @Test
+  public void shouldAddUpTheAttemptsOfAReplayedNotification() {
+    ResourceDeliveryMessage message = message("1", "Task/1/_history/1");
+    SubscriptionMessageAttributes.setAttempts(message, 3);
+
+    store.add(message, "Read timed out", 2);
+
+    assertEquals(5, jdbcTemplate.queryForObject("SELECT ATTEMPTS FROM " + SubscriptionDeadLetterStore.TABLE_NAME, Integer.class));
+  }
+
+  @Test
+  public void shouldOnlyReplayTheRequestedNotifications() {
+    store.add(message("1", "Task/1/_history/1"), "error", 1);
+    store.add(message("2", "Task/2/_history/1"), "error", 1);
+    newStore(Clock.fixed(NOW.plusSeconds(60), ZoneOffset.UTC)).add(message("1", "Task/3/_history/1"), "error", 1);
+
+    assertEquals(1, store.requestReplay("1", Date.from(NOW.plusSeconds(30))));
+    // the one requested already is not counted again
+    assertEquals(1, store.requestReplay("1", null));
+    assertEquals(1, store.requestReplay(null, null));
+  }
+
+  @Test
+  public void shouldDropTheNotificationsOfInactiveSubscriptions() {
+    store.add(message("2", "Task/1/_history/1"), "error", 1);
+    store.requestReplay(null, null);
+
+    assertEquals(0, store.replay());
+    assertEquals(0, store.count("2"));
+    verify(channel, never()).send(any());
+  }
+
+  private SubscriptionDeadLetterStore newStore(Clock clock) {
+    return new SubscriptionDeadLetterStore(retryProperties.getDeadLetter(), jdbcTemplate, subscriptionRegistry,
+      subscriptionChannelRegistry, meterRegistry, clock);
+  }
+
+  private static ResourceDeliveryMessage message(String subscriptionId, String payloadId) {
+    ResourceDeliveryMessage message = new ResourceDeliveryMessage();
+    message.setSubscription(subscription(subscriptionId, "https://broken.example.com/notify"));
+    message.setPayloadId(new IdType(payloadId));
+    return message;
+  }
+
+  private static CanonicalSubscription subscription(String id, String endpoint) {
+    CanonicalSubscription subscription = new CanonicalSubscription();
+    subscription.setIdElement(new IdType("Subscription/" + id));
+    subscription.setEndpointUrl(endpoint);
+    return subscription;
+  }
+}
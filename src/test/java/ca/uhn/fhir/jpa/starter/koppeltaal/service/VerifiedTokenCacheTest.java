@@ -0,0 +1,90 @@
+package ca.uhn.fhir.jpa.starter.koppeltaal.service;
+
+import ca.uhn.fhir.jpa.starter.koppeltaal.config.FhirServerSecurityConfiguration;
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.algorithms.Algorithm;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class VerifiedTokenCacheTest {
+
+  private final AtomicLong now = new AtomicLong(System.currentTimeMillis());
+  private SimpleMeterRegistry meterRegistry;
+  private VerifiedTokenCache cache;
+
+  @BeforeEach
+  void init() {
+    FhirServerSecurityConfiguration configuration = new FhirServerSecurityConfiguration();
+    configuration.setTokenValidationLeeway(60);
+    configuration.getTokenCache().setMaxTtl(300);
+    configuration.getTokenCache().setMaxSize(100);
+
+    meterRegistry = new SimpleMeterRegistry();
+    cache = new VerifiedTokenCache(configuration, meterRegistry, now::get);
+  }
+
+  @Test
+  public void shouldServeVerifiedTokenUntilExpiryMinusLeeway() {
+    String token = token(new Date(now.get() + 120_000L));
+    cache.put(token, JWT.decode(token));
+
+    assertTrue(cache.get(token).isPresent());
+
+    now.addAndGet(59_000L);
+    assertTrue(cache.get(token).isPresent());
+
+    now.addAndGet(1_000L);
+    assertFalse(cache.get(token).isPresent());
+  }
+
+  @Test
+  public void shouldNotTrustTokenLongerThanMaxTtl() {
+    String token = token(new Date(now.get() + 3_600_000L));
+    cache.put(token, JWT.decode(token));
+
+    now.addAndGet(299_000L);
+    assertTrue(cache.get(token).isPresent());
+
+    now.addAndGet(1_000L);
+    assertFalse(cache.get(token).isPresent());
+  }
+
+  @Test
+  public void shouldNotCacheTokensWithoutOrCloseToExpiry() {
+    String withoutExp = token(null);
+    cache.put(withoutExp, JWT.decode(withoutExp));
+    assertFalse(cache.get(withoutExp).isPresent());
+
+    String almostExpired = token(new Date(now.get() + 30_000L));
+    cache.put(almostExpired, JWT.decode(almostExpired));
+    assertFalse(cache.get(almostExpired).isPresent());
+
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void shouldExposeHitRate() {
+    String token = token(new Date(now.get() + 120_000L));
+    cache.get(token);
+    cache.put(token, JWT.decode(token));
+    cache.get(token);
+
+    assertEquals(1.0, meterRegistry.get("cache.gets").tag("cache", "koppeltaal.verified-tokens").tag("result", "hit").functionCounter().count());
+    assertEquals(1.0, meterRegistry.get("cache.gets").tag("cache", "koppeltaal.verified-tokens").tag("result", "miss").functionCounter().count());
+  }
+
+  private static String token(Date expiresAt) {
+    return JWT.create()
+      .withClaim("azp", "client-id")
+      .withExpiresAt(expiresAt)
+      .sign(Algorithm.HMAC256("super-secret"));
+  }
+}
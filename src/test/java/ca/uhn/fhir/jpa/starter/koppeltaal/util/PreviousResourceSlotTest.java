@@ -0,0 +1,96 @@
+package ca.uhn.fhir.jpa.starter.koppeltaal.util;
+
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.model.api.ResourceMetadataKeyEnum;
+import ca.uhn.fhir.model.primitive.InstantDt;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Task;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.Mockito.*;
+
+class PreviousResourceSlotTest {
+
+  private final IdType resourceId = new IdType("Task", "12");
+  private IFhirResourceDao<Task> taskDao;
+  private MockHttpServletRequest request;
+  private ServletRequestDetails requestDetails;
+  private Task task;
+
+  @BeforeEach
+  @SuppressWarnings("unchecked")
+  void init() {
+    task = new Task();
+    task.setId("Task/12/_history/3");
+
+    taskDao = mock(IFhirResourceDao.class);
+    when(taskDao.read(any(IIdType.class), any(RequestDetails.class))).thenReturn(task);
+    when(taskDao.read(any(IIdType.class), any(RequestDetails.class), anyBoolean())).thenReturn(task);
+
+    request = new MockHttpServletRequest();
+    requestDetails = new ServletRequestDetails();
+    requestDetails.setServletRequest(request);
+  }
+
+  @Test
+  public void shouldReadOncePerRequest() {
+    assertSame(task, PreviousResourceSlot.read(requestDetails, taskDao, resourceId, false));
+    assertSame(task, PreviousResourceSlot.read(requestDetails, taskDao, resourceId));
+
+    verify(taskDao, times(1)).read(any(IIdType.class), any(RequestDetails.class), anyBoolean());
+    verify(taskDao, never()).read(any(IIdType.class), any(RequestDetails.class));
+  }
+
+  @Test
+  public void shouldNotReuseOtherResourcesOrVersions() {
+    PreviousResourceSlot.read(requestDetails, taskDao, resourceId);
+
+    PreviousResourceSlot.read(requestDetails, taskDao, new IdType("Task", "13"));
+    PreviousResourceSlot.read(requestDetails, taskDao, new IdType("Task", "12", "2"));
+
+    verify(taskDao, times(3)).read(any(IIdType.class), any(RequestDetails.class));
+  }
+
+  @Test
+  public void shouldNotReuseWhenIfMatchDiffers() {
+    PreviousResourceSlot.read(requestDetails, taskDao, resourceId);
+
+    request.addHeader("If-Match", "W/\"3\"");
+    PreviousResourceSlot.read(requestDetails, taskDao, resourceId);
+    verify(taskDao, times(1)).read(any(IIdType.class), any(RequestDetails.class));
+
+    request.removeHeader("If-Match");
+    request.addHeader("If-Match", "W/\"4\"");
+    PreviousResourceSlot.read(requestDetails, taskDao, resourceId);
+    verify(taskDao, times(2)).read(any(IIdType.class), any(RequestDetails.class));
+  }
+
+  @Test
+  public void shouldEvictWrittenResource() {
+    PreviousResourceSlot.read(requestDetails, taskDao, resourceId);
+    PreviousResourceSlot.evict(requestDetails, task.getIdElement());
+    PreviousResourceSlot.read(requestDetails, taskDao, resourceId);
+
+    verify(taskDao, times(2)).read(any(IIdType.class), any(RequestDetails.class));
+  }
+
+  @Test
+  public void shouldNotKeepDeletedResources() {
+    ResourceMetadataKeyEnum.DELETED_AT.put(task, new InstantDt(new Date()));
+
+    PreviousResourceSlot.read(requestDetails, taskDao, resourceId, true);
+    PreviousResourceSlot.read(requestDetails, taskDao, resourceId, true);
+
+    verify(taskDao, times(2)).read(any(IIdType.class), any(RequestDetails.class), anyBoolean());
+  }
+}
@@ -0,0 +1,102 @@
+package ca.uhn.fhir.jpa.starter.koppeltaal.util;
+
+import ca.uhn.fhir.jpa.starter.koppeltaal.dto.CrudOperation;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScopePermissionTest {
+
+  @Test
+  public void shouldParseScope() {
+    ScopePermission permission = ScopePermission.parse("system/Task.cru?resource-origin=Device/1,Device/2").orElseThrow();
+
+    assertEquals("Task", permission.getResourceType());
+    assertTrue(permission.allows(CrudOperation.CREATE));
+    assertTrue(permission.allows(CrudOperation.READ));
+    assertTrue(permission.allows(CrudOperation.UPDATE));
+    assertFalse(permission.allows(CrudOperation.DELETE));
+    assertEquals(Set.of("Device/1", "Device/2"), permission.getResourceOrigins());
+  }
+
+  @Test
+  public void shouldIgnoreNonSystemOrMalformedScopes() {
+    assertTrue(ScopePermission.parse("openid").isEmpty());
+    assertTrue(ScopePermission.parse("system/Task").isEmpty());
+    assertTrue(ScopePermission.parse("system/Task.").isEmpty());
+    assertTrue(ScopePermission.parse("system/Task.write").isEmpty());
+    assertTrue(ScopePermission.parse("system/Task.r?_id=1").isEmpty());
+    assertEquals(1, ScopePermissionSet.parse("openid system/*.cruds launch").getPermissions().size());
+  }
+
+  @Test
+  public void shouldMatchResourceOriginByDeviceId() {
+    ScopePermission permission = ScopePermission.parse("system/Task.r?resource-origin=Device/123").orElseThrow();
+
+    assertTrue(permission.allowsResourceOrigin("Device/123"));
+    assertTrue(permission.allowsResourceOrigin("123"));
+    assertFalse(permission.allowsResourceOrigin("Device/12"));
+    assertFalse(permission.allowsResourceOrigin("Device/1234"));
+    assertFalse(permission.allowsResourceOrigin(null));
+  }
+
+  @Test
+  public void shouldCacheParsedScopes() {
+    String scope = "system/Task.cruds system/Patient.r?resource-origin=Device/1";
+    assertSame(PermissionUtil.getPermissions(scope), PermissionUtil.getPermissions(new String(scope)));
+  }
+
+  /**
+   * The parsed model must make the same decisions as the regular expressions it replaced.
+   */
+  @Test
+  public void shouldMatchLegacyRegexDecisions() {
+    List<String> scopeStrings = Arrays.asList(
+      "system/Task.cruds",
+      "system/*.r",
+      "system/Task.cr?resource-origin=Device/abc system/Patient.ud",
+      "system/*.cruds?resource-origin=Device/abc,Device/def",
+      "system/Task.s system/Patient.c system/Device.d?resource-origin=Device/xyz",
+      "openid system/Task.rs?resource-origin="
+    );
+    List<String> resourceTypes = Arrays.asList("Task", "Patient", "Device");
+    List<String> resourceOrigins = Arrays.asList("Device/abc", "Device/def", "Device/xyz", "Device/other");
+
+    for (String scopeString : scopeStrings) {
+      for (CrudOperation crudOperation : CrudOperation.values()) {
+        for (String resourceType : resourceTypes) {
+          for (String resourceOrigin : resourceOrigins) {
+            assertEquals(
+              legacyHasPermission(crudOperation, resourceType, resourceOrigin, scopeString),
+              ScopePermissionSet.parse(scopeString).hasPermission(crudOperation, resourceType, resourceOrigin),
+              String.format("%s %s %s %s", crudOperation, resourceType, resourceOrigin, scopeString));
+          }
+        }
+      }
+    }
+  }
+
+  private static boolean legacyHasPermission(CrudOperation crudOperation, String resourceType, String entityResourceOrigin, String scopeString) {
+    String crudsRegex;
+    switch (crudOperation) {
+      case CREATE:
+        crudsRegex = "cr?u?d?s?";
+        break;
+      case READ:
+        crudsRegex = "c?ru?d?s?";
+        break;
+      case UPDATE:
+        crudsRegex = "c?r?ud?s?";
+        break;
+      default:
+        crudsRegex = "c?r?u?ds?";
+    }
+
+    return Arrays.stream(scopeString.split(" "))
+      .anyMatch((scope) -> scope.matches("^system\\/(?:\\*|" + resourceType + ")\\." + crudsRegex + "(?:\\?resource-origin=.*" + entityResourceOrigin + ".*|$)"));
+  }
+}